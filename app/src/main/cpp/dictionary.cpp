@@ -19,6 +19,7 @@
 #include <fcntl.h>
 #include <sys/mman.h>
 #include <string.h>
+#include <math.h>
 //#define LOG_TAG "dictionary.cpp"
 //#include <cutils/log.h>
 #define LOGI
@@ -30,7 +31,19 @@
 #define DEBUG_DICT 0
 #define DICTIONARY_VERSION_MIN 200
 #define DICTIONARY_HEADER_SIZE 2
+// Minimized DAWG dictionaries. The header is followed by the size of the equivalent
+// plain trie, the number of terminal nodes and the offset of the frequency table, each
+// as a 32-bit big-endian value. Frequencies are looked up by terminal id, which is the
+// index of the word in dictionary order.
+#define DICTIONARY_VERSION_DAWG 201
+#define DAWG_HEADER_SIZE 14
 #define NOT_VALID_WORD -99
+// Partial words that cost more than this are dropped from the gesture search
+#define GESTURE_MAX_COST 1200
+// A gesture word's score is its frequency times exp(-cost / GESTURE_COST_SCALE), so a
+// key one pitch off or a skipped right angle turn weighs as much as 4 times the frequency
+#define GESTURE_COST_SCALE 72.0
+#define GESTURE_SCORE_SCALE 1000
 
 namespace latinime {
 
@@ -40,6 +53,8 @@ Dictionary::Dictionary(void *dict, int typedLetterMultiplier, int fullWordMultip
     mTypedLetterMultiplier = typedLetterMultiplier;
     mFullWordMultiplier = fullWordMultiplier;
     mDictSize = size;
+    mLetterCosts = NULL;
+    mNextPoints = NULL;
     getVersionNumber();
 }
 
@@ -64,11 +79,7 @@ int Dictionary::getSuggestions(int *codes, int codesSize, unsigned short *outWor
     mNextLettersFrequencies = nextLetters;
     mNextLettersSize = nextLettersSize;
 
-    if (checkIfDictVersionIsLatest()) {
-        getWordsRec(DICTIONARY_HEADER_SIZE, 0, mInputLength * 3, false, 1, 0, 0);
-    } else {
-        getWordsRec(0, 0, mInputLength * 3, false, 1, 0, 0);
-    }
+    getWordsRec(getRootPos(), 0, mInputLength * 3, false, 1, 0, 0, 0);
 
     // Get the word count
     suggWords = 0;
@@ -100,9 +111,40 @@ Dictionary::getVersionNumber()
 {
     mVersion = (mDict[0] & 0xFF);
     mBigram = (mDict[1] & 0xFF);
+    mDawg = false;
+    mTerminalCount = 0;
+    mFreqTableOffset = 0;
+    if (mVersion == DICTIONARY_VERSION_DAWG && mDictSize >= DAWG_HEADER_SIZE) {
+        mDawg = true;
+        // Bigrams are not stored in DAWG dictionaries
+        mBigram = 0;
+        for (int i = 6; i < 10; i++) {
+            mTerminalCount = (mTerminalCount << 8) | (mDict[i] & 0xFF);
+        }
+        for (int i = 10; i < 14; i++) {
+            mFreqTableOffset = (mFreqTableOffset << 8) | (mDict[i] & 0xFF);
+        }
+        if (mFreqTableOffset < DAWG_HEADER_SIZE
+                || mFreqTableOffset + mTerminalCount > mDictSize) {
+            mTerminalCount = 0;
+        }
+    }
     LOGI("IN NATIVE SUGGEST Version: %d Bigram : %d \n", mVersion, mBigram);
 }
 
+// Returns the position of the root node group
+int
+Dictionary::getRootPos()
+{
+    if (mDawg) {
+        return DAWG_HEADER_SIZE;
+    } else if (checkIfDictVersionIsLatest()) {
+        return DICTIONARY_HEADER_SIZE;
+    } else {
+        return 0;
+    }
+}
+
 // Checks whether it has the latest dictionary or the old dictionary
 bool
 Dictionary::checkIfDictVersionIsLatest()
@@ -163,6 +205,35 @@ Dictionary::getFreq(int *pos)
     return freq;
 }
 
+// Reads the number of words below a DAWG node
+int
+Dictionary::getWordCount(int *pos)
+{
+    if (*pos < 0 || *pos >= mDictSize) return 0;
+    // Most counts fit in a single byte
+    int count = mDict[*pos] & 0xFF;
+    if ((count & FLAG_WORD_COUNT_CONTINUED) == 0) {
+        (*pos)++;
+        return count;
+    }
+    count = 0;
+    int shift = 0;
+    while (*pos < mDictSize && shift < 32) {
+        int b = mDict[(*pos)++] & 0xFF;
+        count |= (b & ~FLAG_WORD_COUNT_CONTINUED) << shift;
+        if ((b & FLAG_WORD_COUNT_CONTINUED) == 0) break;
+        shift += 7;
+    }
+    return count;
+}
+
+int
+Dictionary::getTerminalFreq(int terminalId)
+{
+    if (terminalId < 0 || terminalId >= mTerminalCount) return 0;
+    return mDict[mFreqTableOffset + terminalId] & 0xFF;
+}
+
 int
 Dictionary::wideStrLen(unsigned short *str)
 {
@@ -286,7 +357,7 @@ static char QUOTE = '\'';
 
 void
 Dictionary::getWordsRec(int pos, int depth, int maxDepth, bool completion, int snr, int inputIndex,
-                        int diffs)
+                        int diffs, int terminalId)
 {
     // Optimization: Prune out words that are too long compared to how much was typed.
     if (depth > maxDepth) {
@@ -309,10 +380,21 @@ Dictionary::getWordsRec(int pos, int depth, int maxDepth, bool completion, int s
         // -- at flag/add
         unsigned short lowerC = toLowerCase(c);
         bool terminal = getTerminal(&pos);
+        bool hasChildren = getSecondBitOfByte(&pos);
         int childrenAddress = getAddress(&pos);
         // -- after address or flag
         int freq = 1;
-        if (terminal) freq = getFreq(&pos);
+        int childTerminalId = 0;
+        if (mDawg) {
+            // Words are numbered in dictionary order, so the children start after this
+            // node's own word and the next sibling starts after all of the children.
+            int wordsBelow = hasChildren ? getWordCount(&pos) : 0;
+            if (terminal) freq = getTerminalFreq(terminalId);
+            childTerminalId = terminalId + (terminal ? 1 : 0);
+            terminalId = childTerminalId + wordsBelow;
+        } else if (terminal) {
+            freq = getFreq(&pos);
+        }
         // -- after add or freq
 
         // If we are only doing completions, no need to look at the typed characters.
@@ -326,13 +408,14 @@ Dictionary::getWordsRec(int pos, int depth, int maxDepth, bool completion, int s
             }
             if (childrenAddress != 0) {
                 getWordsRec(childrenAddress, depth + 1, maxDepth,
-                            completion, snr, inputIndex, diffs);
+                            completion, snr, inputIndex, diffs, childTerminalId);
             }
         } else if ((c == QUOTE && currentChars[0] != QUOTE) || mSkipPos == depth) {
             // Skip the ' or other letter and continue deeper
             mWord[depth] = c;
             if (childrenAddress != 0) {
-                getWordsRec(childrenAddress, depth + 1, maxDepth, false, snr, inputIndex, diffs);
+                getWordsRec(childrenAddress, depth + 1, maxDepth, false, snr, inputIndex, diffs,
+                            childTerminalId);
             }
         } else {
             int j = 0;
@@ -352,11 +435,12 @@ Dictionary::getWordsRec(int pos, int depth, int maxDepth, bool completion, int s
                         if (childrenAddress != 0) {
                             getWordsRec(childrenAddress, depth + 1,
                                     maxDepth, true, snr * addedWeight, inputIndex + 1,
-                                    diffs + (j > 0));
+                                    diffs + (j > 0), childTerminalId);
                         }
                     } else if (childrenAddress != 0) {
                         getWordsRec(childrenAddress, depth + 1, maxDepth,
-                                false, snr * addedWeight, inputIndex + 1, diffs + (j > 0));
+                                false, snr * addedWeight, inputIndex + 1, diffs + (j > 0),
+                                childTerminalId);
                     }
                 }
                 j++;
@@ -533,7 +617,8 @@ Dictionary::searchForTerminalNode(int addressLookingFor, int frequency)
             break;
         }
     }
-    if (checkFirstCharacter(word)) {
+    // Without input codes all bigrams are returned, for prefetching
+    if (mInputLength == 0 || checkFirstCharacter(word)) {
         addWordBigram(word, depth, frequency);
     }
 }
@@ -559,11 +644,7 @@ Dictionary::checkFirstCharacter(unsigned short *word)
 bool
 Dictionary::isValidWord(unsigned short *word, int length)
 {
-    if (checkIfDictVersionIsLatest()) {
-        return (isValidWordRec(DICTIONARY_HEADER_SIZE, word, 0, length) != NOT_VALID_WORD);
-    } else {
-        return (isValidWordRec(0, word, 0, length) != NOT_VALID_WORD);
-    }
+    return (isValidWordRec(getRootPos(), word, 0, length) != NOT_VALID_WORD);
 }
 
 int
@@ -576,7 +657,11 @@ Dictionary::isValidWordRec(int pos, unsigned short *word, int offset, int length
     for (int j = 0; j < count; j++) {
         unsigned short c = getChar(&pos);
         int terminal = getTerminal(&pos);
+        bool hasChildren = getSecondBitOfByte(&pos);
         int childPos = getAddress(&pos);
+        if (mDawg && hasChildren) {
+            getWordCount(&pos);
+        }
         if (c == currentChar) {
             if (offset == length - 1) {
                 if (terminal) {
@@ -591,7 +676,7 @@ Dictionary::isValidWordRec(int pos, unsigned short *word, int offset, int length
                 }
             }
         }
-        if (terminal) {
+        if (terminal && !mDawg) {
             getFreq(&pos);
         }
         // There could be two instances of each alphabet - upper and lower case. So continue
@@ -600,5 +685,251 @@ Dictionary::isValidWordRec(int pos, unsigned short *word, int offset, int length
     return NOT_VALID_WORD;
 }
 
+// Gesture search. The path is given as points, each with the keys near it and their
+// costs, and the prefix sums of the cost of leaving out a letter at each point. A word
+// matches the path if its first letter is near the first point, its last letter near the
+// last point, and the letters in between are near points in order. The search is a beam
+// search over the trie, one letter at a time, keeping the beamWidth cheapest partial
+// words of each length. Words are scored by their frequency and the cost of the path.
+int
+Dictionary::getGestureWords(int *codes, int *costs, int *cornerSums, int pointCount,
+        int maxAlternatives, int beamWidth, unsigned short *outWords, int *frequencies,
+        int maxWordLength, int maxWords)
+{
+    if (pointCount <= 0 || beamWidth <= 0) return 0;
+    mFrequencies = frequencies;
+    mOutputChars = outWords;
+    mMaxWordLength = maxWordLength;
+    mMaxWords = maxWords;
+    mMaxAlternatives = maxAlternatives;
+    mPointCount = pointCount;
+    mCornerSums = cornerSums;
+    indexGestureKeys(codes, costs);
+
+    int maxDepth = maxWordLength - 1;
+    int wordSize = sizeof(mWord) / sizeof(mWord[0]);
+    if (maxDepth > wordSize - 1) maxDepth = wordSize - 1;
+    GestureState *states = new GestureState[maxDepth * beamWidth];
+    int *beamSizes = new int[maxDepth];
+
+    // The root is a state before the first point
+    GestureState root;
+    root.pos = getRootPos();
+    root.terminalId = 0;
+    root.point = -1;
+    root.cost = 0;
+    root.parent = -1;
+    root.c = 0;
+    beamSizes[0] = 0;
+    expandGestureState(&root, -1, 0, maxDepth, states, beamSizes, beamWidth);
+    for (int depth = 1; depth < maxDepth && beamSizes[depth - 1] > 0; depth++) {
+        GestureState *beam = states + (depth - 1) * beamWidth;
+        beamSizes[depth] = 0;
+        for (int i = 0; i < beamSizes[depth - 1]; i++) {
+            // Spell out the partial word for addWord
+            int index = i;
+            for (int d = depth - 1; d >= 0; d--) {
+                GestureState *state = states + d * beamWidth + index;
+                mWord[d] = state->c;
+                index = state->parent;
+            }
+            expandGestureState(beam + i, i, depth, maxDepth, states, beamSizes, beamWidth);
+        }
+    }
+
+    delete[] beamSizes;
+    delete[] states;
+    delete[] mLetterCosts;
+    delete[] mNextPoints;
+    mLetterCosts = NULL;
+    mNextPoints = NULL;
+
+    int count = 0;
+    while (count < mMaxWords && mFrequencies[count] > 0) count++;
+    return count;
+}
+
+// Finds the distinct keys near the path and tabulates where each of them is near
+void
+Dictionary::indexGestureKeys(int *codes, int *costs)
+{
+    mGestureKeyCount = 0;
+    memset(mGestureKeyIndex, -1, sizeof(mGestureKeyIndex));
+    int total = mPointCount * mMaxAlternatives;
+    for (int i = 0; i < total; i++) {
+        int code = codes[i];
+        if (code <= 0 || mGestureKeyCount >= MAX_GESTURE_KEYS) continue;
+        if (getGestureKey(code, code) >= 0) continue;
+        if (code < 256) mGestureKeyIndex[code] = mGestureKeyCount;
+        mGestureKeys[mGestureKeyCount++] = code;
+    }
+
+    mLetterCosts = new int[mGestureKeyCount * mPointCount];
+    mNextPoints = new int[mGestureKeyCount * (mPointCount + 1)];
+    for (int i = 0; i < mGestureKeyCount * mPointCount; i++) {
+        mLetterCosts[i] = -1;
+    }
+    for (int point = 0; point < mPointCount; point++) {
+        for (int j = 0; j < mMaxAlternatives; j++) {
+            int code = codes[point * mMaxAlternatives + j];
+            if (code <= 0) break;
+            int key = getGestureKey(code, code);
+            if (key >= 0 && mLetterCosts[key * mPointCount + point] < 0) {
+                mLetterCosts[key * mPointCount + point] = costs[point * mMaxAlternatives + j];
+            }
+        }
+    }
+    for (int key = 0; key < mGestureKeyCount; key++) {
+        int *next = mNextPoints + key * (mPointCount + 1);
+        next[mPointCount] = mPointCount;
+        for (int point = mPointCount - 1; point >= 0; point--) {
+            next[point] = mLetterCosts[key * mPointCount + point] >= 0 ? point : next[point + 1];
+        }
+    }
+}
+
+// Returns the index of the key for a letter, or -1 if it's not near the path
+int
+Dictionary::getGestureKey(unsigned short c, unsigned short lowerC)
+{
+    if (lowerC < 256 && mGestureKeyIndex[lowerC] >= 0) return mGestureKeyIndex[lowerC];
+    if (c < 256) return mGestureKeyIndex[c];
+    for (int i = 0; i < mGestureKeyCount; i++) {
+        if (mGestureKeys[i] == lowerC || mGestureKeys[i] == c) return i;
+    }
+    return -1;
+}
+
+// Returns the cost of the turns between two matched points. A letter matched next to a
+// turn counts as taking it, so only the points at least two steps from both ends count.
+int
+Dictionary::getGestureSkipCost(int from, int to)
+{
+    if (to - from < 4) return 0;
+    return mCornerSums[to - 1] - mCornerSums[from + 2];
+}
+
+// Matches the next letter of a word at or after the point of the previous letter. The
+// letter goes to the cheapest point of the first run of points it's near, so that a
+// letter isn't matched far ahead when the path passes near it early on.
+int
+Dictionary::findGesturePoint(int from, int key, int *point)
+{
+    int *letterCosts = mLetterCosts + key * mPointCount;
+    int best = 0;
+    *point = -1;
+    for (int i = mNextPoints[key * (mPointCount + 1) + from];
+            i < mPointCount && letterCosts[i] >= 0; i++) {
+        int cost = letterCosts[i] + getGestureSkipCost(from, i);
+        if (*point < 0 || cost < best) {
+            best = cost;
+            *point = i;
+        }
+    }
+    return best;
+}
+
+static void
+addGestureState(GestureState *beam, int *size, int beamWidth, const GestureState &state)
+{
+    int n = *size;
+    if (n == beamWidth && state.cost >= beam[n - 1].cost) return;
+    // The beam is sorted by cost, equal costs keep the order they were found in
+    int low = 0;
+    int high = n;
+    while (low < high) {
+        int mid = (low + high) >> 1;
+        if (beam[mid].cost <= state.cost) {
+            low = mid + 1;
+        } else {
+            high = mid;
+        }
+    }
+    int moved = (n == beamWidth ? n - 1 : n) - low;
+    memmove(beam + low + 1, beam + low, moved * sizeof(GestureState));
+    beam[low] = state;
+    if (n < beamWidth) *size = n + 1;
+}
+
+// Extends a partial word by each letter of its children. mWord holds the partial word.
+void
+Dictionary::expandGestureState(const GestureState *from, int fromIndex, int depth,
+        int maxDepth, GestureState *states, int *beamSizes, int beamWidth)
+{
+    GestureState *beam = states + depth * beamWidth;
+    int last = mPointCount - 1;
+    int pos = from->pos;
+    int count = getCount(&pos);
+    int terminalId = from->terminalId;
+    for (int i = 0; i < count; i++) {
+        unsigned short c = getChar(&pos);
+        unsigned short lowerC = toLowerCase(c);
+        bool terminal = getTerminal(&pos);
+        bool hasChildren = getSecondBitOfByte(&pos);
+        int childrenAddress = getAddress(&pos);
+        int freq = 1;
+        int childTerminalId = 0;
+        if (mDawg) {
+            int wordsBelow = hasChildren ? getWordCount(&pos) : 0;
+            if (terminal) freq = getTerminalFreq(terminalId);
+            childTerminalId = terminalId + (terminal ? 1 : 0);
+            terminalId = childTerminalId + wordsBelow;
+        } else if (terminal) {
+            freq = getFreq(&pos);
+        }
+
+        int point;
+        int cost;
+        // Cost of the word if it ends here, -1 if it doesn't reach the last point
+        int finalCost = -1;
+        if (c == QUOTE) {
+            // An apostrophe has no key on the path
+            if (from->point < 0) continue;
+            point = from->point;
+            cost = from->cost;
+            if (point == last) finalCost = cost;
+        } else {
+            int key = getGestureKey(c, lowerC);
+            if (key < 0) continue;
+            int *letterCosts = mLetterCosts + key * mPointCount;
+            int start;
+            if (from->point < 0) {
+                // The first letter is where the path starts
+                if (letterCosts[0] < 0) continue;
+                point = 0;
+                cost = letterCosts[0];
+                start = 0;
+            } else {
+                cost = from->cost + findGesturePoint(from->point, key, &point);
+                if (point < 0) continue;
+                start = from->point;
+            }
+            if (point == last) {
+                finalCost = cost;
+            } else if (terminal && letterCosts[last] >= 0) {
+                finalCost = (from->point < 0 ? cost : from->cost)
+                        + getGestureSkipCost(start, last) + letterCosts[last];
+            }
+        }
+        if (cost > GESTURE_MAX_COST) continue;
+
+        mWord[depth] = c;
+        if (terminal && finalCost >= 0 && finalCost <= GESTURE_MAX_COST) {
+            int score = (int) (freq * GESTURE_SCORE_SCALE * exp(-finalCost / GESTURE_COST_SCALE));
+            if (score > mFrequencies[mMaxWords - 1]) addWord(mWord, depth + 1, score);
+        }
+        if (childrenAddress != 0 && depth + 1 < maxDepth) {
+            GestureState state;
+            state.pos = childrenAddress;
+            state.terminalId = childTerminalId;
+            state.point = point;
+            state.cost = cost;
+            state.parent = fromIndex;
+            state.c = c;
+            addGestureState(beam, &beamSizes[depth], beamWidth, state);
+        }
+    }
+}
+
 
 } // namespace latinime
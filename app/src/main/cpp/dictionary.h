@@ -33,6 +33,26 @@ namespace latinime {
 #define FLAG_BIGRAM_CONTINUED 0x80
 #define FLAG_BIGRAM_FREQ 0x7F
 
+// In a DAWG dictionary, nodes carry no frequency or bigram data. A node with children is
+// followed by the number of words below it, as a little-endian base-128 varint whose bytes
+// have this bit set when another byte follows.
+#define FLAG_WORD_COUNT_CONTINUED 0x80
+
+// The most distinct keys a gesture path is matched against
+#define MAX_GESTURE_KEYS 64
+
+// A partial word in the gesture search: the node group of its children, the path point
+// its last letter was matched at, the cost so far, and its last letter with the index of
+// the word it extends in the beam of the previous length.
+struct GestureState {
+    int pos;
+    int terminalId;
+    int point;
+    int cost;
+    int parent;
+    unsigned short c;
+};
+
 class Dictionary {
 public:
     Dictionary(void *dict, int typedLetterMultipler, int fullWordMultiplier, int dictSize);
@@ -43,6 +63,9 @@ public:
             unsigned short *outWords, int *frequencies, int maxWordLength, int maxBigrams,
             int maxAlternatives);
     bool isValidWord(unsigned short *word, int length);
+    int getGestureWords(int *codes, int *costs, int *cornerSums, int pointCount,
+            int maxAlternatives, int beamWidth, unsigned short *outWords, int *frequencies,
+            int maxWordLength, int maxWords);
     void setAsset(void *asset) { mAsset = asset; }
     void *getAsset() { return mAsset; }
     ~Dictionary();
@@ -55,6 +78,9 @@ private:
     int getBigramAddress(int *pos, bool advance);
     int getFreq(int *pos);
     int getBigramFreq(int *pos);
+    int getWordCount(int *pos);
+    int getTerminalFreq(int terminalId);
+    int getRootPos();
     void searchForTerminalNode(int address, int frequency);
 
     bool getFirstBitOfByte(int *pos) { return (mDict[*pos] & 0x80) > 0; }
@@ -70,9 +96,15 @@ private:
     bool addWordBigram(unsigned short *word, int length, int frequency);
     unsigned short toLowerCase(unsigned short c);
     void getWordsRec(int pos, int depth, int maxDepth, bool completion, int frequency,
-            int inputIndex, int diffs);
+            int inputIndex, int diffs, int terminalId);
     int isValidWordRec(int pos, unsigned short *word, int offset, int length);
     void registerNextLetter(unsigned short c);
+    void indexGestureKeys(int *codes, int *costs);
+    int getGestureKey(unsigned short c, unsigned short lowerC);
+    int getGestureSkipCost(int from, int to);
+    int findGesturePoint(int from, int key, int *point);
+    void expandGestureState(const GestureState *from, int fromIndex, int depth, int maxDepth,
+            GestureState *states, int *beamSizes, int beamWidth);
 
     unsigned char *mDict;
     void *mAsset;
@@ -98,6 +130,21 @@ private:
     int mNextLettersSize;
     int mVersion;
     int mBigram;
+    bool mDawg;
+    int mTerminalCount;
+    int mFreqTableOffset;
+
+    // State of the current gesture search
+    int mPointCount;
+    int *mCornerSums;
+    int mGestureKeys[MAX_GESTURE_KEYS];
+    int mGestureKeyCount;
+    // Key index of each code below 256, -1 if it's not near the path
+    int mGestureKeyIndex[256];
+    // Cost of each key at each point or -1, and the next point at or after each point
+    // where the key is near, pointCount if there's none
+    int *mLetterCosts;
+    int *mNextPoints;
 };
 
 // ----------------------------------------------------------------------------
@@ -49,6 +49,9 @@ static jlong latinime_BinaryDictionary_open
         fprintf(stderr, "DICT: Dictionary buffer is null\n");
         return 0;
     }
+    // All reads are bounded by the size, so it must not exceed the buffer
+    jlong capacity = env->GetDirectBufferCapacity(dictDirectBuffer);
+    if (capacity >= 0 && size > capacity) size = (jint) capacity;
     Dictionary *dictionary = new Dictionary(dict, typedLetterMultiplier, fullWordMultiplier, size);
     return (jlong) dictionary;
 }
@@ -106,6 +109,32 @@ static int latinime_BinaryDictionary_getBigrams
     return count;
 }
 
+static int latinime_BinaryDictionary_getGestureWords
+        (JNIEnv *env, jobject object, jlong dict, jintArray codesArray, jintArray costsArray,
+         jintArray cornerSumsArray, jint pointCount, jint maxAlternatives, jint beamWidth,
+         jcharArray outputArray, jintArray frequencyArray, jint maxWordLength, jint maxWords)
+{
+    Dictionary *dictionary = (Dictionary*) dict;
+    if (dictionary == NULL) return 0;
+
+    int *codes = env->GetIntArrayElements(codesArray, NULL);
+    int *costs = env->GetIntArrayElements(costsArray, NULL);
+    int *cornerSums = env->GetIntArrayElements(cornerSumsArray, NULL);
+    jchar *outputChars = env->GetCharArrayElements(outputArray, NULL);
+    int *frequencies = env->GetIntArrayElements(frequencyArray, NULL);
+
+    int count = dictionary->getGestureWords(codes, costs, cornerSums, pointCount,
+            maxAlternatives, beamWidth, (unsigned short*) outputChars, frequencies,
+            maxWordLength, maxWords);
+
+    env->ReleaseIntArrayElements(codesArray, codes, JNI_ABORT);
+    env->ReleaseIntArrayElements(costsArray, costs, JNI_ABORT);
+    env->ReleaseIntArrayElements(cornerSumsArray, cornerSums, JNI_ABORT);
+    env->ReleaseCharArrayElements(outputArray, outputChars, 0);
+    env->ReleaseIntArrayElements(frequencyArray, frequencies, 0);
+
+    return count;
+}
 
 static jboolean latinime_BinaryDictionary_isValidWord
         (JNIEnv *env, jobject object, jlong dict, jcharArray wordArray, jint wordLength)
@@ -135,7 +164,9 @@ static JNINativeMethod gMethods[] = {
     {"closeNative",          "(J)V",            (void*)latinime_BinaryDictionary_close},
     {"getSuggestionsNative", "(J[II[C[IIIII[II)I",  (void*)latinime_BinaryDictionary_getSuggestions},
     {"isValidWordNative",    "(J[CI)Z",         (void*)latinime_BinaryDictionary_isValidWord},
-    {"getBigramsNative",    "(J[CI[II[C[IIII)I",         (void*)latinime_BinaryDictionary_getBigrams}
+    {"getBigramsNative",    "(J[CI[II[C[IIII)I",         (void*)latinime_BinaryDictionary_getBigrams},
+    {"getGestureWordsNative", "(J[I[I[IIII[C[III)I",
+                                          (void*)latinime_BinaryDictionary_getGestureWords}
 };
 
 static int registerNativeMethods(JNIEnv* env, const char* className,
@@ -16,14 +16,17 @@
 
 package org.pocketworkstation.pckeyboard;
 
+import java.io.FileInputStream;
 import java.io.InputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.util.Arrays;
 
 import android.content.Context;
+import android.content.res.AssetFileDescriptor;
 import android.util.Log;
 
 /**
@@ -47,9 +50,19 @@ public class BinaryDictionary extends Dictionary {
     private static final int TYPED_LETTER_MULTIPLIER = 2;
     private static final boolean ENABLE_MISSED_CHARACTERS = true;
 
+    // Header of a minimized DAWG dictionary, see dictionary.cpp
+    private static final int DAWG_VERSION = 201;
+    private static final int DAWG_HEADER_SIZE = 14;
+    private static final int DAWG_TRIE_SIZE_OFFSET = 2;
+    private static final int DAWG_WORD_COUNT_OFFSET = 6;
+    /** Bytes of a dictionary needed to read its header. */
+    static final int MAX_HEADER_SIZE = DAWG_HEADER_SIZE;
+
     private int mDicTypeId;
     private long mNativeDict;
     private int mDictLength;
+    // Bytes of the dictionary copied into memory, 0 if it's read in place from a mapping
+    private int mCopiedLength;
     private int[] mInputCodes = new int[MAX_WORD_LENGTH * MAX_ALTERNATIVES];
     private char[] mOutputChars = new char[MAX_WORD_LENGTH * MAX_WORDS];
     private char[] mOutputChars_bigrams = new char[MAX_WORD_LENGTH * MAX_BIGRAMS];
@@ -92,6 +105,19 @@ public class BinaryDictionary extends Dictionary {
         mDicTypeId = dicTypeId;
     }
 
+    /**
+     * Create a dictionary from uncompressed files, such as resources of another package.
+     * A dictionary in one part is read in place from a read-only mapping of the file.
+     * @param context application context for reading resources
+     * @param fds the file descriptors of the dictionary parts, closed when loaded
+     */
+    public BinaryDictionary(Context context, AssetFileDescriptor[] fds, int dicTypeId) {
+        if (fds != null && fds.length > 0) {
+            loadDictionary(fds);
+        }
+        mDicTypeId = dicTypeId;
+    }
+
     /**
      * Create a dictionary from a byte buffer. This is used for testing.
      * @param context application context for reading resources
@@ -106,9 +132,11 @@ public class BinaryDictionary extends Dictionary {
                 byteBuffer.rewind();
                 mNativeDictDirectBuffer.put(byteBuffer);
             }
-            mDictLength = byteBuffer.capacity();
+            final int length = byteBuffer.capacity();
+            // The native code bounds its reads by this, so it must be the real length
             mNativeDict = openNative(mNativeDictDirectBuffer,
-                    TYPED_LETTER_MULTIPLIER, FULL_WORD_FREQ_MULTIPLIER, mDictLength);
+                    TYPED_LETTER_MULTIPLIER, FULL_WORD_FREQ_MULTIPLIER, length);
+            mDictLength = getTrieSize(mNativeDictDirectBuffer, length, length);
         }
         mDicTypeId = dicTypeId;
     }
@@ -123,6 +151,9 @@ public class BinaryDictionary extends Dictionary {
     private native int getBigramsNative(long dict, char[] prevWord, int prevWordLength,
             int[] inputCodes, int inputCodesLength, char[] outputChars, int[] frequencies,
             int maxWordLength, int maxBigrams, int maxAlternatives);
+    private native int getGestureWordsNative(long dict, int[] codes, int[] costs,
+            int[] cornerSums, int pointCount, int maxAlternatives, int beamWidth,
+            char[] outputChars, int[] frequencies, int maxWordLength, int maxWords);
 
     private final void loadDictionary(InputStream[] is) {
         try {
@@ -135,6 +166,7 @@ public class BinaryDictionary extends Dictionary {
 
             mNativeDictDirectBuffer =
                 ByteBuffer.allocateDirect(total).order(ByteOrder.nativeOrder());
+            mCopiedLength = total;
             int got = 0;
             for (int i = 0; i < is.length; i++) {
                 got += Channels.newChannel(is[i]).read(mNativeDictDirectBuffer);
@@ -144,7 +176,7 @@ public class BinaryDictionary extends Dictionary {
             } else {
                 mNativeDict = openNative(mNativeDictDirectBuffer,
                         TYPED_LETTER_MULTIPLIER, FULL_WORD_FREQ_MULTIPLIER, total);
-                mDictLength = total;
+                mDictLength = getTrieSize(mNativeDictDirectBuffer, total, total);
             }
             if (mDictLength > 10000) Log.i("PCKeyboard", "Loaded dictionary, len=" + mDictLength);
         } catch (IOException e) {
@@ -164,6 +196,83 @@ public class BinaryDictionary extends Dictionary {
         }
     }
     
+    private final void loadDictionary(AssetFileDescriptor[] fds) {
+        try {
+            ByteBuffer[] parts = new ByteBuffer[fds.length];
+            int total = 0;
+            for (int i = 0; i < fds.length; i++) {
+                FileInputStream in = fds[i].createInputStream();
+                try {
+                    parts[i] = in.getChannel().map(FileChannel.MapMode.READ_ONLY,
+                            fds[i].getStartOffset(), fds[i].getLength());
+                } finally {
+                    in.close();
+                }
+                total += parts[i].capacity();
+            }
+            if (parts.length == 1) {
+                mNativeDictDirectBuffer = parts[0];
+            } else {
+                // The native code needs the dictionary in one piece
+                mNativeDictDirectBuffer =
+                    ByteBuffer.allocateDirect(total).order(ByteOrder.nativeOrder());
+                for (int i = 0; i < parts.length; i++) {
+                    mNativeDictDirectBuffer.put(parts[i]);
+                }
+                mCopiedLength = total;
+            }
+            mNativeDict = openNative(mNativeDictDirectBuffer,
+                    TYPED_LETTER_MULTIPLIER, FULL_WORD_FREQ_MULTIPLIER, total);
+            mDictLength = getTrieSize(mNativeDictDirectBuffer, total, total);
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to map dictionary", e);
+        } catch (UnsatisfiedLinkError e) {
+            Log.w(TAG, "Failed to load native dictionary", e);
+        } finally {
+            for (int i = 0; i < fds.length; i++) {
+                try {
+                    fds[i].close();
+                } catch (IOException e) {
+                    Log.w(TAG, "Failed to close file descriptor");
+                }
+            }
+        }
+    }
+
+    /**
+     * DAWG dictionaries are much smaller than the trie they were built from, so they
+     * record the size of that trie in their header. Report it instead of the actual
+     * length so that size thresholds apply the same way to both formats.
+     *
+     * @param available bytes of the dictionary in the buffer, at least the header
+     * @param length total length of the dictionary
+     */
+    static int getTrieSize(ByteBuffer dict, int available, int length) {
+        if (!isDawg(dict, available)) return length;
+        int size = readInt(dict, DAWG_TRIE_SIZE_OFFSET);
+        return size > length ? size : length;
+    }
+
+    /**
+     * Returns the number of words recorded in the header, or -1 if the format doesn't
+     * record it.
+     */
+    static int getWordCount(ByteBuffer dict, int available) {
+        return isDawg(dict, available) ? readInt(dict, DAWG_WORD_COUNT_OFFSET) : -1;
+    }
+
+    private static boolean isDawg(ByteBuffer dict, int available) {
+        return available >= DAWG_HEADER_SIZE && (dict.get(0) & 0xFF) == DAWG_VERSION;
+    }
+
+    private static int readInt(ByteBuffer dict, int offset) {
+        int value = 0;
+        for (int i = offset; i < offset + 4; i++) {
+            value = (value << 8) | (dict.get(i) & 0xFF);
+        }
+        return value;
+    }
+
     private final void loadDictionary(Context context, int[] resId) {
         InputStream[] is = null;
         is = new InputStream[resId.length];
@@ -177,6 +286,7 @@ public class BinaryDictionary extends Dictionary {
     @Override
     public void getBigrams(final WordComposer codes, final CharSequence previousWord,
             final WordCallback callback, int[] nextLettersFrequencies) {
+        if (mNativeDict == 0) return;
 
         char[] chars = previousWord.toString().toCharArray();
         Arrays.fill(mOutputChars_bigrams, (char) 0);
@@ -184,9 +294,12 @@ public class BinaryDictionary extends Dictionary {
 
         int codesSize = codes.size();
         Arrays.fill(mInputCodes, -1);
-        int[] alternatives = codes.getCodesAt(0);
-        System.arraycopy(alternatives, 0, mInputCodes, 0,
-                Math.min(alternatives.length, MAX_ALTERNATIVES));
+        // With no codes, all bigrams of the previous word are returned
+        if (codesSize > 0) {
+            int[] alternatives = codes.getCodesAt(0);
+            System.arraycopy(alternatives, 0, mInputCodes, 0,
+                    Math.min(alternatives.length, MAX_ALTERNATIVES));
+        }
 
         int count = getBigramsNative(mNativeDict, chars, chars.length, mInputCodes, codesSize,
                 mOutputChars_bigrams, mFrequencies_bigrams, MAX_WORD_LENGTH, MAX_BIGRAMS,
@@ -206,6 +319,18 @@ public class BinaryDictionary extends Dictionary {
         }
     }
 
+    /**
+     * Returns whether getBigrams would return a bigram starting with the given character
+     * for these first codes. Same as checkFirstCharacter in the native code.
+     */
+    static boolean matchesFirstCodes(char first, int[] alternatives) {
+        final int count = Math.min(alternatives.length, MAX_ALTERNATIVES);
+        for (int i = 0; i < count; i++) {
+            if (alternatives[i] == first) return true;
+        }
+        return false;
+    }
+
     @Override
     public void getWords(final WordComposer codes, final WordCallback callback,
             int[] nextLettersFrequencies) {
@@ -260,6 +385,36 @@ public class BinaryDictionary extends Dictionary {
         }
     }
 
+    /**
+     * Searches for the words a gesture path could spell, see getGestureWords in
+     * dictionary.cpp. The path must have been resampled.
+     * @param beamWidth how many partial words of each length the search keeps, the cost
+     *        of the search grows with it
+     */
+    public void getGestureWords(GesturePath path, int beamWidth, WordCallback callback) {
+        final int pointCount = path.getPointCount();
+        if (mNativeDict == 0 || pointCount == 0) return;
+        Arrays.fill(mOutputChars, (char) 0);
+        Arrays.fill(mFrequencies, 0);
+
+        int count = getGestureWordsNative(mNativeDict, path.getCodes(), path.getCosts(),
+                path.getCornerSums(), pointCount, GesturePath.MAX_ALTERNATIVES, beamWidth,
+                mOutputChars, mFrequencies, MAX_WORD_LENGTH, MAX_WORDS);
+
+        for (int j = 0; j < count; j++) {
+            if (mFrequencies[j] < 1) break;
+            int start = j * MAX_WORD_LENGTH;
+            int len = 0;
+            while (mOutputChars[start + len] != 0) {
+                len++;
+            }
+            if (len > 0) {
+                callback.addWord(mOutputChars, start, len, mFrequencies[j], mDicTypeId,
+                        DataType.UNIGRAM);
+            }
+        }
+    }
+
     @Override
     public boolean isValidWord(CharSequence word) {
         if (word == null || mNativeDict == 0) return false;
@@ -268,7 +423,17 @@ public class BinaryDictionary extends Dictionary {
     }
 
     public int getSize() {
-        return mDictLength; // This value is initialized on the call to openNative()
+        // This value is initialized on the call to openNative(). For DAWG dictionaries
+        // it's the size of the equivalent trie.
+        return mDictLength;
+    }
+
+    /**
+     * Returns the number of bytes of the dictionary copied into memory, which is 0 if it's
+     * read in place from a mapped file.
+     */
+    public int getCopiedLength() {
+        return mCopiedLength;
     }
 
     @Override
@@ -276,6 +441,7 @@ public class BinaryDictionary extends Dictionary {
         if (mNativeDict != 0) {
             closeNative(mNativeDict);
             mNativeDict = 0;
+            onContentChanged();
         }
     }
 
@@ -37,7 +37,9 @@ import android.widget.TextView;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 public class CandidateView extends View {
 
@@ -65,8 +67,17 @@ public class CandidateView extends View {
     private static final int MAX_SUGGESTIONS = 32;
     private static final int SCROLL_PIXELS = 20;
     
+    // Layout of the suggestions, made by layoutSuggestions() on each update
     private final int[] mWordWidth = new int[MAX_SUGGESTIONS];
     private final int[] mWordX = new int[MAX_SUGGESTIONS];
+    private final int[] mWordColor = new int[MAX_SUGGESTIONS];
+    private final boolean[] mWordBold = new boolean[MAX_SUGGESTIONS];
+
+    // Widths of recently shown words, for the text size they were measured at
+    private static final int WIDTH_CACHE_SIZE = 128;
+    private final Map<String, Integer> mWidthCache = newWidthCache();
+    private final Map<String, Integer> mBoldWidthCache = newWidthCache();
+    private float mWidthCacheTextSize;
     private int mPopupPreviewX;
     private int mPopupPreviewY;
 
@@ -204,16 +215,74 @@ public class CandidateView extends View {
     }
 
     /**
-     * If the canvas is null, then only touch calculations are performed to pick the target
-     * candidate.
+     * Lays out the suggestions once per update: the width, position, color and typeface of
+     * each word. Drawing and touch handling only read the results.
      */
+    private void layoutSuggestions() {
+        final int count = mSuggestions.size();
+        final boolean typedWordValid = mTypedWordValid;
+        boolean existsAutoCompletion = false;
+        int x = 0;
+        for (int i = 0; i < count; i++) {
+            CharSequence suggestion = mSuggestions.get(i);
+            if (suggestion == null) continue;
+            final int wordLength = suggestion.length();
+
+            int color = mColorNormal;
+            boolean bold = false;
+            if (mHaveMinimalSuggestion
+                    && ((i == 1 && !typedWordValid) || (i == 0 && typedWordValid))) {
+                bold = true;
+                color = mColorRecommended;
+                existsAutoCompletion = true;
+            } else if (i != 0 || (wordLength == 1 && count > 1)) {
+                // HACK: even if i == 0, we use mColorOther when this suggestion's length is 1 and
+                // there are multiple suggestions, such as the default punctuation list.
+                color = mColorOther;
+            }
+            mWordColor[i] = color;
+            mWordBold[i] = bold;
+            mWordWidth[i] = getWordWidth(suggestion, bold);
+            mWordX[i] = x;
+            x += mWordWidth[i];
+        }
+        mTotalWidth = x;
+        // Reported once per update, the keyboard ignores reports that don't change the state
+        if (!isInEditMode() && mService != null)
+            mService.onAutoCompletionStateChanged(existsAutoCompletion);
+    }
+
+    private int getWordWidth(CharSequence word, boolean bold) {
+        if (mWidthCacheTextSize != mPaint.getTextSize()) {
+            mWidthCache.clear();
+            mBoldWidthCache.clear();
+            mWidthCacheTextSize = mPaint.getTextSize();
+        }
+        final Map<String, Integer> cache = bold ? mBoldWidthCache : mWidthCache;
+        final String key = word.toString();
+        Integer width = cache.get(key);
+        if (width == null) {
+            mPaint.setTypeface(bold ? Typeface.DEFAULT_BOLD : Typeface.DEFAULT);
+            float textWidth = mPaint.measureText(key, 0, key.length());
+            width = Math.max(mMinTouchableWidth, (int) textWidth + X_GAP * 2);
+            cache.put(key, width);
+        }
+        return width;
+    }
+
+    private static Map<String, Integer> newWidthCache() {
+        return new LinkedHashMap<String, Integer>(WIDTH_CACHE_SIZE, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Integer> eldest) {
+                return size() > WIDTH_CACHE_SIZE;
+            }
+        };
+    }
+
     @Override
     protected void onDraw(Canvas canvas) {
-        if (canvas != null) {
-            super.onDraw(canvas);
-        }
-        mTotalWidth = 0;
-        
+        super.onDraw(canvas);
+
         final int height = getHeight();
         if (mBgPadding == null) {
             mBgPadding = new Rect(0, 0, 0, 0);
@@ -229,66 +298,47 @@ public class CandidateView extends View {
         final Paint paint = mPaint;
         final int touchX = mTouchX;
         final int scrollX = getScrollX();
+        final int right = scrollX + getWidth();
         final boolean scrolled = mScrolled;
-        final boolean typedWordValid = mTypedWordValid;
         final int y = (int) (height + mPaint.getTextSize() - mDescent) / 2;
 
-        boolean existsAutoCompletion = false;
-
-        int x = 0;
+        boolean bold = false;
+        paint.setTypeface(Typeface.DEFAULT);
         for (int i = 0; i < count; i++) {
             CharSequence suggestion = mSuggestions.get(i);
             if (suggestion == null) continue;
-            final int wordLength = suggestion.length();
-
-            paint.setColor(mColorNormal);
-            if (mHaveMinimalSuggestion 
-                    && ((i == 1 && !typedWordValid) || (i == 0 && typedWordValid))) {
-                paint.setTypeface(Typeface.DEFAULT_BOLD);
-                paint.setColor(mColorRecommended);
-                existsAutoCompletion = true;
-            } else if (i != 0 || (wordLength == 1 && count > 1)) {
-                // HACK: even if i == 0, we use mColorOther when this suggestion's length is 1 and
-                // there are multiple suggestions, such as the default punctuation list.
-                paint.setColor(mColorOther);
-            }
-            int wordWidth;
-            if ((wordWidth = mWordWidth[i]) == 0) {
-                float textWidth =  paint.measureText(suggestion, 0, wordLength);
-                wordWidth = Math.max(mMinTouchableWidth, (int) textWidth + X_GAP * 2);
-                mWordWidth[i] = wordWidth;
-            }
+            final int x = mWordX[i];
+            final int wordWidth = mWordWidth[i];
 
-            mWordX[i] = x;
-
-            if (touchX != OUT_OF_BOUNDS_X_COORD && !scrolled
-                    && touchX + scrollX >= x && touchX + scrollX < x + wordWidth) {
-                if (canvas != null && !mShowingAddToDictionary) {
-                    canvas.translate(x, 0);
-                    mSelectionHighlight.setBounds(0, bgPadding.top, wordWidth, height);
-                    mSelectionHighlight.draw(canvas);
-                    canvas.translate(-x, 0);
-                }
+            final boolean touched = touchX != OUT_OF_BOUNDS_X_COORD && !scrolled
+                    && touchX + scrollX >= x && touchX + scrollX < x + wordWidth;
+            if (touched) {
                 mSelectedString = suggestion;
                 mSelectedIndex = i;
             }
-
-            if (canvas != null) {
-                canvas.drawText(suggestion, 0, wordLength, x + wordWidth / 2, y, paint);
-                paint.setColor(mColorOther);
-                canvas.translate(x + wordWidth, 0);
-                // Draw a divider unless it's after the hint
-                if (!(mShowingAddToDictionary && i == 1)) {
-                    mDivider.draw(canvas);
-                }
-                canvas.translate(-x - wordWidth, 0);
+            // Words scrolled out of view are only hit tested
+            if (x + wordWidth < scrollX || x > right) continue;
+
+            if (touched && !mShowingAddToDictionary) {
+                canvas.translate(x, 0);
+                mSelectionHighlight.setBounds(0, bgPadding.top, wordWidth, height);
+                mSelectionHighlight.draw(canvas);
+                canvas.translate(-x, 0);
+            }
+            if (mWordBold[i] != bold) {
+                bold = mWordBold[i];
+                paint.setTypeface(bold ? Typeface.DEFAULT_BOLD : Typeface.DEFAULT);
+            }
+            paint.setColor(mWordColor[i]);
+            canvas.drawText(suggestion, 0, suggestion.length(), x + wordWidth / 2, y, paint);
+            canvas.translate(x + wordWidth, 0);
+            // Draw a divider unless it's after the hint
+            if (!(mShowingAddToDictionary && i == 1)) {
+                mDivider.draw(canvas);
             }
-            paint.setTypeface(Typeface.DEFAULT);
-            x += wordWidth;
+            canvas.translate(-x - wordWidth, 0);
         }
-        if (!isInEditMode())
-            mService.onAutoCompletionStateChanged(existsAutoCompletion);
-        mTotalWidth = x;
+        paint.setTypeface(Typeface.DEFAULT);
         if (mTargetScrollX != scrollX) {
             scrollToTarget();
         }
@@ -320,7 +370,7 @@ public class CandidateView extends View {
     
     public void setSuggestions(List<CharSequence> suggestions, boolean completions,
             boolean typedWordValid, boolean haveMinimalSuggestion) {
-        clear();
+        clearSuggestions();
         if (suggestions != null) {
             int insertCount = Math.min(suggestions.size(), MAX_SUGGESTIONS);
             for (CharSequence suggestion : suggestions) {
@@ -334,8 +384,7 @@ public class CandidateView extends View {
         scrollTo(0, getScrollY());
         mTargetScrollX = 0;
         mHaveMinimalSuggestion = haveMinimalSuggestion;
-        // Compute the total width
-        onDraw(null);
+        layoutSuggestions();
         invalidate();
         requestLayout();
     }
@@ -363,6 +412,12 @@ public class CandidateView extends View {
     }
 
     public void clear() {
+        clearSuggestions();
+        layoutSuggestions();
+        invalidate();
+    }
+
+    private void clearSuggestions() {
         // Don't call mSuggestions.clear() because it's being used for logging
         // in LatinIME.pickSuggestionManually().
         mSuggestions.clear();
@@ -370,7 +425,6 @@ public class CandidateView extends View {
         mSelectedString = null;
         mSelectedIndex = -1;
         mShowingAddToDictionary = false;
-        invalidate();
         Arrays.fill(mWordWidth, 0);
         Arrays.fill(mWordX, 0);
     }
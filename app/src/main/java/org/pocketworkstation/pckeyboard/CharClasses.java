@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.pocketworkstation.pckeyboard;
+
+/**
+ * Character classes for the current input language, looked up in tables instead of
+ * scanning the separator strings for every character.
+ *
+ * <p>
+ * The tables cover the BMP in pages of 256 characters. Pages where every character has
+ * the same class share one array, so the tables stay small even though letters are
+ * spread over most of the BMP. Characters outside the BMP are classified directly.
+ */
+public class CharClasses {
+    public static final int WORD_SEPARATOR = 0x01;
+    public static final int SENTENCE_SEPARATOR = 0x02;
+    public static final int LETTER = 0x04;
+    /** The characters matched by \s in a regular expression. */
+    public static final int SPACE = 0x08;
+
+    private static final int PAGE_SHIFT = 8;
+    private static final int PAGE_SIZE = 1 << PAGE_SHIFT;
+    private static final int PAGE_MASK = PAGE_SIZE - 1;
+    private static final int PAGE_COUNT = 0x10000 >> PAGE_SHIFT;
+
+    // Classes that don't depend on the language, and lower case base characters. A null
+    // fold page maps each character to itself.
+    private static final byte[][] sBasePages = new byte[PAGE_COUNT][];
+    private static final char[][] sFoldPages = new char[PAGE_COUNT][];
+    private static final byte[][] sUniformPages = new byte[256][];
+
+    static {
+        for (int page = 0; page < PAGE_COUNT; page++) {
+            byte[] classes = new byte[PAGE_SIZE];
+            char[] fold = null;
+            for (int i = 0; i < PAGE_SIZE; i++) {
+                char c = (char) ((page << PAGE_SHIFT) | i);
+                if (Character.isLetter(c)) classes[i] |= LETTER;
+                if (c == ' ' || (c >= '\t' && c <= '\r')) classes[i] |= SPACE;
+                char folded = foldDirect(c);
+                if (folded != c) {
+                    if (fold == null) {
+                        fold = new char[PAGE_SIZE];
+                        for (int j = 0; j < PAGE_SIZE; j++) {
+                            fold[j] = (char) ((page << PAGE_SHIFT) | j);
+                        }
+                    }
+                    fold[i] = folded;
+                }
+            }
+            sBasePages[page] = share(classes);
+            sFoldPages[page] = fold;
+        }
+    }
+
+    private final byte[][] mPages = new byte[PAGE_COUNT][];
+    private final String mWordSeparators;
+    private final String mSentenceSeparators;
+
+    public CharClasses(String wordSeparators, String sentenceSeparators) {
+        mWordSeparators = wordSeparators;
+        mSentenceSeparators = sentenceSeparators;
+        System.arraycopy(sBasePages, 0, mPages, 0, PAGE_COUNT);
+        add(wordSeparators, WORD_SEPARATOR);
+        add(sentenceSeparators, SENTENCE_SEPARATOR);
+    }
+
+    private void add(String chars, int cls) {
+        for (int i = 0; i < chars.length(); i++) {
+            char c = chars.charAt(i);
+            int page = c >> PAGE_SHIFT;
+            // Copy shared pages before changing them
+            if (mPages[page] == sBasePages[page]) mPages[page] = mPages[page].clone();
+            mPages[page][c & PAGE_MASK] |= cls;
+        }
+    }
+
+    public String getWordSeparators() {
+        return mWordSeparators;
+    }
+
+    public String getSentenceSeparators() {
+        return mSentenceSeparators;
+    }
+
+    /**
+     * Returns the classes of a character as a mask.
+     */
+    public int get(int code) {
+        if (code < 0) return 0;
+        if (code > 0xffff) return Character.isLetter(code) ? LETTER : 0;
+        return mPages[code >> PAGE_SHIFT][code & PAGE_MASK];
+    }
+
+    public boolean is(int code, int cls) {
+        return (get(code) & cls) != 0;
+    }
+
+    public boolean isWordSeparator(int code) {
+        return is(code, WORD_SEPARATOR);
+    }
+
+    public boolean isSentenceSeparator(int code) {
+        return is(code, SENTENCE_SEPARATOR);
+    }
+
+    public boolean isLetter(int code) {
+        return is(code, LETTER);
+    }
+
+    public static boolean isSpace(char c) {
+        return (sBasePages[c >> PAGE_SHIFT][c & PAGE_MASK] & SPACE) != 0;
+    }
+
+    /**
+     * Returns the lower case of the base character, such as 'e' for 'É'.
+     */
+    public static char toBaseLowerCase(char c) {
+        char[] page = sFoldPages[c >> PAGE_SHIFT];
+        return page == null ? c : page[c & PAGE_MASK];
+    }
+
+    private static char foldDirect(char c) {
+        if (c < ExpandableDictionary.BASE_CHARS.length) {
+            c = ExpandableDictionary.BASE_CHARS[c];
+        }
+        if (c >= 'A' && c <= 'Z') {
+            c = (char) (c | 32);
+        } else if (c > 127) {
+            c = Character.toLowerCase(c);
+        }
+        return c;
+    }
+
+    // Returns a shared page if all characters of the page have the same classes
+    private static byte[] share(byte[] classes) {
+        byte first = classes[0];
+        for (int i = 1; i < PAGE_SIZE; i++) {
+            if (classes[i] != first) return classes;
+        }
+        byte[] uniform = sUniformPages[first & 0xff];
+        if (uniform == null) {
+            uniform = classes;
+            sUniformPages[first & 0xff] = uniform;
+        }
+        return uniform;
+    }
+}
@@ -36,12 +36,18 @@ interface ComposeSequencing {
 public class ComposeSequence {
     private static final String TAG = "HK/ComposeSequence";
     
-    protected static final Map<String, String> mMap =
+    // Rough size of a table entry with its strings
+    private static final int ENTRY_FOOTPRINT = 96;
+
+    // The tables are filled on first use, and dropped when memory runs low
+    protected static Map<String, String> mMap =
     	new HashMap<String, String>();
 
-    protected static final Set<String> mPrefixes =
+    protected static Set<String> mPrefixes =
     	new HashSet<String>();
 
+    private static boolean sLoaded;
+
     // Some convenience aliases for use in compose strings
     protected static final char UP          = (char)LatinKeyboardView.KEYCODE_DPAD_UP;
     protected static final char DOWN        = (char)LatinKeyboardView.KEYCODE_DPAD_DOWN;
@@ -108,10 +114,34 @@ public class ComposeSequence {
         }
     };
 
+    protected static void ensureLoaded() {
+        if (sLoaded) return;
+        sLoaded = true;
+        reset();
+        DeadAccentSequence.loadAccents();
+    }
+
+    /**
+     * Drops the compose tables, they're filled again on next use.
+     */
+    public static void releaseTables() {
+        mMap = new HashMap<String, String>();
+        mPrefixes = new HashSet<String>();
+        sLoaded = false;
+    }
+
+    /**
+     * Returns roughly how many bytes the compose tables take.
+     */
+    public static long getFootprint() {
+        return (long) (mMap.size() + mPrefixes.size()) * ENTRY_FOOTPRINT;
+    }
+
     protected static String get(String key) {
         if (key == null || key.length() == 0) {
             return null;
         }
+        ensureLoaded();
         //Log.i(TAG, "ComposeBase get, key=" + showString(key) + " result=" + mMap.get(key));
         return mMap.get(key);
     }
@@ -132,6 +162,7 @@ public class ComposeSequence {
         if (partialKey == null || partialKey.length() == 0) {
             return false;
         }
+        ensureLoaded();
         return mPrefixes.contains(partialKey);
     }
 
@@ -1131,6 +1162,4 @@ public class ComposeSequence {
         put("(50)", "㊿");
         put("\\o/", "🙌");
     }
-
-    static { reset(); }
 }
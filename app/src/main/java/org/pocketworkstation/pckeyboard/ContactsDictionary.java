@@ -20,11 +20,16 @@ import android.content.ContentResolver;
 import android.content.Context;
 import android.database.ContentObserver;
 import android.database.Cursor;
+import android.os.Build;
 import android.os.SystemClock;
 import android.provider.ContactsContract.Contacts;
+import android.provider.ContactsContract.DeletedContacts;
 import android.text.TextUtils;
 import android.util.Log;
 
+import java.util.HashMap;
+import java.util.Map;
+
 public class ContactsDictionary extends ExpandableDictionary {
 
     private static final String[] PROJECTION = {
@@ -32,6 +37,10 @@ public class ContactsDictionary extends ExpandableDictionary {
         Contacts.DISPLAY_NAME,
     };
 
+    private static final String[] DELETED_PROJECTION = {
+        DeletedContacts.CONTACT_ID,
+    };
+
     private static final String TAG = "ContactsDictionary";
 
     /**
@@ -40,12 +49,21 @@ public class ContactsDictionary extends ExpandableDictionary {
     private static final int FREQUENCY_FOR_CONTACTS = 128;
     private static final int FREQUENCY_FOR_CONTACTS_BIGRAM = 90;
 
+    private static final int INDEX_ID = 0;
     private static final int INDEX_NAME = 1;
 
     private ContentObserver mObserver;
 
     private long mLastLoadedContacts;
 
+    // Names of the loaded contacts by id, null until loaded. A word or bigram stays in the
+    // dictionary while any of the names has it.
+    private HashMap<Long, String> mNames;
+    private final HashMap<String, Integer> mWordCounts = new HashMap<String, Integer>();
+    private final HashMap<String, Integer> mBigramCounts = new HashMap<String, Integer>();
+    // Time of the last query, contacts changed from then on are queried next time
+    private long mQueryTime;
+
     public ContactsDictionary(Context context, int dicTypeId) {
         super(context, dicTypeId);
         // Perform a managed query. The Activity will handle closing and requerying the cursor
@@ -83,10 +101,19 @@ public class ContactsDictionary extends ExpandableDictionary {
     @Override
     public void loadDictionaryAsync() {
         try {
+            long queryTime = System.currentTimeMillis();
             Cursor cursor = getContext().getContentResolver()
                     .query(Contacts.CONTENT_URI, PROJECTION, null, null, null);
             if (cursor != null) {
-                addWords(cursor);
+                HashMap<Long, String> names = readNames(cursor);
+                clearDictionary();
+                mWordCounts.clear();
+                mBigramCounts.clear();
+                for (String name : names.values()) {
+                    if (name != null) changeName(name, true);
+                }
+                mNames = names;
+                mQueryTime = queryTime;
             }
         } catch(IllegalStateException e) {
             Log.e(TAG, "Contacts DB is having problems");
@@ -94,59 +121,147 @@ public class ContactsDictionary extends ExpandableDictionary {
         mLastLoadedContacts = SystemClock.uptimeMillis();
     }
 
-    private void addWords(Cursor cursor) {
-        clearDictionary();
+    /**
+     * Applies only the contacts that were added, renamed or deleted since the last load.
+     * From Jellybean MR2 the provider is asked for just those, before that all names are
+     * read and compared.
+     */
+    @Override
+    protected boolean updateDictionaryAsync() {
+        if (mNames == null) return false;
+        try {
+            final ContentResolver cres = getContext().getContentResolver();
+            long queryTime = System.currentTimeMillis();
+            if (Build.VERSION.SDK_INT >= 18) {
+                String[] since = new String[] { Long.toString(mQueryTime) };
+                Cursor cursor = cres.query(Contacts.CONTENT_URI, PROJECTION,
+                        Contacts.CONTACT_LAST_UPDATED_TIMESTAMP + ">=?", since, null);
+                Cursor deleted = cres.query(DeletedContacts.CONTENT_URI, DELETED_PROJECTION,
+                        DeletedContacts.CONTACT_DELETED_TIMESTAMP + ">=?", since, null);
+                if (cursor == null || deleted == null) {
+                    if (cursor != null) cursor.close();
+                    if (deleted != null) deleted.close();
+                    return true;
+                }
+                for (Map.Entry<Long, String> entry : readNames(cursor).entrySet()) {
+                    setName(entry.getKey(), entry.getValue());
+                }
+                if (deleted.moveToFirst()) {
+                    while (!deleted.isAfterLast()) {
+                        setName(deleted.getLong(0), null);
+                        deleted.moveToNext();
+                    }
+                }
+                deleted.close();
+            } else {
+                Cursor cursor = cres.query(Contacts.CONTENT_URI, PROJECTION, null, null, null);
+                if (cursor == null) return true;
+                HashMap<Long, String> names = readNames(cursor);
+                for (Map.Entry<Long, String> entry : names.entrySet()) {
+                    setName(entry.getKey(), entry.getValue());
+                }
+                Long[] ids = mNames.keySet().toArray(new Long[mNames.size()]);
+                for (Long id : ids) {
+                    if (!names.containsKey(id)) setName(id, null);
+                }
+            }
+            mQueryTime = queryTime;
+        } catch(IllegalStateException e) {
+            Log.e(TAG, "Contacts DB is having problems");
+        }
+        mLastLoadedContacts = SystemClock.uptimeMillis();
+        return true;
+    }
 
-        final int maxWordLength = getMaxWordLength();
+    private HashMap<Long, String> readNames(Cursor cursor) {
+        HashMap<Long, String> names = new HashMap<Long, String>(cursor.getCount() * 2);
         try {
             if (cursor.moveToFirst()) {
                 while (!cursor.isAfterLast()) {
-                    String name = cursor.getString(INDEX_NAME);
-
-                    if (name != null) {
-                        int len = name.length();
-                        String prevWord = null;
-
-                        // TODO: Better tokenization for non-Latin writing systems
-                        for (int i = 0; i < len; i++) {
-                            if (Character.isLetter(name.charAt(i))) {
-                                int j;
-                                for (j = i + 1; j < len; j++) {
-                                    char c = name.charAt(j);
-
-                                    if (!(c == '-' || c == '\'' ||
-                                          Character.isLetter(c))) {
-                                        break;
-                                    }
-                                }
-
-                                String word = name.substring(i, j);
-                                i = j - 1;
-
-                                // Safeguard against adding really long words. Stack
-                                // may overflow due to recursion
-                                // Also don't add single letter words, possibly confuses
-                                // capitalization of i.
-                                final int wordLen = word.length();
-                                if (wordLen < maxWordLength && wordLen > 1) {
-                                    super.addWord(word, FREQUENCY_FOR_CONTACTS);
-                                    if (!TextUtils.isEmpty(prevWord)) {
-                                        // TODO Do not add email address
-                                        // Not so critical
-                                        super.setBigram(prevWord, word,
-                                                FREQUENCY_FOR_CONTACTS_BIGRAM);
-                                    }
-                                    prevWord = word;
-                                }
-                            }
-                        }
-                    }
+                    names.put(cursor.getLong(INDEX_ID), cursor.getString(INDEX_NAME));
                     cursor.moveToNext();
                 }
             }
+        } finally {
             cursor.close();
-        } catch(IllegalStateException e) {
-            Log.e(TAG, "Contacts DB is having problems");
         }
+        return names;
+    }
+
+    private void setName(long id, String name) {
+        String oldName = name != null ? mNames.put(id, name) : mNames.remove(id);
+        if (TextUtils.equals(oldName, name)) return;
+        // Adding first leaves the words both names share in place
+        if (name != null) changeName(name, true);
+        if (oldName != null) changeName(oldName, false);
+    }
+
+    /**
+     * Adds or removes the words and bigrams of a name. The dictionary only changes for
+     * the first name to have them and the last one to lose them.
+     */
+    private void changeName(String name, boolean add) {
+        final int maxWordLength = getMaxWordLength();
+        int len = name.length();
+        String prevWord = null;
+
+        // TODO: Better tokenization for non-Latin writing systems
+        for (int i = 0; i < len; i++) {
+            if (Character.isLetter(name.charAt(i))) {
+                int j;
+                for (j = i + 1; j < len; j++) {
+                    char c = name.charAt(j);
+
+                    if (!(c == '-' || c == '\'' ||
+                          Character.isLetter(c))) {
+                        break;
+                    }
+                }
+
+                String word = name.substring(i, j);
+                i = j - 1;
+
+                // Safeguard against adding really long words. Stack
+                // may overflow due to recursion
+                // Also don't add single letter words, possibly confuses
+                // capitalization of i.
+                final int wordLen = word.length();
+                if (wordLen < maxWordLength && wordLen > 1) {
+                    if (count(mWordCounts, word, add)) {
+                        if (add) {
+                            super.addWord(word, FREQUENCY_FOR_CONTACTS);
+                        } else {
+                            removeWord(word);
+                        }
+                    }
+                    if (!TextUtils.isEmpty(prevWord)
+                            && count(mBigramCounts, prevWord + ' ' + word, add)) {
+                        // TODO Do not add email address
+                        // Not so critical
+                        if (add) {
+                            super.setBigram(prevWord, word, FREQUENCY_FOR_CONTACTS_BIGRAM);
+                        } else {
+                            removeBigram(prevWord, word);
+                        }
+                    }
+                    prevWord = word;
+                }
+            }
+        }
+    }
+
+    /**
+     * Counts a name having or losing the key.
+     * @return true if it's the first name to have it or the last one to lose it
+     */
+    private static boolean count(HashMap<String, Integer> counts, String key, boolean add) {
+        Integer count = counts.get(key);
+        int newCount = (count == null ? 0 : count) + (add ? 1 : -1);
+        if (newCount > 0) {
+            counts.put(key, newCount);
+        } else {
+            counts.remove(key);
+        }
+        return add ? newCount == 1 : newCount == 0;
     }
 }
@@ -42,7 +42,7 @@ public class DeadAccentSequence extends ComposeSequence {
         return spacing;
     }
     
-    static {
+    static void loadAccents() {
         // space + combining diacritical
         // cf. http://unicode.org/charts/PDF/U0300.pdf
         putAccent("\u0300", "\u02cb", "`");  // grave
@@ -80,6 +80,7 @@ public class DeadAccentSequence extends ComposeSequence {
 	}
 
     public static String normalize(String input) {
+        ensureLoaded();
     	String lookup = mMap.get(input);
         return lookup != null ? lookup : doNormalise(input);
     }
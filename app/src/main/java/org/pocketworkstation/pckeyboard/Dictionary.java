@@ -16,6 +16,8 @@
 
 package org.pocketworkstation.pckeyboard;
 
+import java.util.concurrent.atomic.AtomicInteger;
+
 /**
  * Abstract base class for a dictionary that can do a fuzzy search for words based on a set of key
  * strokes.
@@ -31,6 +33,8 @@ abstract public class Dictionary {
      */
     protected static final int FULL_WORD_FREQ_MULTIPLIER = 2;
 
+    private final AtomicInteger mVersion = new AtomicInteger();
+
     public static enum DataType {
         UNIGRAM, BIGRAM
     }
@@ -112,6 +116,22 @@ abstract public class Dictionary {
         return true;
     }
 
+    /**
+     * Returns a number that changes whenever the results of {@link #getWords},
+     * {@link #getBigrams} or {@link #isValidWord} may have changed. Used to know when
+     * cached suggestions are out of date.
+     */
+    public int getVersion() {
+        return mVersion.get();
+    }
+
+    /**
+     * Subclasses call this after changing their words, frequencies or bigrams.
+     */
+    protected void onContentChanged() {
+        mVersion.incrementAndGet();
+    }
+
     /**
      * Override to clean up any resources.
      */
@@ -0,0 +1,226 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.pocketworkstation.pckeyboard;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.pm.PackageManager.NameNotFoundException;
+import android.content.res.Resources;
+import android.util.Log;
+
+/**
+ * Remembers the size and header of each dictionary the keyboard can use, so that deciding
+ * which dictionary to load, or whether a language has one, doesn't need to load any.
+ *
+ * <p>
+ * An entry is made by opening the dictionary streams, reading their lengths and the
+ * header of the first part, and is kept in a preferences file. It stays valid until the
+ * package holding the dictionary is updated or removed.
+ */
+public class DictionaryIndex {
+    private static final String TAG = "PCKeyboard";
+    private static final String PREFS_NAME = "dictionary_index";
+
+    public static class Entry {
+        /** Package holding the dictionary. */
+        public final String packageName;
+        /** Last update time of the package when the entry was made. */
+        final long stamp;
+        /** Total length of all parts in bytes. */
+        public final int byteSize;
+        /** Size as {@link BinaryDictionary#getSize()} reports it. */
+        public final int size;
+        /** Number of words, or -1 if the format doesn't record it. */
+        public final int wordCount;
+        /** Format version from the header. */
+        public final int version;
+
+        Entry(String packageName, long stamp, int byteSize, int size, int wordCount,
+                int version) {
+            this.packageName = packageName;
+            this.stamp = stamp;
+            this.byteSize = byteSize;
+            this.size = size;
+            this.wordCount = wordCount;
+            this.version = version;
+        }
+
+        public boolean isLarge() {
+            return size > Suggest.LARGE_DICTIONARY_THRESHOLD;
+        }
+
+        String encode() {
+            return packageName + "," + stamp + "," + byteSize + "," + size + ","
+                    + wordCount + "," + version;
+        }
+
+        static Entry decode(String value) {
+            String[] parts = value.split(",");
+            if (parts.length != 6) return null;
+            try {
+                return new Entry(parts[0], Long.parseLong(parts[1]),
+                        Integer.parseInt(parts[2]), Integer.parseInt(parts[3]),
+                        Integer.parseInt(parts[4]), Integer.parseInt(parts[5]));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Opens the streams of a dictionary, called only when the index has no valid entry.
+     */
+    public interface Source {
+        InputStream[] open();
+    }
+
+    private static final Map<String, Entry> sEntries = new HashMap<String, Entry>();
+    private static boolean sLoaded;
+
+    private DictionaryIndex() {
+    }
+
+    /**
+     * Returns the entry for a dictionary, making it if there's none or the package was
+     * updated since. Returns null if the dictionary can't be opened.
+     *
+     * @param key identifies the dictionary within the package
+     */
+    public static synchronized Entry get(Context context, String key, String packageName,
+            Source source) {
+        load(context);
+        long stamp = getStamp(context, packageName);
+        Entry entry = sEntries.get(key);
+        if (entry != null && entry.packageName.equals(packageName) && entry.stamp == stamp) {
+            return entry;
+        }
+        entry = makeEntry(packageName, stamp, source.open());
+        SharedPreferences.Editor editor = getPrefs(context).edit();
+        if (entry == null) {
+            sEntries.remove(key);
+            editor.remove(key);
+        } else {
+            sEntries.put(key, entry);
+            editor.putString(key, entry.encode());
+        }
+        SharedPreferencesCompat.apply(editor);
+        return entry;
+    }
+
+    /**
+     * Returns the entry for a dictionary built into the keyboard, or null if there's none.
+     *
+     * @param res resources set to the locale the dictionary ids were looked up for
+     */
+    public static Entry getBuiltIn(Context context, final Resources res, final int[] resIds) {
+        if (resIds == null || resIds.length == 0 || resIds[0] == 0) return null;
+        // The same ids may refer to different files for another locale
+        String key = "builtin:" + res.getConfiguration().locale + Arrays.toString(resIds);
+        return get(context, key, context.getPackageName(), new Source() {
+            public InputStream[] open() {
+                InputStream[] streams = new InputStream[resIds.length];
+                for (int i = 0; i < resIds.length; i++) {
+                    streams[i] = res.openRawResource(resIds[i]);
+                }
+                return streams;
+            }
+        });
+    }
+
+    /**
+     * Drops the entries of a package that was updated or removed.
+     */
+    public static synchronized void invalidate(Context context, String packageName) {
+        load(context);
+        SharedPreferences.Editor editor = getPrefs(context).edit();
+        boolean changed = false;
+        Iterator<Map.Entry<String, Entry>> it = sEntries.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Entry> e = it.next();
+            if (e.getValue().packageName.equals(packageName)) {
+                editor.remove(e.getKey());
+                it.remove();
+                changed = true;
+            }
+        }
+        if (changed) SharedPreferencesCompat.apply(editor);
+    }
+
+    private static SharedPreferences getPrefs(Context context) {
+        return context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    private static void load(Context context) {
+        if (sLoaded) return;
+        for (Map.Entry<String, ?> e : getPrefs(context).getAll().entrySet()) {
+            if (!(e.getValue() instanceof String)) continue;
+            Entry entry = Entry.decode((String) e.getValue());
+            if (entry != null) sEntries.put(e.getKey(), entry);
+        }
+        sLoaded = true;
+    }
+
+    private static long getStamp(Context context, String packageName) {
+        try {
+            return context.getPackageManager().getPackageInfo(packageName, 0).lastUpdateTime;
+        } catch (NameNotFoundException e) {
+            return 0;
+        }
+    }
+
+    private static Entry makeEntry(String packageName, long stamp, InputStream[] streams) {
+        if (streams == null || streams.length == 0) return null;
+        try {
+            int byteSize = 0;
+            for (int i = 0; i < streams.length; i++) {
+                byteSize += streams[i].available();
+            }
+            // Only the header of the first part is read
+            byte[] header = new byte[BinaryDictionary.MAX_HEADER_SIZE];
+            int got = 0;
+            while (got < header.length) {
+                int n = streams[0].read(header, got, header.length - got);
+                if (n < 0) break;
+                got += n;
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(header, 0, got);
+            return new Entry(packageName, stamp, byteSize,
+                    BinaryDictionary.getTrieSize(buffer, got, byteSize),
+                    BinaryDictionary.getWordCount(buffer, got),
+                    got > 0 ? header[0] & 0xFF : 0);
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to read dictionary header from " + packageName);
+            return null;
+        } finally {
+            for (int i = 0; i < streams.length; i++) {
+                try {
+                    streams[i].close();
+                } catch (IOException e) {
+                    // Nothing to do
+                }
+            }
+        }
+    }
+}
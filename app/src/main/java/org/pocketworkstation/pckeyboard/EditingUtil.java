@@ -23,7 +23,6 @@ import android.view.inputmethod.InputConnection;
 
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
-import java.util.regex.Pattern;
 
 /**
  * Utility methods to deal with editing text through an InputConnection.
@@ -65,6 +64,10 @@ public class EditingUtil {
     }
 
     private static int getCursorPosition(InputConnection connection) {
+        if (connection instanceof EditorTextMirror) {
+            int position = ((EditorTextMirror) connection).getCursorPosition();
+            if (position >= 0) return position;
+        }
         ExtractedText extracted = connection.getExtractedText(
             new ExtractedTextRequest(), 0);
         if (extracted == null) {
@@ -75,15 +78,15 @@ public class EditingUtil {
 
     /**
      * @param connection connection to the current text field.
-     * @param separators characters which may separate words
+     * @param classes classes of the characters of the current language
      * @param range the range object to store the result into
      * @return the word that surrounds the cursor, including up to one trailing
      *   separator. For example, if the field contains "he|llo world", where |
      *   represents the cursor, then "hello " will be returned.
      */
     public static String getWordAtCursor(
-            InputConnection connection, String separators, Range range) {
-        Range r = getWordRangeAtCursor(connection, separators, range);
+            InputConnection connection, CharClasses classes, Range range) {
+        Range r = getWordRangeAtCursor(connection, classes, range);
         return (r == null) ? null : r.word;
     }
 
@@ -92,9 +95,9 @@ public class EditingUtil {
      * getWordAtCursor.
      */
     public static void deleteWordAtCursor(
-        InputConnection connection, String separators) {
+        InputConnection connection, CharClasses classes) {
 
-        Range range = getWordRangeAtCursor(connection, separators, null);
+        Range range = getWordRangeAtCursor(connection, classes, null);
         if (range == null) return;
 
         connection.finishComposingText();
@@ -134,8 +137,8 @@ public class EditingUtil {
     }
 
     private static Range getWordRangeAtCursor(
-            InputConnection connection, String sep, Range range) {
-        if (connection == null || sep == null) {
+            InputConnection connection, CharClasses classes, Range range) {
+        if (connection == null || classes == null) {
             return null;
         }
         CharSequence before = connection.getTextBeforeCursor(1000, 0);
@@ -146,50 +149,70 @@ public class EditingUtil {
 
         // Find first word separator before the cursor
         int start = before.length();
-        while (start > 0 && !isWhitespace(before.charAt(start - 1), sep)) start--;
+        while (start > 0 && !classes.isWordSeparator(before.charAt(start - 1))) start--;
 
         // Find last word separator after the cursor
         int end = -1;
-        while (++end < after.length() && !isWhitespace(after.charAt(end), sep));
+        while (++end < after.length() && !classes.isWordSeparator(after.charAt(end)));
 
         int cursor = getCursorPosition(connection);
         if (start >= 0 && cursor + end <= after.length() + before.length()) {
-            String word = before.toString().substring(start, before.length())
-                    + after.toString().substring(0, end);
+            StringBuilder word = new StringBuilder(before.length() - start + end);
+            word.append(before, start, before.length()).append(after, 0, end);
 
             Range returnRange = range != null? range : new Range();
             returnRange.charsBefore = before.length() - start;
             returnRange.charsAfter = end;
-            returnRange.word = word;
+            returnRange.word = word.toString();
             return returnRange;
         }
 
         return null;
     }
 
-    private static boolean isWhitespace(int code, String whitespace) {
-        return whitespace.contains(String.valueOf((char) code));
+    /**
+     * Returns the word before the last one in the text before the cursor, unless it
+     * ends with a character of one of the stop classes, such as a sentence separator. The
+     * last word is usually the one being typed.
+     */
+    public static CharSequence getPreviousWord(InputConnection connection,
+            CharClasses classes, int stopClasses) {
+        return getPreviousWord(connection, classes, stopClasses, false);
     }
 
-    private static final Pattern spaceRegex = Pattern.compile("\\s+");
+    /**
+     * Returns what {@link #getPreviousWord} will return once a new word is started at the
+     * cursor, usually the word that was just committed.
+     */
+    public static CharSequence getPreviousWordForNewWord(InputConnection connection,
+            CharClasses classes, int stopClasses) {
+        return getPreviousWord(connection, classes, stopClasses, true);
+    }
 
-    public static CharSequence getPreviousWord(InputConnection connection,
-            String sentenceSeperators) {
-        //TODO: Should fix this. This could be slow!
+    private static CharSequence getPreviousWord(InputConnection connection,
+            CharClasses classes, int stopClasses, boolean newWord) {
         CharSequence prev = connection.getTextBeforeCursor(LOOKBACK_CHARACTER_NUM, 0);
         if (prev == null) {
             return null;
         }
-        String[] w = spaceRegex.split(prev);
-        if (w.length >= 2 && w[w.length-2].length() > 0) {
-            char lastChar = w[w.length-2].charAt(w[w.length-2].length() -1);
-            if (sentenceSeperators.contains(String.valueOf(lastChar))) {
-                return null;
-            }
-            return w[w.length-2];
-        } else {
+        // Skip trailing spaces and the last word, then the spaces before it. A new word
+        // would be the last word, so then only the text it would be joined to is skipped.
+        int end = prev.length();
+        if (!newWord) {
+            while (end > 0 && CharClasses.isSpace(prev.charAt(end - 1))) end--;
+        }
+        while (end > 0 && !CharClasses.isSpace(prev.charAt(end - 1))) end--;
+        while (end > 0 && CharClasses.isSpace(prev.charAt(end - 1))) end--;
+        int start = end;
+        while (start > 0 && !CharClasses.isSpace(prev.charAt(start - 1))) start--;
+        if (start == end) {
+            return null;
+        }
+        char lastChar = prev.charAt(end - 1);
+        if (classes.is(lastChar, stopClasses)) {
             return null;
         }
+        return prev.subSequence(start, end).toString();
     }
 
     public static class SelectedWord {
@@ -202,11 +225,11 @@ public class EditingUtil {
      * Takes a character sequence with a single character and checks if the character occurs
      * in a list of word separators or is empty.
      * @param singleChar A CharSequence with null, zero or one character
-     * @param wordSeparators A String containing the word separators
+     * @param classes classes of the characters of the current language
      * @return true if the character is at a word boundary, false otherwise
      */
-    private static boolean isWordBoundary(CharSequence singleChar, String wordSeparators) {
-        return TextUtils.isEmpty(singleChar) || wordSeparators.contains(singleChar);
+    private static boolean isWordBoundary(CharSequence singleChar, CharClasses classes) {
+        return TextUtils.isEmpty(singleChar) || classes.isWordSeparator(singleChar.charAt(0));
     }
 
     /**
@@ -215,16 +238,16 @@ public class EditingUtil {
      * @param selStart the start position of the selection within the text field
      * @param selEnd the end position of the selection within the text field. This could be
      *               the same as selStart, if there's no selection.
-     * @param wordSeparators the word separator characters for the current language
+     * @param classes classes of the characters of the current language
      * @return an object containing the text and coordinates of the selected/touching word,
      *         null if the selection/cursor is not marking a whole word.
      */
     public static SelectedWord getWordAtCursorOrSelection(final InputConnection ic,
-            int selStart, int selEnd, String wordSeparators) {
+            int selStart, int selEnd, CharClasses classes) {
         if (selStart == selEnd) {
             // There is just a cursor, so get the word at the cursor
             EditingUtil.Range range = new EditingUtil.Range();
-            CharSequence touching = getWordAtCursor(ic, wordSeparators, range);
+            CharSequence touching = getWordAtCursor(ic, classes, range);
             if (!TextUtils.isEmpty(touching)) {
                 SelectedWord selWord = new SelectedWord();
                 selWord.word = touching;
@@ -235,13 +258,13 @@ public class EditingUtil {
         } else {
             // Is the previous character empty or a word separator? If not, return null.
             CharSequence charsBefore = ic.getTextBeforeCursor(1, 0);
-            if (!isWordBoundary(charsBefore, wordSeparators)) {
+            if (!isWordBoundary(charsBefore, classes)) {
                 return null;
             }
 
             // Is the next character empty or a word separator? If not, return null.
             CharSequence charsAfter = ic.getTextAfterCursor(1, 0);
-            if (!isWordBoundary(charsAfter, wordSeparators)) {
+            if (!isWordBoundary(charsAfter, classes)) {
                 return null;
             }
 
@@ -251,7 +274,7 @@ public class EditingUtil {
             // Is any part of the selection a separator? If so, return null.
             final int length = touching.length();
             for (int i = 0; i < length; i++) {
-                if (wordSeparators.contains(touching.subSequence(i, i + 1))) {
+                if (classes.isWordSeparator(touching.charAt(i))) {
                     return null;
                 }
             }
@@ -0,0 +1,362 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.pocketworkstation.pckeyboard;
+
+import android.os.Bundle;
+import android.text.InputType;
+import android.view.KeyCharacterMap;
+import android.view.KeyEvent;
+import android.view.inputmethod.CompletionInfo;
+import android.view.inputmethod.CorrectionInfo;
+import android.view.inputmethod.InputConnection;
+import android.view.inputmethod.InputConnectionWrapper;
+
+/**
+ * Keeps a local copy of the text around the cursor so that reading it doesn't need an
+ * IPC round trip to the editor, which can take milliseconds with slow editors such as
+ * terminal emulators and web views.
+ *
+ * <p>
+ * The copy is updated from the edits made through this connection. Each edit also notes
+ * where the cursor should end up, and {@link #onUpdateSelection(int, int)} checks the
+ * editor's reports against that. A report that doesn't match means the editor changed
+ * the text or the cursor moved, and the copy is fetched again on the next read. Edits
+ * that can't be followed, like those with a selection, drop the copy too. Key events for
+ * characters, backspace and, in multi-line fields, enter are followed like text edits.
+ *
+ * <p>
+ * Only a few characters around the cursor are fetched when syncing, since most reads
+ * just look at the last characters typed. Longer reads go to the editor.
+ */
+public class EditorTextMirror extends InputConnectionWrapper {
+    // Characters fetched on each side of the cursor when syncing
+    private static final int SYNC_SIZE = 64;
+    // The text kept before the cursor is cut back to SYNC_SIZE when it grows past this
+    private static final int MAX_MIRROR_SIZE = 1024;
+    private static final int MAX_EXPECTED = 16;
+
+    private InputConnection mTarget;
+
+    // Text before the selection start and after the selection end
+    private final StringBuilder mBefore = new StringBuilder(MAX_MIRROR_SIZE);
+    private final StringBuilder mAfter = new StringBuilder(SYNC_SIZE);
+    private boolean mValid;
+    // Whether mBefore and mAfter reach the start and end of the text
+    private boolean mBeforeComplete;
+    private boolean mAfterComplete;
+
+    // Length of the composing text at the end of mBefore, -1 if unknown
+    private int mComposingLength;
+
+    private int mSelStart = -1;
+    private int mSelEnd = -1;
+
+    // Cursor positions after our edits that the editor hasn't reported yet
+    private final int[] mExpected = new int[MAX_EXPECTED];
+    private int mExpectedCount;
+
+    private int mSyncCount;
+
+    // Whether key events edit the text, and whether enter adds a line break
+    private boolean mKeysEditText;
+    private boolean mEnterIsNewline;
+
+    public EditorTextMirror(InputConnection target) {
+        super(target, true);
+        mTarget = target;
+    }
+
+    @Override
+    public void setTarget(InputConnection target) {
+        super.setTarget(target);
+        mTarget = target;
+        reset(-1, -1);
+    }
+
+    public boolean hasTarget(InputConnection target) {
+        return mTarget == target;
+    }
+
+    /**
+     * Tells how the editor handles key events, from its EditorInfo.inputType.
+     */
+    public void setInputType(int inputType) {
+        final int inputClass = inputType & InputType.TYPE_MASK_CLASS;
+        mKeysEditText = inputClass != InputType.TYPE_NULL;
+        mEnterIsNewline = inputClass == InputType.TYPE_CLASS_TEXT
+                && (inputType & InputType.TYPE_TEXT_FLAG_MULTI_LINE) != 0;
+    }
+
+    /**
+     * Forgets the text, for a new editor or when the editor restarts input.
+     */
+    public void reset(int selStart, int selEnd) {
+        mValid = false;
+        mComposingLength = 0;
+        mSelStart = selStart;
+        mSelEnd = selEnd;
+        mExpectedCount = 0;
+    }
+
+    /**
+     * Returns the cursor position if known, else -1.
+     */
+    public int getCursorPosition() {
+        return mSelStart == mSelEnd ? mSelStart : -1;
+    }
+
+    public int getSyncCount() {
+        return mSyncCount;
+    }
+
+    /**
+     * Called from InputMethodService.onUpdateSelection.
+     */
+    public void onUpdateSelection(int newSelStart, int newSelEnd) {
+        if (newSelStart == newSelEnd) {
+            // Reports can lag behind our edits, so skip over the positions we went through
+            for (int i = 0; i < mExpectedCount; ++i) {
+                if (mExpected[i] == newSelStart) {
+                    System.arraycopy(mExpected, i + 1, mExpected, 0, mExpectedCount - i - 1);
+                    mExpectedCount -= i + 1;
+                    return;
+                }
+            }
+            if (newSelStart == mSelStart && newSelEnd == mSelEnd) return;
+        }
+        mValid = false;
+        mExpectedCount = 0;
+        mSelStart = newSelStart;
+        mSelEnd = newSelEnd;
+    }
+
+    // Drops the text and the cursor position, for edits we can't follow
+    private void invalidate() {
+        mValid = false;
+        mExpectedCount = 0;
+        mSelStart = -1;
+        mSelEnd = -1;
+    }
+
+    private boolean isCursorKnown() {
+        return mSelStart >= 0 && mSelStart == mSelEnd;
+    }
+
+    private void expectCursor(int position) {
+        mSelStart = mSelEnd = position;
+        if (mExpectedCount == MAX_EXPECTED) {
+            System.arraycopy(mExpected, 1, mExpected, 0, MAX_EXPECTED - 1);
+            --mExpectedCount;
+        }
+        mExpected[mExpectedCount++] = position;
+    }
+
+    private boolean sync() {
+        CharSequence before = super.getTextBeforeCursor(SYNC_SIZE, 0);
+        CharSequence after = super.getTextAfterCursor(SYNC_SIZE, 0);
+        ++mSyncCount;
+        if (before == null || after == null) return false;
+        mBefore.setLength(0);
+        mBefore.append(before);
+        mAfter.setLength(0);
+        mAfter.append(after);
+        mBeforeComplete = before.length() < SYNC_SIZE;
+        mAfterComplete = after.length() < SYNC_SIZE;
+        mValid = true;
+        return true;
+    }
+
+    // Replaces the composing text before the cursor, or inserts the text if there's none
+    private void replaceComposing(CharSequence text, int newCursorPosition) {
+        if (!isCursorKnown() || mComposingLength < 0 || newCursorPosition != 1) {
+            invalidate();
+            return;
+        }
+        if (mValid) {
+            int length = mBefore.length();
+            mBefore.setLength(length - Math.min(mComposingLength, length));
+            mBefore.append(text);
+            trimBefore();
+        }
+        expectCursor(mSelStart - mComposingLength + text.length());
+    }
+
+    private void trimBefore() {
+        if (mBefore.length() > MAX_MIRROR_SIZE) {
+            mBefore.delete(0, mBefore.length() - SYNC_SIZE);
+            mBeforeComplete = false;
+        }
+    }
+
+    @Override
+    public CharSequence getTextBeforeCursor(int n, int flags) {
+        if (flags == 0 && (mValid || sync())
+                && (n <= mBefore.length() || mBeforeComplete)) {
+            int length = mBefore.length();
+            return mBefore.substring(Math.max(0, length - n), length);
+        }
+        return super.getTextBeforeCursor(n, flags);
+    }
+
+    @Override
+    public CharSequence getTextAfterCursor(int n, int flags) {
+        if (flags == 0 && (mValid || sync())
+                && (n <= mAfter.length() || mAfterComplete)) {
+            return mAfter.substring(0, Math.min(n, mAfter.length()));
+        }
+        return super.getTextAfterCursor(n, flags);
+    }
+
+    @Override
+    public boolean setComposingText(CharSequence text, int newCursorPosition) {
+        boolean result = super.setComposingText(text, newCursorPosition);
+        replaceComposing(text, newCursorPosition);
+        mComposingLength = newCursorPosition == 1 ? text.length() : -1;
+        return result;
+    }
+
+    @Override
+    public boolean commitText(CharSequence text, int newCursorPosition) {
+        boolean result = super.commitText(text, newCursorPosition);
+        replaceComposing(text, newCursorPosition);
+        mComposingLength = 0;
+        return result;
+    }
+
+    @Override
+    public boolean finishComposingText() {
+        mComposingLength = 0;
+        return super.finishComposingText();
+    }
+
+    @Override
+    public boolean deleteSurroundingText(int beforeLength, int afterLength) {
+        boolean result = super.deleteSurroundingText(beforeLength, afterLength);
+        if (!isCursorKnown() || mComposingLength != 0) {
+            invalidate();
+            return result;
+        }
+        int deleted = Math.min(beforeLength, mSelStart);
+        if (mValid && (deleted <= mBefore.length())
+                && (afterLength <= mAfter.length() || mAfterComplete)) {
+            mBefore.setLength(mBefore.length() - deleted);
+            mAfter.delete(0, Math.min(afterLength, mAfter.length()));
+        } else {
+            mValid = false;
+        }
+        expectCursor(mSelStart - deleted);
+        return result;
+    }
+
+    @Override
+    public boolean sendKeyEvent(KeyEvent event) {
+        boolean result = super.sendKeyEvent(event);
+        if (event.getAction() != KeyEvent.ACTION_DOWN
+                || KeyEvent.isModifierKey(event.getKeyCode())) {
+            return result;
+        }
+        if (!mKeysEditText || !isCursorKnown() || mComposingLength != 0) {
+            invalidate();
+            return result;
+        }
+        final int keyCode = event.getKeyCode();
+        final int metaState = event.getMetaState();
+        if (keyCode == KeyEvent.KEYCODE_DEL) {
+            if (metaState != 0) {
+                invalidate();
+            } else if (mValid && mBefore.length() > 0) {
+                int length = mBefore.length();
+                int deleted = length >= 2 && Character.isSurrogatePair(
+                        mBefore.charAt(length - 2), mBefore.charAt(length - 1)) ? 2 : 1;
+                mBefore.setLength(length - deleted);
+                expectCursor(mSelStart - deleted);
+            } else if (mSelStart > 0) {
+                invalidate();
+            }
+            return result;
+        }
+        int c;
+        if (keyCode == KeyEvent.KEYCODE_ENTER) {
+            c = mEnterIsNewline && metaState == 0 ? '\n' : 0;
+        } else if ((metaState & ~(KeyEvent.META_SHIFT_MASK | KeyEvent.META_CAPS_LOCK_ON)) != 0) {
+            // Other modifiers make shortcuts rather than characters
+            c = 0;
+        } else {
+            c = event.getUnicodeChar(metaState);
+            if ((c & KeyCharacterMap.COMBINING_ACCENT) != 0 || Character.isISOControl(c)) c = 0;
+        }
+        if (c == 0) {
+            invalidate();
+            return result;
+        }
+        if (mValid) {
+            mBefore.appendCodePoint(c);
+            trimBefore();
+        }
+        expectCursor(mSelStart + Character.charCount(c));
+        return result;
+    }
+
+    @Override
+    public boolean setComposingRegion(int start, int end) {
+        mComposingLength = -1;
+        return super.setComposingRegion(start, end);
+    }
+
+    @Override
+    public boolean setSelection(int start, int end) {
+        invalidate();
+        return super.setSelection(start, end);
+    }
+
+    @Override
+    public boolean commitCompletion(CompletionInfo text) {
+        invalidate();
+        mComposingLength = 0;
+        return super.commitCompletion(text);
+    }
+
+    @Override
+    public boolean commitCorrection(CorrectionInfo correctionInfo) {
+        invalidate();
+        return super.commitCorrection(correctionInfo);
+    }
+
+    @Override
+    public boolean deleteSurroundingTextInCodePoints(int beforeLength, int afterLength) {
+        invalidate();
+        return super.deleteSurroundingTextInCodePoints(beforeLength, afterLength);
+    }
+
+    @Override
+    public boolean performEditorAction(int editorAction) {
+        invalidate();
+        return super.performEditorAction(editorAction);
+    }
+
+    @Override
+    public boolean performContextMenuAction(int id) {
+        invalidate();
+        return super.performContextMenuAction(id);
+    }
+
+    @Override
+    public boolean performPrivateCommand(String action, Bundle data) {
+        invalidate();
+        return super.performPrivateCommand(action, data);
+    }
+}
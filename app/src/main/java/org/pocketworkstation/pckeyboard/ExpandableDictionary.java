@@ -16,7 +16,10 @@
 
 package org.pocketworkstation.pckeyboard;
 
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
 import java.util.LinkedList;
+import java.util.concurrent.ExecutionException;
 
 import android.content.Context;
 import android.os.AsyncTask;
@@ -24,6 +27,15 @@ import android.os.AsyncTask;
 /**
  * Base class for an in-memory dictionary that can grow dynamically and can
  * be searched for suggestions and valid words.
+ *
+ * <p>
+ * Searches don't lock. A reload fills a new trie off to the side while searches keep
+ * using the current one, and then replaces it in one step. Words added while a reload
+ * runs go into the current trie and are added to the new one before it replaces it.
+ * Single words are added in place: child arrays and bigram lists are replaced rather
+ * than changed, and new branches are fully built before they're linked in. Dictionaries
+ * that can tell what changed since their last load apply just that to a copy of the
+ * current trie, see {@link #updateDictionaryAsync}.
  */
 public class ExpandableDictionary extends Dictionary {
     /**
@@ -42,40 +54,61 @@ public class ExpandableDictionary extends Dictionary {
 
     private static final char QUOTE = '\'';
 
-    private boolean mRequiresReload;
+    // Rough size of a node with its share of the child array
+    private static final int NODE_FOOTPRINT = 48;
+
+    private volatile boolean mRequiresReload;
 
     private boolean mUpdatingDictionary;
 
     // Use this lock before touching mUpdatingDictionary & mRequiresDownload
     private Object mUpdatingLock = new Object();
 
+    // The running load task, for waiting until it's done
+    private LoadDictionaryTask mLoadTask;
+
+    // Held while a new trie is filled, so that only one reload runs at a time
+    private final Object mLoadLock = new Object();
+    // Use this lock before touching the tries or the fields below
+    private final Object mWriteLock = new Object();
+    // Trie being filled by a reload, and the thread filling it
+    private NodeArray mLoadingRoots;
+    private Thread mLoadingThread;
+    // Whether a load task was started, changes from then on are kept for the new trie
+    private boolean mLoadRequested;
+    // Changes made by other threads during a reload, to be repeated on the new trie
+    private final ArrayList<PendingWrite> mPendingWrites = new ArrayList<PendingWrite>();
+
     static class Node {
         char code;
         int frequency;
         boolean terminal;
         Node parent;
-        NodeArray children;
-        LinkedList<NextWord> ngrams; // Supports ngram
+        volatile NodeArray children;
+        volatile LinkedList<NextWord> ngrams; // Supports ngram
     }
 
     static class NodeArray {
-        Node[] data;
-        int length = 0;
-        private static final int INCREMENT = 2;
+        private static final Node[] EMPTY = new Node[0];
+
+        // Replaced rather than changed, so searches on other threads always see a
+        // complete array. Read it once into a local before walking it.
+        volatile Node[] data;
 
         NodeArray() {
-            data = new Node[INCREMENT];
+            data = EMPTY;
+        }
+
+        NodeArray(Node n) {
+            data = new Node[] { n };
         }
 
         void add(Node n) {
-            if (length + 1 > data.length) {
-                Node[] tempData = new Node[length + INCREMENT];
-                if (length > 0) {
-                    System.arraycopy(data, 0, tempData, 0, length);
-                }
-                data = tempData;
-            }
-            data[length++] = n;
+            final Node[] oldData = data;
+            final Node[] newData = new Node[oldData.length + 1];
+            System.arraycopy(oldData, 0, newData, 0, oldData.length);
+            newData[oldData.length] = n;
+            data = newData;
         }
     }
 
@@ -91,13 +124,35 @@ public class ExpandableDictionary extends Dictionary {
     }
 
 
-    private NodeArray mRoots;
+    private static class PendingWrite {
+        static final int ADD_WORD = 0;
+        static final int SET_WORD = 1;
+        static final int REMOVE_WORD = 2;
+        static final int ADD_BIGRAM = 3;
+        static final int SET_BIGRAM = 4;
+        static final int REMOVE_BIGRAM = 5;
+
+        final int type;
+        final String word1;
+        final String word2;
+        final int frequency;
+
+        PendingWrite(int type, String word1, String word2, int frequency) {
+            this.type = type;
+            this.word1 = word1;
+            this.word2 = word2;
+            this.frequency = frequency;
+        }
+    }
+
+    // The trie searched by readers
+    private volatile NodeArray mRoots;
 
     private int[][] mCodes;
 
     ExpandableDictionary(Context context, int dicTypeId) {
         mContext = context;
-        clearDictionary();
+        mRoots = new NodeArray();
         mCodes = new int[MAX_WORD_LENGTH][];
         mDicTypeId = dicTypeId;
     }
@@ -112,7 +167,19 @@ public class ExpandableDictionary extends Dictionary {
         if (!mUpdatingDictionary) {
             mUpdatingDictionary = true;
             mRequiresReload = false;
-            new LoadDictionaryTask().execute();
+            synchronized (mWriteLock) {
+                mLoadRequested = true;
+            }
+            mLoadTask = new LoadDictionaryTask();
+            mLoadTask.execute();
+        }
+    }
+
+    private void startLoadingIfRequired() {
+        // Checked without the lock first, since this runs for every search
+        if (!mRequiresReload) return;
+        synchronized (mUpdatingLock) {
+            if (mRequiresReload) startDictionaryLoadingTaskLocked();
         }
     }
 
@@ -120,6 +187,8 @@ public class ExpandableDictionary extends Dictionary {
         synchronized (mUpdatingLock) {
             mRequiresReload = reload;
         }
+        // The reload starts from the next getWords call, which mustn't be skipped
+        if (reload) onContentChanged();
     }
 
     public boolean getRequiresReload() {
@@ -130,6 +199,152 @@ public class ExpandableDictionary extends Dictionary {
     public void loadDictionaryAsync() {
     }
 
+    /**
+     * Override to apply only what changed since the last load, on a background thread. The
+     * changes go to a copy of the trie being searched, which then replaces it. Return false
+     * without changing anything to have {@link #loadDictionaryAsync} fill a new trie
+     * instead.
+     */
+    protected boolean updateDictionaryAsync() {
+        return false;
+    }
+
+    /**
+     * Runs {@link #updateDictionaryAsync} on this thread, or if that can't update the
+     * current trie, {@link #loadDictionaryAsync}. Either fills a new trie which then becomes
+     * the one that is searched.
+     */
+    protected void reloadDictionarySync() {
+        synchronized (mLoadLock) {
+            synchronized (mWriteLock) {
+                // Copied from the searched trie on the first change, see getWriteRootsLocked
+                mLoadingRoots = null;
+                mLoadingThread = Thread.currentThread();
+            }
+            try {
+                if (!updateDictionaryAsync()) {
+                    synchronized (mWriteLock) {
+                        mLoadingRoots = new NodeArray();
+                    }
+                    loadDictionaryAsync();
+                }
+            } finally {
+                synchronized (mWriteLock) {
+                    final NodeArray roots = mLoadingRoots;
+                    mLoadingRoots = null;
+                    mLoadingThread = null;
+                    mLoadRequested = false;
+                    if (roots != null) {
+                        for (PendingWrite write : mPendingWrites) {
+                            apply(roots, write);
+                        }
+                        mRoots = roots;
+                    }
+                    mPendingWrites.clear();
+                }
+                onContentChanged();
+            }
+        }
+    }
+
+    /**
+     * Returns the trie that changes go to. Called with mWriteLock held.
+     * @param pending recorded for the reload in progress, if there is one
+     */
+    private NodeArray getWriteRootsLocked(PendingWrite pending) {
+        if (mLoadingThread == Thread.currentThread()) {
+            if (mLoadingRoots == null) {
+                // The copy already has the changes made so far by other threads
+                mLoadingRoots = copyTrie(mRoots);
+                mPendingWrites.clear();
+            }
+            return mLoadingRoots;
+        }
+        if (mLoadingThread == null && !mLoadRequested) return mRoots;
+        mPendingWrites.add(pending);
+        return mRoots;
+    }
+
+    /**
+     * Returns a copy of a trie that shares nothing with it, with the bigrams pointing at the
+     * copied nodes.
+     */
+    private static NodeArray copyTrie(NodeArray roots) {
+        IdentityHashMap<Node, Node> copies = new IdentityHashMap<Node, Node>();
+        NodeArray copy = copyNodes(roots, null, copies);
+        for (Node node : copies.values()) {
+            LinkedList<NextWord> bigram = node.ngrams;
+            if (bigram == null) continue;
+            LinkedList<NextWord> newBigram = new LinkedList<NextWord>();
+            for (NextWord nw : bigram) {
+                Node word = copies.get(nw.word);
+                newBigram.add(new NextWord(word != null ? word : nw.word, nw.frequency));
+            }
+            node.ngrams = newBigram;
+        }
+        return copy;
+    }
+
+    private static NodeArray copyNodes(NodeArray children, Node parent,
+            IdentityHashMap<Node, Node> copies) {
+        final Node[] data = children.data;
+        final Node[] newData = new Node[data.length];
+        for (int i = 0; i < data.length; i++) {
+            final Node node = data[i];
+            final Node copy = new Node();
+            copy.code = node.code;
+            copy.frequency = node.frequency;
+            copy.terminal = node.terminal;
+            copy.parent = parent;
+            // Pointing at the original list until copyTrie replaces it
+            copy.ngrams = node.ngrams;
+            final NodeArray grandChildren = node.children;
+            if (grandChildren != null) copy.children = copyNodes(grandChildren, copy, copies);
+            copies.put(node, copy);
+            newData[i] = copy;
+        }
+        NodeArray copy = new NodeArray();
+        copy.data = newData;
+        return copy;
+    }
+
+    /**
+     * Drops the trie to save memory, the next search loads it again. Only for dictionaries
+     * that {@link #loadDictionaryAsync} restores completely.
+     */
+    protected void releaseTrie() {
+        synchronized (mLoadLock) {
+            synchronized (mWriteLock) {
+                mRoots = new NodeArray();
+            }
+            onTrieReleased();
+        }
+        setRequiresReload(true);
+    }
+
+    /**
+     * Called when the trie was dropped, for subclasses to forget what they loaded.
+     */
+    protected void onTrieReleased() {
+    }
+
+    /**
+     * Returns roughly how many bytes the trie takes.
+     */
+    public long getFootprint() {
+        return countNodes(mRoots) * NODE_FOOTPRINT;
+    }
+
+    private static int countNodes(NodeArray children) {
+        final Node[] data = children.data;
+        int count = data.length;
+        for (int i = 0; i < data.length; i++) {
+            Node node = data[i];
+            if (node.children != null) count += countNodes(node.children);
+        }
+        return count;
+    }
+
     Context getContext() {
         return mContext;
     }
@@ -139,7 +354,57 @@ public class ExpandableDictionary extends Dictionary {
     }
 
     public void addWord(String word, int frequency) {
-        addWordRec(mRoots, word, 0, frequency, null);
+        write(new PendingWrite(PendingWrite.ADD_WORD, word, null, frequency));
+    }
+
+    /**
+     * Sets the frequency of a word, adding it if needed. Unlike {@link #addWord}, this can
+     * lower the frequency.
+     */
+    protected void setWordFrequency(String word, int frequency) {
+        write(new PendingWrite(PendingWrite.SET_WORD, word, null, frequency));
+    }
+
+    /**
+     * Removes a word. Its bigrams aren't found without it, but the bigrams leading to it
+     * need {@link #removeBigram} too.
+     */
+    protected void removeWord(String word) {
+        write(new PendingWrite(PendingWrite.REMOVE_WORD, word, null, 0));
+    }
+
+    private int write(PendingWrite write) {
+        int result;
+        synchronized (mWriteLock) {
+            result = apply(getWriteRootsLocked(write), write);
+        }
+        onContentChanged();
+        return result;
+    }
+
+    private int apply(NodeArray roots, PendingWrite write) {
+        switch (write.type) {
+        case PendingWrite.ADD_WORD:
+            addWordRec(roots, write.word1, 0, write.frequency, null);
+            return write.frequency;
+        case PendingWrite.SET_WORD:
+            addWordRec(roots, write.word1, 0, write.frequency, null);
+            Node node = findNode(roots, write.word1);
+            node.frequency = Math.min(write.frequency, 255);
+            return node.frequency;
+        case PendingWrite.REMOVE_WORD:
+            node = findNode(roots, write.word1);
+            if (node != null) node.terminal = false;
+            return 0;
+        case PendingWrite.ADD_BIGRAM:
+        case PendingWrite.SET_BIGRAM:
+            return addOrSetBigram(roots, write.word1, write.word2, write.frequency,
+                    write.type == PendingWrite.ADD_BIGRAM);
+        case PendingWrite.REMOVE_BIGRAM:
+            removeBigram(roots, write.word1, write.word2);
+            return 0;
+        }
+        return 0;
     }
 
     private void addWordRec(NodeArray children, final String word, final int depth,
@@ -147,44 +412,65 @@ public class ExpandableDictionary extends Dictionary {
         final int wordLength = word.length();
         final char c = word.charAt(depth);
         // Does children have the current character?
-        final int childrenLength = children.length;
-        Node childNode = null;
-        boolean found = false;
-        for (int i = 0; i < childrenLength; i++) {
-            childNode = children.data[i];
-            if (childNode.code == c) {
-                found = true;
-                break;
-            }
-        }
-        if (!found) {
-            childNode = new Node();
-            childNode.code = c;
-            childNode.parent = parentNode;
-            children.add(childNode);
+        final Node childNode = findChild(children, c);
+        if (childNode == null) {
+            children.add(newBranch(word, depth, frequency, parentNode));
+            return;
         }
         if (wordLength == depth + 1) {
             // Terminate this word
+            childNode.frequency = Math.min(Math.max(frequency, childNode.frequency), 255);
             childNode.terminal = true;
-            childNode.frequency = Math.max(frequency, childNode.frequency);
-            if (childNode.frequency > 255) childNode.frequency = 255;
             return;
         }
         if (childNode.children == null) {
-            childNode.children = new NodeArray();
+            childNode.children = new NodeArray(newBranch(word, depth + 1, frequency, childNode));
+            return;
         }
         addWordRec(childNode.children, word, depth + 1, frequency, childNode);
     }
 
+    private static Node findChild(NodeArray children, char c) {
+        final Node[] data = children.data;
+        for (int i = 0; i < data.length; i++) {
+            if (data[i].code == c) return data[i];
+        }
+        return null;
+    }
+
+    /**
+     * Builds the nodes for the rest of a word, from depth on, so that they can be linked
+     * into the trie in one step.
+     * @return the node for the character at depth
+     */
+    private static Node newBranch(String word, int depth, int frequency, Node parentNode) {
+        final int wordLength = word.length();
+        Node first = null;
+        Node parent = parentNode;
+        for (int i = depth; i < wordLength; i++) {
+            Node node = new Node();
+            node.code = word.charAt(i);
+            node.parent = parent;
+            if (i == wordLength - 1) {
+                node.frequency = Math.min(frequency, 255);
+                node.terminal = true;
+            }
+            if (first == null) {
+                first = node;
+            } else {
+                parent.children = new NodeArray(node);
+            }
+            parent = node;
+        }
+        return first;
+    }
+
     @Override
     public void getWords(final WordComposer codes, final WordCallback callback,
             int[] nextLettersFrequencies) {
-        synchronized (mUpdatingLock) {
-            // If we need to update, start off a background task
-            if (mRequiresReload) startDictionaryLoadingTaskLocked();
-            // Currently updating contacts, don't return any results.
-            if (mUpdatingDictionary) return;
-        }
+        // If we need to update, start off a background task
+        startLoadingIfRequired();
+        final NodeArray roots = mRoots;
 
         mInputLength = codes.size();
         mNextLettersFrequencies = nextLettersFrequencies;
@@ -194,19 +480,16 @@ public class ExpandableDictionary extends Dictionary {
             mCodes[i] = codes.getCodesAt(i);
         }
         mMaxDepth = mInputLength * 3;
-        getWordsRec(mRoots, codes, mWordBuilder, 0, false, 1, 0, -1, callback);
+        getWordsRec(roots, codes, mWordBuilder, 0, false, 1, 0, -1, callback);
         for (int i = 0; i < mInputLength; i++) {
-            getWordsRec(mRoots, codes, mWordBuilder, 0, false, 1, 0, i, callback);
+            getWordsRec(roots, codes, mWordBuilder, 0, false, 1, 0, i, callback);
         }
     }
 
     @Override
-    public synchronized boolean isValidWord(CharSequence word) {
-        synchronized (mUpdatingLock) {
-            // If we need to update, start off a background task
-            if (mRequiresReload) startDictionaryLoadingTaskLocked();
-            if (mUpdatingDictionary) return false;
-        }
+    public boolean isValidWord(CharSequence word) {
+        // If we need to update, start off a background task
+        startLoadingIfRequired();
         final int freq = getWordFrequency(word);
         return freq > -1;
     }
@@ -241,7 +524,8 @@ public class ExpandableDictionary extends Dictionary {
     protected void getWordsRec(NodeArray roots, final WordComposer codes, final char[] word, 
             final int depth, boolean completion, int snr, int inputIndex, int skipPos,
             WordCallback callback) {
-        final int count = roots.length;
+        final Node[] data = roots.data;
+        final int count = data.length;
         final int codeSize = mInputLength;
         // Optimization: Prune out words that are too long compared to how much was typed.
         if (depth > mMaxDepth) {
@@ -255,7 +539,7 @@ public class ExpandableDictionary extends Dictionary {
         }
 
         for (int i = 0; i < count; i++) {
-            final Node node = roots.data[i];
+            final Node node = data[i];
             final char c = node.code;
             final char lowerC = toLowerCase(c);
             final boolean terminal = node.terminal;
@@ -338,13 +622,20 @@ public class ExpandableDictionary extends Dictionary {
      * @return returns the final frequency
      */
     private int addOrSetBigram(String word1, String word2, int frequency, boolean addFrequency) {
-        Node firstWord = searchWord(mRoots, word1, 0, null);
-        Node secondWord = searchWord(mRoots, word2, 0, null);
+        return write(new PendingWrite(addFrequency ? PendingWrite.ADD_BIGRAM
+                : PendingWrite.SET_BIGRAM, word1, word2, frequency));
+    }
+
+    protected void removeBigram(String word1, String word2) {
+        write(new PendingWrite(PendingWrite.REMOVE_BIGRAM, word1, word2, 0));
+    }
+
+    private int addOrSetBigram(NodeArray roots, String word1, String word2, int frequency,
+            boolean addFrequency) {
+        Node firstWord = searchWord(roots, word1, 0, null);
+        Node secondWord = searchWord(roots, word2, 0, null);
         LinkedList<NextWord> bigram = firstWord.ngrams;
-        if (bigram == null || bigram.size() == 0) {
-            firstWord.ngrams = new LinkedList<NextWord>();
-            bigram = firstWord.ngrams;
-        } else {
+        if (bigram != null) {
             for (NextWord nw : bigram) {
                 if (nw.word == secondWord) {
                     if (addFrequency) {
@@ -356,11 +647,44 @@ public class ExpandableDictionary extends Dictionary {
                 }
             }
         }
-        NextWord nw = new NextWord(secondWord, frequency);
-        firstWord.ngrams.add(nw);
+        // Searches may be iterating the list, so replace it instead of changing it
+        LinkedList<NextWord> newBigram = bigram == null
+                ? new LinkedList<NextWord>() : new LinkedList<NextWord>(bigram);
+        newBigram.add(new NextWord(secondWord, frequency));
+        firstWord.ngrams = newBigram;
         return frequency;
     }
 
+    private void removeBigram(NodeArray roots, String word1, String word2) {
+        Node firstWord = findNode(roots, word1);
+        Node secondWord = findNode(roots, word2);
+        if (firstWord == null || secondWord == null) return;
+        LinkedList<NextWord> bigram = firstWord.ngrams;
+        if (bigram == null) return;
+        for (NextWord nw : bigram) {
+            if (nw.word == secondWord) {
+                LinkedList<NextWord> newBigram = new LinkedList<NextWord>(bigram);
+                newBigram.remove(nw);
+                firstWord.ngrams = newBigram.isEmpty() ? null : newBigram;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Returns the last node of the word, whether or not it's still a word, or null.
+     */
+    private static Node findNode(NodeArray children, String word) {
+        Node node = null;
+        for (int depth = 0; depth < word.length(); depth++) {
+            if (children == null) return null;
+            node = findChild(children, word.charAt(depth));
+            if (node == null) return null;
+            children = node.children;
+        }
+        return node;
+    }
+
     /**
      * Searches for the word and add the word if it does not exist.
      * @return Returns the terminal node of the word we are searching for.
@@ -369,21 +693,11 @@ public class ExpandableDictionary extends Dictionary {
         final int wordLength = word.length();
         final char c = word.charAt(depth);
         // Does children have the current character?
-        final int childrenLength = children.length;
-        Node childNode = null;
-        boolean found = false;
-        for (int i = 0; i < childrenLength; i++) {
-            childNode = children.data[i];
-            if (childNode.code == c) {
-                found = true;
-                break;
-            }
-        }
-        if (!found) {
-            childNode = new Node();
-            childNode.code = c;
-            childNode.parent = parentNode;
+        Node childNode = findChild(children, c);
+        if (childNode == null) {
+            childNode = newBranch(word, depth, 0, parentNode);
             children.add(childNode);
+            return lastNode(childNode);
         }
         if (wordLength == depth + 1) {
             // Terminate this word
@@ -391,19 +705,17 @@ public class ExpandableDictionary extends Dictionary {
             return childNode;
         }
         if (childNode.children == null) {
-            childNode.children = new NodeArray();
+            Node branch = newBranch(word, depth + 1, 0, childNode);
+            childNode.children = new NodeArray(branch);
+            return lastNode(branch);
         }
         return searchWord(childNode.children, word, depth + 1, childNode);
     }
 
-    // @VisibleForTesting
-    boolean reloadDictionaryIfRequired() {
-        synchronized (mUpdatingLock) {
-            // If we need to update, start off a background task
-            if (mRequiresReload) startDictionaryLoadingTaskLocked();
-            // Currently updating contacts, don't return any results.
-            return mUpdatingDictionary;
-        }
+    // Follows a branch from newBranch to the node of its last character
+    private static Node lastNode(Node node) {
+        while (node.children != null) node = node.children.data[0];
+        return node;
     }
 
     private void runReverseLookUp(final CharSequence previousWord, final WordCallback callback) {
@@ -416,9 +728,9 @@ public class ExpandableDictionary extends Dictionary {
     @Override
     public void getBigrams(final WordComposer codes, final CharSequence previousWord,
             final WordCallback callback, int[] nextLettersFrequencies) {
-        if (!reloadDictionaryIfRequired()) {
-            runReverseLookUp(previousWord, callback);
-        }
+        // If we need to update, start off a background task
+        startLoadingIfRequired();
+        runReverseLookUp(previousWord, callback);
     }
 
     /**
@@ -426,11 +738,17 @@ public class ExpandableDictionary extends Dictionary {
      * This function will wait for loading from database to be done
      */
     void waitForDictionaryLoading() {
-        while (mUpdatingDictionary) {
-            try {
-                Thread.sleep(100);
-            } catch (InterruptedException e) {
-            }
+        LoadDictionaryTask task;
+        synchronized (mUpdatingLock) {
+            task = mLoadTask;
+        }
+        if (task == null) return;
+        try {
+            task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
         }
     }
 
@@ -468,10 +786,10 @@ public class ExpandableDictionary extends Dictionary {
     private Node searchNode(final NodeArray children, final CharSequence word, final int offset,
             final int length) {
         // TODO Consider combining with addWordRec
-        final int count = children.length;
+        final Node[] data = children.data;
         char currentChar = word.charAt(offset);
-        for (int j = 0; j < count; j++) {
-            final Node node = children.data[j];
+        for (int j = 0; j < data.length; j++) {
+            final Node node = data[j];
             if (node.code == currentChar) {
                 if (offset == length - 1) {
                     if (node.terminal) {
@@ -489,30 +807,34 @@ public class ExpandableDictionary extends Dictionary {
     }
 
     protected void clearDictionary() {
-        mRoots = new NodeArray();
+        synchronized (mWriteLock) {
+            if (mLoadingThread == Thread.currentThread()) {
+                // Start the new trie over, searches keep using the current one
+                mLoadingRoots = new NodeArray();
+                return;
+            }
+            mRoots = new NodeArray();
+        }
+        onContentChanged();
     }
 
     private class LoadDictionaryTask extends AsyncTask<Void, Void, Void> {
         @Override
         protected Void doInBackground(Void... v) {
-            loadDictionaryAsync();
-            synchronized (mUpdatingLock) {
-                mUpdatingDictionary = false;
+            try {
+                reloadDictionarySync();
+            } finally {
+                synchronized (mUpdatingLock) {
+                    mUpdatingDictionary = false;
+                    mLoadTask = null;
+                }
             }
             return null;
         }
     }
 
     static char toLowerCase(char c) {
-        if (c < BASE_CHARS.length) {
-            c = BASE_CHARS[c];
-        }
-        if (c >= 'A' && c <= 'Z') {
-            c = (char) (c | 32);
-        } else if (c > 127) {
-            c = Character.toLowerCase(c);
-        }
-        return c;
+        return CharClasses.toBaseLowerCase(c);
     }
 
     /**
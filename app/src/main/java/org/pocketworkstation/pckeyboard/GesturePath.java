@@ -0,0 +1,314 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.pocketworkstation.pckeyboard;
+
+/**
+ * The path of a gesture typing touch, and the input it gives the gesture search in
+ * {@link BinaryDictionary#getGestureWords}.
+ *
+ * <p>
+ * The raw path is resampled to points about half a key pitch apart, at most
+ * {@link #MAX_POINTS} of them. Each point gets the letter keys near it, with a cost that
+ * grows with the squared distance from the key center and is {@link #PITCH_COST} at one
+ * key pitch. Each point also gets a cost for leaving out a letter where the path turns,
+ * kept as prefix sums so that the search finds the cost of skipping a stretch of the
+ * path in constant time.
+ *
+ * <p>
+ * This class is plain Java so that the replay tool can use it on the host.
+ */
+public class GesturePath {
+    /**
+     * Finds the keys near a point of the path.
+     */
+    public interface KeyGrid {
+        /** Returns the distance between the centers of neighboring keys. */
+        int getKeyPitch();
+
+        /**
+         * Finds the letter keys near a point.
+         * @param codes receives the lower case codes of the keys
+         * @param distances receives the squared distances of the key centers from the point
+         * @return the number of keys found, at most the length of the arrays
+         */
+        int getNearbyKeys(int x, int y, int[] codes, int[] distances);
+    }
+
+    public static final int MAX_POINTS = 64;
+    public static final int MAX_ALTERNATIVES = 8;
+    /** The cost of a key whose center is one key pitch away from a point. */
+    public static final int PITCH_COST = 100;
+
+    private static final int MAX_RAW_POINTS = 512;
+    private static final int MAX_NEARBY_KEYS = 16;
+    // Keys further than this many pitches from a point aren't candidates for it
+    private static final float MAX_KEY_DISTANCE = 1.2f;
+    // The cost of leaving out a letter at a right angle turn, twice that at a reversal
+    private static final int CORNER_COST = 100;
+    // Turns flatter than about 30 degrees are taken as noise
+    private static final float MIN_CORNER_COS = 0.87f;
+
+    private final int[] mRawX;
+    private final int[] mRawY;
+    private int mRawCount;
+    private float mLength;
+
+    private final int[] mX;
+    private final int[] mY;
+    private int mPointCount;
+    private final int[] mCodes;
+    private final int[] mCosts;
+    private final int[] mCornerSums;
+
+    // Working area
+    private final int[] mNearbyCodes = new int[MAX_NEARBY_KEYS];
+    private final int[] mNearbyDistances = new int[MAX_NEARBY_KEYS];
+    private final int[] mCorners = new int[MAX_POINTS];
+
+    public GesturePath() {
+        mRawX = new int[MAX_RAW_POINTS];
+        mRawY = new int[MAX_RAW_POINTS];
+        mX = new int[MAX_POINTS];
+        mY = new int[MAX_POINTS];
+        mCodes = new int[MAX_POINTS * MAX_ALTERNATIVES];
+        mCosts = new int[MAX_POINTS * MAX_ALTERNATIVES];
+        mCornerSums = new int[MAX_POINTS + 1];
+    }
+
+    GesturePath(GesturePath copy) {
+        mRawX = copy.mRawX.clone();
+        mRawY = copy.mRawY.clone();
+        mRawCount = copy.mRawCount;
+        mLength = copy.mLength;
+        mX = copy.mX.clone();
+        mY = copy.mY.clone();
+        mPointCount = copy.mPointCount;
+        mCodes = copy.mCodes.clone();
+        mCosts = copy.mCosts.clone();
+        mCornerSums = copy.mCornerSums.clone();
+    }
+
+    public void reset() {
+        mRawCount = 0;
+        mLength = 0;
+        mPointCount = 0;
+    }
+
+    /**
+     * Adds a point to the raw path. When the path is full, every other point is dropped
+     * to make room, so a long gesture keeps its shape at a lower resolution.
+     */
+    public void add(int x, int y) {
+        if (mRawCount > 0) {
+            int lastX = mRawX[mRawCount - 1];
+            int lastY = mRawY[mRawCount - 1];
+            if (x == lastX && y == lastY) return;
+            if (mRawCount == MAX_RAW_POINTS) {
+                halve();
+                lastX = mRawX[mRawCount - 1];
+                lastY = mRawY[mRawCount - 1];
+            }
+            mLength += distance(lastX, lastY, x, y);
+        }
+        mRawX[mRawCount] = x;
+        mRawY[mRawCount] = y;
+        mRawCount++;
+    }
+
+    // Keeps the first point and every other one after it, and recomputes the length
+    private void halve() {
+        int count = 1;
+        for (int i = 2; i < mRawCount; i += 2) {
+            mRawX[count] = mRawX[i];
+            mRawY[count] = mRawY[i];
+            count++;
+        }
+        mRawCount = count;
+        mLength = 0;
+        for (int i = 1; i < count; i++) {
+            mLength += distance(mRawX[i - 1], mRawY[i - 1], mRawX[i], mRawY[i]);
+        }
+    }
+
+    public int getRawCount() {
+        return mRawCount;
+    }
+
+    public int getRawX(int index) {
+        return mRawX[index];
+    }
+
+    public int getRawY(int index) {
+        return mRawY[index];
+    }
+
+    /**
+     * Returns the length of the raw path in pixels.
+     */
+    public float getLength() {
+        return mLength;
+    }
+
+    /**
+     * Resamples the raw path and finds the keys near each point, for the getters below.
+     */
+    public void resample(KeyGrid grid) {
+        mPointCount = 0;
+        if (mRawCount == 0) return;
+        final int pitch = Math.max(1, grid.getKeyPitch());
+        final float step = Math.max(pitch / 2f, mLength / (MAX_POINTS - 1));
+        addPoint(mRawX[0], mRawY[0]);
+        // Distance travelled along the path since the last point
+        float carry = 0;
+        for (int i = 1; i < mRawCount && mPointCount < MAX_POINTS - 1; i++) {
+            final int x0 = mRawX[i - 1];
+            final int y0 = mRawY[i - 1];
+            final int dx = mRawX[i] - x0;
+            final int dy = mRawY[i] - y0;
+            final float segment = distance(x0, y0, mRawX[i], mRawY[i]);
+            float d = step - carry;
+            while (d <= segment && mPointCount < MAX_POINTS - 1) {
+                final float t = d / segment;
+                addPoint(Math.round(x0 + t * dx), Math.round(y0 + t * dy));
+                d += step;
+            }
+            carry = segment - (d - step);
+        }
+        // The path must end on its last raw point, which replaces a point that's close
+        final int endX = mRawX[mRawCount - 1];
+        final int endY = mRawY[mRawCount - 1];
+        final int last = mPointCount - 1;
+        if (mPointCount > 1 && distance(mX[last], mY[last], endX, endY) < step / 4) {
+            mX[last] = endX;
+            mY[last] = endY;
+        } else if (mX[last] != endX || mY[last] != endY) {
+            addPoint(endX, endY);
+        }
+
+        final int maxDistance = (int) (pitch * MAX_KEY_DISTANCE);
+        final int maxDistanceSquared = maxDistance * maxDistance;
+        final long pitchSquared = (long) pitch * pitch;
+        for (int i = 0; i < mPointCount; i++) {
+            findKeys(grid, i, maxDistanceSquared, pitchSquared);
+        }
+        findCorners();
+    }
+
+    private void addPoint(int x, int y) {
+        mX[mPointCount] = x;
+        mY[mPointCount] = y;
+        mPointCount++;
+    }
+
+    // Keeps the nearest keys of a point, closest first
+    private void findKeys(KeyGrid grid, int point, int maxDistanceSquared, long pitchSquared) {
+        final int base = point * MAX_ALTERNATIVES;
+        int count = 0;
+        final int found = grid.getNearbyKeys(mX[point], mY[point], mNearbyCodes,
+                mNearbyDistances);
+        for (int k = 0; k < found; k++) {
+            final int distance = mNearbyDistances[k];
+            if (distance >= maxDistanceSquared) continue;
+            final int cost = (int) (PITCH_COST * (long) distance / pitchSquared);
+            int j = count;
+            while (j > 0 && mCosts[base + j - 1] > cost) j--;
+            if (j >= MAX_ALTERNATIVES) continue;
+            final int moved = Math.min(count, MAX_ALTERNATIVES - 1) - j;
+            System.arraycopy(mCodes, base + j, mCodes, base + j + 1, moved);
+            System.arraycopy(mCosts, base + j, mCosts, base + j + 1, moved);
+            mCodes[base + j] = mNearbyCodes[k];
+            mCosts[base + j] = cost;
+            if (count < MAX_ALTERNATIVES) count++;
+        }
+        for (int j = count; j < MAX_ALTERNATIVES; j++) {
+            mCodes[base + j] = -1;
+            mCosts[base + j] = 0;
+        }
+    }
+
+    // The turn at each point is measured between the points two steps before and after
+    // it, and only the sharpest point of a turn counts as its corner.
+    private void findCorners() {
+        final int count = mPointCount;
+        for (int i = 0; i < count; i++) {
+            final int a = Math.max(0, i - 2);
+            final int b = Math.min(count - 1, i + 2);
+            mCorners[i] = 0;
+            if (a == i || b == i) continue;
+            final float ux = mX[i] - mX[a];
+            final float uy = mY[i] - mY[a];
+            final float vx = mX[b] - mX[i];
+            final float vy = mY[b] - mY[i];
+            final float norms = (float) Math.sqrt((ux * ux + uy * uy) * (vx * vx + vy * vy));
+            if (norms == 0) continue;
+            final float cos = (ux * vx + uy * vy) / norms;
+            if (cos < MIN_CORNER_COS) mCorners[i] = Math.round(CORNER_COST * (1 - cos));
+        }
+        mCornerSums[0] = 0;
+        for (int i = 0; i < count; i++) {
+            final int corner = mCorners[i];
+            final boolean isPeak = corner > 0
+                    && (i == 0 || corner >= mCorners[i - 1])
+                    && (i == count - 1 || corner > mCorners[i + 1]);
+            mCornerSums[i + 1] = mCornerSums[i] + (isPeak ? corner : 0);
+        }
+    }
+
+    /**
+     * Returns the number of resampled points.
+     */
+    public int getPointCount() {
+        return mPointCount;
+    }
+
+    public int getX(int point) {
+        return mX[point];
+    }
+
+    public int getY(int point) {
+        return mY[point];
+    }
+
+    /**
+     * Returns the key codes near each point, {@link #MAX_ALTERNATIVES} for each point with
+     * the nearest first. Unused entries are -1.
+     */
+    public int[] getCodes() {
+        return mCodes;
+    }
+
+    /**
+     * Returns the costs of the codes in {@link #getCodes()}.
+     */
+    public int[] getCosts() {
+        return mCosts;
+    }
+
+    /**
+     * Returns the sums of the corner costs of the points before each index, so that the
+     * corners of points i to j - 1 cost getCornerSums()[j] - getCornerSums()[i].
+     */
+    public int[] getCornerSums() {
+        return mCornerSums;
+    }
+
+    private static float distance(int x0, int y0, int x1, int y1) {
+        final float dx = x1 - x0;
+        final float dy = y1 - y0;
+        return (float) Math.sqrt(dx * dx + dy * dy);
+    }
+}
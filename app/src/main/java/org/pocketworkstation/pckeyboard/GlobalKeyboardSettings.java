@@ -62,6 +62,18 @@ public final class GlobalKeyboardSettings {
     //
     // Read by PointerTracker
     public int sendSlideKeys = 0;
+    //
+    // Read by LatinKeyboardBaseView
+    public boolean gestureTyping = false;
+    //
+    // Read by LatencyTracker
+    public boolean latencyTracking = false;
+    //
+    // Read by TraceRecorder
+    public boolean traceRecording = false;
+    //
+    // Read by LatinIME for Suggest
+    public boolean parallelQueries = true;
     
     /* Updated by LatinIME */
     //
@@ -139,12 +151,36 @@ public final class GlobalKeyboardSettings {
             public int getFlags() { return FLAG_PREF_NONE; }
         });
 
+        addBooleanPref("pref_gesture_typing", new BooleanPref() {
+            public void set(boolean val) { gestureTyping = val; }
+            public boolean getDefault() { return false; }
+            public int getFlags() { return FLAG_PREF_NONE; }
+        });
+
         addBooleanPref("pref_touch_pos", new BooleanPref() {
             public void set(boolean val) { showTouchPos = val; }
             public boolean getDefault() { return false; }
             public int getFlags() { return FLAG_PREF_NONE; }
         });
 
+        addBooleanPref("pref_latency_tracking", new BooleanPref() {
+            public void set(boolean val) { latencyTracking = val; }
+            public boolean getDefault() { return false; }
+            public int getFlags() { return FLAG_PREF_NONE; }
+        });
+
+        addBooleanPref("pref_trace_recording", new BooleanPref() {
+            public void set(boolean val) { traceRecording = val; }
+            public boolean getDefault() { return false; }
+            public int getFlags() { return FLAG_PREF_NONE; }
+        });
+
+        addBooleanPref("pref_parallel_queries", new BooleanPref() {
+            public void set(boolean val) { parallelQueries = val; }
+            public boolean getDefault() { return true; }
+            public int getFlags() { return FLAG_PREF_NONE; }
+        });
+
         addStringPref("pref_popup_content", new StringPref() {
             public void set(String val) { popupKeyboardFlags = Integer.valueOf(val); }
             public String getDefault() { return res.getString(R.string.default_popup_content); }
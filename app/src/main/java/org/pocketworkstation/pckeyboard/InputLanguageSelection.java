@@ -214,22 +214,17 @@ public class InputLanguageSelection extends PreferenceActivity {
         res.updateConfiguration(conf, res.getDisplayMetrics());
 
         int[] dictionaries = LatinIME.getDictionary(res);
-        BinaryDictionary bd = new BinaryDictionary(this, dictionaries, Suggest.DIC_MAIN);
+        DictionaryIndex.Entry builtIn = DictionaryIndex.getBuiltIn(this, res, dictionaries);
 
         // Is the dictionary larger than a placeholder? Arbitrarily chose a lower limit of
         // 4000-5000 words, whereas the LARGE_DICTIONARY is about 20000+ words.
-        if (bd.getSize() > Suggest.LARGE_DICTIONARY_THRESHOLD / 4) {
+        if (builtIn != null && builtIn.size > Suggest.LARGE_DICTIONARY_THRESHOLD / 4) {
+            haveDictionary = true;
+        } else if (PluginManager.getDictionaryInfo(getApplicationContext(),
+                locale.getLanguage()) != null) {
             haveDictionary = true;
-        } else {
-            BinaryDictionary plug = PluginManager.getDictionary(getApplicationContext(), locale.getLanguage());
-            if (plug != null) {
-                bd.close();
-                bd = plug;
-                haveDictionary = true;
-            }
         }
 
-        bd.close();
         conf.locale = saveLocale;
         res.updateConfiguration(conf, res.getDisplayMetrics());
         return haveDictionary;
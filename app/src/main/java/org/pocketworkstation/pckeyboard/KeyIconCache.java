@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.pocketworkstation.pckeyboard;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.graphics.Bitmap;
+
+/**
+ * Keeps the key icons {@link LatinKeyboard} draws itself, such as the space bar with the
+ * language name, so that keyboards of the same size share them and switching back to an
+ * earlier state doesn't draw them again.
+ *
+ * <p>
+ * Keys describe everything the icon was drawn from, including the keyboard theme, and the
+ * cache is cleared when the theme changes. The bitmaps are never recycled since keys may
+ * still show them after they leave the cache. All calls are made on the main thread.
+ */
+public class KeyIconCache {
+    private static final int MAX_ICONS = 24;
+
+    // Layout resource of the keyboard theme the icons are drawn for
+    private static int sThemeResId;
+
+    private static final LinkedHashMap<String, Bitmap> sIcons =
+            new LinkedHashMap<String, Bitmap>(MAX_ICONS, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Bitmap> eldest) {
+            return size() > MAX_ICONS;
+        }
+    };
+
+    private static final MemoryGovernor.Consumer sMemoryConsumer = new MemoryGovernor.Consumer() {
+        public long getFootprint() {
+            long footprint = 0;
+            for (Bitmap bitmap : sIcons.values()) {
+                footprint += bitmap.getRowBytes() * bitmap.getHeight();
+            }
+            return footprint;
+        }
+
+        public void release() {
+            sIcons.clear();
+        }
+    };
+
+    static {
+        MemoryGovernor.register("key icons", MemoryGovernor.TIER_HIDDEN, sMemoryConsumer);
+    }
+
+    private KeyIconCache() {
+    }
+
+    /**
+     * Sets the keyboard theme new icons are drawn for, dropping the icons of another theme.
+     */
+    public static void setTheme(int themeResId) {
+        if (themeResId != sThemeResId) {
+            sIcons.clear();
+            sThemeResId = themeResId;
+        }
+    }
+
+    public static int getTheme() {
+        return sThemeResId;
+    }
+
+    public static Bitmap get(String key) {
+        return sIcons.get(key);
+    }
+
+    public static void put(String key, Bitmap bitmap) {
+        if (bitmap != null) sIcons.put(key, bitmap);
+    }
+}
@@ -22,6 +22,7 @@ import android.content.Context;
 import android.content.res.Resources;
 import android.content.res.TypedArray;
 import android.content.res.XmlResourceParser;
+import android.graphics.Typeface;
 import android.graphics.drawable.Drawable;
 import android.text.TextUtils;
 import android.util.Log;
@@ -155,6 +156,8 @@ public class Keyboard {
     
     private boolean mUseExtension;
 
+    private LabelMetrics mLabelMetrics;
+
     public int mLayoutRows;
     public int mLayoutColumns;
     public int mRowCount = 1;
@@ -324,6 +327,14 @@ public class Keyboard {
         /** Is the shifted character a distinct uppercase char that's different from the shifted char? */
         private boolean isDistinctUppercase;
 
+        // Strings of the labels for getCaseLabel(), made again only when a label is replaced
+        private CharSequence mLabelSource;
+        private String mLabelString;
+        private CharSequence mShiftLabelSource;
+        private String mShiftLabelString;
+        private CharSequence mCapsLabelSource;
+        private String mCapsLabelString;
+
         private final static int[] KEY_STATE_NORMAL_ON = {
             android.R.attr.state_checkable,
             android.R.attr.state_checked
@@ -542,13 +553,25 @@ public class Keyboard {
 
         public String getCaseLabel() {
             if (isDistinctUppercase && keyboard.isShiftCaps()) {
-                return capsLabel.toString();
+                if (mCapsLabelSource != capsLabel) {
+                    mCapsLabelString = capsLabel.toString();
+                    mCapsLabelSource = capsLabel;
+                }
+                return mCapsLabelString;
             }
             boolean isShifted = keyboard.isShifted(isSimpleUppercase);
             if (isShifted && shiftLabel != null) {
-                return shiftLabel.toString();
+                if (mShiftLabelSource != shiftLabel) {
+                    mShiftLabelString = shiftLabel.toString();
+                    mShiftLabelSource = shiftLabel;
+                }
+                return mShiftLabelString;
             } else {
-                return label != null ? label.toString() : null;
+                if (mLabelSource != label) {
+                    mLabelString = label != null ? label.toString() : null;
+                    mLabelSource = label;
+                }
+                return mLabelString;
             }
         }
 
@@ -1096,6 +1119,56 @@ public class Keyboard {
         return mShiftKeyIndex;
     }
 
+    /**
+     * Text sizes for the key labels, measured by the view the first time the keyboard is
+     * drawn with a label scale and typeface. The key sizes don't change once the keyboard
+     * is loaded, so the sizes stay valid while those are the same.
+     */
+    public static class LabelMetrics {
+        public final float labelScale;
+        public final float topRowScale;
+        public final Typeface typeface;
+        /** Text size for single characters, before the label scale. */
+        public final float keyTextSize;
+        /** Text size for words such as "Done", before the label scale. */
+        public final float labelTextSize;
+        public final int charLabelSize;
+        public final int charLabelHeight;
+        public final int wordLabelSize;
+        public final int wordLabelHeight;
+        public final int hintLabelSize;
+        public final int hintLabelHeight;
+
+        public LabelMetrics(float labelScale, float topRowScale, Typeface typeface,
+                float keyTextSize, float labelTextSize, int charLabelSize, int charLabelHeight,
+                int wordLabelSize, int wordLabelHeight, int hintLabelSize, int hintLabelHeight) {
+            this.labelScale = labelScale;
+            this.topRowScale = topRowScale;
+            this.typeface = typeface;
+            this.keyTextSize = keyTextSize;
+            this.labelTextSize = labelTextSize;
+            this.charLabelSize = charLabelSize;
+            this.charLabelHeight = charLabelHeight;
+            this.wordLabelSize = wordLabelSize;
+            this.wordLabelHeight = wordLabelHeight;
+            this.hintLabelSize = hintLabelSize;
+            this.hintLabelHeight = hintLabelHeight;
+        }
+
+        public boolean matches(float labelScale, float topRowScale, Typeface typeface) {
+            return this.labelScale == labelScale && this.topRowScale == topRowScale
+                    && this.typeface == typeface;
+        }
+    }
+
+    public LabelMetrics getLabelMetrics() {
+        return mLabelMetrics;
+    }
+
+    public void setLabelMetrics(LabelMetrics metrics) {
+        mLabelMetrics = metrics;
+    }
+
     private void computeNearestNeighbors() {
         // Round-up so we don't have any pixels outside the grid
         mCellWidth = (getMinWidth() + mLayoutColumns - 1) / mLayoutColumns;
@@ -26,7 +26,9 @@ import android.view.InflateException;
 import java.lang.ref.SoftReference;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Locale;
+import java.util.Map;
 
 public class KeyboardSwitcher implements
         SharedPreferences.OnSharedPreferenceChangeListener {
@@ -161,8 +163,36 @@ public class KeyboardSwitcher implements
 
         sInstance.mSymbolsId = sInstance.makeSymbolsId(false);
         sInstance.mSymbolsShiftedId = sInstance.makeSymbolsShiftedId(false);
+        MemoryGovernor.register("keyboards", MemoryGovernor.TIER_HIDDEN,
+                sInstance.mMemoryConsumer);
     }
 
+    // Rough size of a key with its labels and popup characters
+    private static final int KEY_FOOTPRINT = 256;
+
+    private final MemoryGovernor.Consumer mMemoryConsumer = new MemoryGovernor.Consumer() {
+        public long getFootprint() {
+            long footprint = 0;
+            for (Map.Entry<KeyboardId, SoftReference<LatinKeyboard>> entry
+                    : mKeyboards.entrySet()) {
+                LatinKeyboard keyboard = entry.getValue().get();
+                if (keyboard != null && !entry.getKey().equals(mCurrentId)) {
+                    footprint += keyboard.getKeys().size() * KEY_FOOTPRINT;
+                }
+            }
+            return footprint;
+        }
+
+        public void release() {
+            // Keep the one on screen, the others are made again when switched to
+            Iterator<KeyboardId> ids = mKeyboards.keySet().iterator();
+            while (ids.hasNext()) {
+                if (!ids.next().equals(mCurrentId)) ids.remove();
+            }
+            if (mInputView != null) mInputView.clearCaches();
+        }
+    };
+
     /**
      * Sets the input locale, when there are multiple locales for input. If no
      * locale switching is required, then the locale should be set to null.
@@ -619,6 +649,7 @@ public class KeyboardSwitcher implements
             if (THEMES.length <= newLayout) {
                 newLayout = Integer.valueOf(DEFAULT_LAYOUT_ID);
             }
+            KeyIconCache.setTheme(THEMES[newLayout]);
 
             LatinIMEUtil.GCUtils.getInstance().reset();
             boolean tryGC = true;
@@ -638,6 +669,7 @@ public class KeyboardSwitcher implements
             }
             mInputView.setExtensionLayoutResId(THEMES[newLayout]);
             mInputView.setOnKeyboardActionListener(mInputMethodService);
+            mInputView.setOnGestureListener(mInputMethodService);
             mInputView.setPadding(0, 0, 0, 0);
             mLayoutId = newLayout;
         }
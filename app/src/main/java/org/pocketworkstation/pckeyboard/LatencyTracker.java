@@ -0,0 +1,306 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.pocketworkstation.pckeyboard;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Locale;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Measures where time goes between a touch and the resulting text and suggestions.
+ *
+ * <p>
+ * Each stage keeps a log-linear latency histogram, and the most recent samples are kept
+ * in a ring buffer. Nothing is allocated while recording, and when tracking is off
+ * (the default) {@link #start()} returns 0 and {@link #end(int, long)} does nothing.
+ * The statistics are shown on the debug settings screen of debug builds, which can also
+ * export them.
+ */
+public final class LatencyTracker {
+    private static final String TAG = "PCKeyboard";
+    // Logs each sample over budget
+    private static final boolean DEBUG = false;
+
+    /** From PointerTracker.onDownEvent to LatinIME.onKey. */
+    public static final int STAGE_TOUCH = 0;
+    /** LatinIME.onKey, including handleCharacter and handleSeparator. */
+    public static final int STAGE_KEY = 1;
+    /** Suggest.getSuggestions, on the suggestion worker. */
+    public static final int STAGE_SUGGEST = 2;
+    /** CandidateView.setSuggestions. */
+    public static final int STAGE_CANDIDATES = 3;
+    /** Composing and committing text through the InputConnection. */
+    public static final int STAGE_COMMIT = 4;
+    /** From LatinIME.onKey until its suggestions are shown, including the debounce delay. */
+    public static final int STAGE_KEY_TO_SUGGESTIONS = 5;
+    /** LatinKeyboardBaseView.onDraw, which draws on a software canvas in this app. */
+    public static final int STAGE_DRAW = 6;
+    /** Suggest.getGestureSuggestions, on the suggestion worker. */
+    public static final int STAGE_GESTURE = 7;
+    private static final int STAGE_COUNT = 8;
+
+    private static final String[] STAGE_NAMES = {
+        "touch", "key", "suggest", "candidates", "commit", "key_to_suggestions",
+        "draw", "gesture"
+    };
+
+    // Samples above these budgets, in milliseconds, are counted, and logged with DEBUG
+    private static final int[] STAGE_BUDGETS_MS = {
+        50, 16, 30, 8, 8, 250, 16, 16
+    };
+
+    private static final int RING_SIZE = 1024;
+
+    private static final Histogram[] sHistograms = new Histogram[STAGE_COUNT];
+    private static final int[] sOverBudget = new int[STAGE_COUNT];
+    static {
+        for (int i = 0; i < STAGE_COUNT; ++i) {
+            sHistograms[i] = new Histogram();
+        }
+    }
+
+    // Ring buffer of recent samples: stage, start time and duration
+    private static final int[] sRingStage = new int[RING_SIZE];
+    private static final long[] sRingStart = new long[RING_SIZE];
+    private static final int[] sRingMicros = new int[RING_SIZE];
+    private static int sRingPos = 0;
+    private static int sRingCount = 0;
+
+    private static long sTouchDownTime;
+    private static long sKeyTime;
+
+    private LatencyTracker() {
+    }
+
+    private static boolean isEnabled() {
+        return LatinIME.sKeyboardSettings.latencyTracking;
+    }
+
+    /**
+     * Returns a start time for {@link #end(int, long)}, or 0 if tracking is off.
+     */
+    public static long start() {
+        return isEnabled() ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Records the time since the given start time for a stage.
+     */
+    public static void end(int stage, long startNanos) {
+        if (startNanos == 0) return;
+        long micros = (System.nanoTime() - startNanos) / 1000;
+        final boolean overBudget = micros > STAGE_BUDGETS_MS[stage] * 1000L;
+        synchronized (sRingStage) {
+            sHistograms[stage].record(micros);
+            sRingStage[sRingPos] = stage;
+            sRingStart[sRingPos] = startNanos;
+            sRingMicros[sRingPos] = (int) Math.min(micros, Integer.MAX_VALUE);
+            sRingPos = (sRingPos + 1) % RING_SIZE;
+            if (sRingCount < RING_SIZE) ++sRingCount;
+            if (overBudget) ++sOverBudget[stage];
+        }
+        if (DEBUG && overBudget) {
+            Log.w(TAG, "Latency budget exceeded: " + STAGE_NAMES[stage] + " "
+                    + micros / 1000 + "ms");
+        }
+    }
+
+    /* package */ static void touchDown() {
+        sTouchDownTime = start();
+    }
+
+    /**
+     * Called at the start of LatinIME.onKey, returns the start time for the key stage.
+     */
+    /* package */ static long keyStart() {
+        long now = start();
+        end(STAGE_TOUCH, sTouchDownTime);
+        sTouchDownTime = 0;
+        sKeyTime = now;
+        return now;
+    }
+
+    /* package */ static void suggestionsShown() {
+        end(STAGE_KEY_TO_SUGGESTIONS, sKeyTime);
+        sKeyTime = 0;
+    }
+
+    public static void reset() {
+        synchronized (sRingStage) {
+            for (int i = 0; i < STAGE_COUNT; ++i) {
+                sHistograms[i].reset();
+                sOverBudget[i] = 0;
+            }
+            sRingPos = 0;
+            sRingCount = 0;
+        }
+    }
+
+    /**
+     * Returns a one line per stage summary of the percentiles.
+     */
+    public static String getSummary() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < STAGE_COUNT; ++i) {
+            Histogram h = sHistograms[i];
+            if (sb.length() > 0) sb.append('\n');
+            sb.append(STAGE_NAMES[i]).append(": ");
+            if (h.getCount() == 0) {
+                sb.append('-');
+                continue;
+            }
+            sb.append("p50=").append(formatMillis(h.getValueAtPercentile(50)))
+                    .append(" p95=").append(formatMillis(h.getValueAtPercentile(95)))
+                    .append(" p99=").append(formatMillis(h.getValueAtPercentile(99)))
+                    .append(" max=").append(formatMillis(h.getMax()))
+                    .append(" n=").append(h.getCount());
+            if (sOverBudget[i] > 0) {
+                sb.append(" over=").append(sOverBudget[i]);
+            }
+        }
+        return sb.toString();
+    }
+
+    private static String formatMillis(long micros) {
+        return String.format(Locale.US, "%.1fms", micros / 1000.0);
+    }
+
+    /**
+     * Writes the histograms and recent samples to a file in the app's external files
+     * directory, or in its private files directory if that fails.
+     * @return the file, or null if it couldn't be written
+     */
+    public static File export(Context context) {
+        String name = "latency-" + System.currentTimeMillis() + ".txt";
+        File dir = context.getExternalFilesDir(null);
+        if (dir != null) {
+            File file = new File(dir, name);
+            if (writeTo(file)) return file;
+        }
+        File file = new File(context.getFilesDir(), name);
+        return writeTo(file) ? file : null;
+    }
+
+    private static boolean writeTo(File file) {
+        PrintWriter out = null;
+        try {
+            out = new PrintWriter(new FileWriter(file));
+            out.println("# uptime " + SystemClock.uptimeMillis());
+            out.println(getSummary());
+            out.println();
+            out.println("# stage,bucket_us,count");
+            for (int i = 0; i < STAGE_COUNT; ++i) {
+                sHistograms[i].dump(out, STAGE_NAMES[i]);
+            }
+            out.println();
+            out.println("# stage,start_ns,duration_us");
+            synchronized (sRingStage) {
+                int pos = (sRingPos - sRingCount + RING_SIZE) % RING_SIZE;
+                for (int i = 0; i < sRingCount; ++i) {
+                    out.println(STAGE_NAMES[sRingStage[pos]] + "," + sRingStart[pos] + ","
+                            + sRingMicros[pos]);
+                    pos = (pos + 1) % RING_SIZE;
+                }
+            }
+            return !out.checkError();
+        } catch (IOException e) {
+            Log.w(TAG, "Could not export latency data to " + file, e);
+            return false;
+        } finally {
+            if (out != null) out.close();
+        }
+    }
+
+    /**
+     * A histogram with buckets that are exact below 64us and then split each power of
+     * two into 32 linear sub-buckets, for about 3% precision up to half an hour.
+     */
+    static class Histogram {
+        private static final int SUB_BUCKET_BITS = 5;
+        private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+        private static final int LINEAR_LIMIT = SUB_BUCKET_COUNT * 2;
+        private static final long MAX_VALUE = Integer.MAX_VALUE;
+        private static final int BUCKET_COUNT = indexOf(MAX_VALUE) + 1;
+
+        private final int[] mCounts = new int[BUCKET_COUNT];
+        private long mTotalCount;
+        private long mMax;
+
+        static int indexOf(long value) {
+            if (value < LINEAR_LIMIT) return (int) value;
+            int magnitude = 63 - Long.numberOfLeadingZeros(value);
+            int shift = magnitude - SUB_BUCKET_BITS;
+            int sub = (int) (value >> shift);
+            return LINEAR_LIMIT + (shift - 1) * SUB_BUCKET_COUNT + (sub - SUB_BUCKET_COUNT);
+        }
+
+        /** Returns the lowest value that maps to the given bucket. */
+        static long valueOf(int index) {
+            if (index < LINEAR_LIMIT) return index;
+            int shift = (index - LINEAR_LIMIT) / SUB_BUCKET_COUNT + 1;
+            int sub = (index - LINEAR_LIMIT) % SUB_BUCKET_COUNT + SUB_BUCKET_COUNT;
+            return ((long) sub) << shift;
+        }
+
+        synchronized void record(long value) {
+            if (value < 0) value = 0;
+            if (value > MAX_VALUE) value = MAX_VALUE;
+            ++mCounts[indexOf(value)];
+            ++mTotalCount;
+            if (value > mMax) mMax = value;
+        }
+
+        synchronized void reset() {
+            for (int i = 0; i < BUCKET_COUNT; ++i) mCounts[i] = 0;
+            mTotalCount = 0;
+            mMax = 0;
+        }
+
+        synchronized long getCount() {
+            return mTotalCount;
+        }
+
+        synchronized long getMax() {
+            return mMax;
+        }
+
+        synchronized long getValueAtPercentile(double percentile) {
+            long target = (long) Math.ceil(mTotalCount * percentile / 100.0);
+            if (target < 1) target = 1;
+            long seen = 0;
+            for (int i = 0; i < BUCKET_COUNT; ++i) {
+                seen += mCounts[i];
+                if (seen >= target) return Math.min(valueOf(i), mMax);
+            }
+            return mMax;
+        }
+
+        synchronized void dump(PrintWriter out, String name) {
+            for (int i = 0; i < BUCKET_COUNT; ++i) {
+                if (mCounts[i] > 0) {
+                    out.println(name + "," + valueOf(i) + "," + mCounts[i]);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.pocketworkstation.pckeyboard;
+
+/**
+ * Holds the newest result of a query run on another thread, tagged with the generation of
+ * the request it answers, for a thread that can't go on without it.
+ */
+public class LatestResult<T> {
+    private int mGeneration;
+    private T mValue;
+
+    public synchronized void set(int generation, T value) {
+        mGeneration = generation;
+        mValue = value;
+        notifyAll();
+    }
+
+    /**
+     * Returns the result for the given generation if it's there. Never waits.
+     * @return the result, or null if it isn't ready
+     */
+    public synchronized T get(int generation) {
+        return mValue != null && mGeneration == generation ? mValue : null;
+    }
+
+    /**
+     * Waits for the result for the given generation, at most the given time.
+     * @return the result, or null if it wasn't ready in time
+     */
+    public synchronized T await(int generation, long timeoutMs) {
+        final long deadline = System.nanoTime() + timeoutMs * 1000000L;
+        while (mValue == null || mGeneration != generation) {
+            long remainingMs = (deadline - System.nanoTime()) / 1000000L;
+            if (remainingMs <= 0) return null;
+            try {
+                wait(remainingMs);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+        }
+        return mValue;
+    }
+}
@@ -86,6 +86,7 @@ import java.util.regex.Matcher;
 public class LatinIME extends InputMethodService implements
         ComposeSequencing,
         LatinKeyboardBaseView.OnKeyboardActionListener,
+        LatinKeyboardBaseView.OnGestureListener,
         SharedPreferences.OnSharedPreferenceChangeListener {
     private static final String TAG = "PCKeyboardIME";
     private static final String NOTIFICATION_CHANNEL_ID = "PCKeyboard";
@@ -143,6 +144,9 @@ public class LatinIME extends InputMethodService implements
     private static final int DELETE_ACCELERATE_AT = 20;
     // Key events coming any faster than this are long-presses.
     private static final int QUICK_PRESS = 200;
+    // How long to wait for the suggestion worker when an answer is needed right away,
+    // such as the best word when a separator is typed.
+    private static final int SUGGEST_WAIT_MS = 100;
 
     static final int ASCII_ENTER = '\n';
     static final int ASCII_SPACE = ' ';
@@ -156,6 +160,15 @@ public class LatinIME extends InputMethodService implements
     private LinearLayout mCandidateViewContainer;
     private CandidateView mCandidateView;
     private Suggest mSuggest;
+    private SuggestionWorker mSuggestionWorker;
+    // The main dictionary was closed to save memory, it's opened again by the next input
+    private boolean mSuggestReleased;
+    // Bumped whenever the composing word changes, results for older generations are dropped
+    private int mSuggestionGeneration;
+    private int mRequestedGeneration = -1;
+    private int mShownGeneration = -1;
+    // Generation of the gesture being typed, its results are dropped once it changes
+    private int mGestureGeneration = -1;
     private CompletionInfo[] mCompletions;
 
     private AlertDialog mOptionsDialog;
@@ -239,6 +252,7 @@ public class LatinIME extends InputMethodService implements
     // alternatives
     private int mLastSelectionStart;
     private int mLastSelectionEnd;
+    private EditorTextMirror mTextMirror;
 
     // Input type is such that we should not auto-correct
     private boolean mInputTypeNoAutoCorrect;
@@ -270,6 +284,8 @@ public class LatinIME extends InputMethodService implements
 
     /* package */String mWordSeparators;
     private String mSentenceSeparators;
+    // Classes of the characters for the input language, made from the separators above
+    private CharClasses mCharClasses;
     private boolean mConfigurationChanging;
 
     // Keeps track of most recently inserted text (multi-character key) for
@@ -414,6 +430,27 @@ public class LatinIME extends InputMethodService implements
         pFilter.addAction("android.intent.action.PACKAGE_REMOVED");
         registerReceiver(mPluginManager, pFilter);
 
+        mSuggestionWorker = new SuggestionWorker(new SuggestionWorker.Listener() {
+            public void onSuggestionsReady(SuggestionWorker.Result result) {
+                if (result.generation == mSuggestionGeneration && mPredicting) {
+                    showSuggestions(result);
+                }
+            }
+
+            public void onGestureSuggestionsReady(SuggestionWorker.GestureResult result) {
+                if (result.generation != mSuggestionGeneration
+                        || result.generation != mGestureGeneration) {
+                    return;
+                }
+                if (result.isFinal) {
+                    commitGesture(result.suggestions);
+                } else {
+                    setSuggestions(result.suggestions, false, false, false);
+                    setCandidatesViewShown(isCandidateStripVisible() || mCompletionOn);
+                }
+            }
+        });
+
         LatinIMEUtil.GCUtils.getInstance().reset();
         boolean tryGC = true;
         for (int i = 0; i < LatinIMEUtil.GCUtils.GC_TRY_LOOP_MAX && tryGC; ++i) {
@@ -428,6 +465,15 @@ public class LatinIME extends InputMethodService implements
 
         mOrientation = conf.orientation;
 
+        MemoryGovernor.register("suggestion cache", MemoryGovernor.TIER_CACHES,
+                mSuggestCacheConsumer);
+        MemoryGovernor.register("user dictionary", MemoryGovernor.TIER_BACKGROUND,
+                mUserDictionaryConsumer);
+        MemoryGovernor.register("compose tables", MemoryGovernor.TIER_BACKGROUND,
+                mComposeConsumer);
+        MemoryGovernor.register("main dictionary", MemoryGovernor.TIER_ALL,
+                mMainDictionaryConsumer);
+
         // register to receive ringer mode changes for silent mode
         IntentFilter filter = new IntentFilter(
                 AudioManager.RINGER_MODE_CHANGED_ACTION);
@@ -595,6 +641,7 @@ public class LatinIME extends InputMethodService implements
 
     private void initSuggest(String locale) {
         mInputLocale = locale;
+        mSuggestReleased = false;
 
         Resources orig = getResources();
         Configuration conf = orig.getConfiguration();
@@ -602,7 +649,8 @@ public class LatinIME extends InputMethodService implements
         conf.locale = new Locale(locale);
         orig.updateConfiguration(conf, orig.getDisplayMetrics());
         if (mSuggest != null) {
-            mSuggest.close();
+            // A query may still be using it
+            mSuggestionWorker.close(mSuggest);
         }
         SharedPreferences sp = PreferenceManager
                 .getDefaultSharedPreferences(this);
@@ -637,6 +685,7 @@ public class LatinIME extends InputMethodService implements
         mWordSeparators = mResources.getString(R.string.word_separators);
         mSentenceSeparators = mResources
                 .getString(R.string.sentence_separators);
+        mCharClasses = new CharClasses(mWordSeparators, mSentenceSeparators);
         initSuggestPuncList();
 
         conf.locale = saveLocale;
@@ -657,9 +706,80 @@ public class LatinIME extends InputMethodService implements
         	unregisterReceiver(mNotificationReceiver);
             mNotificationReceiver = null;
         }
+        if (mSuggest != null) {
+            mSuggestionWorker.close(mSuggest);
+            mSuggest = null;
+        }
+        mSuggestionWorker.quit();
+        TraceRecorder.close();
+        MemoryGovernor.unregister(mSuggestCacheConsumer);
+        MemoryGovernor.unregister(mUserDictionaryConsumer);
+        MemoryGovernor.unregister(mComposeConsumer);
+        MemoryGovernor.unregister(mMainDictionaryConsumer);
         super.onDestroy();
     }
 
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        MemoryGovernor.onTrimMemory(level, isInputViewShown());
+    }
+
+    @Override
+    public void onLowMemory() {
+        super.onLowMemory();
+        MemoryGovernor.onLowMemory(isInputViewShown());
+    }
+
+    private final MemoryGovernor.Consumer mSuggestCacheConsumer = new MemoryGovernor.Consumer() {
+        public long getFootprint() {
+            return mSuggest != null ? mSuggest.getCacheFootprint() : 0;
+        }
+
+        public void release() {
+            if (mSuggest != null) mSuggestionWorker.clearCache(mSuggest);
+        }
+    };
+
+    private final MemoryGovernor.Consumer mUserDictionaryConsumer =
+            new MemoryGovernor.Consumer() {
+        public long getFootprint() {
+            return mUserDictionary != null ? mUserDictionary.getFootprint() : 0;
+        }
+
+        public void release() {
+            if (mUserDictionary != null) mUserDictionary.releaseMemory();
+        }
+    };
+
+    private final MemoryGovernor.Consumer mComposeConsumer = new MemoryGovernor.Consumer() {
+        public long getFootprint() {
+            return ComposeSequence.getFootprint();
+        }
+
+        public void release() {
+            ComposeSequence.releaseTables();
+        }
+    };
+
+    private final MemoryGovernor.Consumer mMainDictionaryConsumer =
+            new MemoryGovernor.Consumer() {
+        public long getFootprint() {
+            return canRelease() ? mSuggest.getMainDictionarySize() : 0;
+        }
+
+        public void release() {
+            if (!canRelease()) return;
+            mSuggestionWorker.close(mSuggest);
+            mSuggestReleased = true;
+        }
+
+        // It's only opened again in onStartInputView, so keep it while it's being typed with
+        private boolean canRelease() {
+            return mSuggest != null && !mSuggestReleased && !isInputViewShown();
+        }
+    };
+
     @Override
     public void onConfigurationChanged(Configuration conf) {
         Log.i("PCKeyboard", "onConfigurationChanged()");
@@ -758,8 +878,30 @@ public class LatinIME extends InputMethodService implements
         mJustAddedAutoSpace = false;
     }
     
+    /**
+     * Returns the connection wrapped in an {@link EditorTextMirror}, so that reading the
+     * text around the cursor is usually answered locally.
+     */
+    @Override
+    public InputConnection getCurrentInputConnection() {
+        InputConnection ic = super.getCurrentInputConnection();
+        if (ic == null) return null;
+        if (mTextMirror == null) {
+            mTextMirror = new EditorTextMirror(ic);
+            EditorInfo ei = getCurrentInputEditorInfo();
+            if (ei != null) mTextMirror.setInputType(ei.inputType);
+        } else if (!mTextMirror.hasTarget(ic)) {
+            mTextMirror.setTarget(ic);
+        }
+        return mTextMirror;
+    }
+
     @Override
     public void onStartInputView(EditorInfo attribute, boolean restarting) {
+        if (mTextMirror != null) {
+            mTextMirror.setInputType(attribute.inputType);
+            mTextMirror.reset(attribute.initialSelStart, attribute.initialSelEnd);
+        }
         sKeyboardSettings.editorPackageName = attribute.packageName;
         sKeyboardSettings.editorFieldName = attribute.fieldName;
         sKeyboardSettings.editorFieldId = attribute.fieldId;
@@ -777,10 +919,11 @@ public class LatinIME extends InputMethodService implements
             mRefreshKeyboardRequired = false;
             toggleLanguage(true, true);
         }
+        if (mSuggestReleased) initSuggest(mInputLocale);
 
         mKeyboardSwitcher.makeKeyboards(false);
 
-        TextEntryState.newSession(this);
+        TextEntryState.newSession(this, attribute);
 
         // Most such things we decide below in the switch statement, but we need to know
         // now whether this is a password text field, because we need to know now (before
@@ -966,6 +1109,7 @@ public class LatinIME extends InputMethodService implements
         // Remove penging messages related to update suggestions
         mHandler.removeMessages(MSG_UPDATE_SUGGESTIONS);
         mHandler.removeMessages(MSG_UPDATE_OLD_SUGGESTIONS);
+        ++mSuggestionGeneration;
     }
 
     @Override
@@ -980,6 +1124,9 @@ public class LatinIME extends InputMethodService implements
             int candidatesEnd) {
         super.onUpdateSelection(oldSelStart, oldSelEnd, newSelStart, newSelEnd,
                 candidatesStart, candidatesEnd);
+        if (mTextMirror != null) {
+            mTextMirror.onUpdateSelection(newSelStart, newSelEnd);
+        }
 
         // If the current selection in the text view changes, we should
         // clear whatever candidate text we have.
@@ -1271,7 +1418,9 @@ public class LatinIME extends InputMethodService implements
             mPredicting = false;
             if (mComposing.length() > 0) {
                 if (inputConnection != null) {
+                    long commitStart = LatencyTracker.start();
                     inputConnection.commitText(mComposing, 1);
+                    LatencyTracker.end(LatencyTracker.STAGE_COMMIT, commitStart);
                 }
                 mCommittedLength = mComposing.length();
                 if (manual) {
@@ -1279,6 +1428,7 @@ public class LatinIME extends InputMethodService implements
                 } else {
                     TextEntryState.acceptedTyped(mComposing);
                 }
+                TraceRecorder.recordPick(TraceRecorder.PICK_TYPED, -1, mComposing);
                 addToDictionaries(mComposing,
                         AutoDictionary.FREQUENCY_FOR_TYPED);
             }
@@ -1447,7 +1597,7 @@ public class LatinIME extends InputMethodService implements
     }
 
     private boolean isAlphabet(int code) {
-        if (Character.isLetter(code)) {
+        if (mCharClasses.isLetter(code)) {
             return true;
         } else {
             return false;
@@ -1935,6 +2085,7 @@ public class LatinIME extends InputMethodService implements
     // Implementation of KeyboardViewListener
 
     public void onKey(int primaryCode, int[] keyCodes, int x, int y) {
+        long keyStart = LatencyTracker.keyStart();
         long when = SystemClock.uptimeMillis();
         if (primaryCode != Keyboard.KEYCODE_DELETE
                 || when > mLastKeyTime + QUICK_PRESS) {
@@ -2086,6 +2237,7 @@ public class LatinIME extends InputMethodService implements
         // Reset after any single keystroke
         mEnteredText = null;
         //mDeadAccentBuffer.clear();  // FIXME
+        LatencyTracker.end(LatencyTracker.STAGE_KEY, keyStart);
     }
 
     public void onText(CharSequence text) {
@@ -2324,7 +2476,9 @@ public class LatinIME extends InputMethodService implements
                     mWord.setAutoCapitalized(getCursorCapsMode(ic,
                             getCurrentInputEditorInfo()) != 0);
                 }
+                long commitStart = LatencyTracker.start();
                 ic.setComposingText(mComposing, 1);
+                LatencyTracker.end(LatencyTracker.STAGE_COMMIT, commitStart);
             }
             postUpdateSuggestions();
         } else {
@@ -2335,6 +2489,86 @@ public class LatinIME extends InputMethodService implements
                 isWordSeparator(primaryCode));
     }
 
+    public boolean onGestureStart() {
+        if (mSuggest == null || !isPredictionOn() || !mKeyboardSwitcher.isAlphabetMode()
+                || mModCtrl || mModAlt || mModMeta) {
+            return false;
+        }
+        mHandler.removeMessages(MSG_UPDATE_SUGGESTIONS);
+        mGestureGeneration = ++mSuggestionGeneration;
+        return true;
+    }
+
+    public void onGestureMove(GesturePath path) {
+        if (mGestureGeneration != mSuggestionGeneration || path.getPointCount() == 0) return;
+        mSuggestionWorker.requestGestureSuggestions(mGestureGeneration, mSuggest, path,
+                isShiftCapsMode(), false);
+    }
+
+    public void onGestureEnd(GesturePath path) {
+        if (mGestureGeneration != mSuggestionGeneration || path.getPointCount() == 0) return;
+        mSuggestionWorker.requestGestureSuggestions(mGestureGeneration, mSuggest, path,
+                isShiftCapsMode(), true);
+    }
+
+    public void onGestureCancel() {
+        if (mGestureGeneration != mSuggestionGeneration) return;
+        mGestureGeneration = -1;
+        // Bring back the suggestions the gesture replaced
+        postUpdateSuggestions();
+    }
+
+    /**
+     * Enters the best word of a gesture as the composing word, after any word that was
+     * being typed, with the other words as suggestions. A space is added if the cursor
+     * follows other text.
+     */
+    private void commitGesture(List<CharSequence> suggestions) {
+        mGestureGeneration = -1;
+        InputConnection ic = getCurrentInputConnection();
+        if (suggestions.isEmpty() || ic == null) {
+            postUpdateSuggestions();
+            return;
+        }
+        final CharSequence word = suggestions.get(0);
+        ic.beginBatchEdit();
+        abortCorrection(false);
+        if (mPredicting) {
+            // Keep the alternatives of the word as it's committed, mBestWord may be stale
+            saveWordInHistory(mComposing);
+            commitTyped(ic, true);
+        }
+        CharSequence lastOne = ic.getTextBeforeCursor(1, 0);
+        if (lastOne != null && lastOne.length() == 1 && !CharClasses.isSpace(lastOne.charAt(0))) {
+            ic.commitText(" ", 1);
+        }
+        mPredicting = true;
+        mComposing.setLength(0);
+        mComposing.append(word);
+        mWord.reset();
+        for (int i = 0; i < word.length(); i++) {
+            final char c = word.charAt(i);
+            mWord.add(c, new int[] { c });
+        }
+        mWord.setFirstCharCapitalized(Character.isUpperCase(word.charAt(0)));
+        long commitStart = LatencyTracker.start();
+        ic.setComposingText(mComposing, 1);
+        LatencyTracker.end(LatencyTracker.STAGE_COMMIT, commitStart);
+        ic.endBatchEdit();
+
+        // The suggestions are current, the next space accepts the word as entered
+        mHandler.removeMessages(MSG_UPDATE_SUGGESTIONS);
+        ++mSuggestionGeneration;
+        mRequestedGeneration = mSuggestionGeneration;
+        mShownGeneration = mSuggestionGeneration;
+        ((LatinKeyboard) mKeyboardSwitcher.getInputView().getKeyboard())
+                .setPreferredLetters(null);
+        showSuggestions(suggestions, word, true, false);
+        TraceRecorder.recordSuggestions(word, suggestions);
+        TextEntryState.typedCharacter(word.charAt(word.length() - 1), false);
+        updateShiftKeyState(getCurrentInputEditorInfo());
+    }
+
     private void handleSeparator(int primaryCode) {
 
         // Should dismiss the "Touch again to save" message when handling
@@ -2438,9 +2672,11 @@ public class LatinIME extends InputMethodService implements
     }
 
     private void postUpdateSuggestions() {
+        ++mSuggestionGeneration;
         mHandler.removeMessages(MSG_UPDATE_SUGGESTIONS);
         mHandler.sendMessageDelayed(mHandler
-                .obtainMessage(MSG_UPDATE_SUGGESTIONS), 100);
+                .obtainMessage(MSG_UPDATE_SUGGESTIONS),
+                mSuggestionWorker.getDebounceDelay());
     }
 
     private void postUpdateOldSuggestions() {
@@ -2493,8 +2729,10 @@ public class LatinIME extends InputMethodService implements
         }
 
         if (mCandidateView != null) {
+            long start = LatencyTracker.start();
             mCandidateView.setSuggestions(suggestions, completions,
                     typedWordValid, haveMinimalSuggestion);
+            LatencyTracker.end(LatencyTracker.STAGE_CANDIDATES, start);
         }
     }
 
@@ -2514,10 +2752,29 @@ public class LatinIME extends InputMethodService implements
         showSuggestions(mWord);
     }
 
-    private List<CharSequence> getTypedSuggestions(WordComposer word) {
-        List<CharSequence> stringList = mSuggest.getSuggestions(
-                mKeyboardSwitcher.getInputView(), word, false, null);
-        return stringList;
+    private List<CharSequence> getTypedSuggestions(final WordComposer word) {
+        final View view = mKeyboardSwitcher.getInputView();
+        List<CharSequence> typedOnly = new ArrayList<CharSequence>();
+        if (word.getTypedWord() != null) typedOnly.add(word.getTypedWord().toString());
+        return mSuggestionWorker.call(mSuggest,
+                new SuggestionWorker.Call<List<CharSequence>>() {
+            public List<CharSequence> run(Suggest suggest) {
+                return SuggestionWorker.copyOf(suggest.getSuggestions(view, word, false, null));
+            }
+        }, typedOnly, SUGGEST_WAIT_MS);
+    }
+
+    /**
+     * Returns whether the word or its lower case form is in any dictionary.
+     * @param fallback the answer if the suggestion worker can't tell in time
+     */
+    private boolean isValidWord(CharSequence word, boolean fallback) {
+        final String w = word.toString();
+        return mSuggestionWorker.call(mSuggest, new SuggestionWorker.Call<Boolean>() {
+            public Boolean run(Suggest suggest) {
+                return suggest.isValidWord(w) || suggest.isValidWord(w.toLowerCase());
+            }
+        }, fallback, SUGGEST_WAIT_MS);
     }
 
     private void showCorrections(WordAlternatives alternatives) {
@@ -2529,38 +2786,53 @@ public class LatinIME extends InputMethodService implements
     }
 
     private void showSuggestions(WordComposer word) {
-        // long startTime = System.currentTimeMillis(); // TIME MEASUREMENT!
         // TODO Maybe need better way of retrieving previous word
         CharSequence prevWord = EditingUtil.getPreviousWord(
-                getCurrentInputConnection(), mWordSeparators);
-        List<CharSequence> stringList = mSuggest.getSuggestions(
-                mKeyboardSwitcher.getInputView(), word, false, prevWord);
-        // long stopTime = System.currentTimeMillis(); // TIME MEASUREMENT!
-        // Log.d("LatinIME","Suggest Total Time - " + (stopTime - startTime));
-
-        int[] nextLettersFrequencies = mSuggest.getNextLettersFrequencies();
+                getCurrentInputConnection(), mCharClasses, CharClasses.WORD_SEPARATOR);
+        // The results arrive in onSuggestionsReady
+        mRequestedGeneration = ++mSuggestionGeneration;
+        mSuggestionWorker.requestSuggestions(mSuggestionGeneration, mSuggest,
+                mKeyboardSwitcher.getInputView(), word, prevWord,
+                preferCapitalization());
+    }
 
+    private void showSuggestions(SuggestionWorker.Result result) {
+        mShownGeneration = result.generation;
         ((LatinKeyboard) mKeyboardSwitcher.getInputView().getKeyboard())
-                .setPreferredLetters(nextLettersFrequencies);
+                .setPreferredLetters(result.nextLettersFrequencies);
 
         boolean correctionAvailable = !mInputTypeNoAutoCorrect
-                && mSuggest.hasMinimalCorrection();
+                && result.haveMinimalCorrection;
         // || mCorrectionMode == mSuggest.CORRECTION_FULL;
-        CharSequence typedWord = word.getTypedWord();
         // If we're in basic correct
-        boolean typedWordValid = mSuggest.isValidWord(typedWord)
-                || (preferCapitalization() && mSuggest.isValidWord(typedWord
-                        .toString().toLowerCase()));
+        boolean typedWordValid = result.typedWordValid;
         if (mCorrectionMode == Suggest.CORRECTION_FULL
                 || mCorrectionMode == Suggest.CORRECTION_FULL_BIGRAM) {
             correctionAvailable |= typedWordValid;
         }
         // Don't auto-correct words with multiple capital letter
-        correctionAvailable &= !word.isMostlyCaps();
+        correctionAvailable &= !mWord.isMostlyCaps();
         correctionAvailable &= !TextEntryState.isCorrecting();
 
-        showSuggestions(stringList, typedWord, typedWordValid,
+        showSuggestions(result.suggestions, result.typedWord, typedWordValid,
                 correctionAvailable);
+        LatencyTracker.suggestionsShown();
+        TraceRecorder.recordSuggestions(result.typedWord, result.suggestions);
+    }
+
+    /**
+     * Makes mBestWord current for the word being typed, waiting a bounded time for the
+     * pending query so that a separator typed right after the word still corrects it.
+     * If the query doesn't finish in time, the typed word is accepted as is.
+     */
+    private void updateBestWordNow() {
+        SuggestionWorker.Result result = mSuggestionWorker.awaitResult(mSuggestionGeneration,
+                SUGGEST_WAIT_MS);
+        if (result != null) {
+            showSuggestions(result);
+        } else {
+            mBestWord = mWord.getTypedWord();
+        }
     }
 
     private void showSuggestions(List<CharSequence> stringList,
@@ -2585,8 +2857,13 @@ public class LatinIME extends InputMethodService implements
             mHandler.removeMessages(MSG_UPDATE_SUGGESTIONS);
             updateSuggestions();
         }
+        if (mRequestedGeneration == mSuggestionGeneration
+                && mShownGeneration != mSuggestionGeneration) {
+            updateBestWordNow();
+        }
         if (mBestWord != null && mBestWord.length() > 0) {
             TextEntryState.acceptedDefault(mWord.getTypedWord(), mBestWord);
+            TraceRecorder.recordPick(TraceRecorder.PICK_DEFAULT, -1, mBestWord);
             mJustAccepted = true;
             pickSuggestion(mBestWord, false);
             // Add the word to the auto dictionary if it's not a known word
@@ -2644,6 +2921,7 @@ public class LatinIME extends InputMethodService implements
             addToBigramDictionary(suggestion, 1);
         }
         TextEntryState.acceptedSuggestion(mComposing.toString(), suggestion);
+        TraceRecorder.recordPick(TraceRecorder.PICK_MANUAL, index, suggestion);
         // Follow it with a space
         if (mAutoSpace && !correcting) {
             sendSpace();
@@ -2651,8 +2929,7 @@ public class LatinIME extends InputMethodService implements
         }
 
         final boolean showingAddToDictionaryHint = index == 0
-                && mCorrectionMode > 0 && !mSuggest.isValidWord(suggestion)
-                && !mSuggest.isValidWord(suggestion.toString().toLowerCase());
+                && mCorrectionMode > 0 && !isValidWord(suggestion, true);
 
         if (!correcting) {
             // Fool the state watcher so that a subsequent backspace will not do
@@ -2737,8 +3014,7 @@ public class LatinIME extends InputMethodService implements
         }
         // If we didn't find a match, at least suggest completions
         if (foundWord == null
-                && (mSuggest.isValidWord(touching.word) || mSuggest
-                        .isValidWord(touching.word.toString().toLowerCase()))) {
+                && isValidWord(touching.word, false)) {
             foundWord = new WordComposer();
             for (int i = 0; i < touching.word.length(); i++) {
                 foundWord.add(touching.word.charAt(i),
@@ -2776,7 +3052,7 @@ public class LatinIME extends InputMethodService implements
             // Extract the selected or touching text
             EditingUtil.SelectedWord touching = EditingUtil
                     .getWordAtCursorOrSelection(ic, mLastSelectionStart,
-                            mLastSelectionEnd, mWordSeparators);
+                            mLastSelectionEnd, mCharClasses);
 
             abortCorrection(true);
             setNextSuggestions(); // Show the punctuation suggestions list
@@ -2787,6 +3063,22 @@ public class LatinIME extends InputMethodService implements
 
     private void setNextSuggestions() {
         setSuggestions(mSuggestPuncList, false, false, false);
+        prefetchNextWord();
+    }
+
+    /**
+     * Starts searching the bigrams of the word before the cursor, so that suggestions for
+     * the first character of the next word don't need a dictionary search.
+     */
+    private void prefetchNextWord() {
+        if (mSuggest == null || !isPredictionOn()) return;
+        InputConnection ic = getCurrentInputConnection();
+        if (ic == null) return;
+        CharSequence prevWord = EditingUtil.getPreviousWordForNewWord(ic, mCharClasses,
+                CharClasses.WORD_SEPARATOR);
+        if (!TextUtils.isEmpty(prevWord)) {
+            mSuggestionWorker.requestPrefetch(mSuggest, prevWord);
+        }
     }
 
     private void addToDictionaries(CharSequence suggestion, int frequencyDelta) {
@@ -2818,14 +3110,14 @@ public class LatinIME extends InputMethodService implements
         if (suggestion != null) {
             if (!addToBigramDictionary
                     && mAutoDictionary.isValidWord(suggestion)
-                    || (!mSuggest.isValidWord(suggestion.toString()) && !mSuggest
-                            .isValidWord(suggestion.toString().toLowerCase()))) {
+                    || !isValidWord(suggestion, true)) {
                 mAutoDictionary.addWord(suggestion.toString(), frequencyDelta);
             }
 
             if (mUserBigramDictionary != null) {
                 CharSequence prevWord = EditingUtil.getPreviousWord(
-                        getCurrentInputConnection(), mSentenceSeparators);
+                        getCurrentInputConnection(), mCharClasses,
+                        CharClasses.SENTENCE_SEPARATOR);
                 if (!TextUtils.isEmpty(prevWord)) {
                     mUserBigramDictionary.addBigrams(prevWord.toString(),
                             suggestion.toString());
@@ -2886,12 +3178,11 @@ public class LatinIME extends InputMethodService implements
     }
 
     public boolean isWordSeparator(int code) {
-        String separators = getWordSeparators();
-        return separators.contains(String.valueOf((char) code));
+        return mCharClasses.isWordSeparator(code);
     }
 
     private boolean isSentenceSeparator(int code) {
-        return mSentenceSeparators.contains(String.valueOf((char) code));
+        return mCharClasses.isSentenceSeparator(code);
     }
 
     private void sendSpace() {
@@ -3352,6 +3643,7 @@ public class LatinIME extends InputMethodService implements
         }
         if (mSuggest != null) {
             mSuggest.setCorrectionMode(mCorrectionMode);
+            mSuggest.setParallelQueries(sKeyboardSettings.parallelQueries);
         }
     }
 
@@ -3501,6 +3793,9 @@ public class LatinIME extends InputMethodService implements
         p.println("LatinIME state :");
         p.println("  Keyboard mode = " + mKeyboardSwitcher.getKeyboardMode());
         p.println("  mComposing=" + mComposing.toString());
+        if (mTextMirror != null) {
+            p.println("  mTextMirror syncs=" + mTextMirror.getSyncCount());
+        }
         p.println("  mPredictionOnForMode=" + mPredictionOnForMode);
         p.println("  mCorrectionMode=" + mCorrectionMode);
         p.println("  mPredicting=" + mPredicting);
@@ -3511,6 +3806,7 @@ public class LatinIME extends InputMethodService implements
         p.println("  mSoundOn=" + mSoundOn);
         p.println("  mVibrateOn=" + mVibrateOn);
         p.println("  mPopupOn=" + mPopupOn);
+        MemoryGovernor.dump(p);
     }
 
     // Characters per second measurement
@@ -44,6 +44,8 @@ public class LatinIMESettings extends PreferenceActivity
     private static final String QUICK_FIXES_KEY = "quick_fixes";
     private static final String PREDICTION_SETTINGS_KEY = "prediction_settings";
     private static final String VOICE_SETTINGS_KEY = "voice_mode";
+    private static final String DEBUGGING_KEY = "debugging";
+    private static final String DEBUG_SETTINGS_KEY = "debug_settings";
     /* package */ static final String PREF_SETTINGS_KEY = "settings_key";
     static final String INPUT_CONNECTION_INFO = "input_connection_info";    
 
@@ -75,6 +77,11 @@ public class LatinIMESettings extends PreferenceActivity
         mInputConnectionInfo = (Preference) findPreference(INPUT_CONNECTION_INFO);
         mLabelVersion = (Preference) findPreference("label_version");
 
+        // Latency tracking and trace recording are only offered in debug builds
+        if (!BuildConfig.DEBUG) {
+            ((PreferenceGroup) findPreference(DEBUGGING_KEY))
+                    .removePreference(findPreference(DEBUG_SETTINGS_KEY));
+        }
 
         // TODO(klausw): remove these when no longer needed
         mKeyboardModePortraitPreference = (ListPreference) findPreference("pref_keyboard_mode_portrait");
@@ -58,6 +58,8 @@ public class LatinIMEUtil {
 
         public boolean tryGCOrWait(String metaData, Throwable t) {
             if (mGCTryCount == 0) {
+                // Give back what can be rebuilt before waiting for the collector
+                MemoryGovernor.release(MemoryGovernor.TIER_HIDDEN);
                 System.gc();
             }
             if (++mGCTryCount > GC_TRY_COUNT) {
@@ -72,6 +72,8 @@ public class LatinKeyboard extends Keyboard {
     private LanguageSwitcher mLanguageSwitcher;
     private final Resources mRes;
     private final Context mContext;
+    // Keyboard theme when this keyboard was created, for KeyIconCache keys
+    private final int mThemeResId;
     private int mMode;
     // Whether this keyboard has voice icon on it
     private boolean mHasVoiceButton;
@@ -122,6 +124,7 @@ public class LatinKeyboard extends Keyboard {
         //Log.i("PCKeyboard", "keyHeight=" + this.getKeyHeight());
         //this.setKeyHeight(30); // is useless, see http://code.google.com/p/android/issues/detail?id=4532
         mContext = context;
+        mThemeResId = KeyIconCache.getTheme();
         mMode = mode;
         mRes = res;
         mShiftLockIcon = res.getDrawable(R.drawable.sym_keyboard_shift_locked);
@@ -332,7 +335,7 @@ public class LatinKeyboard extends Keyboard {
     private void setMicF1Key(Key key) {
         // HACK: draw mMicIcon and mHintIcon at the same time
         final Drawable micWithSettingsHintDrawable = new BitmapDrawable(mRes,
-                drawSynthesizedSettingsHintImage(key.width, key.height, mMicIcon, mHintIcon));
+                getSynthesizedSettingsHintImage("mic", key.width, key.height, mMicIcon));
 
         if (key.popupResId == 0) {
             key.popupResId = R.xml.popup_mic;
@@ -357,7 +360,8 @@ public class LatinKeyboard extends Keyboard {
             return; // leave key otherwise unmodified
         }
         final Drawable settingsHintDrawable = new BitmapDrawable(mRes,
-                drawSynthesizedSettingsHintImage(key.width, key.height, mSettingsIcon, mHintIcon));
+                getSynthesizedSettingsHintImage("settings", key.width, key.height,
+                        mSettingsIcon));
     	key.label = null;
     	key.icon = settingsHintDrawable;
     	key.codes = new int[] { LatinKeyboardView.KEYCODE_OPTIONS };
@@ -402,12 +406,12 @@ public class LatinKeyboard extends Keyboard {
         // If application locales are explicitly selected.
         if (mLocale != null) {
             mSpaceKey.icon = new BitmapDrawable(mRes,
-                    drawSpaceBar(OPACITY_FULLY_OPAQUE, isAutoCompletion));
+                    getSpaceBar(OPACITY_FULLY_OPAQUE, isAutoCompletion));
         } else {
             // sym_keyboard_space_led can be shared with Black and White symbol themes.
             if (isAutoCompletion) {
                 mSpaceKey.icon = new BitmapDrawable(mRes,
-                        drawSpaceBar(OPACITY_FULLY_OPAQUE, isAutoCompletion));
+                        getSpaceBar(OPACITY_FULLY_OPAQUE, isAutoCompletion));
             } else {
                 mSpaceKey.icon = mRes.getDrawable(R.drawable.sym_keyboard_space);
             }
@@ -421,6 +425,22 @@ public class LatinKeyboard extends Keyboard {
         return bounds.width();
     }
 
+    // Identifies what the icons of this keyboard are drawn with, for KeyIconCache keys
+    private String getIconCacheKey(int width, int height) {
+        return width + "x" + height + "/" + mThemeResId;
+    }
+
+    private Bitmap getSynthesizedSettingsHintImage(String name, int width, int height,
+            Drawable mainIcon) {
+        final String key = "hint/" + name + "/" + getIconCacheKey(width, height);
+        Bitmap bitmap = KeyIconCache.get(key);
+        if (bitmap == null) {
+            bitmap = drawSynthesizedSettingsHintImage(width, height, mainIcon, mHintIcon);
+            KeyIconCache.put(key, bitmap);
+        }
+        return bitmap;
+    }
+
     // Overlay two images: mainIcon and hintIcon.
     private Bitmap drawSynthesizedSettingsHintImage(
             int width, int height, Drawable mainIcon, Drawable hintIcon) {
@@ -492,6 +512,23 @@ public class LatinKeyboard extends Keyboard {
         return language;
     }
 
+    private Bitmap getSpaceBar(int opacity, boolean isAutoCompletion) {
+        // The language and arrows are only drawn if locales are explicitly selected
+        String language = "";
+        if (mLocale != null) {
+            language = mLanguageSwitcher.getInputLocale()
+                    + (mLanguageSwitcher.getLocaleCount() > 1 ? "<>" : "");
+        }
+        final String key = "space/" + language + "/" + opacity + "/" + isAutoCompletion + "/"
+                + getIconCacheKey(mSpaceKey.width, mSpaceIcon.getIntrinsicHeight());
+        Bitmap bitmap = KeyIconCache.get(key);
+        if (bitmap == null) {
+            bitmap = drawSpaceBar(opacity, isAutoCompletion);
+            KeyIconCache.put(key, bitmap);
+        }
+        return bitmap;
+    }
+
     private Bitmap drawSpaceBar(int opacity, boolean isAutoCompletion) {
         final int width = mSpaceKey.width;
         final int height = mSpaceIcon.getIntrinsicHeight();
@@ -33,17 +33,20 @@ import android.graphics.PorterDuff;
 import android.graphics.Rect;
 import android.graphics.Region.Op;
 import android.graphics.Typeface;
+import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
 import android.graphics.drawable.StateListDrawable;
 
 import org.pocketworkstation.pckeyboard.Keyboard.Key;
 
+import android.os.Build;
 import android.os.Handler;
 import android.os.Message;
 import android.os.SystemClock;
 import android.util.AttributeSet;
 import android.util.Log;
 import android.util.TypedValue;
+import android.view.Choreographer;
 import android.view.GestureDetector;
 import android.view.Gravity;
 import android.view.LayoutInflater;
@@ -57,11 +60,11 @@ import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.text.Normalizer;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.WeakHashMap;
 
 /**
@@ -85,6 +88,34 @@ public class LatinKeyboardBaseView extends View implements PointerTracker.UIProx
 
     public static final int NOT_A_TOUCH_COORDINATE = -1;
 
+    /**
+     * Receives the path of a gesture typed across the letter keys. A touch becomes a
+     * gesture once it travels further than a key from the letter key it started on.
+     */
+    public interface OnGestureListener {
+        /**
+         * Called when a touch turns into a gesture. The key it started on has been released
+         * without being sent.
+         * @return false to handle the touch as key presses instead
+         */
+        boolean onGestureStart();
+
+        /**
+         * Called as the gesture moves. The path is resampled and is only valid during the
+         * call.
+         */
+        void onGestureMove(GesturePath path);
+
+        /**
+         * Called when the gesture is complete. The path is resampled and is only valid
+         * during the call.
+         */
+        void onGestureEnd(GesturePath path);
+
+        /** Called when a gesture is abandoned, such as when a second finger goes down. */
+        void onGestureCancel();
+    }
+
     public interface OnKeyboardActionListener {
 
         /**
@@ -254,6 +285,15 @@ public class LatinKeyboardBaseView extends View implements PointerTracker.UIProx
     private final int mSwipeThreshold;
     private final boolean mDisambiguateSwipe;
 
+    // Gesture typing
+    private OnGestureListener mOnGestureListener;
+    private final GesturePath mGesturePath = new GesturePath();
+    private int mGesturePointerId;
+    // The touch started on a letter key and may still become a gesture
+    private boolean mGestureCandidate;
+    private boolean mGestureActive;
+    private final Paint mGesturePaint = new Paint();
+
     // Drawing
     /** Whether the keyboard bitmap needs to be redrawn before it's blitted. **/
     private boolean mDrawPending;
@@ -271,13 +311,50 @@ public class LatinKeyboardBaseView extends View implements PointerTracker.UIProx
     private final Rect mPadding;
     private final Rect mClipRegion = new Rect(0, 0, 0, 0);
     private int mViewWidth;
-    // This map caches key label text height in pixel as value and key label text size as map key.
-    private final HashMap<Integer, Integer> mTextHeightCache = new HashMap<Integer, Integer>();
     // Distance from horizontal center of the key, proportional to key label text height.
     private final float KEY_LABEL_VERTICAL_ADJUSTMENT_FACTOR = 0.55f;
     private final String KEY_LABEL_HEIGHT_REFERENCE_CHAR = "H";
     /* package */ static Method sSetRenderMode;
-    private static int sPrevRenderMode = -1;
+    private int mRenderMode = -1;
+
+    /** A blurred shadow of an icon, made once instead of on every draw. */
+    private static class IconShadow {
+        final Bitmap bitmap;
+        final int x;
+        final int y;
+        final int keyWidth;
+        final int keyHeight;
+        final int iconWidth;
+        final int iconHeight;
+        final float radius;
+
+        IconShadow(Bitmap bitmap, int x, int y, int keyWidth, int keyHeight,
+                int iconWidth, int iconHeight, float radius) {
+            this.bitmap = bitmap;
+            this.x = x;
+            this.y = y;
+            this.keyWidth = keyWidth;
+            this.keyHeight = keyHeight;
+            this.iconWidth = iconWidth;
+            this.iconHeight = iconHeight;
+            this.radius = radius;
+        }
+    }
+    // Keyed by the bitmap of bitmap icons, since the space bar and F1 keys get new
+    // drawables for the shared bitmaps of KeyIconCache, and by the drawable otherwise
+    private static final int MAX_ICON_SHADOWS = 32;
+    private final LinkedHashMap<Object, IconShadow> mIconShadows =
+            new LinkedHashMap<Object, IconShadow>(MAX_ICON_SHADOWS, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Object, IconShadow> eldest) {
+            return size() > MAX_ICON_SHADOWS;
+        }
+    };
+    private final Paint mShadowPaint = new Paint();
+    private ColorFilter mRecolorIconFilter;
+    private ColorFilter mRecolorShadowFilter;
+    private int mRecolorIconColor;
+    private int mRecolorShadowColor;
 
     private static final float[] INVERTING_MATRIX = {
             -1.f, 0, 0, 0, 255, // Red
@@ -290,69 +367,137 @@ public class LatinKeyboardBaseView extends View implements PointerTracker.UIProx
     private final UIHandler mHandler = new UIHandler();
 
     class UIHandler extends Handler {
-        private static final int MSG_POPUP_PREVIEW = 1;
-        private static final int MSG_DISMISS_PREVIEW = 2;
-        private static final int MSG_REPEAT_KEY = 3;
-        private static final int MSG_LONGPRESS_KEY = 4;
+        private static final int MSG_TICK = 1;
+
+        // The timers are deadlines run by a single tick, so that restarting a timer on every
+        // key change doesn't queue and remove messages
+        private static final int TIMER_POPUP_PREVIEW = 0;
+        private static final int TIMER_DISMISS_PREVIEW = 1;
+        private static final int TIMER_REPEAT_KEY = 2;
+        private static final int TIMER_LONGPRESS_KEY = 3;
+        private static final int TIMER_COUNT = 4;
+
+        // Uptime deadline of each timer, 0 when it's not set
+        private final long[] mDeadlines = new long[TIMER_COUNT];
+        private final int[] mKeyIndices = new int[TIMER_COUNT];
+        private final PointerTracker[] mTrackers = new PointerTracker[TIMER_COUNT];
+        // Uptime the tick is scheduled for, 0 when none is
+        private long mTickTime;
+        private final FrameTicker mFrameTicker =
+                Build.VERSION.SDK_INT >= 16 ? new FrameTicker(this) : null;
 
         private boolean mInKeyRepeat;
 
         @Override
         public void handleMessage(Message msg) {
-            switch (msg.what) {
-                case MSG_POPUP_PREVIEW:
-                    showKey(msg.arg1, (PointerTracker)msg.obj);
-                    break;
-                case MSG_DISMISS_PREVIEW:
-                    mPreviewPopup.dismiss();
-                    break;
-                case MSG_REPEAT_KEY: {
-                    final PointerTracker tracker = (PointerTracker)msg.obj;
-                    tracker.repeatKey(msg.arg1);
-                    startKeyRepeatTimer(mKeyRepeatInterval, msg.arg1, tracker);
-                    break;
-                }
-                case MSG_LONGPRESS_KEY: {
-                    final PointerTracker tracker = (PointerTracker)msg.obj;
-                    openPopupIfRequired(msg.arg1, tracker);
-                    break;
+            if (msg.what == MSG_TICK) tick();
+        }
+
+        /* package */ void tick() {
+            mTickTime = 0;
+            final long now = SystemClock.uptimeMillis();
+            for (int timer = 0; timer < TIMER_COUNT; timer++) {
+                final long deadline = mDeadlines[timer];
+                if (deadline == 0 || deadline > now) continue;
+                final int keyIndex = mKeyIndices[timer];
+                final PointerTracker tracker = mTrackers[timer];
+                clearTimer(timer);
+                switch (timer) {
+                    case TIMER_POPUP_PREVIEW:
+                        showKey(keyIndex, tracker);
+                        break;
+                    case TIMER_DISMISS_PREVIEW:
+                        mPreviewPopup.dismiss();
+                        break;
+                    case TIMER_REPEAT_KEY:
+                        tracker.repeatKey(keyIndex);
+                        startKeyRepeatTimer(mKeyRepeatInterval, keyIndex, tracker);
+                        break;
+                    case TIMER_LONGPRESS_KEY:
+                        openPopupIfRequired(keyIndex, tracker);
+                        break;
                 }
             }
+            scheduleTick();
+        }
+
+        private void setTimer(int timer, long delay, int keyIndex, PointerTracker tracker) {
+            // A deadline of 0 means not set, so never use it for a timer that is
+            mDeadlines[timer] = Math.max(1, SystemClock.uptimeMillis() + delay);
+            mKeyIndices[timer] = keyIndex;
+            mTrackers[timer] = tracker;
+            scheduleTick();
+        }
+
+        private void clearTimer(int timer) {
+            mDeadlines[timer] = 0;
+            mTrackers[timer] = null;
+        }
+
+        // Makes sure a tick runs at the earliest deadline. A tick that's already scheduled
+        // earlier is kept, it runs nothing and schedules the next one.
+        private void scheduleTick() {
+            long earliest = 0;
+            for (int timer = 0; timer < TIMER_COUNT; timer++) {
+                final long deadline = mDeadlines[timer];
+                if (deadline != 0 && (earliest == 0 || deadline < earliest)) earliest = deadline;
+            }
+            if (earliest == 0) {
+                cancelTick();
+                return;
+            }
+            if (mTickTime != 0 && mTickTime <= earliest) return;
+            cancelTick();
+            mTickTime = earliest;
+            if (mFrameTicker != null) {
+                mFrameTicker.post(earliest - SystemClock.uptimeMillis());
+            } else {
+                sendEmptyMessageAtTime(MSG_TICK, earliest);
+            }
+        }
+
+        private void cancelTick() {
+            if (mTickTime == 0) return;
+            mTickTime = 0;
+            if (mFrameTicker != null) {
+                mFrameTicker.cancel();
+            } else {
+                removeMessages(MSG_TICK);
+            }
         }
 
         public void popupPreview(long delay, int keyIndex, PointerTracker tracker) {
-            removeMessages(MSG_POPUP_PREVIEW);
             if (mPreviewPopup.isShowing() && mPreviewText.getVisibility() == VISIBLE) {
                 // Show right away, if it's already visible and finger is moving around
+                cancelPopupPreview();
                 showKey(keyIndex, tracker);
             } else {
-                sendMessageDelayed(obtainMessage(MSG_POPUP_PREVIEW, keyIndex, 0, tracker),
-                        delay);
+                setTimer(TIMER_POPUP_PREVIEW, delay, keyIndex, tracker);
             }
         }
 
         public void cancelPopupPreview() {
-            removeMessages(MSG_POPUP_PREVIEW);
+            clearTimer(TIMER_POPUP_PREVIEW);
         }
 
         public void dismissPreview(long delay) {
             if (mPreviewPopup.isShowing()) {
-                sendMessageDelayed(obtainMessage(MSG_DISMISS_PREVIEW), delay);
+                setTimer(TIMER_DISMISS_PREVIEW, delay, NOT_A_KEY, null);
             }
         }
 
         public void cancelDismissPreview() {
-            removeMessages(MSG_DISMISS_PREVIEW);
+            clearTimer(TIMER_DISMISS_PREVIEW);
         }
 
         public void startKeyRepeatTimer(long delay, int keyIndex, PointerTracker tracker) {
             mInKeyRepeat = true;
-            sendMessageDelayed(obtainMessage(MSG_REPEAT_KEY, keyIndex, 0, tracker), delay);
+            setTimer(TIMER_REPEAT_KEY, delay, keyIndex, tracker);
         }
 
         public void cancelKeyRepeatTimer() {
             mInKeyRepeat = false;
-            removeMessages(MSG_REPEAT_KEY);
+            clearTimer(TIMER_REPEAT_KEY);
         }
 
         public boolean isInKeyRepeat() {
@@ -360,12 +505,11 @@ public class LatinKeyboardBaseView extends View implements PointerTracker.UIProx
         }
 
         public void startLongPressTimer(long delay, int keyIndex, PointerTracker tracker) {
-            removeMessages(MSG_LONGPRESS_KEY);
-            sendMessageDelayed(obtainMessage(MSG_LONGPRESS_KEY, keyIndex, 0, tracker), delay);
+            setTimer(TIMER_LONGPRESS_KEY, delay, keyIndex, tracker);
         }
 
         public void cancelLongPressTimer() {
-            removeMessages(MSG_LONGPRESS_KEY);
+            clearTimer(TIMER_LONGPRESS_KEY);
         }
 
         public void cancelKeyTimers() {
@@ -377,64 +521,114 @@ public class LatinKeyboardBaseView extends View implements PointerTracker.UIProx
             cancelKeyTimers();
             cancelPopupPreview();
             cancelDismissPreview();
+            cancelTick();
         }
     }
 
+    /**
+     * Runs the timer tick on the first frame after its deadline, so that key repeats and
+     * popups are handled together with the drawing they cause. Only loaded on API 16 and
+     * up, older versions use handler messages.
+     */
+    private static class FrameTicker implements Choreographer.FrameCallback {
+        private final UIHandler mHandler;
+
+        FrameTicker(UIHandler handler) {
+            mHandler = handler;
+        }
+
+        void post(long delay) {
+            Choreographer.getInstance().postFrameCallbackDelayed(this, Math.max(0, delay));
+        }
+
+        void cancel() {
+            Choreographer.getInstance().removeFrameCallback(this);
+        }
+
+        public void doFrame(long frameTimeNanos) {
+            mHandler.tick();
+        }
+    }
+
+    /**
+     * The pointers that are down, oldest first, in an array that only grows when more
+     * fingers are down than ever before.
+     */
     static class PointerQueue {
-        private LinkedList<PointerTracker> mQueue = new LinkedList<PointerTracker>();
+        private PointerTracker[] mQueue = new PointerTracker[4];
+        private int mSize;
 
         public void add(PointerTracker tracker) {
-            mQueue.add(tracker);
+            if (mSize == mQueue.length) {
+                PointerTracker[] queue = new PointerTracker[mSize * 2];
+                System.arraycopy(mQueue, 0, queue, 0, mSize);
+                mQueue = queue;
+            }
+            mQueue[mSize++] = tracker;
         }
 
         public int lastIndexOf(PointerTracker tracker) {
-            LinkedList<PointerTracker> queue = mQueue;
-            for (int index = queue.size() - 1; index >= 0; index--) {
-                PointerTracker t = queue.get(index);
-                if (t == tracker)
+            for (int index = mSize - 1; index >= 0; index--) {
+                if (mQueue[index] == tracker)
                     return index;
             }
             return -1;
         }
 
         public void releaseAllPointersOlderThan(PointerTracker tracker, long eventTime) {
-            LinkedList<PointerTracker> queue = mQueue;
-            int oldestPos = 0;
-            for (PointerTracker t = queue.get(oldestPos); t != tracker; t = queue.get(oldestPos)) {
+            // Keep the modifiers and everything from the tracker on, in order
+            int kept = 0;
+            int index = 0;
+            for (; index < mSize && mQueue[index] != tracker; index++) {
+                final PointerTracker t = mQueue[index];
                 if (t.isModifier()) {
-                    oldestPos++;
+                    mQueue[kept++] = t;
                 } else {
                     t.onUpEvent(t.getLastX(), t.getLastY(), eventTime);
                     t.setAlreadyProcessed();
-                    queue.remove(oldestPos);
                 }
-                if (queue.isEmpty()) return;
             }
+            for (; index < mSize; index++) {
+                mQueue[kept++] = mQueue[index];
+            }
+            clearFrom(kept);
         }
 
         public void releaseAllPointersExcept(PointerTracker tracker, long eventTime) {
-            for (PointerTracker t : mQueue) {
+            for (int index = 0; index < mSize; index++) {
+                final PointerTracker t = mQueue[index];
                 if (t == tracker)
                     continue;
                 t.onUpEvent(t.getLastX(), t.getLastY(), eventTime);
                 t.setAlreadyProcessed();
             }
-            mQueue.clear();
+            clearFrom(0);
             if (tracker != null)
-                mQueue.add(tracker);
+                add(tracker);
         }
 
         public void remove(PointerTracker tracker) {
-            mQueue.remove(tracker);
+            int index = 0;
+            while (index < mSize && mQueue[index] != tracker) index++;
+            if (index == mSize) return;
+            System.arraycopy(mQueue, index + 1, mQueue, index, mSize - index - 1);
+            clearFrom(mSize - 1);
         }
 
         public boolean isInSlidingKeyInput() {
-            for (final PointerTracker tracker : mQueue) {
-                if (tracker.isInSlidingKeyInput())
+            for (int index = 0; index < mSize; index++) {
+                if (mQueue[index].isInSlidingKeyInput())
                     return true;
             }
             return false;
         }
+
+        private void clearFrom(int size) {
+            for (int index = size; index < mSize; index++) {
+                mQueue[index] = null;
+            }
+            mSize = size;
+        }
     }
 
     static {
@@ -454,10 +648,10 @@ public class LatinKeyboardBaseView extends View implements PointerTracker.UIProx
     }
     
     private void setRenderModeIfPossible(int mode) {
-        if (sSetRenderMode != null && mode != sPrevRenderMode) {
+        if (sSetRenderMode != null && mode != mRenderMode) {
             try {
                 sSetRenderMode.invoke(this, mode, null);
-                sPrevRenderMode = mode;
+                mRenderMode = mode;
                 Log.i(TAG, "render mode set to " + LatinIME.sKeyboardSettings.renderMode);
             } catch (IllegalArgumentException e) {
                 e.printStackTrace();
@@ -576,6 +770,13 @@ public class LatinKeyboardBaseView extends View implements PointerTracker.UIProx
         mKeyBackground.getPadding(mPadding);
 
         mSwipeThreshold = (int) (300 * res.getDisplayMetrics().density);
+        mGesturePaint.setAntiAlias(true);
+        mGesturePaint.setStyle(Paint.Style.STROKE);
+        mGesturePaint.setStrokeCap(Paint.Cap.ROUND);
+        mGesturePaint.setStrokeJoin(Paint.Join.ROUND);
+        mGesturePaint.setStrokeWidth(4 * res.getDisplayMetrics().density);
+        mGesturePaint.setColor(mKeyTextColor);
+        mGesturePaint.setAlpha(160);
         // TODO: Refer frameworks/base/core/res/res/values/config.xml
         // TODO(klausw): turn off mDisambiguateSwipe if no swipe actions are set?
         mDisambiguateSwipe = res.getBoolean(R.bool.config_swipeDisambiguation);
@@ -653,6 +854,10 @@ public class LatinKeyboardBaseView extends View implements PointerTracker.UIProx
         return mKeyboardActionListener;
     }
 
+    public void setOnGestureListener(OnGestureListener listener) {
+        mOnGestureListener = listener;
+    }
+
     /**
      * Attaches a keyboard to this view. The keyboard can be switched at any time and the
      * view will re-layout itself to accommodate the keyboard.
@@ -668,6 +873,7 @@ public class LatinKeyboardBaseView extends View implements PointerTracker.UIProx
         // Remove any pending messages, except dismissing preview
         mHandler.cancelKeyTimers();
         mHandler.cancelPopupPreview();
+        cancelGesture();
         mKeyboard = keyboard;
         // Disable correctionX and correctionY, it doesn't seem to work as intended.
         // mKeys = mKeyDetector.setKeyboard(keyboard, -getPaddingLeft(),-getPaddingTop() + mVerticalCorrection);
@@ -869,10 +1075,13 @@ public class LatinKeyboardBaseView extends View implements PointerTracker.UIProx
         super.onDraw(canvas);
         //Log.i(TAG, "onDraw called " + canvas.getClipBounds());
         mCanvas = canvas;
+        long start = LatencyTracker.start();
         if (mDrawPending || mBuffer == null || mKeyboardChanged) {
             onBufferDraw(canvas);
         }
         if (mBuffer != null) canvas.drawBitmap(mBuffer, 0, 0, null);
+        if (mGestureActive) drawGestureTrail(canvas);
+        LatencyTracker.end(LatencyTracker.STAGE_DRAW, start);
     }
     
     private void drawDeadKeyLabel(Canvas canvas, String hint, int x, float baseline, Paint paint) {
@@ -882,17 +1091,109 @@ public class LatinKeyboardBaseView extends View implements PointerTracker.UIProx
         canvas.drawText(accent, x, baseline, paint);
     }
 
-    private int getLabelHeight(Paint paint, int labelSize) {
-        Integer labelHeightValue = mTextHeightCache.get(labelSize);
-        if (labelHeightValue != null) {
-            return labelHeightValue;
-        } else {
-            Rect textBounds = new Rect();
-            paint.getTextBounds(KEY_LABEL_HEIGHT_REFERENCE_CHAR, 0, 1, textBounds);
-            int labelHeight = textBounds.height();
-            mTextHeightCache.put(labelSize, labelHeight);
-            return labelHeight;
+    private int getLabelHeight(Paint paint, Typeface typeface, int labelSize) {
+        paint.setTypeface(typeface);
+        paint.setTextSize(labelSize);
+        Rect textBounds = new Rect();
+        paint.getTextBounds(KEY_LABEL_HEIGHT_REFERENCE_CHAR, 0, 1, textBounds);
+        return textBounds.height();
+    }
+
+    // Returns the label sizes of the current keyboard, measured only the first time it's
+    // drawn with the current label scale and typeface
+    private Keyboard.LabelMetrics getLabelMetrics(Key[] keys) {
+        final float topRowScale = LatinIME.sKeyboardSettings.topRowScale;
+        Keyboard.LabelMetrics metrics = mKeyboard.getLabelMetrics();
+        if (metrics != null && metrics.matches(mLabelScale, topRowScale, mKeyTextStyle)) {
+            return metrics;
+        }
+        // Scale the key labels based on the median key size.
+        final int keyCount = keys.length;
+        int[] keyWidths = new int[keyCount];
+        int[] keyHeights = new int[keyCount];
+        for (int i = 0; i < keyCount; i++) {
+            keyWidths[i] = keys[i].width;
+            keyHeights[i] = keys[i].height;
         }
+        Arrays.sort(keyWidths);
+        Arrays.sort(keyHeights);
+        int medianKeyWidth = keyWidths[keyCount / 2];
+        int medianKeyHeight = keyHeights[keyCount / 2];
+        // Use 60% of the smaller of width or height. This is kind of arbitrary.
+        float keyTextSize = Math.min(medianKeyHeight * 6 / 10, medianKeyWidth * 6 / 10);
+        float labelTextSize = keyTextSize * 3 / 4;
+        int charLabelSize = (int)(keyTextSize * mLabelScale);
+        int wordLabelSize = (int)(labelTextSize * mLabelScale);
+        int hintLabelSize = (int)(keyTextSize * 0.6 * mLabelScale);
+        // Measure with copies so that the paints used for drawing keep their settings
+        Paint paint = new Paint(mPaint);
+        Paint paintHint = new Paint(mPaintHint);
+        metrics = new Keyboard.LabelMetrics(mLabelScale, topRowScale, mKeyTextStyle,
+                keyTextSize, labelTextSize,
+                charLabelSize, getLabelHeight(paint, mKeyTextStyle, charLabelSize),
+                wordLabelSize, getLabelHeight(paint, Typeface.DEFAULT, wordLabelSize),
+                hintLabelSize, getLabelHeight(paintHint, paintHint.getTypeface(), hintLabelSize));
+        mKeyboard.setLabelMetrics(metrics);
+        return metrics;
+    }
+
+    private boolean isKeyDirty(Key key, int kbdPaddingLeft, int kbdPaddingTop) {
+        return mDirtyRect.intersects(
+                key.x + kbdPaddingLeft,
+                key.y + kbdPaddingTop,
+                key.x + key.width + kbdPaddingLeft,
+                key.y + key.height + kbdPaddingTop);
+    }
+
+    // Draws the background of a key with its state already set, the canvas translated to
+    // the key
+    private void drawKeyBackground(Canvas canvas, Key key) {
+        final Drawable keyBackground = mKeyBackground;
+        float yscale = 1.0f;
+        final Rect bounds = keyBackground.getBounds();
+        if (key.width != bounds.right || key.height != bounds.bottom) {
+            int minHeight = keyBackground.getMinimumHeight();
+            if (minHeight > key.height) {
+                yscale = (float) key.height / minHeight;
+                keyBackground.setBounds(0, 0, key.width, minHeight);
+            } else {
+                keyBackground.setBounds(0, 0, key.width, key.height);
+            }
+        }
+        if (yscale != 1.0f) {
+            canvas.save();
+            canvas.scale(1.0f, yscale);
+        }
+        if (mBackgroundAlpha != 255) {
+            keyBackground.setAlpha(mBackgroundAlpha);
+        }
+        keyBackground.draw(canvas);
+        if (yscale != 1.0f)  canvas.restore();
+    }
+
+    // Returns the blurred shadow of an icon with its bounds already set, drawn into a
+    // bitmap the size of the key
+    private IconShadow getIconShadow(Drawable icon, int keyWidth, int keyHeight) {
+        final Rect bounds = icon.getBounds();
+        final Object cacheKey = icon instanceof BitmapDrawable
+                ? ((BitmapDrawable) icon).getBitmap() : icon;
+        IconShadow shadow = mIconShadows.get(cacheKey);
+        if (shadow != null && shadow.keyWidth == keyWidth && shadow.keyHeight == keyHeight
+                && shadow.iconWidth == bounds.width() && shadow.iconHeight == bounds.height()
+                && shadow.radius == mShadowRadius) {
+            return shadow;
+        }
+        Paint blurPaint = new Paint();
+        blurPaint.setMaskFilter(new BlurMaskFilter(mShadowRadius, BlurMaskFilter.Blur.OUTER));
+        Bitmap tmpIcon = Bitmap.createBitmap(keyWidth, keyHeight, Bitmap.Config.ARGB_8888);
+        icon.draw(new Canvas(tmpIcon));
+        int[] offsets = new int[2];
+        Bitmap shadowBitmap = tmpIcon.extractAlpha(blurPaint, offsets);
+        tmpIcon.recycle();
+        shadow = new IconShadow(shadowBitmap, offsets[0], offsets[1], keyWidth, keyHeight,
+                bounds.width(), bounds.height(), mShadowRadius);
+        mIconShadows.put(cacheKey, shadow);
+        return shadow;
     }
 
     private void onBufferDraw(Canvas canvas) {
@@ -933,11 +1234,18 @@ public class LatinKeyboardBaseView extends View implements PointerTracker.UIProx
         if (mInvertSymbols) {
             iconColorFilter = mInvertingColorFilter;
         } else if (mRecolorSymbols) {
-            // TODO: cache these?
-            iconColorFilter = new PorterDuffColorFilter(
-                    mKeyTextColor, PorterDuff.Mode.SRC_ATOP);
-            shadowColorFilter = new PorterDuffColorFilter(
-                    mShadowColor, PorterDuff.Mode.SRC_ATOP);
+            if (mRecolorIconFilter == null || mRecolorIconColor != mKeyTextColor) {
+                mRecolorIconFilter = new PorterDuffColorFilter(
+                        mKeyTextColor, PorterDuff.Mode.SRC_ATOP);
+                mRecolorIconColor = mKeyTextColor;
+            }
+            if (mRecolorShadowFilter == null || mRecolorShadowColor != mShadowColor) {
+                mRecolorShadowFilter = new PorterDuffColorFilter(
+                        mShadowColor, PorterDuff.Mode.SRC_ATOP);
+                mRecolorShadowColor = mShadowColor;
+            }
+            iconColorFilter = mRecolorIconFilter;
+            shadowColorFilter = mRecolorShadowFilter;
         }
 
         boolean drawSingleKey = false;
@@ -954,21 +1262,9 @@ public class LatinKeyboardBaseView extends View implements PointerTracker.UIProx
         //canvas.drawColor(0x00000000, PorterDuff.Mode.CLEAR);
         final int keyCount = keys.length;
 
-        // Scale the key labels based on the median key size.
-        List<Integer> keyWidths = new ArrayList<Integer>();
-        List<Integer> keyHeights = new ArrayList<Integer>();
-        for (int i = 0; i < keyCount; i++) {
-            final Key key = keys[i];
-            keyWidths.add(key.width);
-            keyHeights.add(key.height);
-        }
-        Collections.sort(keyWidths);
-        Collections.sort(keyHeights);
-        int medianKeyWidth = keyWidths.get(keyCount / 2);
-        int medianKeyHeight = keyHeights.get(keyCount / 2);
-        // Use 60% of the smaller of width or height. This is kind of arbitrary.
-        mKeyTextSize = Math.min(medianKeyHeight * 6 / 10, medianKeyWidth * 6 / 10);
-        mLabelTextSize = mKeyTextSize * 3 / 4;
+        final Keyboard.LabelMetrics metrics = getLabelMetrics(keys);
+        mKeyTextSize = metrics.keyTextSize;
+        mLabelTextSize = metrics.labelTextSize;
 
         int keysDrawn = 0;
         for (int i = 0; i < keyCount; i++) {
@@ -976,71 +1272,46 @@ public class LatinKeyboardBaseView extends View implements PointerTracker.UIProx
             if (drawSingleKey && invalidKey != key) {
                 continue;
             }
-            if (!mDirtyRect.intersects(
-                    key.x + kbdPaddingLeft,
-                    key.y + kbdPaddingTop,
-                    key.x + key.width + kbdPaddingLeft,
-                    key.y + key.height + kbdPaddingTop)) {
+            if (!isKeyDirty(key, kbdPaddingLeft, kbdPaddingTop)) {
                 continue;
             }
             keysDrawn++;
             paint.setColor(key.isCursor ? mKeyCursorColor : mKeyTextColor);
 
-            int[] drawableState = key.getCurrentDrawableState();
-            keyBackground.setState(drawableState);
-
             // Switch the character to uppercase if shift is pressed
             String label = key.getCaseLabel();
 
-            float yscale = 1.0f;
-            final Rect bounds = keyBackground.getBounds();
-            if (key.width != bounds.right || key.height != bounds.bottom) {
-                int minHeight = keyBackground.getMinimumHeight();
-                if (minHeight > key.height) {
-                    yscale = (float) key.height / minHeight;
-                    keyBackground.setBounds(0, 0, key.width, minHeight);
-                } else {
-                    keyBackground.setBounds(0, 0, key.width, key.height);
-                }
-            }
             canvas.translate(key.x + kbdPaddingLeft, key.y + kbdPaddingTop);
-            if (yscale != 1.0f) {
-                canvas.save();
-                canvas.scale(1.0f, yscale);
-            }
-            if (mBackgroundAlpha != 255) {
-                keyBackground.setAlpha(mBackgroundAlpha);
-            }
-            keyBackground.draw(canvas);
-            if (yscale != 1.0f)  canvas.restore();
+            keyBackground.setState(key.getCurrentDrawableState());
+            drawKeyBackground(canvas, key);
 
             boolean shouldDrawIcon = true;
             if (label != null) {
                 // For characters, use large font. For labels like "Done", use small font.
                 final int labelSize;
+                final int labelHeight;
                 if (label.length() > 1 && key.codes.length < 2) {
                     //Log.i(TAG, "mLabelTextSize=" + mLabelTextSize + " LatinIME.sKeyboardSettings.labelScale=" + LatinIME.sKeyboardSettings.labelScale);
-                    labelSize = (int)(mLabelTextSize * mLabelScale);
+                    labelSize = metrics.wordLabelSize;
+                    labelHeight = metrics.wordLabelHeight;
                     paint.setTypeface(Typeface.DEFAULT);
                 } else {
-                    labelSize = (int)(mKeyTextSize * mLabelScale);
+                    labelSize = metrics.charLabelSize;
+                    labelHeight = metrics.charLabelHeight;
                     paint.setTypeface(mKeyTextStyle);
                 }
                 paint.setFakeBoldText(key.isCursor);
                 paint.setTextSize(labelSize);
 
-                final int labelHeight = getLabelHeight(paint, labelSize);
-
                 // Draw a drop shadow for the text
                 paint.setShadowLayer(mShadowRadius, 0, 0, mShadowColor);
 
                 // Draw hint label (if present) behind the main key
                 String hint = key.getHintLabel(showHints7Bit(), showHintsAll());
                 if (!hint.equals("") && !(key.isShifted() && key.shiftLabel != null && hint.charAt(0) == key.shiftLabel.charAt(0))) {
-                    int hintTextSize = (int)(mKeyTextSize * 0.6 * mLabelScale);
-                    paintHint.setTextSize(hintTextSize);
+                    paintHint.setTextSize(metrics.hintLabelSize);
 
-                    final int hintLabelHeight = getLabelHeight(paintHint, hintTextSize);
+                    final int hintLabelHeight = metrics.hintLabelHeight;
                     int x = key.width - padding.right;
                     int baseline = padding.top + hintLabelHeight * 12/10;
                     if (Character.getType(hint.charAt(0)) == Character.NON_SPACING_MARK) {
@@ -1053,10 +1324,9 @@ public class LatinKeyboardBaseView extends View implements PointerTracker.UIProx
                 // Draw alternate hint label (if present) behind the main key
                 String altHint = key.getAltHintLabel(showHints7Bit(), showHintsAll());
                 if (!altHint.equals("")) {
-                    int hintTextSize = (int)(mKeyTextSize * 0.6 * mLabelScale);
-                    paintHint.setTextSize(hintTextSize);
+                    paintHint.setTextSize(metrics.hintLabelSize);
 
-                    final int hintLabelHeight = getLabelHeight(paintHint, hintTextSize);
+                    final int hintLabelHeight = metrics.hintLabelHeight;
                     int x = key.width - padding.right;
                     int baseline = padding.top + hintLabelHeight * (hint.equals("") ? 12 : 26)/10;
                     if (Character.getType(altHint.charAt(0)) == Character.NON_SPACING_MARK) {
@@ -1123,17 +1393,9 @@ public class LatinKeyboardBaseView extends View implements PointerTracker.UIProx
 
                     // Try EmbossMaskFilter, and/or offset? Configurable?
                     if (shadowColorFilter != null && mShadowRadius > 0) {
-                        BlurMaskFilter shadowBlur = new BlurMaskFilter(mShadowRadius, BlurMaskFilter.Blur.OUTER);
-                        Paint blurPaint = new Paint();
-                        blurPaint.setMaskFilter(shadowBlur);
-                        Bitmap tmpIcon = Bitmap.createBitmap(key.width, key.height, Bitmap.Config.ARGB_8888);
-                        Canvas tmpCanvas = new Canvas(tmpIcon);
-                        icon.draw(tmpCanvas);
-                        int[] offsets = new int[2];
-                        Bitmap shadowBitmap = tmpIcon.extractAlpha(blurPaint, offsets);
-                        Paint shadowPaint = new Paint();
-                        shadowPaint.setColorFilter(shadowColorFilter);
-                        canvas.drawBitmap(shadowBitmap, offsets[0], offsets[1], shadowPaint);
+                        IconShadow shadow = getIconShadow(icon, key.width, key.height);
+                        mShadowPaint.setColorFilter(shadowColorFilter);
+                        canvas.drawBitmap(shadow.bitmap, shadow.x, shadow.y, mShadowPaint);
                     }
                     icon.setColorFilter(iconColorFilter);
                     icon.draw(canvas);
@@ -1621,8 +1883,11 @@ public class LatinKeyboardBaseView extends View implements PointerTracker.UIProx
         // Track the last few movements to look for spurious swipes.
         mSwipeTracker.addMovement(me);
 
+        // Gesture typing replaces the swipe gestures for touches it takes over
+        final boolean inGesture = trackGesture(me, action);
+
         // Gesture detector must be enabled only when mini-keyboard is not on the screen.
-        if (!mMiniKeyboardVisible
+        if (!mMiniKeyboardVisible && !inGesture
                 && mGestureDetector != null && mGestureDetector.onTouchEvent(me)) {
             dismissKeyPreview();
             mHandler.cancelKeyTimers();
@@ -1664,36 +1929,28 @@ public class LatinKeyboardBaseView extends View implements PointerTracker.UIProx
             // Up event will pass through.
         }
 
-        // TODO: cleanup this code into a multi-touch to single-touch event converter class?
-        // Translate mutli-touch event to single-touch events on the device that has no distinct
-        // multi-touch panel.
         if (!mHasDistinctMultitouch) {
-            // Use only main (id=0) pointer tracker.
-            PointerTracker tracker = getPointerTracker(0);
-            if (pointerCount == 1 && oldPointerCount == 2) {
-                // Multi-touch to single touch transition.
-                // Send a down event for the latest pointer.
-                tracker.onDownEvent(x, y, eventTime);
-            } else if (pointerCount == 2 && oldPointerCount == 1) {
-                // Single-touch to multi-touch transition.
-                // Send an up event for the last pointer.
-                tracker.onUpEvent(tracker.getLastX(), tracker.getLastY(), eventTime);
-            } else if (pointerCount == 1 && oldPointerCount == 1) {
-                tracker.onTouchEvent(action, x, y, eventTime);
-            } else {
-                Log.w(TAG, "Unknown touch panel behavior: pointer count is " + pointerCount
-                        + " (old " + oldPointerCount + ")");
-            }
-            if (continuing)
-                tracker.setSlidingKeyInputState(true);
+            onSingleTouchEvent(action, pointerCount, oldPointerCount, x, y, eventTime,
+                    continuing);
             return true;
         }
 
         if (action == MotionEvent.ACTION_MOVE) {
-            if (!mIgnoreMove) {
+            // A move batches the samples since the last one, so that at high touch sample
+            // rates keys the pointer slid over within a frame aren't missed. Each sample
+            // reports all pointers, the trackers skip the ones that didn't move.
+            final int historySize = me.getHistorySize();
+            for (int h = 0; h <= historySize && !mIgnoreMove; h++) {
+                final boolean isLatest = (h == historySize);
+                final long sampleTime = isLatest ? eventTime : me.getHistoricalEventTime(h);
                 for (int i = 0; i < pointerCount; i++) {
                     PointerTracker tracker = getPointerTracker(me.getPointerId(i));
-                    tracker.onMoveEvent((int)me.getX(i), (int)me.getY(i), eventTime);
+                    if (isLatest) {
+                        tracker.onMoveEvent((int)me.getX(i), (int)me.getY(i), sampleTime);
+                    } else {
+                        tracker.onMoveEvent((int)me.getHistoricalX(i, h),
+                                (int)me.getHistoricalY(i, h), sampleTime, false);
+                    }
                 }
             }
         } else {
@@ -1720,6 +1977,147 @@ public class LatinKeyboardBaseView extends View implements PointerTracker.UIProx
         return true;
     }
 
+    private static boolean isLetterKey(Key key) {
+        return key.codes != null && key.codes.length > 0 && Character.isLetter(key.codes[0]);
+    }
+
+    private final GesturePath.KeyGrid mKeyGrid = new GesturePath.KeyGrid() {
+        public int getKeyPitch() {
+            return mKeyboard.getKeyWidth();
+        }
+
+        public int getNearbyKeys(int x, int y, int[] codes, int[] distances) {
+            final Key[] keys = mKeys;
+            final int[] nearest = mKeyboard.getNearestKeys(x, y);
+            int count = 0;
+            for (int i = 0; i < nearest.length && count < codes.length; i++) {
+                final Key key = keys[nearest[i]];
+                if (!isLetterKey(key)) continue;
+                codes[count] = Character.toLowerCase(key.codes[0]);
+                distances[count] = key.squaredDistanceFrom(x, y);
+                count++;
+            }
+            return count;
+        }
+    };
+
+    private boolean isOnLetterKey(int x, int y) {
+        final Key[] keys = mKeys;
+        final int[] nearest = mKeyboard.getNearestKeys(x, y);
+        for (int i = 0; i < nearest.length; i++) {
+            final Key key = keys[nearest[i]];
+            if (key.isInside(x, y)) return isLetterKey(key);
+        }
+        return false;
+    }
+
+    /**
+     * Follows a touch that may become a gesture, and reports the gesture to the listener.
+     * The pointer trackers still get the events, they ignore the pointer once its key was
+     * canceled.
+     * @return true if the event belongs to a gesture
+     */
+    private boolean trackGesture(MotionEvent me, int action) {
+        if (action == MotionEvent.ACTION_DOWN) {
+            cancelGesture();
+            final int x = (int) me.getX();
+            final int y = (int) me.getY();
+            if (mOnGestureListener != null && LatinIME.sKeyboardSettings.gestureTyping
+                    && mKeyboard != null && !mMiniKeyboardVisible && isOnLetterKey(x, y)) {
+                mGestureCandidate = true;
+                mGesturePointerId = me.getPointerId(0);
+                mGesturePath.reset();
+                mGesturePath.add(x, y);
+            }
+            return false;
+        }
+        if (!mGestureCandidate && !mGestureActive) return false;
+        final int index = me.findPointerIndex(mGesturePointerId);
+        if (action == MotionEvent.ACTION_POINTER_DOWN || action == MotionEvent.ACTION_CANCEL
+                || index < 0 || mMiniKeyboardVisible) {
+            // Touches with more than one finger are typing
+            cancelGesture();
+            return false;
+        }
+        switch (action) {
+        case MotionEvent.ACTION_MOVE:
+            final int historySize = me.getHistorySize();
+            for (int h = 0; h < historySize; h++) {
+                mGesturePath.add((int) me.getHistoricalX(index, h),
+                        (int) me.getHistoricalY(index, h));
+            }
+            mGesturePath.add((int) me.getX(index), (int) me.getY(index));
+            if (!mGestureActive) {
+                if (mGesturePath.getLength() <= mKeyboard.getKeyWidth()) return false;
+                mGestureCandidate = false;
+                if (!mOnGestureListener.onGestureStart()) return false;
+                mGestureActive = true;
+                getPointerTracker(mGesturePointerId).cancelKey(me.getEventTime());
+                dismissKeyPreview();
+                mHandler.cancelKeyTimers();
+            }
+            mGesturePath.resample(mKeyGrid);
+            mOnGestureListener.onGestureMove(mGesturePath);
+            invalidate();
+            return true;
+        case MotionEvent.ACTION_UP:
+        case MotionEvent.ACTION_POINTER_UP:
+            if (me.getPointerId(me.getActionIndex()) != mGesturePointerId) return mGestureActive;
+            final boolean wasActive = mGestureActive;
+            mGestureCandidate = false;
+            mGestureActive = false;
+            if (wasActive) {
+                mGesturePath.add((int) me.getX(index), (int) me.getY(index));
+                mGesturePath.resample(mKeyGrid);
+                TraceRecorder.recordGesture(mGesturePath, mKeys);
+                mOnGestureListener.onGestureEnd(mGesturePath);
+                invalidate();
+            }
+            return wasActive;
+        }
+        return mGestureActive;
+    }
+
+    private void cancelGesture() {
+        mGestureCandidate = false;
+        if (!mGestureActive) return;
+        mGestureActive = false;
+        mOnGestureListener.onGestureCancel();
+        invalidate();
+    }
+
+    private void drawGestureTrail(Canvas canvas) {
+        final GesturePath path = mGesturePath;
+        final int count = path.getRawCount();
+        for (int i = 1; i < count; i++) {
+            canvas.drawLine(path.getRawX(i - 1), path.getRawY(i - 1), path.getRawX(i),
+                    path.getRawY(i), mGesturePaint);
+        }
+    }
+
+    // Translates multi-touch events to single-touch events on a device that has no distinct
+    // multi-touch panel, using only the main (id=0) pointer tracker.
+    private void onSingleTouchEvent(int action, int pointerCount, int oldPointerCount,
+            int x, int y, long eventTime, boolean continuing) {
+        PointerTracker tracker = getPointerTracker(0);
+        if (pointerCount == 1 && oldPointerCount == 2) {
+            // Multi-touch to single touch transition.
+            // Send a down event for the latest pointer.
+            tracker.onDownEvent(x, y, eventTime);
+        } else if (pointerCount == 2 && oldPointerCount == 1) {
+            // Single-touch to multi-touch transition.
+            // Send an up event for the last pointer.
+            tracker.onUpEvent(tracker.getLastX(), tracker.getLastY(), eventTime);
+        } else if (pointerCount == 1 && oldPointerCount == 1) {
+            tracker.onTouchEvent(action, x, y, eventTime);
+        } else {
+            Log.w(TAG, "Unknown touch panel behavior: pointer count is " + pointerCount
+                    + " (old " + oldPointerCount + ")");
+        }
+        if (continuing)
+            tracker.setSlidingKeyInputState(true);
+    }
+
     private void onDownEvent(PointerTracker tracker, int x, int y, long eventTime) {
         if (tracker.isOnModifierKey(x, y)) {
             // Before processing a down event of modifier key, all pointers already being tracked
@@ -1790,6 +2188,17 @@ public class LatinKeyboardBaseView extends View implements PointerTracker.UIProx
         mMiniKeyboardCacheCaps.clear();
     }
 
+    /**
+     * Drops the popup keyboards and icon shadows made so far, they're made again as needed.
+     */
+    public void clearCaches() {
+        if (mMiniKeyboardVisible) return;
+        mMiniKeyboardCacheMain.clear();
+        mMiniKeyboardCacheShift.clear();
+        mMiniKeyboardCacheCaps.clear();
+        mIconShadows.clear();
+    }
+
     @Override
     public void onDetachedFromWindow() {
         super.onDetachedFromWindow();
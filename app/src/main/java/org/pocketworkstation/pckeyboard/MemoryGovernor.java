@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.pocketworkstation.pckeyboard;
+
+import java.util.ArrayList;
+
+import android.content.ComponentCallbacks2;
+import android.util.Log;
+import android.util.Printer;
+
+/**
+ * Releases memory the keyboard can do without when the system runs low, so that the
+ * process is less likely to be killed in the background.
+ *
+ * <p>
+ * Holders of large data that can be rebuilt register as consumers with a tier. The more
+ * pressing the trim level, the more tiers are released, cheapest to rebuild first. Each
+ * consumer rebuilds what it released the next time it's needed.
+ *
+ * <p>
+ * All calls are made on the main thread.
+ */
+public class MemoryGovernor {
+    private static final String TAG = "HK/MemoryGovernor";
+
+    /** Caches that are refilled as a side effect of typing. */
+    public static final int TIER_CACHES = 0;
+    /** Data only needed while the keyboard is shown, such as keyboards not in use. */
+    public static final int TIER_HIDDEN = 1;
+    /** Data that takes a moment to rebuild, such as learned word tries. */
+    public static final int TIER_BACKGROUND = 2;
+    /** Everything else, such as the main dictionary. */
+    public static final int TIER_ALL = 3;
+
+    public interface Consumer {
+        /**
+         * Returns roughly how many bytes {@link #release} would free.
+         */
+        long getFootprint();
+
+        /**
+         * Releases what this consumer holds, to be rebuilt when it's next needed.
+         */
+        void release();
+    }
+
+    private static class Entry {
+        final String name;
+        final int tier;
+        final Consumer consumer;
+
+        Entry(String name, int tier, Consumer consumer) {
+            this.name = name;
+            this.tier = tier;
+            this.consumer = consumer;
+        }
+    }
+
+    private static final ArrayList<Entry> sEntries = new ArrayList<Entry>();
+
+    private MemoryGovernor() {
+    }
+
+    public static void register(String name, int tier, Consumer consumer) {
+        unregister(consumer);
+        sEntries.add(new Entry(name, tier, consumer));
+    }
+
+    public static void unregister(Consumer consumer) {
+        for (int i = sEntries.size() - 1; i >= 0; --i) {
+            if (sEntries.get(i).consumer == consumer) sEntries.remove(i);
+        }
+    }
+
+    /**
+     * Returns the highest tier to release for a level from
+     * {@link ComponentCallbacks2#onTrimMemory}, or -1 for none.
+     */
+    static int getTierForLevel(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) return TIER_ALL;
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND) return TIER_BACKGROUND;
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) return TIER_HIDDEN;
+        // The running levels come while the keyboard may be in use, so only caches go,
+        // however pressing they are
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) return TIER_CACHES;
+        return -1;
+    }
+
+    /**
+     * Releases the tiers for a trim level. While the keyboard is in use only caches are
+     * released, since everything else would be rebuilt for the next key press.
+     */
+    public static void onTrimMemory(int level, boolean inUse) {
+        final int tier = getTierForLevel(level);
+        release(inUse ? Math.min(tier, TIER_CACHES) : tier);
+    }
+
+    public static void onLowMemory(boolean inUse) {
+        release(inUse ? TIER_CACHES : TIER_ALL);
+    }
+
+    /**
+     * Releases the consumers of all tiers up to maxTier, lowest tier first.
+     */
+    public static void release(int maxTier) {
+        for (int tier = TIER_CACHES; tier <= maxTier; ++tier) {
+            for (Entry entry : sEntries) {
+                if (entry.tier != tier) continue;
+                long footprint = entry.consumer.getFootprint();
+                if (footprint == 0) continue;
+                Log.i(TAG, "Releasing " + entry.name + ", " + footprint / 1024 + " KiB");
+                entry.consumer.release();
+            }
+        }
+    }
+
+    public static void dump(Printer p) {
+        p.println("  Memory consumers:");
+        long total = 0;
+        for (Entry entry : sEntries) {
+            long footprint = entry.consumer.getFootprint();
+            total += footprint;
+            p.println("    " + entry.name + " (tier " + entry.tier + ") "
+                    + footprint / 1024 + " KiB");
+        }
+        p.println("    total " + total / 1024 + " KiB");
+    }
+}
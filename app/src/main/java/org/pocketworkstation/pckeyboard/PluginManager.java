@@ -3,13 +3,17 @@ package org.pocketworkstation.pckeyboard;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
+import android.content.SharedPreferences;
 import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.content.pm.PackageManager.NameNotFoundException;
 import android.content.pm.ResolveInfo;
+import android.content.res.AssetFileDescriptor;
 import android.content.res.Resources;
 import android.content.res.TypedArray;
 import android.content.res.XmlResourceParser;
+import android.os.SystemClock;
 import android.util.Log;
 
 import org.xmlpull.v1.XmlPullParserException;
@@ -17,15 +21,22 @@ import org.xmlpull.v1.XmlPullParserException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 public class PluginManager extends BroadcastReceiver {
     private static String TAG = "PCKeyboard";
     private static String HK_INTENT_DICT = "org.pocketworkstation.DICT";
     private static String SOFTKEYBOARD_INTENT_DICT = "com.menny.android.anysoftkeyboard.DICTIONARY";
     private static String SOFTKEYBOARD_DICT_RESOURCE_METADATA_NAME = "com.menny.android.anysoftkeyboard.dictionaries";
+    // Results of earlier package scans, keyed by plugin type and package name
+    private static final String PREFS_NAME = "plugin_dictionaries";
+    private static final String TYPE_SOFTKEYBOARD = "ask";
+    private static final String TYPE_HK = "hk";
     private LatinIME mIME;
 
     // Apparently anysoftkeyboard doesn't use ISO 639-1 language codes for its locales?
@@ -46,128 +57,187 @@ public class PluginManager extends BroadcastReceiver {
 
     static interface DictPluginSpec {
         BinaryDictionary getDict(Context context);
+        DictionaryIndex.Entry getInfo(Context context);
     }
 
-    static void getSoftKeyboardDictionaries(PackageManager packageManager) {
-        Intent dictIntent = new Intent(SOFTKEYBOARD_INTENT_DICT);
-        List<ResolveInfo> dictPacks = packageManager.queryBroadcastReceivers(
-                dictIntent, PackageManager.GET_META_DATA);
-        for (ResolveInfo ri : dictPacks) {
-            ApplicationInfo appInfo = ri.activityInfo.applicationInfo;
-            String pkgName = appInfo.packageName;
-            boolean success = false;
-            try {
-                Resources res = packageManager.getResourcesForApplication(appInfo);
-                //Log.i(TAG, "Found dictionary plugin package: " + pkgName);
-                int dictId = res.getIdentifier("dictionaries", "xml", pkgName);
-                if (dictId == 0) {
-                    try {
-                        dictId = ri.activityInfo.metaData.getInt(SOFTKEYBOARD_DICT_RESOURCE_METADATA_NAME);
-                    } catch (Exception e) {
-                    }
+    // Reads the dictionary metadata of an AnySoftKeyboard plugin package
+    private static DictPluginSpecBase scanSoftKeyboardPackage(PackageManager packageManager,
+            ResolveInfo ri) {
+        ApplicationInfo appInfo = ri.activityInfo.applicationInfo;
+        String pkgName = appInfo.packageName;
+        boolean success = false;
+        try {
+            Resources res = packageManager.getResourcesForApplication(appInfo);
+            //Log.i(TAG, "Found dictionary plugin package: " + pkgName);
+            int dictId = res.getIdentifier("dictionaries", "xml", pkgName);
+            if (dictId == 0) {
+                try {
+                    dictId = ri.activityInfo.metaData.getInt(SOFTKEYBOARD_DICT_RESOURCE_METADATA_NAME);
+                } catch (Exception e) {
                 }
-                if (dictId == 0)
-                    continue;
-                XmlResourceParser xrp = res.getXml(dictId);
+            }
+            if (dictId == 0)
+                return null;
+            XmlResourceParser xrp = res.getXml(dictId);
 
-                String assetName = null;
-                int resId = 0;
-                String lang = null;
-                try {
-                    int current = xrp.getEventType();
-                    while (current != XmlResourceParser.END_DOCUMENT) {
-                        if (current == XmlResourceParser.START_TAG) {
-                            String tag = xrp.getName();
-                            if (tag != null) {
-                                if (tag.equals("Dictionary")) {
-                                    lang = xrp.getAttributeValue(null, "locale");
-                                    String convLang = SOFTKEYBOARD_LANG_MAP.get(lang);
-                                    if (convLang != null) lang = convLang;
-                                    String type = xrp.getAttributeValue(null, "type");
-                                    if (type == null || type.equals("raw") || type.equals("binary") || type.equals("binary_resource")) {
-                                        assetName = xrp.getAttributeValue(null, "dictionaryAssertName"); // sic
-                                        resId = xrp.getAttributeResourceValue(null, "dictionaryResourceId", 0);
-                                    } else {
-                                        Log.w(TAG, "Unsupported AnySoftKeyboard dict type " + type);
-                                    }
-                                    //Log.i(TAG, "asset=" + assetName + " lang=" + lang);
+            String assetName = null;
+            int resId = 0;
+            String lang = null;
+            try {
+                int current = xrp.getEventType();
+                while (current != XmlResourceParser.END_DOCUMENT) {
+                    if (current == XmlResourceParser.START_TAG) {
+                        String tag = xrp.getName();
+                        if (tag != null) {
+                            if (tag.equals("Dictionary")) {
+                                lang = xrp.getAttributeValue(null, "locale");
+                                String convLang = SOFTKEYBOARD_LANG_MAP.get(lang);
+                                if (convLang != null) lang = convLang;
+                                String type = xrp.getAttributeValue(null, "type");
+                                if (type == null || type.equals("raw") || type.equals("binary") || type.equals("binary_resource")) {
+                                    assetName = xrp.getAttributeValue(null, "dictionaryAssertName"); // sic
+                                    resId = xrp.getAttributeResourceValue(null, "dictionaryResourceId", 0);
+                                } else {
+                                    Log.w(TAG, "Unsupported AnySoftKeyboard dict type " + type);
                                 }
+                                //Log.i(TAG, "asset=" + assetName + " lang=" + lang);
                             }
                         }
-                        xrp.next();
-                        current = xrp.getEventType();
                     }
-                } catch (XmlPullParserException e) {
-                    Log.e(TAG, "Dictionary XML parsing failure");
-                } catch (IOException e) {
-                    Log.e(TAG, "Dictionary XML IOException");
+                    xrp.next();
+                    current = xrp.getEventType();
                 }
+            } catch (XmlPullParserException e) {
+                Log.e(TAG, "Dictionary XML parsing failure");
+            } catch (IOException e) {
+                Log.e(TAG, "Dictionary XML IOException");
+            }
 
-                if ((assetName == null && resId == 0) || lang == null) continue;
-                DictPluginSpec spec = new DictPluginSpecSoftKeyboard(pkgName, assetName, resId);
-                mPluginDicts.put(lang, spec);
-                Log.i(TAG, "Found plugin dictionary: lang=" + lang + ", pkg=" + pkgName);
-                success = true;
-            } catch (NameNotFoundException e) {
-                Log.i(TAG, "bad");
-            } finally {
-                if (!success) {
-                    Log.i(TAG, "failed to load plugin dictionary spec from " + pkgName);
-                }
+            if ((assetName == null && resId == 0) || lang == null) return null;
+            success = true;
+            return new DictPluginSpecSoftKeyboard(pkgName, lang, assetName, resId);
+        } catch (NameNotFoundException e) {
+            Log.i(TAG, "bad");
+        } finally {
+            if (!success) {
+                Log.i(TAG, "failed to load plugin dictionary spec from " + pkgName);
             }
         }
+        return null;
     }
 
-    static void getHKDictionaries(PackageManager packageManager) {
-        Intent dictIntent = new Intent(HK_INTENT_DICT);
-        List<ResolveInfo> dictPacks = packageManager.queryIntentActivities(dictIntent, 0);
-        for (ResolveInfo ri : dictPacks) {
-            ApplicationInfo appInfo = ri.activityInfo.applicationInfo;
-            String pkgName = appInfo.packageName;
-            boolean success = false;
-            try {
-                Resources res = packageManager.getResourcesForApplication(appInfo);
-                //Log.i(TAG, "Found dictionary plugin package: " + pkgName);
-                int langId = res.getIdentifier("dict_language", "string", pkgName);
-                if (langId == 0) continue;
-                String lang = res.getString(langId);
-                int[] rawIds = null;
-
-                // Try single-file version first
-                int rawId = res.getIdentifier("main", "raw", pkgName);
-                if (rawId != 0) {
-                    rawIds = new int[]{rawId};
-                } else {
-                    // try multi-part version
-                    int parts = 0;
-                    List<Integer> ids = new ArrayList<Integer>();
-                    while (true) {
-                        int id = res.getIdentifier("main" + parts, "raw", pkgName);
-                        if (id == 0) break;
-                        ids.add(id);
-                        ++parts;
-                    }
-                    if (parts == 0) continue; // no parts found
-                    rawIds = new int[parts];
-                    for (int i = 0; i < parts; ++i) rawIds[i] = ids.get(i);
+    // Reads the dictionary resources of a Hacker's Keyboard plugin package
+    private static DictPluginSpecBase scanHKPackage(PackageManager packageManager,
+            ResolveInfo ri) {
+        ApplicationInfo appInfo = ri.activityInfo.applicationInfo;
+        String pkgName = appInfo.packageName;
+        boolean success = false;
+        try {
+            Resources res = packageManager.getResourcesForApplication(appInfo);
+            //Log.i(TAG, "Found dictionary plugin package: " + pkgName);
+            int langId = res.getIdentifier("dict_language", "string", pkgName);
+            if (langId == 0) return null;
+            String lang = res.getString(langId);
+            int[] rawIds = null;
+
+            // Try single-file version first
+            int rawId = res.getIdentifier("main", "raw", pkgName);
+            if (rawId != 0) {
+                rawIds = new int[]{rawId};
+            } else {
+                // try multi-part version
+                int parts = 0;
+                List<Integer> ids = new ArrayList<Integer>();
+                while (true) {
+                    int id = res.getIdentifier("main" + parts, "raw", pkgName);
+                    if (id == 0) break;
+                    ids.add(id);
+                    ++parts;
                 }
-                DictPluginSpec spec = new DictPluginSpecHK(pkgName, rawIds);
-                mPluginDicts.put(lang, spec);
-                Log.i(TAG, "Found plugin dictionary: lang=" + lang + ", pkg=" + pkgName);
-                success = true;
-            } catch (NameNotFoundException e) {
-                Log.i(TAG, "bad");
-            } finally {
-                if (!success) {
-                    Log.i(TAG, "failed to load plugin dictionary spec from " + pkgName);
+                if (parts == 0) return null; // no parts found
+                rawIds = new int[parts];
+                for (int i = 0; i < parts; ++i) rawIds[i] = ids.get(i);
+            }
+            success = true;
+            return new DictPluginSpecHK(pkgName, lang, rawIds);
+        } catch (NameNotFoundException e) {
+            Log.i(TAG, "bad");
+        } finally {
+            if (!success) {
+                Log.i(TAG, "failed to load plugin dictionary spec from " + pkgName);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Adds the plugin dictionaries of the packages found for an intent. Packages whose
+     * version and update time match the last scan use the saved result without opening
+     * their resources.
+     */
+    private static void addPlugins(PackageManager packageManager, List<ResolveInfo> infos,
+            String type, SharedPreferences prefs, SharedPreferences.Editor editor,
+            Set<String> seen) {
+        for (ResolveInfo ri : infos) {
+            String pkgName = ri.activityInfo.applicationInfo.packageName;
+            String key = type + ":" + pkgName;
+            seen.add(key);
+            String stamp = getPackageStamp(packageManager, pkgName);
+            String saved = prefs.getString(key, null);
+            DictPluginSpecBase spec = null;
+            boolean known = stamp != null && saved != null && saved.startsWith(stamp + "|");
+            if (known) {
+                String value = saved.substring(stamp.length() + 1);
+                spec = decodeSpec(type, pkgName, value);
+                known = spec != null || value.length() == 0;
+            }
+            if (!known) {
+                spec = type.equals(TYPE_HK) ? scanHKPackage(packageManager, ri)
+                        : scanSoftKeyboardPackage(packageManager, ri);
+                // Packages without a usable dictionary are saved too so they aren't scanned again
+                if (stamp != null) {
+                    editor.putString(key, stamp + "|" + (spec == null ? "" : spec.encode()));
                 }
             }
+            if (spec == null) continue;
+            mPluginDicts.put(spec.mLang, spec);
+            Log.i(TAG, "Found plugin dictionary: lang=" + spec.mLang + ", pkg=" + pkgName);
         }
     }
 
+    private static String getPackageStamp(PackageManager packageManager, String pkgName) {
+        try {
+            PackageInfo info = packageManager.getPackageInfo(pkgName, 0);
+            return info.versionCode + "/" + info.lastUpdateTime;
+        } catch (NameNotFoundException e) {
+            return null;
+        }
+    }
+
+    private static DictPluginSpecBase decodeSpec(String type, String pkgName, String value) {
+        if (value.length() == 0) return null;
+        String[] parts = value.split("\\|", 3);
+        try {
+            if (type.equals(TYPE_HK) && parts.length == 2) {
+                String[] ids = parts[1].split(",");
+                int[] rawIds = new int[ids.length];
+                for (int i = 0; i < ids.length; ++i) rawIds[i] = Integer.parseInt(ids[i]);
+                return new DictPluginSpecHK(pkgName, parts[0], rawIds);
+            } else if (type.equals(TYPE_SOFTKEYBOARD) && parts.length == 3) {
+                return new DictPluginSpecSoftKeyboard(pkgName, parts[0],
+                        parts[2].length() == 0 ? null : parts[2], Integer.parseInt(parts[1]));
+            }
+        } catch (NumberFormatException e) {
+            // Scanned again by the caller
+        }
+        Log.w(TAG, "Bad saved plugin dictionary spec for " + pkgName);
+        return null;
+    }
+
     static private abstract class DictPluginSpecBase
             implements DictPluginSpec {
         String mPackageName;
+        String mLang;
 
         Resources getResources(Context context) {
             PackageManager packageManager = context.getPackageManager();
@@ -183,23 +253,81 @@ public class PluginManager extends BroadcastReceiver {
 
         abstract InputStream[] getStreams(Resources res);
 
+        // Returns null if any part is stored compressed and can only be read as a stream
+        abstract AssetFileDescriptor[] getFileDescriptors(Resources res);
+
+        // Identifies the dictionary files within the package
+        abstract String getKey();
+
+        // Saved form of the spec without the package name, read by decodeSpec
+        abstract String encode();
+
         public BinaryDictionary getDict(Context context) {
             Resources res = getResources(context);
             if (res == null) return null;
 
-            InputStream[] dicts = getStreams(res);
-            if (dicts == null) return null;
-            BinaryDictionary dict = new BinaryDictionary(
-                    context, dicts, Suggest.DIC_MAIN);
+            long start = SystemClock.uptimeMillis();
+            BinaryDictionary dict;
+            AssetFileDescriptor[] fds = getFileDescriptors(res);
+            if (fds != null) {
+                dict = new BinaryDictionary(context, fds, Suggest.DIC_MAIN);
+            } else {
+                InputStream[] dicts = getStreams(res);
+                if (dicts == null) return null;
+                dict = new BinaryDictionary(context, dicts, Suggest.DIC_MAIN);
+            }
             if (dict.getSize() == 0) return null;
             //Log.i(TAG, "dict size=" + dict.getSize());
+            Log.i(TAG, "Loaded plugin dictionary from " + mPackageName + " in "
+                    + (SystemClock.uptimeMillis() - start) + " ms, "
+                    + (fds != null ? "mapped" : "from streams") + ", "
+                    + dict.getCopiedLength() / 1024 + " KiB copied");
             return dict;
         }
+
+        public DictionaryIndex.Entry getInfo(final Context context) {
+            return DictionaryIndex.get(context, "plugin:" + mPackageName + "/" + getKey(),
+                    mPackageName, new DictionaryIndex.Source() {
+                public InputStream[] open() {
+                    Resources res = getResources(context);
+                    return res == null ? null : getStreams(res);
+                }
+            });
+        }
+    }
+
+    // Opens uncompressed raw resources, or returns null if any of them is compressed
+    private static AssetFileDescriptor[] openRawResourceFds(Resources res, int[] ids) {
+        AssetFileDescriptor[] fds = new AssetFileDescriptor[ids.length];
+        try {
+            for (int i = 0; i < ids.length; ++i) {
+                fds[i] = res.openRawResourceFd(ids[i]);
+                if (fds[i] == null) throw new Resources.NotFoundException();
+            }
+            return fds;
+        } catch (Resources.NotFoundException e) {
+            closeAll(fds);
+            return null;
+        }
+    }
+
+    private static void closeAll(AssetFileDescriptor[] fds) {
+        for (AssetFileDescriptor fd : fds) {
+            if (fd == null) continue;
+            try {
+                fd.close();
+            } catch (IOException e) {
+                // Nothing to do
+            }
+        }
     }
 
     @Override
     public void onReceive(Context context, Intent intent) {
         Log.i(TAG, "Package information changed, updating dictionaries.");
+        if (intent.getData() != null) {
+            DictionaryIndex.invalidate(context, intent.getData().getSchemeSpecificPart());
+        }
         getPluginDictionaries(context);
         Log.i(TAG, "Finished updating dictionaries.");
         mIME.toggleLanguage(true, true);
@@ -210,8 +338,9 @@ public class PluginManager extends BroadcastReceiver {
 
         int[] mRawIds;
 
-        public DictPluginSpecHK(String pkg, int[] ids) {
+        public DictPluginSpecHK(String pkg, String lang, int[] ids) {
             mPackageName = pkg;
+            mLang = lang;
             mRawIds = ids;
         }
 
@@ -224,6 +353,27 @@ public class PluginManager extends BroadcastReceiver {
             }
             return streams;
         }
+
+        @Override
+        AssetFileDescriptor[] getFileDescriptors(Resources res) {
+            if (mRawIds == null || mRawIds.length == 0) return null;
+            return openRawResourceFds(res, mRawIds);
+        }
+
+        @Override
+        String getKey() {
+            return "raw" + Arrays.toString(mRawIds);
+        }
+
+        @Override
+        String encode() {
+            StringBuilder sb = new StringBuilder(mLang).append('|');
+            for (int i = 0; i < mRawIds.length; ++i) {
+                if (i > 0) sb.append(',');
+                sb.append(mRawIds[i]);
+            }
+            return sb.toString();
+        }
     }
 
     static private class DictPluginSpecSoftKeyboard
@@ -232,26 +382,31 @@ public class PluginManager extends BroadcastReceiver {
         String mAssetName;
         int mResId;
 
-        public DictPluginSpecSoftKeyboard(String pkg, String asset, int resId) {
+        public DictPluginSpecSoftKeyboard(String pkg, String lang, String asset, int resId) {
             mPackageName = pkg;
+            mLang = lang;
             mAssetName = asset;
             mResId = resId;
         }
 
+        private int[] getResourceIds(Resources res) {
+            TypedArray a = res.obtainTypedArray(mResId);
+            try {
+                int[] resIds = new int[a.length()];
+                for (int i = 0; i < a.length(); ++i) {
+                    resIds[i] = a.getResourceId(i, 0);
+                }
+                return resIds;
+            } finally {
+                a.recycle();
+            }
+        }
+
         @Override
         InputStream[] getStreams(Resources res) {
             if (mAssetName == null) {
                 if (mResId == 0) return null;
-                TypedArray a = res.obtainTypedArray(mResId);
-                int[] resIds;
-                try {
-                    resIds = new int[a.length()];
-                    for (int i = 0; i < a.length(); ++i) {
-                        resIds[i] = a.getResourceId(i, 0);
-                    }
-                } finally {
-                    a.recycle();
-                }
+                int[] resIds = getResourceIds(res);
                 InputStream[] in = new InputStream[resIds.length];
                 for (int i = 0; i < resIds.length; ++i) {
                     in[i] = res.openRawResource(resIds[i]);
@@ -267,19 +422,70 @@ public class PluginManager extends BroadcastReceiver {
                 }
             }
         }
+
+        @Override
+        AssetFileDescriptor[] getFileDescriptors(Resources res) {
+            if (mAssetName == null) {
+                if (mResId == 0) return null;
+                return openRawResourceFds(res, getResourceIds(res));
+            }
+            try {
+                return new AssetFileDescriptor[]{res.getAssets().openFd(mAssetName)};
+            } catch (IOException e) {
+                // Compressed assets can't be opened as file descriptors
+                return null;
+            }
+        }
+
+        @Override
+        String getKey() {
+            return mAssetName != null ? "asset/" + mAssetName : "array/" + mResId;
+        }
+
+        @Override
+        String encode() {
+            return mLang + "|" + mResId + "|" + (mAssetName == null ? "" : mAssetName);
+        }
     }
 
     static void getPluginDictionaries(Context context) {
         mPluginDicts.clear();
         PackageManager packageManager = context.getPackageManager();
-        getSoftKeyboardDictionaries(packageManager);
-        getHKDictionaries(packageManager);
+        SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        SharedPreferences.Editor editor = prefs.edit();
+        Set<String> seen = new HashSet<String>();
+        addPlugins(packageManager, packageManager.queryBroadcastReceivers(
+                new Intent(SOFTKEYBOARD_INTENT_DICT), PackageManager.GET_META_DATA),
+                TYPE_SOFTKEYBOARD, prefs, editor, seen);
+        addPlugins(packageManager, packageManager.queryIntentActivities(
+                new Intent(HK_INTENT_DICT), 0), TYPE_HK, prefs, editor, seen);
+        // Forget packages that were removed
+        for (String key : prefs.getAll().keySet()) {
+            if (!seen.contains(key)) editor.remove(key);
+        }
+        SharedPreferencesCompat.apply(editor);
+    }
+
+    private static DictPluginSpec getSpec(String lang) {
+        DictPluginSpec spec = mPluginDicts.get(lang);
+        if (spec == null && lang.length() > 2) spec = mPluginDicts.get(lang.substring(0, 2));
+        return spec;
+    }
+
+    /**
+     * Returns the index entry of the plugin dictionary for a language without loading it,
+     * or null if there's no usable plugin dictionary.
+     */
+    static DictionaryIndex.Entry getDictionaryInfo(Context context, String lang) {
+        DictPluginSpec spec = getSpec(lang);
+        if (spec == null) return null;
+        DictionaryIndex.Entry info = spec.getInfo(context);
+        return info == null || info.size == 0 ? null : info;
     }
 
     static BinaryDictionary getDictionary(Context context, String lang) {
         //Log.i(TAG, "Looking for plugin dictionary for lang=" + lang);
-        DictPluginSpec spec = mPluginDicts.get(lang);
-        if (spec == null) spec = mPluginDicts.get(lang.substring(0, 2));
+        DictPluginSpec spec = getSpec(lang);
         if (spec == null) {
             //Log.i(TAG, "No plugin found.");
             return null;
@@ -63,6 +63,9 @@ public class PointerTracker {
     // true if keyboard layout has been changed.
     private boolean mKeyboardLayoutHasBeenChanged;
 
+    // true when a historical move sample changed the key, to be shown with the latest sample
+    private boolean mKeyUpdatePending;
+
     // true if event is already translated to a key action (long press or mini-keyboard)
     private boolean mKeyAlreadyProcessed;
 
@@ -287,7 +290,10 @@ public class PointerTracker {
     public void onDownEvent(int x, int y, long eventTime) {
         if (DEBUG)
             debugLog("onDownEvent:", x, y);
+        LatencyTracker.touchDown();
         int keyIndex = mKeyState.onDownKey(x, y, eventTime);
+        TraceRecorder.recordTouch(TraceRecorder.TOUCH_DOWN, mPointerId, x, y, keyIndex,
+                eventTime);
         mKeyboardLayoutHasBeenChanged = false;
         mKeyAlreadyProcessed = false;
         mIsRepeatableKey = false;
@@ -355,11 +361,27 @@ public class PointerTracker {
     }
     
     public void onMoveEvent(int x, int y, long eventTime) {
+        onMoveEvent(x, y, eventTime, true);
+    }
+
+    /**
+     * @param isLatest false for the historical samples of a move event. These track the
+     *        keys the pointer slid over, but the key is drawn and previewed only for the
+     *        latest sample.
+     */
+    public void onMoveEvent(int x, int y, long eventTime, boolean isLatest) {
         if (DEBUG_MOVE)
             debugLog("onMoveEvent:", x, y);
         if (mKeyAlreadyProcessed)
             return;
         final KeyState keyState = mKeyState;
+        // Nothing changes for a pointer that stayed put, unless the keys moved under it
+        if (x == keyState.getLastX() && y == keyState.getLastY()
+                && !mKeyboardLayoutHasBeenChanged) {
+            if (isLatest && mKeyUpdatePending)
+                showKeyPreviewAndUpdateKey(keyState.getKeyIndex());
+            return;
+        }
         int keyIndex = keyState.onMoveKey(x, y);
         final Key oldKey = getKey(keyState.getKeyIndex());
         if (isValidKeyIndex(keyIndex)) {
@@ -416,7 +438,11 @@ public class PointerTracker {
                 mHandler.cancelLongPressTimer();
             }
         }
-        showKeyPreviewAndUpdateKey(keyState.getKeyIndex());
+        if (isLatest) {
+            showKeyPreviewAndUpdateKey(keyState.getKeyIndex());
+        } else {
+            mKeyUpdatePending = true;
+        }
     }
 
     public void onUpEvent(int x, int y, long eventTime) {
@@ -430,6 +456,8 @@ public class PointerTracker {
         if (mKeyAlreadyProcessed)
             return;
         int keyIndex = mKeyState.onUpKey(x, y);
+        TraceRecorder.recordTouch(TraceRecorder.TOUCH_UP, mPointerId, x, y, keyIndex,
+                eventTime);
         if (isMinorMoveBounce(x, y, keyIndex)) {
             // Use previous fixed key index and coordinates.
             keyIndex = mKeyState.getKeyIndex();
@@ -456,6 +484,21 @@ public class PointerTracker {
            mProxy.invalidateKey(mKeys[keyIndex]);
     }
 
+    /**
+     * Releases the key under the pointer without sending it, when the keyboard view takes
+     * the rest of the touch as a gesture. Later events of the pointer are ignored until
+     * the next down event.
+     */
+    public void cancelKey(long eventTime) {
+        final Key key = getKey(mKeyState.getKeyIndex());
+        onCancelEvent(mKeyState.getLastX(), mKeyState.getLastY(), eventTime);
+        if (mListener != null && key != null && key.codes != null)
+            mListener.onRelease(key.getPrimaryCode());
+        resetMultiTap();
+        clearSlideKeys();
+        setAlreadyProcessed();
+    }
+
     public void repeatKey(int keyIndex) {
         Key key = getKey(keyIndex);
         if (key != null) {
@@ -513,6 +556,7 @@ public class PointerTracker {
     }
 
     private void showKeyPreviewAndUpdateKey(int keyIndex) {
+        mKeyUpdatePending = false;
         updateKey(keyIndex);
         // The modifier key, such as shift key, should not be shown as preview when multi-touch is
         // supported. On the other hand, if multi-touch is not supported, the modifier key should
@@ -573,6 +617,7 @@ public class PointerTracker {
                     codes[1] = codes[0];
                     codes[0] = code;
                 }
+                TextEntryState.keyPressedAt(key, x, y);
                 if (listener != null) {
                     listener.onKey(code, codes, x, y);
                     listener.onRelease(code);
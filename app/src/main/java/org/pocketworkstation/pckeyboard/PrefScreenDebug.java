@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.pocketworkstation.pckeyboard;
+
+import java.io.File;
+
+import android.os.Bundle;
+import android.preference.Preference;
+import android.preference.PreferenceActivity;
+import android.widget.Toast;
+
+public class PrefScreenDebug extends PreferenceActivity
+        implements Preference.OnPreferenceClickListener {
+
+    private static final String LATENCY_STATS_KEY = "latency_stats";
+    private static final String LATENCY_EXPORT_KEY = "latency_export";
+    private static final String LATENCY_RESET_KEY = "latency_reset";
+
+    private Preference mLatencyStats;
+
+    @Override
+    protected void onCreate(Bundle icicle) {
+        super.onCreate(icicle);
+        addPreferencesFromResource(R.xml.prefs_for_debug);
+        mLatencyStats = findPreference(LATENCY_STATS_KEY);
+        mLatencyStats.setOnPreferenceClickListener(this);
+        findPreference(LATENCY_EXPORT_KEY).setOnPreferenceClickListener(this);
+        findPreference(LATENCY_RESET_KEY).setOnPreferenceClickListener(this);
+    }
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+        updateLatencySummary();
+    }
+
+    public boolean onPreferenceClick(Preference preference) {
+        String key = preference.getKey();
+        if (LATENCY_EXPORT_KEY.equals(key)) {
+            File file = LatencyTracker.export(this);
+            Toast.makeText(this, file != null
+                    ? getString(R.string.latency_export_done, file.getPath())
+                    : getString(R.string.latency_export_failed),
+                    Toast.LENGTH_LONG).show();
+        } else if (LATENCY_RESET_KEY.equals(key)) {
+            LatencyTracker.reset();
+        }
+        updateLatencySummary();
+        return true;
+    }
+
+    private void updateLatencySummary() {
+        mLatencyStats.setSummary(LatencyTracker.getSummary());
+    }
+}
@@ -19,10 +19,18 @@ package org.pocketworkstation.pckeyboard;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 import android.content.Context;
+import android.content.res.Resources;
 import android.text.AutoText;
 import android.text.TextUtils;
 import android.util.Log;
@@ -33,7 +41,7 @@ import android.view.View;
  * characters. This includes corrections and completions.
  * @hide pending API Council Approval
  */
-public class Suggest implements Dictionary.WordCallback {
+public class Suggest {
 	private static String TAG = "PCKeyboard";
 	
     public static final int APPROX_MAX_WORD_LENGTH = 32;
@@ -83,8 +91,11 @@ public class Suggest implements Dictionary.WordCallback {
 
     private boolean mAutoTextEnabled;
 
-    private int[] mPriorities = new int[mPrefMaxSuggestions];
-    private int[] mBigramPriorities = new int[PREF_MAX_BIGRAMS];
+    private WordHeap mCandidates = new WordHeap(mPrefMaxSuggestions);
+    private final WordHeap mBigramCandidates = new WordHeap(PREF_MAX_BIGRAMS);
+    private WordHeap mGestureCandidates = new WordHeap(mPrefMaxSuggestions);
+    // Open addressing table used by removeDupes
+    private int[] mDupeTable = new int[64];
 
     // Handle predictive correction for only the first 1280 characters for performance reasons
     // If we support scripts that need latin characters beyond that, we should probably use some
@@ -93,7 +104,6 @@ public class Suggest implements Dictionary.WordCallback {
     // latin characters.
     private int[] mNextLettersFrequencies = new int[1280];
     private ArrayList<CharSequence> mSuggestions = new ArrayList<CharSequence>();
-    ArrayList<CharSequence> mBigramSuggestions  = new ArrayList<CharSequence>();
     private ArrayList<CharSequence> mStringPool = new ArrayList<CharSequence>();
     private boolean mHaveCorrection;
     private CharSequence mOriginalWord;
@@ -105,15 +115,55 @@ public class Suggest implements Dictionary.WordCallback {
 
     private int mCorrectionMode = CORRECTION_BASIC;
 
+    // Recent results, so that backspacing and retyping a word doesn't search again
+    private static final int RESULT_CACHE_SIZE = 32;
+
+    private static class CachedResult {
+        String[] suggestions;
+        boolean haveCorrection;
+        // Non-zero next letter frequencies as index and value pairs
+        int[] nextLetters;
+    }
+
+    // Rough size of a cached result with its suggestions
+    private static final int CACHED_RESULT_FOOTPRINT = 512;
+
+    private final LinkedHashMap<String, CachedResult> mResultCache =
+            new LinkedHashMap<String, CachedResult>(RESULT_CACHE_SIZE * 2, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, CachedResult> eldest) {
+            return size() > RESULT_CACHE_SIZE;
+        }
+    };
+    // Dictionary versions the cached results were computed with
+    private final int[] mCacheVersions = new int[5];
+    private final StringBuilder mCacheKey = new StringBuilder();
+    // Previous word and first codes the bigram candidates were searched with, they
+    // raise the scores of the unigrams found for the following characters
+    private String mBigramContext = "";
+
+    // Dictionaries searched together, at most three for each step
+    private static final int MAX_QUERY_DICTIONARIES = 3;
+    private static ExecutorService sQueryExecutor;
+    private volatile boolean mParallelQueries = true;
+    private final Collector[] mCollectors = new Collector[MAX_QUERY_DICTIONARIES];
+    private final Future<?>[] mQueryFutures = new Future<?>[MAX_QUERY_DICTIONARIES];
+
+    // Bigrams of the word before the cursor, searched before the next word is started
+    private String mPrefetchedWord;
+    private final BigramRecording[] mPrefetched = new BigramRecording[MAX_QUERY_DICTIONARIES];
+    private final int[] mPrefetchVersions = new int[MAX_QUERY_DICTIONARIES];
+
     public Suggest(Context context, int[] dictionaryResId) {
-        mMainDict = new BinaryDictionary(context, dictionaryResId, DIC_MAIN);
-        if (!hasMainDictionary()) {
-            Locale locale = context.getResources().getConfiguration().locale;
-            BinaryDictionary plug = PluginManager.getDictionary(context, locale.getLanguage());
-            if (plug != null) {
-                mMainDict.close();
-                mMainDict = plug;
-            }
+        // Only load the built in dictionary if it's not a placeholder for a plugin one
+        Resources res = context.getResources();
+        DictionaryIndex.Entry builtIn = DictionaryIndex.getBuiltIn(context, res, dictionaryResId);
+        if (builtIn == null || !builtIn.isLarge()) {
+            mMainDict = PluginManager.getDictionary(context,
+                    res.getConfiguration().locale.getLanguage());
+        }
+        if (mMainDict == null) {
+            mMainDict = new BinaryDictionary(context, dictionaryResId, DIC_MAIN);
         }
         initPool();
     }
@@ -124,12 +174,24 @@ public class Suggest implements Dictionary.WordCallback {
     }
 
     private void initPool() {
+        for (int i = 0; i < MAX_QUERY_DICTIONARIES; i++) {
+            mCollectors[i] = new Collector();
+            mPrefetched[i] = new BigramRecording();
+        }
         for (int i = 0; i < mPrefMaxSuggestions; i++) {
             StringBuilder sb = new StringBuilder(getApproxMaxWordLength());
             mStringPool.add(sb);
         }
     }
 
+    /**
+     * Sets whether the user and contacts dictionaries are searched on other threads while
+     * the main dictionary is searched. The suggestions are the same either way.
+     */
+    public void setParallelQueries(boolean enabled) {
+        mParallelQueries = enabled;
+    }
+
     public void setAutoTextEnabled(boolean enabled) {
         mAutoTextEnabled = enabled;
     }
@@ -146,6 +208,28 @@ public class Suggest implements Dictionary.WordCallback {
         return mMainDict.getSize() > LARGE_DICTIONARY_THRESHOLD;
     }
 
+    /**
+     * Returns the size of the main dictionary data in bytes.
+     */
+    public int getMainDictionarySize() {
+        return mMainDict.getSize();
+    }
+
+    /**
+     * Returns roughly how many bytes the cached results take.
+     */
+    public long getCacheFootprint() {
+        return mResultCache.size() * CACHED_RESULT_FOOTPRINT;
+    }
+
+    /**
+     * Drops the cached results and prefetched bigrams, to save memory.
+     */
+    public void clearCache() {
+        mResultCache.clear();
+        mPrefetchedWord = null;
+    }
+
     public int getApproxMaxWordLength() {
         return APPROX_MAX_WORD_LENGTH;
     }
@@ -156,6 +240,7 @@ public class Suggest implements Dictionary.WordCallback {
      */
     public void setUserDictionary(Dictionary userDictionary) {
         mUserDictionary = userDictionary;
+        mResultCache.clear();
     }
 
     /**
@@ -163,14 +248,17 @@ public class Suggest implements Dictionary.WordCallback {
      */
     public void setContactsDictionary(Dictionary userDictionary) {
         mContactsDictionary = userDictionary;
+        mResultCache.clear();
     }
     
     public void setAutoDictionary(Dictionary autoDictionary) {
         mAutoDictionary = autoDictionary;
+        mResultCache.clear();
     }
 
     public void setUserBigramDictionary(Dictionary userBigramDictionary) {
         mUserBigramDictionary = userBigramDictionary;
+        mResultCache.clear();
     }
 
     /**
@@ -184,8 +272,9 @@ public class Suggest implements Dictionary.WordCallback {
             throw new IllegalArgumentException("maxSuggestions must be between 1 and 100");
         }
         mPrefMaxSuggestions = maxSuggestions;
-        mPriorities = new int[mPrefMaxSuggestions];
-        mBigramPriorities = new int[PREF_MAX_BIGRAMS];
+        mCandidates = new WordHeap(mPrefMaxSuggestions);
+        mGestureCandidates = new WordHeap(mPrefMaxSuggestions);
+        mResultCache.clear();
         collectGarbage(mSuggestions, mPrefMaxSuggestions);
         while (mStringPool.size() < mPrefMaxSuggestions) {
             StringBuilder sb = new StringBuilder(getApproxMaxWordLength());
@@ -234,7 +323,7 @@ public class Suggest implements Dictionary.WordCallback {
         mIsFirstCharCapitalized = wordComposer.isFirstCharCapitalized();
         mIsAllUpperCase = wordComposer.isAllUpperCase();
         collectGarbage(mSuggestions, mPrefMaxSuggestions);
-        Arrays.fill(mPriorities, 0);
+        mCandidates.clear();
         Arrays.fill(mNextLettersFrequencies, 0);
 
         // Save a lowercase version of the original word
@@ -247,42 +336,50 @@ public class Suggest implements Dictionary.WordCallback {
             mLowerOriginalWord = "";
         }
 
-        if (wordComposer.size() == 1 && (mCorrectionMode == CORRECTION_FULL_BIGRAM
-                || mCorrectionMode == CORRECTION_BASIC)) {
+        final boolean searchBigrams = wordComposer.size() == 1
+                && (mCorrectionMode == CORRECTION_FULL_BIGRAM
+                || mCorrectionMode == CORRECTION_BASIC);
+        checkCacheVersions();
+        final String bigramContext = searchBigrams
+                ? getBigramContext(wordComposer, prevWordForBigram) : mBigramContext;
+        final String cacheKey = getCacheKey(wordComposer, prevWordForBigram, bigramContext);
+        // A cached result wouldn't fill the bigram candidates used by the next characters
+        if (cacheKey != null && bigramContext.equals(mBigramContext)) {
+            CachedResult cached = mResultCache.get(cacheKey);
+            if (cached != null) {
+                for (String word : cached.suggestions) {
+                    mSuggestions.add(word);
+                }
+                mHaveCorrection = cached.haveCorrection;
+                for (int i = 0; i < cached.nextLetters.length; i += 2) {
+                    mNextLettersFrequencies[cached.nextLetters[i]] = cached.nextLetters[i + 1];
+                }
+                return mSuggestions;
+            }
+        }
+
+        if (searchBigrams) {
             // At first character typed, search only the bigrams
-            Arrays.fill(mBigramPriorities, 0);
-            collectGarbage(mBigramSuggestions, PREF_MAX_BIGRAMS);
+            mBigramCandidates.clear();
+            mBigramContext = bigramContext;
 
             if (!TextUtils.isEmpty(prevWordForBigram)) {
-                CharSequence lowerPrevWord = prevWordForBigram.toString().toLowerCase();
-                if (mMainDict.isValidWord(lowerPrevWord)) {
-                    prevWordForBigram = lowerPrevWord;
-                }
-                if (mUserBigramDictionary != null) {
-                    mUserBigramDictionary.getBigrams(wordComposer, prevWordForBigram, this,
-                            mNextLettersFrequencies);
-                }
-                if (mContactsDictionary != null) {
-                    mContactsDictionary.getBigrams(wordComposer, prevWordForBigram, this,
-                            mNextLettersFrequencies);
-                }
-                if (mMainDict != null) {
-                    mMainDict.getBigrams(wordComposer, prevWordForBigram, this,
-                            mNextLettersFrequencies);
+                if (isPrefetched(prevWordForBigram)) {
+                    replayPrefetched(wordComposer.getCodesAt(0));
+                } else {
+                    searchDictionaries(wordComposer, getBigramPrevWord(prevWordForBigram),
+                            mUserBigramDictionary, mContactsDictionary, mMainDict);
                 }
                 char currentChar = wordComposer.getTypedWord().charAt(0);
                 char currentCharUpper = Character.toUpperCase(currentChar);
                 int count = 0;
-                int bigramSuggestionSize = mBigramSuggestions.size();
+                int bigramSuggestionSize = mBigramCandidates.size();
+                int[] slots = mBigramCandidates.getSortedSlots();
                 for (int i = 0; i < bigramSuggestionSize; i++) {
-                    if (mBigramSuggestions.get(i).charAt(0) == currentChar
-                            || mBigramSuggestions.get(i).charAt(0) == currentCharUpper) {
-                        int poolSize = mStringPool.size();
-                        StringBuilder sb = poolSize > 0 ?
-                                (StringBuilder) mStringPool.remove(poolSize - 1)
-                                : new StringBuilder(getApproxMaxWordLength());
-                        sb.setLength(0);
-                        sb.append(mBigramSuggestions.get(i));
+                    char first = mBigramCandidates.charAt(slots[i], 0);
+                    if (first == currentChar || first == currentCharUpper) {
+                        StringBuilder sb = obtainStringBuilder();
+                        mBigramCandidates.appendTo(slots[i], sb);
                         mSuggestions.add(count++, sb);
                         if (count > mPrefMaxSuggestions) break;
                     }
@@ -291,25 +388,18 @@ public class Suggest implements Dictionary.WordCallback {
 
         } else if (wordComposer.size() > 1) {
             // At second character typed, search the unigrams (scores being affected by bigrams)
-            if (mUserDictionary != null || mContactsDictionary != null) {
-                if (mUserDictionary != null) {
-                    mUserDictionary.getWords(wordComposer, this, mNextLettersFrequencies);
-                }
-                if (mContactsDictionary != null) {
-                    mContactsDictionary.getWords(wordComposer, this, mNextLettersFrequencies);
-                }
-
-                if (mSuggestions.size() > 0 && isValidWord(mOriginalWord)
-                        && (mCorrectionMode == CORRECTION_FULL
-                        || mCorrectionMode == CORRECTION_FULL_BIGRAM)) {
-                    mHaveCorrection = true;
-                }
-            }
-            mMainDict.getWords(wordComposer, this, mNextLettersFrequencies);
+            searchDictionaries(wordComposer, null, mUserDictionary, mContactsDictionary,
+                    mMainDict);
             if ((mCorrectionMode == CORRECTION_FULL || mCorrectionMode == CORRECTION_FULL_BIGRAM)
-                    && mSuggestions.size() > 0) {
+                    && mCandidates.size() > 0) {
                 mHaveCorrection = true;
             }
+            int[] slots = mCandidates.getSortedSlots();
+            for (int i = 0, count = mCandidates.size(); i < count; i++) {
+                StringBuilder sb = obtainStringBuilder();
+                mCandidates.appendTo(slots[i], sb);
+                mSuggestions.add(sb);
+            }
         }
         if (mOriginalWord != null) {
             mSuggestions.add(0, mOriginalWord.toString());
@@ -349,30 +439,227 @@ public class Suggest implements Dictionary.WordCallback {
             }
         }
         removeDupes();
+        // Don't cache results that a dictionary changed under
+        if (cacheKey != null && !checkCacheVersions()) {
+            putCachedResult(cacheKey);
+        }
         return mSuggestions;
     }
 
+    /**
+     * Returns the words a gesture path may spell, best first. Only the main dictionary
+     * supports gesture searches. The words are new strings, so they stay valid while
+     * other searches run.
+     * @param beamWidth the number of prefixes the search keeps at each length
+     * @param capitalize whether to capitalize the first letter of each word
+     */
+    public List<CharSequence> getGestureSuggestions(GesturePath path, int beamWidth,
+            boolean capitalize) {
+        final WordHeap candidates = mGestureCandidates;
+        candidates.clear();
+        mMainDict.getGestureWords(path, beamWidth, new Dictionary.WordCallback() {
+            public boolean addWord(char[] word, int wordOffset, int wordLength, int frequency,
+                    int dicTypeId, Dictionary.DataType dataType) {
+                return candidates.add(word, wordOffset, wordLength, frequency, false);
+            }
+        });
+        final int[] slots = candidates.getSortedSlots();
+        final int count = candidates.size();
+        final List<CharSequence> suggestions = new ArrayList<CharSequence>(count);
+        final StringBuilder sb = new StringBuilder(getApproxMaxWordLength());
+        for (int i = 0; i < count; i++) {
+            sb.setLength(0);
+            candidates.appendTo(slots[i], sb);
+            if (capitalize) sb.setCharAt(0, Character.toUpperCase(sb.charAt(0)));
+            final String word = sb.toString();
+            // Words that only differ in case may become the same
+            if (!suggestions.contains(word)) suggestions.add(word);
+        }
+        return suggestions;
+    }
+
+    private CharSequence getBigramPrevWord(CharSequence prevWord) {
+        CharSequence lowerPrevWord = prevWord.toString().toLowerCase();
+        if (mMainDict.isValidWord(lowerPrevWord)) {
+            return lowerPrevWord;
+        }
+        return prevWord;
+    }
+
+    /**
+     * Searches the bigrams of a word ahead of time, usually right after it was committed,
+     * so that the first character of the next word only needs to filter them. Does nothing
+     * if the bigrams of this word are already known.
+     */
+    public void prefetchBigrams(CharSequence prevWord) {
+        if (mCorrectionMode != CORRECTION_FULL_BIGRAM && mCorrectionMode != CORRECTION_BASIC) {
+            return;
+        }
+        if (TextUtils.isEmpty(prevWord) || isPrefetched(prevWord)) return;
+        final CharSequence bigramPrevWord = getBigramPrevWord(prevWord);
+        final WordComposer noCodes = new WordComposer();
+        final Dictionary[] dictionaries = getBigramDictionaries();
+        for (int i = 0; i < MAX_QUERY_DICTIONARIES; i++) {
+            final BigramRecording recording = mPrefetched[i];
+            recording.clear();
+            recording.dictionary = dictionaries[i];
+            if (dictionaries[i] == null) continue;
+            mPrefetchVersions[i] = dictionaries[i].getVersion();
+            dictionaries[i].getBigrams(noCodes, bigramPrevWord, recording, null);
+        }
+        mPrefetchedWord = prevWord.toString();
+    }
+
+    private Dictionary[] getBigramDictionaries() {
+        return new Dictionary[] { mUserBigramDictionary, mContactsDictionary, mMainDict };
+    }
+
+    private boolean isPrefetched(CharSequence prevWord) {
+        if (mPrefetchedWord == null || !mPrefetchedWord.contentEquals(prevWord)) return false;
+        final Dictionary[] dictionaries = getBigramDictionaries();
+        for (int i = 0; i < MAX_QUERY_DICTIONARIES; i++) {
+            final Dictionary dictionary = dictionaries[i];
+            if (mPrefetched[i].dictionary != dictionary) return false;
+            if (dictionary != null && dictionary.getVersion() != mPrefetchVersions[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Fills the bigram candidates from the prefetched bigrams, the same as
+     * {@link #searchDictionaries} would.
+     */
+    private void replayPrefetched(int[] firstCodes) {
+        final Collector[] collectors = mCollectors;
+        for (int i = 0; i < MAX_QUERY_DICTIONARIES; i++) {
+            final BigramRecording recording = mPrefetched[i];
+            collectors[i].prepare(recording.dictionary, null, null);
+            if (recording.dictionary != null) {
+                collectors[i].replay(recording, firstCodes);
+            }
+        }
+        mergeCollectors(true);
+    }
+
+    /**
+     * Returns the key for caching the result of a query, or null if it can't be cached.
+     */
+    private String getCacheKey(WordComposer wordComposer, CharSequence prevWord,
+            String bigramContext) {
+        if (wordComposer.size() == 0) return null;
+        final StringBuilder key = mCacheKey;
+        key.setLength(0);
+        key.append((char) mCorrectionMode)
+                .append(mAutoTextEnabled ? 'a' : '-')
+                .append(mIsFirstCharCapitalized ? 'C' : '-')
+                .append(mIsAllUpperCase ? 'U' : '-')
+                .append(bigramContext).append('\uffff');
+        if (prevWord != null) key.append(prevWord);
+        key.append('\uffff');
+        for (int i = 0, size = wordComposer.size(); i < size; i++) {
+            appendCodes(key, wordComposer.getCodesAt(i));
+        }
+        return key.toString();
+    }
+
+    private static String getBigramContext(WordComposer wordComposer, CharSequence prevWord) {
+        StringBuilder context = new StringBuilder();
+        if (prevWord != null) context.append(prevWord);
+        context.append('\uffff');
+        appendCodes(context, wordComposer.getCodesAt(0));
+        return context.toString();
+    }
+
+    private static void appendCodes(StringBuilder key, int[] codes) {
+        for (int code : codes) {
+            if (code < 0) break;
+            key.appendCodePoint(code);
+        }
+        key.append('\ufffe');
+    }
+
+    /**
+     * Clears the result cache if any dictionary changed since the last check.
+     * @return true if the cache was cleared
+     */
+    private boolean checkCacheVersions() {
+        final int[] versions = mCacheVersions;
+        boolean changed = false;
+        changed |= updateVersion(versions, 0, mMainDict);
+        changed |= updateVersion(versions, 1, mUserDictionary);
+        changed |= updateVersion(versions, 2, mAutoDictionary);
+        changed |= updateVersion(versions, 3, mContactsDictionary);
+        changed |= updateVersion(versions, 4, mUserBigramDictionary);
+        if (changed) mResultCache.clear();
+        return changed;
+    }
+
+    private static boolean updateVersion(int[] versions, int index, Dictionary dictionary) {
+        int version = dictionary != null ? dictionary.getVersion() : 0;
+        if (versions[index] == version) return false;
+        versions[index] = version;
+        return true;
+    }
+
+    private void putCachedResult(String key) {
+        CachedResult result = new CachedResult();
+        result.suggestions = new String[mSuggestions.size()];
+        for (int i = 0; i < result.suggestions.length; i++) {
+            result.suggestions[i] = mSuggestions.get(i).toString();
+        }
+        result.haveCorrection = mHaveCorrection;
+        int count = 0;
+        for (int frequency : mNextLettersFrequencies) {
+            if (frequency != 0) count++;
+        }
+        result.nextLetters = new int[count * 2];
+        for (int i = 0, j = 0; i < mNextLettersFrequencies.length; i++) {
+            if (mNextLettersFrequencies[i] != 0) {
+                result.nextLetters[j++] = i;
+                result.nextLetters[j++] = mNextLettersFrequencies[i];
+            }
+        }
+        mResultCache.put(key, result);
+    }
+
     public int[] getNextLettersFrequencies() {
         return mNextLettersFrequencies;
     }
 
+    /**
+     * Removes later copies of words that appear more than once. Dictionary words are
+     * unique already, the copies come from the typed word and AutoText.
+     */
     private void removeDupes() {
         final ArrayList<CharSequence> suggestions = mSuggestions;
         if (suggestions.size() < 2) return;
-        int i = 1;
+        if (mDupeTable.length < suggestions.size() * 2) {
+            mDupeTable = new int[Integer.highestOneBit(suggestions.size() * 4 - 1)];
+        }
+        final int[] table = mDupeTable;
+        final int mask = table.length - 1;
+        Arrays.fill(table, 0);
+        int i = 0;
         // Don't cache suggestions.size(), since we may be removing items
         while (i < suggestions.size()) {
             final CharSequence cur = suggestions.get(i);
-            // Compare each candidate with each previous candidate
-            for (int j = 0; j < i; j++) {
-                CharSequence previous = suggestions.get(j);
-                if (TextUtils.equals(cur, previous)) {
-                    removeFromSuggestions(i);
-                    i--;
+            int h = WordHeap.hash(cur) & mask;
+            boolean dupe = false;
+            while (table[h] != 0) {
+                if (TextUtils.equals(cur, suggestions.get(table[h] - 1))) {
+                    dupe = true;
                     break;
                 }
+                h = (h + 1) & mask;
+            }
+            if (dupe) {
+                removeFromSuggestions(i);
+            } else {
+                table[h] = i + 1;
+                i++;
             }
-            i++;
         }
     }
 
@@ -401,106 +688,245 @@ public class Suggest implements Dictionary.WordCallback {
         return false;
     }
 
-    public boolean addWord(final char[] word, final int offset, final int length, int freq,
-            final int dicTypeId, final Dictionary.DataType dataType) {
-        Dictionary.DataType dataTypeForLog = dataType;
-        ArrayList<CharSequence> suggestions;
-        int[] priorities;
-        int prefMaxSuggestions;
-        if(dataType == Dictionary.DataType.BIGRAM) {
-            suggestions = mBigramSuggestions;
-            priorities = mBigramPriorities;
-            prefMaxSuggestions = PREF_MAX_BIGRAMS;
-        } else {
-            suggestions = mSuggestions;
-            priorities = mPriorities;
-            prefMaxSuggestions = mPrefMaxSuggestions;
+    /**
+     * Searches up to three dictionaries, each into its own {@link Collector}, and merges
+     * what they found in the order given. Unigrams are searched if prevWord is null, else
+     * bigrams. With parallel queries the first two dictionaries are searched on the query
+     * executor while the last one, the main dictionary, is searched on this thread. Each
+     * collector records the words its dictionary found, and the recordings are added in
+     * dictionary order, so the suggestions are the same as when searching one dictionary
+     * after the other.
+     */
+    private void searchDictionaries(WordComposer composer, CharSequence prevWord,
+            Dictionary first, Dictionary second, Dictionary last) {
+        final Collector[] collectors = mCollectors;
+        collectors[0].prepare(first, composer, prevWord);
+        collectors[1].prepare(second, composer, prevWord);
+        collectors[2].prepare(last, composer, prevWord);
+        // Only worth handing off if there's a search left to overlap with. Dictionaries
+        // can't search for two callers at once.
+        final boolean parallel = mParallelQueries && last != null
+                && first != second && first != last && second != last;
+        for (int i = 0; i < MAX_QUERY_DICTIONARIES; i++) {
+            if (collectors[i].dictionary == null) continue;
+            if (parallel && i < MAX_QUERY_DICTIONARIES - 1) {
+                mQueryFutures[i] = getQueryExecutor().submit(collectors[i]);
+            } else {
+                collectors[i].call();
+            }
+        }
+        for (int i = 0; i < MAX_QUERY_DICTIONARIES; i++) {
+            if (mQueryFutures[i] != null) {
+                waitFor(mQueryFutures[i]);
+                mQueryFutures[i] = null;
+            }
         }
+        mergeCollectors(prevWord != null);
+    }
 
-        int pos = 0;
+    private void mergeCollectors(boolean bigrams) {
+        final WordHeap target = bigrams ? mBigramCandidates : mCandidates;
+        final int[] nextLetters = mNextLettersFrequencies;
+        for (Collector collector : mCollectors) {
+            if (collector.dictionary == null) continue;
+            (bigrams ? collector.bigramCandidates : collector.candidates).addTo(target);
+            final int[] found = collector.nextLettersFrequencies;
+            for (int i = 0; i < nextLetters.length; i++) {
+                nextLetters[i] += found[i];
+            }
+            collector.dictionary = null;
+        }
+    }
 
-        // Check if it's the same word, only caps are different
-        if (compareCaseInsensitive(mLowerOriginalWord, word, offset, length)) {
-            pos = 0;
-        } else {
-            if (dataType == Dictionary.DataType.UNIGRAM) {
+    private static void waitFor(Future<?> future) {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    future.get();
+                    return;
+                } catch (InterruptedException e) {
+                    // The collector is reused by the next search, so it must finish first
+                    interrupted = true;
+                }
+            }
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            if (cause instanceof Error) throw (Error) cause;
+            throw new RuntimeException(cause);
+        } finally {
+            if (interrupted) Thread.currentThread().interrupt();
+        }
+    }
+
+    private static synchronized ExecutorService getQueryExecutor() {
+        if (sQueryExecutor == null) {
+            sQueryExecutor = Executors.newFixedThreadPool(MAX_QUERY_DICTIONARIES - 1,
+                    new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "SuggestQuery");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return sQueryExecutor;
+    }
+
+    /**
+     * Receives the words of one dictionary search. Each dictionary of a step has its own
+     * collector, so that they can be searched at the same time. The bigram candidates of
+     * {@link Suggest} are only read while unigrams are searched.
+     */
+    private class Collector implements Dictionary.WordCallback, Callable<Void> {
+        final WordRecording candidates = new WordRecording();
+        final WordRecording bigramCandidates = new WordRecording();
+        final int[] nextLettersFrequencies = new int[mNextLettersFrequencies.length];
+        // Scratch space for a word with its capitalization applied
+        private char[] mCaseBuffer = new char[APPROX_MAX_WORD_LENGTH];
+
+        Dictionary dictionary;
+        private WordComposer mComposer;
+        private CharSequence mPrevWord;
+
+        void prepare(Dictionary dictionary, WordComposer composer, CharSequence prevWord) {
+            this.dictionary = dictionary;
+            mComposer = composer;
+            mPrevWord = prevWord;
+        }
+
+        private void clear() {
+            candidates.clear();
+            bigramCandidates.clear();
+            Arrays.fill(nextLettersFrequencies, 0);
+        }
+
+        public Void call() {
+            clear();
+            if (mPrevWord != null) {
+                dictionary.getBigrams(mComposer, mPrevWord, this, nextLettersFrequencies);
+            } else {
+                dictionary.getWords(mComposer, this, nextLettersFrequencies);
+            }
+            return null;
+        }
+
+        void replay(BigramRecording recording, int[] firstCodes) {
+            clear();
+            recording.replay(this, firstCodes);
+        }
+
+        public boolean addWord(final char[] word, final int offset, final int length, int freq,
+                final int dicTypeId, final Dictionary.DataType dataType) {
+            final WordRecording recording = dataType == Dictionary.DataType.BIGRAM
+                    ? bigramCandidates : candidates;
+
+            // Check if it's the same word, only caps are different
+            final boolean sameAsTyped = compareCaseInsensitive(mLowerOriginalWord, word, offset,
+                    length);
+            if (!sameAsTyped && dataType == Dictionary.DataType.UNIGRAM) {
                 // Check if the word was already added before (by bigram data)
-                int bigramSuggestion = searchBigramSuggestion(word,offset,length);
-                if(bigramSuggestion >= 0) {
-                    dataTypeForLog = Dictionary.DataType.BIGRAM;
+                int bigramSuggestion = mBigramCandidates.find(word, offset, length);
+                if (bigramSuggestion >= 0) {
                     // turn freq from bigram into multiplier specified above
-                    double multiplier = (((double) mBigramPriorities[bigramSuggestion])
+                    double multiplier = (((double) mBigramCandidates.getScore(bigramSuggestion))
                             / MAXIMUM_BIGRAM_FREQUENCY)
                             * (BIGRAM_MULTIPLIER_MAX - BIGRAM_MULTIPLIER_MIN)
                             + BIGRAM_MULTIPLIER_MIN;
-                    /* Log.d(TAG,"bigram num: " + bigramSuggestion
-                            + "  wordB: " + mBigramSuggestions.get(bigramSuggestion).toString()
-                            + "  currentPriority: " + freq + "  bigramPriority: "
-                            + mBigramPriorities[bigramSuggestion]
-                            + "  multiplier: " + multiplier); */
                     freq = (int)Math.round((freq * multiplier));
                 }
             }
 
-            // Check the last one's priority and bail
-            if (priorities[prefMaxSuggestions - 1] >= freq) return true;
-            while (pos < prefMaxSuggestions) {
-                if (priorities[pos] < freq
-                        || (priorities[pos] == freq && length < suggestions.get(pos).length())) {
-                    break;
-                }
-                pos++;
+            if (mIsAllUpperCase) {
+                String upper = new String(word, offset, length).toUpperCase();
+                char[] chars = getCaseBuffer(upper.length());
+                upper.getChars(0, upper.length(), chars, 0);
+                recording.add(chars, 0, upper.length(), freq, sameAsTyped);
+            } else if (mIsFirstCharCapitalized) {
+                char[] chars = getCaseBuffer(length);
+                System.arraycopy(word, offset, chars, 0, length);
+                chars[0] = Character.toUpperCase(chars[0]);
+                recording.add(chars, 0, length, freq, sameAsTyped);
+            } else {
+                recording.add(word, offset, length, freq, sameAsTyped);
             }
-        }
-        if (pos >= prefMaxSuggestions) {
             return true;
         }
 
-        System.arraycopy(priorities, pos, priorities, pos + 1,
-                prefMaxSuggestions - pos - 1);
-        priorities[pos] = freq;
-        int poolSize = mStringPool.size();
-        StringBuilder sb = poolSize > 0 ? (StringBuilder) mStringPool.remove(poolSize - 1) 
-                : new StringBuilder(getApproxMaxWordLength());
-        sb.setLength(0);
-        if (mIsAllUpperCase) {
-            sb.append(new String(word, offset, length).toUpperCase());
-        } else if (mIsFirstCharCapitalized) {
-            sb.append(Character.toUpperCase(word[offset]));
-            if (length > 1) {
-                sb.append(word, offset + 1, length - 1);
+        private char[] getCaseBuffer(int length) {
+            if (mCaseBuffer.length < length) {
+                mCaseBuffer = new char[length];
             }
-        } else {
-            sb.append(word, offset, length);
+            return mCaseBuffer;
         }
-        suggestions.add(pos, sb);
-        if (suggestions.size() > prefMaxSuggestions) {
-            CharSequence garbage = suggestions.remove(prefMaxSuggestions);
-            if (garbage instanceof StringBuilder) {
-                mStringPool.add(garbage);
+    }
+
+    /**
+     * Keeps the bigrams a dictionary reported without any codes, to be passed on to a
+     * {@link Collector} once the first character of the next word is known.
+     */
+    private static class BigramRecording implements Dictionary.WordCallback {
+        Dictionary dictionary;
+        private char[] mChars = new char[PREF_MAX_BIGRAMS * APPROX_MAX_WORD_LENGTH];
+        private int mCharCount;
+        private int[] mOffsets = new int[PREF_MAX_BIGRAMS];
+        private int[] mLengths = new int[PREF_MAX_BIGRAMS];
+        private int[] mFrequencies = new int[PREF_MAX_BIGRAMS];
+        private int[] mDicTypeIds = new int[PREF_MAX_BIGRAMS];
+        private int mCount;
+
+        void clear() {
+            dictionary = null;
+            mCharCount = 0;
+            mCount = 0;
+        }
+
+        public boolean addWord(char[] word, int offset, int length, int frequency,
+                int dicTypeId, Dictionary.DataType dataType) {
+            if (mCount == mOffsets.length) {
+                mOffsets = Arrays.copyOf(mOffsets, mCount * 2);
+                mLengths = Arrays.copyOf(mLengths, mCount * 2);
+                mFrequencies = Arrays.copyOf(mFrequencies, mCount * 2);
+                mDicTypeIds = Arrays.copyOf(mDicTypeIds, mCount * 2);
             }
+            if (mCharCount + length > mChars.length) {
+                mChars = Arrays.copyOf(mChars, Math.max(mChars.length * 2, mCharCount + length));
+            }
+            System.arraycopy(word, offset, mChars, mCharCount, length);
+            mOffsets[mCount] = mCharCount;
+            mLengths[mCount] = length;
+            mFrequencies[mCount] = frequency;
+            mDicTypeIds[mCount] = dicTypeId;
+            mCharCount += length;
+            mCount++;
+            return true;
         }
-        return true;
-    }
 
-    private int searchBigramSuggestion(final char[] word, final int offset, final int length) {
-        // TODO This is almost O(n^2). Might need fix.
-        // search whether the word appeared in bigram data
-        int bigramSuggestSize = mBigramSuggestions.size();
-        for(int i = 0; i < bigramSuggestSize; i++) {
-            if(mBigramSuggestions.get(i).length() == length) {
-                boolean chk = true;
-                for(int j = 0; j < length; j++) {
-                    if(mBigramSuggestions.get(i).charAt(j) != word[offset+j]) {
-                        chk = false;
-                        break;
-                    }
+        /**
+         * Passes on the bigrams in the order they were reported. The main dictionary
+         * only reports bigrams that start with one of the first codes, the others leave
+         * that to Suggest.
+         */
+        void replay(Dictionary.WordCallback callback, int[] firstCodes) {
+            final boolean filter = dictionary instanceof BinaryDictionary;
+            for (int i = 0; i < mCount; i++) {
+                if (filter && !BinaryDictionary.matchesFirstCodes(mChars[mOffsets[i]],
+                        firstCodes)) {
+                    continue;
                 }
-                if(chk) return i;
+                callback.addWord(mChars, mOffsets[i], mLengths[i], mFrequencies[i],
+                        mDicTypeIds[i], Dictionary.DataType.BIGRAM);
             }
         }
+    }
 
-        return -1;
+    private StringBuilder obtainStringBuilder() {
+        int poolSize = mStringPool.size();
+        StringBuilder sb = poolSize > 0 ? (StringBuilder) mStringPool.remove(poolSize - 1)
+                : new StringBuilder(getApproxMaxWordLength());
+        sb.setLength(0);
+        return sb;
     }
 
     public boolean isValidWord(final CharSequence word) {
@@ -0,0 +1,389 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.pocketworkstation.pckeyboard;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Message;
+import android.os.Process;
+import android.os.SystemClock;
+import android.view.View;
+
+/**
+ * Runs suggestion queries on a background thread so that dictionary searches never
+ * block the UI thread. Each request carries a generation number. Requests that are
+ * superseded before they start are skipped, and the caller drops results whose
+ * generation is no longer current.
+ * <p>
+ * A {@link Suggest} is only used on the worker thread. The UI thread asks for anything
+ * else it needs from one through {@link #call}, and waits a bounded time for the answer.
+ */
+public class SuggestionWorker {
+    private static final int MSG_QUERY = 0;
+    private static final int MSG_PREFETCH = 1;
+    private static final int MSG_GESTURE = 2;
+    private static final int MSG_GESTURE_FINAL = 3;
+
+    // The debounce delay tracks twice the average query cost within these bounds
+    private static final int DEBOUNCE_DEFAULT_MS = 100;
+    private static final int DEBOUNCE_MIN_MS = 20;
+    private static final int DEBOUNCE_MAX_MS = 200;
+
+    // The gesture beam is halved when a search takes longer than the budget, and doubled
+    // when it takes less than a quarter of it, within these bounds
+    private static final int GESTURE_BUDGET_MS = 16;
+    private static final int GESTURE_BEAM_DEFAULT = 64;
+    private static final int GESTURE_BEAM_MIN = 16;
+    private static final int GESTURE_BEAM_MAX = 128;
+
+    /** A query on a {@link Suggest}, run on the worker thread. */
+    public interface Call<T> {
+        T run(Suggest suggest);
+    }
+
+    public interface Listener {
+        /** Called on the UI thread when a query completes. */
+        void onSuggestionsReady(Result result);
+
+        /** Called on the UI thread when a gesture search completes. */
+        void onGestureSuggestionsReady(GestureResult result);
+    }
+
+    /**
+     * The outcome of a query, copied out of {@link Suggest} so that it stays valid
+     * while the next query runs.
+     */
+    public static class Result {
+        final int generation;
+        final CharSequence typedWord;
+        final List<CharSequence> suggestions;
+        final int[] nextLettersFrequencies;
+        final boolean typedWordValid;
+        final boolean haveMinimalCorrection;
+
+        Result(int generation, CharSequence typedWord, List<CharSequence> suggestions,
+                int[] nextLettersFrequencies, boolean typedWordValid,
+                boolean haveMinimalCorrection) {
+            this.generation = generation;
+            this.typedWord = typedWord;
+            this.suggestions = suggestions;
+            this.nextLettersFrequencies = nextLettersFrequencies;
+            this.typedWordValid = typedWordValid;
+            this.haveMinimalCorrection = haveMinimalCorrection;
+        }
+    }
+
+    /**
+     * The words a gesture path may spell, best first.
+     */
+    public static class GestureResult {
+        final int generation;
+        final List<CharSequence> suggestions;
+        /** Whether the path was complete, rather than still being drawn. */
+        final boolean isFinal;
+
+        GestureResult(int generation, List<CharSequence> suggestions, boolean isFinal) {
+            this.generation = generation;
+            this.suggestions = suggestions;
+            this.isFinal = isFinal;
+        }
+    }
+
+    private static class GestureRequest {
+        int generation;
+        Suggest suggest;
+        GesturePath path;
+        boolean capitalize;
+        boolean isFinal;
+    }
+
+    private static class Request {
+        int generation;
+        Suggest suggest;
+        View view;
+        WordComposer word;
+        CharSequence prevWord;
+        boolean checkLowerCase;
+    }
+
+    private final HandlerThread mThread;
+    private final Handler mWorkerHandler;
+    private final Handler mUiHandler;
+    private final Listener mListener;
+
+    // Generation of the newest request, older ones are skipped if they haven't started
+    private volatile int mLatestGeneration;
+
+    // The newest request, moved ahead of other work when the UI thread waits for it
+    private volatile Request mLatestRequest;
+
+    // The newest result, set before it's posted to the UI thread
+    private final LatestResult<Result> mLastResult = new LatestResult<Result>();
+
+    private volatile int mAverageCostMs = -1;
+
+    // Only used on the worker thread
+    private int mGestureBeamWidth = GESTURE_BEAM_DEFAULT;
+
+    public SuggestionWorker(Listener listener) {
+        mListener = listener;
+        mUiHandler = new Handler(Looper.getMainLooper());
+        mThread = new HandlerThread("SuggestionWorker", Process.THREAD_PRIORITY_DEFAULT);
+        mThread.start();
+        mWorkerHandler = new Handler(mThread.getLooper()) {
+            @Override
+            public void handleMessage(Message msg) {
+                switch (msg.what) {
+                case MSG_QUERY:
+                    runQuery((Request) msg.obj);
+                    break;
+                case MSG_PREFETCH:
+                    runPrefetch((Request) msg.obj);
+                    break;
+                case MSG_GESTURE:
+                case MSG_GESTURE_FINAL:
+                    runGesture((GestureRequest) msg.obj);
+                    break;
+                }
+            }
+        };
+    }
+
+    /**
+     * Queues a query for the given word. The word is copied, so the caller may keep
+     * modifying it.
+     * @param checkLowerCase also accept the lower case form of the typed word as valid
+     */
+    public void requestSuggestions(int generation, Suggest suggest, View view,
+            WordComposer word, CharSequence prevWord, boolean checkLowerCase) {
+        Request request = new Request();
+        request.generation = generation;
+        request.suggest = suggest;
+        request.view = view;
+        request.word = new WordComposer(word);
+        request.prevWord = prevWord == null ? null : prevWord.toString();
+        request.checkLowerCase = checkLowerCase;
+        mLatestGeneration = generation;
+        mLatestRequest = request;
+        mWorkerHandler.removeMessages(MSG_QUERY);
+        mWorkerHandler.obtainMessage(MSG_QUERY, request).sendToTarget();
+    }
+
+    /**
+     * Queues a search for the bigrams of a word that was just committed, so that they're
+     * ready when the next word is started. Replaces a pending prefetch.
+     */
+    public void requestPrefetch(Suggest suggest, CharSequence prevWord) {
+        Request request = new Request();
+        request.suggest = suggest;
+        request.prevWord = prevWord.toString();
+        mWorkerHandler.removeMessages(MSG_PREFETCH);
+        mWorkerHandler.obtainMessage(MSG_PREFETCH, request).sendToTarget();
+    }
+
+    /**
+     * Queues a search for the words a gesture path may spell. The path is copied, so the
+     * caller may keep adding to it. Pending searches for paths still being drawn are
+     * dropped, so only the newest state of a path is searched. Final searches are never
+     * dropped.
+     * @param capitalize whether to capitalize the first letter of each word
+     * @param isFinal whether the path is complete
+     */
+    public void requestGestureSuggestions(int generation, Suggest suggest, GesturePath path,
+            boolean capitalize, boolean isFinal) {
+        GestureRequest request = new GestureRequest();
+        request.generation = generation;
+        request.suggest = suggest;
+        request.path = new GesturePath(path);
+        request.capitalize = capitalize;
+        request.isFinal = isFinal;
+        mWorkerHandler.removeMessages(MSG_GESTURE);
+        mWorkerHandler.obtainMessage(isFinal ? MSG_GESTURE_FINAL : MSG_GESTURE, request)
+                .sendToTarget();
+    }
+
+    /**
+     * Returns the result of a query even if it hasn't reached the listener yet, for the
+     * cases where the UI needs an answer right away. If the query hasn't started, it's
+     * moved ahead of any other pending work. Waits at most the given time.
+     * @return the result, or null if it isn't ready in time
+     */
+    public Result awaitResult(int generation, long timeoutMs) {
+        final Result result = mLastResult.get(generation);
+        if (result != null) return result;
+        final Request request = mLatestRequest;
+        if (request != null && request.generation == generation
+                && mWorkerHandler.hasMessages(MSG_QUERY)) {
+            mWorkerHandler.removeMessages(MSG_QUERY);
+            mWorkerHandler.sendMessageAtFrontOfQueue(
+                    mWorkerHandler.obtainMessage(MSG_QUERY, request));
+        }
+        return mLastResult.await(generation, timeoutMs);
+    }
+
+    /**
+     * Runs a query on a {@link Suggest} ahead of any pending work, and waits at most the
+     * given time for it.
+     * @return the answer, or the fallback if it isn't ready in time
+     */
+    public <T> T call(final Suggest suggest, final Call<T> query, T fallback,
+            long timeoutMs) {
+        final FutureTask<T> task = new FutureTask<T>(new Callable<T>() {
+            public T call() {
+                return query.run(suggest);
+            }
+        });
+        mWorkerHandler.postAtFrontOfQueue(task);
+        try {
+            return task.get(timeoutMs, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            task.cancel(false);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            task.cancel(false);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+        return fallback;
+    }
+
+    /**
+     * Returns how long to wait for further keystrokes before querying, based on how
+     * long recent queries took.
+     */
+    public int getDebounceDelay() {
+        int cost = mAverageCostMs;
+        if (cost < 0) return DEBOUNCE_DEFAULT_MS;
+        return Math.max(DEBOUNCE_MIN_MS, Math.min(DEBOUNCE_MAX_MS, cost * 2));
+    }
+
+    /**
+     * Drops the caches of a {@link Suggest} once any query using it has finished.
+     */
+    public void clearCache(final Suggest suggest) {
+        mWorkerHandler.post(new Runnable() {
+            public void run() {
+                suggest.clearCache();
+            }
+        });
+    }
+
+    /**
+     * Closes a {@link Suggest} once any query using it has finished.
+     */
+    public void close(final Suggest suggest) {
+        mWorkerHandler.post(new Runnable() {
+            public void run() {
+                suggest.close();
+            }
+        });
+    }
+
+    public void quit() {
+        mWorkerHandler.removeMessages(MSG_QUERY);
+        mWorkerHandler.removeMessages(MSG_PREFETCH);
+        mWorkerHandler.removeMessages(MSG_GESTURE);
+        mWorkerHandler.removeMessages(MSG_GESTURE_FINAL);
+        mThread.quit();
+    }
+
+    private void runPrefetch(Request request) {
+        request.suggest.prefetchBigrams(request.prevWord);
+    }
+
+    private void runGesture(GestureRequest request) {
+        // The final search may take longer since no further searches wait for it
+        final int beamWidth = request.isFinal
+                ? Math.min(GESTURE_BEAM_MAX, mGestureBeamWidth * 2) : mGestureBeamWidth;
+        long start = SystemClock.uptimeMillis();
+        long gestureStart = LatencyTracker.start();
+        final List<CharSequence> suggestions = request.suggest.getGestureSuggestions(
+                request.path, beamWidth, request.capitalize);
+        LatencyTracker.end(LatencyTracker.STAGE_GESTURE, gestureStart);
+        int cost = (int) (SystemClock.uptimeMillis() - start);
+        if (!request.isFinal) {
+            if (cost > GESTURE_BUDGET_MS) {
+                mGestureBeamWidth = Math.max(GESTURE_BEAM_MIN, mGestureBeamWidth / 2);
+            } else if (cost < GESTURE_BUDGET_MS / 4) {
+                mGestureBeamWidth = Math.min(GESTURE_BEAM_MAX, mGestureBeamWidth * 2);
+            }
+        }
+
+        final GestureResult result = new GestureResult(request.generation, suggestions,
+                request.isFinal);
+        mUiHandler.post(new Runnable() {
+            public void run() {
+                mListener.onGestureSuggestionsReady(result);
+            }
+        });
+    }
+
+    private void runQuery(Request request) {
+        // Skip requests that are superseded, or that already ran before being moved ahead
+        if (request.generation != mLatestGeneration
+                || mLastResult.get(request.generation) != null) {
+            return;
+        }
+        long start = SystemClock.uptimeMillis();
+        long suggestStart = LatencyTracker.start();
+        final Suggest suggest = request.suggest;
+        List<CharSequence> suggestions = suggest.getSuggestions(request.view, request.word,
+                false, request.prevWord);
+        LatencyTracker.end(LatencyTracker.STAGE_SUGGEST, suggestStart);
+        // The list and its entries are reused by the next query, keep a copy
+        List<CharSequence> copy = copyOf(suggestions);
+        CharSequence typedWord = request.word.getTypedWord();
+        if (typedWord != null) typedWord = typedWord.toString();
+        boolean typedWordValid = suggest.isValidWord(typedWord)
+                || (request.checkLowerCase && typedWord != null
+                        && suggest.isValidWord(typedWord.toString().toLowerCase()));
+        final Result result = new Result(request.generation, typedWord, copy,
+                suggest.getNextLettersFrequencies().clone(), typedWordValid,
+                suggest.hasMinimalCorrection());
+        int cost = (int) (SystemClock.uptimeMillis() - start);
+        int average = mAverageCostMs;
+        mAverageCostMs = average < 0 ? cost : (average * 3 + cost) / 4;
+
+        mLastResult.set(request.generation, result);
+        mUiHandler.post(new Runnable() {
+            public void run() {
+                mListener.onSuggestionsReady(result);
+            }
+        });
+    }
+
+    /**
+     * Copies a list of suggestions from {@link Suggest}, which reuses the list and its
+     * entries for the next query.
+     */
+    public static List<CharSequence> copyOf(List<CharSequence> suggestions) {
+        List<CharSequence> copy = new ArrayList<CharSequence>(suggestions.size());
+        for (CharSequence s : suggestions) {
+            copy.add(s.toString());
+        }
+        return copy;
+    }
+}
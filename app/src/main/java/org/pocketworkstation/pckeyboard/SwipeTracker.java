@@ -19,8 +19,12 @@ package org.pocketworkstation.pckeyboard;
 import android.view.MotionEvent;
 
 class SwipeTracker {
-    private static final int NUM_PAST = 4;
+    // Enough for the longest past time at a 240 Hz touch sample rate
+    private static final int NUM_PAST = 64;
     private static final int LONGEST_PAST_TIME = 200;
+    // The ending velocity is measured over this time, which four samples used to span at
+    // 60 Hz, so that it doesn't depend on the touch sample rate
+    private static final int VELOCITY_PAST_TIME = 50;
 
     final EventRingBuffer mBuffer = new EventRingBuffer(NUM_PAST);
 
@@ -57,14 +61,19 @@ class SwipeTracker {
 
     public void computeCurrentVelocity(int units, float maxVelocity) {
         final EventRingBuffer buffer = mBuffer;
-        final float oldestX = buffer.getX(0);
-        final float oldestY = buffer.getY(0);
-        final long oldestTime = buffer.getTime(0);
+        final int count = buffer.size();
+        int start = 0;
+        if (count > 0) {
+            final long startTime = buffer.getTime(count - 1) - VELOCITY_PAST_TIME;
+            while (start < count - 2 && buffer.getTime(start) < startTime) start++;
+        }
+        final float oldestX = buffer.getX(start);
+        final float oldestY = buffer.getY(start);
+        final long oldestTime = buffer.getTime(start);
 
         float accumX = 0;
         float accumY = 0;
-        final int count = buffer.size();
-        for (int pos = 1; pos < count; pos++) {
+        for (int pos = start + 1; pos < count; pos++) {
             final int dur = (int)(buffer.getTime(pos) - oldestTime);
             if (dur == 0) continue;
             float dist = buffer.getX(pos) - oldestX;
@@ -100,6 +109,7 @@ class SwipeTracker {
         private int end;  // points oldest event
         private int count; // the number of valid data
 
+        // max must be a power of two
         public EventRingBuffer(int max) {
             this.bufSize = max;
             xBuf = new float[max];
@@ -118,11 +128,11 @@ class SwipeTracker {
 
         // Position 0 points oldest event
         private int index(int pos) {
-            return (end + pos) % bufSize;
+            return (end + pos) & (bufSize - 1);
         }
 
         private int advance(int index) {
-            return (index + 1) % bufSize;
+            return (index + 1) & (bufSize - 1);
         }
 
         public void add(float x, float y, long time) {
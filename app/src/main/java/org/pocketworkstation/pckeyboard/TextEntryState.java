@@ -18,12 +18,8 @@ package org.pocketworkstation.pckeyboard;
 
 import android.content.Context;
 import org.pocketworkstation.pckeyboard.Keyboard.Key;
-import android.text.format.DateFormat;
 import android.util.Log;
-
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.util.Calendar;
+import android.view.inputmethod.EditorInfo;
 
 public class TextEntryState {
     
@@ -31,8 +27,6 @@ public class TextEntryState {
 
     private static final String TAG = "TextEntryState";
 
-    private static boolean LOGGING = false;
-
     private static int sBackspaceCount = 0;
     
     private static int sAutoSuggestCount = 0;
@@ -66,10 +60,7 @@ public class TextEntryState {
 
     private static State sState = State.UNKNOWN;
 
-    private static FileOutputStream sKeyLocationFile;
-    private static FileOutputStream sUserActionFile;
-    
-    public static void newSession(Context context) {
+    public static void newSession(Context context, EditorInfo attribute) {
         sSessionCount++;
         sAutoSuggestCount = 0;
         sBackspaceCount = 0;
@@ -80,40 +71,12 @@ public class TextEntryState {
         sActualChars = 0;
         sState = State.START;
         
-        if (LOGGING) {
-            try {
-                sKeyLocationFile = context.openFileOutput("key.txt", Context.MODE_APPEND);
-                sUserActionFile = context.openFileOutput("action.txt", Context.MODE_APPEND);
-            } catch (IOException ioe) {
-                Log.e("TextEntryState", "Couldn't open file for output: " + ioe);
-            }
-        }
+        TraceRecorder.startSession(context, attribute);
     }
     
     public static void endSession() {
-        if (sKeyLocationFile == null) {
-            return;
-        }
-        try {
-            sKeyLocationFile.close();
-            // Write to log file            
-            // Write timestamp, settings,
-            String out = DateFormat.format("MM:dd hh:mm:ss", Calendar.getInstance().getTime())
-                    .toString()
-                    + " BS: " + sBackspaceCount
-                    + " auto: " + sAutoSuggestCount
-                    + " manual: " + sManualSuggestCount
-                    + " typed: " + sWordNotInDictionaryCount
-                    + " undone: " + sAutoSuggestUndoneCount
-                    + " saved: " + ((float) (sActualChars - sTypedChars) / sActualChars)
-                    + "\n";
-            sUserActionFile.write(out.getBytes());
-            sUserActionFile.close();
-            sKeyLocationFile = null;
-            sUserActionFile = null;
-        } catch (IOException ioe) {
-            
-        }
+        TraceRecorder.endSession(sBackspaceCount, sAutoSuggestCount, sManualSuggestCount,
+                sWordNotInDictionaryCount, sAutoSuggestUndoneCount);
     }
     
     public static void acceptedDefault(CharSequence typedWord, CharSequence actualWord) {
@@ -256,20 +219,8 @@ public class TextEntryState {
     }
 
     public static void keyPressedAt(Key key, int x, int y) {
-        if (LOGGING && sKeyLocationFile != null && key.codes[0] >= 32) {
-            String out = 
-                    "KEY: " + (char) key.codes[0] 
-                    + " X: " + x 
-                    + " Y: " + y
-                    + " MX: " + (key.x + key.width / 2)
-                    + " MY: " + (key.y + key.height / 2) 
-                    + "\n";
-            try {
-                sKeyLocationFile.write(out.getBytes());
-            } catch (IOException ioe) {
-                // TODO: May run out of space
-            }
-        }
+        TraceRecorder.recordKey(key.codes[0], x, y,
+                key.x + key.width / 2, key.y + key.height / 2);
     }
 
     private static void displayState() {
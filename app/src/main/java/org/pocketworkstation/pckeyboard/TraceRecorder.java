@@ -0,0 +1,376 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.pocketworkstation.pckeyboard;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+import android.os.Process;
+import android.os.SystemClock;
+import android.text.InputType;
+import android.util.Log;
+import android.view.inputmethod.EditorInfo;
+
+/**
+ * Records a binary trace of typing sessions: touches, keys, the composed word with the
+ * suggestions shown for it, and which word was picked. Traces feed the benchmark and
+ * replay tools.
+ *
+ * <p>
+ * Records are written into one of two preallocated buffers on the UI thread. A full
+ * buffer is handed to a background thread that writes it out in one go while the other
+ * one fills up. If both buffers are busy, records are dropped and counted rather than
+ * blocking the caller. Traces are kept in the app's private storage, and password fields
+ * and fields that ask not to be learned from are never recorded.
+ *
+ * <p>
+ * The file starts with {@link #MAGIC} and {@link #FORMAT_VERSION} (int, short), followed
+ * by records in big endian byte order. Each record is a type byte and the uptime in
+ * milliseconds (long), followed by:
+ * <ul>
+ * <li>RECORD_SESSION_START: wall clock time (long), input type (int)
+ * <li>RECORD_SESSION_END: dropped records (int), backspaces, auto corrections, manual
+ * picks, words not in the dictionary, undone corrections (int each)
+ * <li>RECORD_TOUCH: action (byte), pointer id (byte), x, y (int each), key index (short)
+ * <li>RECORD_KEY: primary code, x, y, key center x, key center y (int each)
+ * <li>RECORD_SUGGESTIONS: composed word (string), count (byte), suggestions (strings)
+ * <li>RECORD_PICK: kind (byte), index in the suggestions or -1 (short), word (string)
+ * <li>RECORD_GESTURE: point count (short), resampled points as x, y (short each), letter
+ * key count (byte), letter keys as code, center x, center y (short each)
+ * </ul>
+ * Strings are a char count (short) followed by UTF-16 chars, cut to
+ * {@link #MAX_STRING_LENGTH}.
+ */
+public final class TraceRecorder {
+    private static final String TAG = "PCKeyboard";
+
+    public static final int MAGIC = 0x50434b54; // "PCKT"
+    public static final int FORMAT_VERSION = 2;
+
+    public static final int RECORD_SESSION_START = 1;
+    public static final int RECORD_SESSION_END = 2;
+    public static final int RECORD_TOUCH = 3;
+    public static final int RECORD_KEY = 4;
+    public static final int RECORD_SUGGESTIONS = 5;
+    public static final int RECORD_PICK = 6;
+    public static final int RECORD_GESTURE = 7;
+
+    public static final int TOUCH_DOWN = 0;
+    public static final int TOUCH_UP = 1;
+
+    /** The best suggestion was accepted by typing a separator. */
+    public static final int PICK_DEFAULT = 0;
+    /** A suggestion was touched in the candidate strip. */
+    public static final int PICK_MANUAL = 1;
+    /** The typed word was committed as is. */
+    public static final int PICK_TYPED = 2;
+
+    public static final int MAX_STRING_LENGTH = 48;
+    public static final int MAX_SUGGESTIONS = 16;
+    public static final int MAX_GESTURE_KEYS = 48;
+
+    private static final int BUFFER_SIZE = 32 * 1024;
+    // Large enough for the biggest record, a full suggestion list
+    private static final int MAX_RECORD_SIZE = 1 + 8 + 1
+            + (MAX_SUGGESTIONS + 1) * (2 + MAX_STRING_LENGTH * 2);
+
+    private static final int MSG_WRITE = 0;
+    private static final int MSG_CLOSE = 1;
+
+    private static final Object sLock = new Object();
+    private static ByteBuffer sActive;
+    // The buffer not being filled, null while it's being written out
+    private static ByteBuffer sSpare;
+    private static volatile boolean sRecording;
+    private static int sDropped;
+
+    private static Handler sWriter;
+    private static File sDir;
+    private static File sFile;
+    private static FileChannel sChannel;
+
+    private TraceRecorder() {
+    }
+
+    /**
+     * Starts recording a session if tracing is on and the field may be recorded.
+     */
+    public static void startSession(Context context, EditorInfo attribute) {
+        int inputType = attribute != null ? attribute.inputType : 0;
+        synchronized (sLock) {
+            sRecording = false;
+            if (!LatinIME.sKeyboardSettings.traceRecording || isPrivate(attribute)) return;
+            if (sWriter == null) {
+                sActive = ByteBuffer.allocate(BUFFER_SIZE);
+                sSpare = ByteBuffer.allocate(BUFFER_SIZE);
+                sDir = getTraceDir(context);
+                HandlerThread thread = new HandlerThread("TraceRecorder",
+                        Process.THREAD_PRIORITY_BACKGROUND);
+                thread.start();
+                sWriter = new Handler(thread.getLooper()) {
+                    @Override
+                    public void handleMessage(Message msg) {
+                        switch (msg.what) {
+                        case MSG_WRITE:
+                            write((ByteBuffer) msg.obj);
+                            break;
+                        case MSG_CLOSE:
+                            closeFile();
+                            break;
+                        }
+                    }
+                };
+            }
+            sRecording = true;
+            sDropped = 0;
+            if (!reserve()) return;
+            header(RECORD_SESSION_START);
+            sActive.putLong(System.currentTimeMillis());
+            sActive.putInt(inputType);
+        }
+    }
+
+    /**
+     * Ends the session and writes out everything recorded so far.
+     */
+    public static void endSession(int backspaces, int autoCorrections, int manualPicks,
+            int notInDictionary, int undone) {
+        synchronized (sLock) {
+            if (!sRecording) return;
+            if (reserve()) {
+                header(RECORD_SESSION_END);
+                sActive.putInt(sDropped);
+                sActive.putInt(backspaces);
+                sActive.putInt(autoCorrections);
+                sActive.putInt(manualPicks);
+                sActive.putInt(notInDictionary);
+                sActive.putInt(undone);
+            }
+            sRecording = false;
+            flushLocked();
+        }
+    }
+
+    /**
+     * Closes the trace file, a new one is started by the next session.
+     */
+    public static void close() {
+        synchronized (sLock) {
+            sRecording = false;
+            if (sWriter == null) return;
+            flushLocked();
+            sWriter.sendEmptyMessage(MSG_CLOSE);
+        }
+    }
+
+    public static void recordTouch(int action, int pointerId, int x, int y, int keyIndex,
+            long eventTime) {
+        if (!sRecording) return;
+        synchronized (sLock) {
+            if (!reserve()) return;
+            sActive.put((byte) RECORD_TOUCH);
+            sActive.putLong(eventTime);
+            sActive.put((byte) action);
+            sActive.put((byte) pointerId);
+            sActive.putInt(x);
+            sActive.putInt(y);
+            sActive.putShort((short) keyIndex);
+        }
+    }
+
+    public static void recordKey(int code, int x, int y, int keyCenterX, int keyCenterY) {
+        if (!sRecording) return;
+        synchronized (sLock) {
+            if (!reserve()) return;
+            header(RECORD_KEY);
+            sActive.putInt(code);
+            sActive.putInt(x);
+            sActive.putInt(y);
+            sActive.putInt(keyCenterX);
+            sActive.putInt(keyCenterY);
+        }
+    }
+
+    public static void recordSuggestions(CharSequence typedWord,
+            List<CharSequence> suggestions) {
+        if (!sRecording) return;
+        synchronized (sLock) {
+            if (!reserve()) return;
+            header(RECORD_SUGGESTIONS);
+            putString(typedWord);
+            int count = suggestions == null ? 0
+                    : Math.min(suggestions.size(), MAX_SUGGESTIONS);
+            sActive.put((byte) count);
+            for (int i = 0; i < count; ++i) {
+                putString(suggestions.get(i));
+            }
+        }
+    }
+
+    public static void recordPick(int kind, int index, CharSequence word) {
+        if (!sRecording) return;
+        synchronized (sLock) {
+            if (!reserve()) return;
+            header(RECORD_PICK);
+            sActive.put((byte) kind);
+            sActive.putShort((short) index);
+            putString(word);
+        }
+    }
+
+    /**
+     * Records a completed gesture with the letter keys of the keyboard, so that the replay
+     * tool can decode it again without the layout.
+     */
+    public static void recordGesture(GesturePath path, Keyboard.Key[] keys) {
+        if (!sRecording) return;
+        synchronized (sLock) {
+            if (!reserve()) return;
+            header(RECORD_GESTURE);
+            int count = path.getPointCount();
+            sActive.putShort((short) count);
+            for (int i = 0; i < count; ++i) {
+                sActive.putShort((short) path.getX(i));
+                sActive.putShort((short) path.getY(i));
+            }
+            int countPosition = sActive.position();
+            sActive.put((byte) 0);
+            int keyCount = 0;
+            for (int i = 0; i < keys.length && keyCount < MAX_GESTURE_KEYS; ++i) {
+                Keyboard.Key key = keys[i];
+                if (key.codes == null || key.codes.length == 0
+                        || !Character.isLetter(key.codes[0])) {
+                    continue;
+                }
+                sActive.putShort((short) Character.toLowerCase(key.codes[0]));
+                sActive.putShort((short) (key.x + key.width / 2));
+                sActive.putShort((short) (key.y + key.height / 2));
+                ++keyCount;
+            }
+            sActive.put(countPosition, (byte) keyCount);
+        }
+    }
+
+    /**
+     * Returns whether the field takes a password or asks not to have its text learned or
+     * suggested from.
+     */
+    private static boolean isPrivate(EditorInfo attribute) {
+        if (attribute == null) return false;
+        if ((attribute.imeOptions & EditorInfo.IME_FLAG_NO_PERSONALIZED_LEARNING) != 0) {
+            return true;
+        }
+        int inputType = attribute.inputType;
+        if ((inputType & InputType.TYPE_MASK_CLASS) == InputType.TYPE_CLASS_TEXT
+                && (inputType & InputType.TYPE_TEXT_FLAG_NO_SUGGESTIONS) != 0) {
+            return true;
+        }
+        int variation = inputType & EditorInfo.TYPE_MASK_VARIATION;
+        return variation == EditorInfo.TYPE_TEXT_VARIATION_PASSWORD
+                || variation == EditorInfo.TYPE_TEXT_VARIATION_VISIBLE_PASSWORD
+                || variation == 0xe0 // TYPE_TEXT_VARIATION_WEB_PASSWORD
+                || ((inputType & InputType.TYPE_MASK_CLASS) == InputType.TYPE_CLASS_NUMBER
+                        && variation == 0x10); // TYPE_NUMBER_VARIATION_PASSWORD
+    }
+
+    // Internal storage, since the traces hold what was typed
+    private static File getTraceDir(Context context) {
+        return new File(context.getFilesDir(), "traces");
+    }
+
+    private static void header(int type) {
+        sActive.put((byte) type);
+        sActive.putLong(SystemClock.uptimeMillis());
+    }
+
+    private static void putString(CharSequence s) {
+        int length = s == null ? 0 : Math.min(s.length(), MAX_STRING_LENGTH);
+        sActive.putShort((short) length);
+        for (int i = 0; i < length; ++i) {
+            sActive.putChar(s.charAt(i));
+        }
+    }
+
+    /**
+     * Makes room for a record, swapping buffers if needed.
+     * @return false if the record has to be dropped
+     */
+    private static boolean reserve() {
+        if (sActive.remaining() >= MAX_RECORD_SIZE) return true;
+        if (sSpare == null) {
+            ++sDropped;
+            return false;
+        }
+        flushLocked();
+        return true;
+    }
+
+    private static void flushLocked() {
+        if (sActive.position() == 0 || sSpare == null) return;
+        ByteBuffer full = sActive;
+        sActive = sSpare;
+        sSpare = null;
+        full.flip();
+        sWriter.obtainMessage(MSG_WRITE, full).sendToTarget();
+    }
+
+    // Runs on the writer thread
+    private static void write(ByteBuffer buffer) {
+        try {
+            if (sChannel == null) {
+                sDir.mkdirs();
+                sFile = new File(sDir, "trace-" + System.currentTimeMillis() + ".bin");
+                sChannel = new FileOutputStream(sFile).getChannel();
+                ByteBuffer fileHeader = ByteBuffer.allocate(6);
+                fileHeader.putInt(MAGIC);
+                fileHeader.putShort((short) FORMAT_VERSION);
+                fileHeader.flip();
+                sChannel.write(fileHeader);
+            }
+            while (buffer.hasRemaining()) {
+                sChannel.write(buffer);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Could not write trace to " + sFile, e);
+            closeFile();
+        }
+        buffer.clear();
+        synchronized (sLock) {
+            sSpare = buffer;
+        }
+    }
+
+    // Runs on the writer thread
+    private static void closeFile() {
+        if (sChannel == null) return;
+        try {
+            sChannel.close();
+        } catch (IOException e) {
+            // ignore
+        }
+        sChannel = null;
+        sFile = null;
+    }
+}
@@ -24,6 +24,14 @@ import android.database.Cursor;
 import android.provider.UserDictionary.Words;
 import android.util.Log;
 
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
 public class UserDictionary extends ExpandableDictionary {
     
     private static final String[] PROJECTION = {
@@ -32,14 +40,39 @@ public class UserDictionary extends ExpandableDictionary {
         Words.FREQUENCY
     };
     
+    private static final int INDEX_ID = 0;
     private static final int INDEX_WORD = 1;
     private static final int INDEX_FREQUENCY = 2;
 
     private static final String TAG = "HK/UserDictionary";
-    
+
+    // Writes words to the provider one batch at a time, for all user dictionaries
+    private static ExecutorService sWriter;
+
     private ContentObserver mObserver;
     private String mLocale;
 
+    // Use this lock before touching the fields below
+    private final Object mInsertLock = new Object();
+    // Words to write with their frequencies, the batch being written, and whether a write
+    // is queued or running
+    private LinkedHashMap<String, Integer> mPendingInserts = new LinkedHashMap<String, Integer>();
+    private LinkedHashMap<String, Integer> mWritingInserts;
+    private boolean mWriting;
+
+    // Rows of the last load by id, to find what changed since. Null until loaded.
+    private volatile HashMap<Long, Row> mRows;
+
+    private static class Row {
+        final String word;
+        final int frequency;
+
+        Row(String word, int frequency) {
+            this.word = word;
+            this.frequency = frequency;
+        }
+    }
+
     public UserDictionary(Context context, String locale) {
         super(context, Suggest.DIC_USER);
         mLocale = locale;
@@ -50,6 +83,9 @@ public class UserDictionary extends ExpandableDictionary {
         cres.registerContentObserver(Words.CONTENT_URI, true, mObserver = new ContentObserver(null) {
             @Override
             public void onChange(boolean self) {
+                // Our own writes come back here too, and can't be told apart from edits
+                // made elsewhere at the same time. The reload only applies rows that
+                // changed, so it's cheap either way.
                 setRequiresReload(true);
             }
         });
@@ -68,10 +104,81 @@ public class UserDictionary extends ExpandableDictionary {
 
     @Override
     public void loadDictionaryAsync() {
-        Cursor cursor = getContext().getContentResolver()
-                .query(Words.CONTENT_URI, PROJECTION, "(locale IS NULL) or (locale=?)", 
-                        new String[] { mLocale }, null);
-        addWords(cursor);
+        HashMap<Long, Row> rows = queryRows();
+        if (rows == null) return;
+        clearDictionary();
+        for (Row row : rows.values()) {
+            super.addWord(row.word, row.frequency);
+        }
+        mRows = rows;
+    }
+
+    /**
+     * Applies only the rows that were added, changed or deleted since the last load. The
+     * provider keeps no modification times, so all rows are still read, but the trie
+     * isn't rebuilt.
+     */
+    @Override
+    protected boolean updateDictionaryAsync() {
+        final HashMap<Long, Row> oldRows = mRows;
+        if (oldRows == null) return false;
+        HashMap<Long, Row> rows = queryRows();
+        if (rows == null) return true;
+
+        HashSet<String> changedWords = new HashSet<String>();
+        for (Map.Entry<Long, Row> entry : rows.entrySet()) {
+            Row row = entry.getValue();
+            Row oldRow = oldRows.get(entry.getKey());
+            if (oldRow == null || oldRow.frequency != row.frequency
+                    || !oldRow.word.equals(row.word)) {
+                changedWords.add(row.word);
+                if (oldRow != null) changedWords.add(oldRow.word);
+            }
+        }
+        for (Map.Entry<Long, Row> entry : oldRows.entrySet()) {
+            if (!rows.containsKey(entry.getKey())) changedWords.add(entry.getValue().word);
+        }
+
+        if (!changedWords.isEmpty()) {
+            // A word can be in several rows, such as for different locales
+            HashMap<String, Integer> frequencies = new HashMap<String, Integer>();
+            for (Row row : rows.values()) {
+                if (!changedWords.contains(row.word)) continue;
+                Integer frequency = frequencies.get(row.word);
+                if (frequency == null || row.frequency > frequency) {
+                    frequencies.put(row.word, row.frequency);
+                }
+            }
+            synchronized (mInsertLock) {
+                // Words not written yet keep the frequency they were added with
+                addPendingFrequencies(mPendingInserts, changedWords, frequencies);
+                if (mWritingInserts != null) {
+                    addPendingFrequencies(mWritingInserts, changedWords, frequencies);
+                }
+            }
+            for (String word : changedWords) {
+                Integer frequency = frequencies.get(word);
+                if (frequency != null) {
+                    setWordFrequency(word, frequency);
+                } else {
+                    removeWord(word);
+                }
+            }
+        }
+        mRows = rows;
+        return true;
+    }
+
+    private static void addPendingFrequencies(Map<String, Integer> pending,
+            HashSet<String> changedWords, HashMap<String, Integer> frequencies) {
+        for (Map.Entry<String, Integer> entry : pending.entrySet()) {
+            final String word = entry.getKey();
+            if (!changedWords.contains(word)) continue;
+            Integer frequency = frequencies.get(word);
+            if (frequency == null || entry.getValue() > frequency) {
+                frequencies.put(word, entry.getValue());
+            }
+        }
     }
 
     /**
@@ -84,49 +191,108 @@ public class UserDictionary extends ExpandableDictionary {
      */
     @Override
     public synchronized void addWord(String word, int frequency) {
-        // Force load the dictionary here synchronously
-        if (getRequiresReload()) loadDictionaryAsync();
         // Safeguard against adding long words. Can cause stack overflow.
         if (word.length() >= getMaxWordLength()) return;
+        // Load in the background, the word is added to the new trie too. Until the first
+        // load the trie can't tell whether the word is written already.
+        if (getRequiresReload()) loadDictionary();
+        final boolean loaded = mRows != null;
 
+        // Already written, or about to be
+        if (loaded && getWordFrequency(word) >= frequency) return;
         super.addWord(word, frequency);
 
-        // Update the user dictionary provider
-        final ContentValues values = new ContentValues(5);
-        values.put(Words.WORD, word);
-        values.put(Words.FREQUENCY, frequency);
-        values.put(Words.LOCALE, mLocale);
-        values.put(Words.APP_ID, 0);
+        // Update the user dictionary provider. This never waits for the writer, which
+        // takes all queued words at once, so repeated words are written once.
+        synchronized (mInsertLock) {
+            Integer pending = mPendingInserts.get(word);
+            if (pending == null || frequency > pending) mPendingInserts.put(word, frequency);
+            if (!mWriting) {
+                mWriting = true;
+                getWriter().execute(new Runnable() {
+                    public void run() {
+                        writePendingInserts();
+                    }
+                });
+            }
+        }
+    }
 
+    /**
+     * Writes the queued words in batches until there are none left. Words added while a
+     * batch is written go into the next one.
+     */
+    private void writePendingInserts() {
         final ContentResolver contentResolver = getContext().getContentResolver();
-        new Thread("addWord") {
-            public void run() {
-                contentResolver.insert(Words.CONTENT_URI, values);
+        while (true) {
+            LinkedHashMap<String, Integer> inserts;
+            synchronized (mInsertLock) {
+                mWritingInserts = null;
+                if (mPendingInserts.isEmpty()) {
+                    mWriting = false;
+                    return;
+                }
+                inserts = mPendingInserts;
+                mWritingInserts = inserts;
+                mPendingInserts = new LinkedHashMap<String, Integer>();
             }
-        }.start();
+            final ContentValues[] values = new ContentValues[inserts.size()];
+            int i = 0;
+            for (Map.Entry<String, Integer> entry : inserts.entrySet()) {
+                ContentValues row = new ContentValues(5);
+                row.put(Words.WORD, entry.getKey());
+                row.put(Words.FREQUENCY, entry.getValue());
+                row.put(Words.LOCALE, mLocale);
+                row.put(Words.APP_ID, 0);
+                values[i++] = row;
+            }
+            try {
+                contentResolver.bulkInsert(Words.CONTENT_URI, values);
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Couldn't add words to the user dictionary", e);
+            }
+        }
+    }
 
-        // In case the above does a synchronous callback of the change observer
-        setRequiresReload(false);
+    private static synchronized ExecutorService getWriter() {
+        if (sWriter == null) {
+            sWriter = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "UserDictionaryWriter");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return sWriter;
     }
 
-    @Override
-    public synchronized void getWords(final WordComposer codes, final WordCallback callback,
-            int[] nextLettersFrequencies) {
-        super.getWords(codes, callback, nextLettersFrequencies);
+    /**
+     * Drops the words to save memory, they're loaded again on next use. Does nothing while
+     * words are being written, since the reload could miss them.
+     */
+    public void releaseMemory() {
+        synchronized (mInsertLock) {
+            if (mWriting) return;
+        }
+        releaseTrie();
     }
 
     @Override
-    public synchronized boolean isValidWord(CharSequence word) {
-        return super.isValidWord(word);
+    protected void onTrieReleased() {
+        mRows = null;
     }
 
-    private void addWords(Cursor cursor) {
+    private HashMap<Long, Row> queryRows() {
+        Cursor cursor = getContext().getContentResolver()
+                .query(Words.CONTENT_URI, PROJECTION, "(locale IS NULL) or (locale=?)", 
+                        new String[] { mLocale }, null);
         if (cursor == null) {
-            Log.w(TAG, "Unexpected null cursor in addWords()");
-            return;
+            Log.w(TAG, "Unexpected null cursor in queryRows()");
+            return null;
         }
-        clearDictionary();
 
+        HashMap<Long, Row> rows = new HashMap<Long, Row>(cursor.getCount() * 2);
         final int maxWordLength = getMaxWordLength();
         if (cursor.moveToFirst()) {
             while (!cursor.isAfterLast()) {
@@ -134,12 +300,13 @@ public class UserDictionary extends ExpandableDictionary {
                 int frequency = cursor.getInt(INDEX_FREQUENCY);
                 // Safeguard against adding really long words. Stack may overflow due
                 // to recursion
-                if (word.length() < maxWordLength) {
-                    super.addWord(word, frequency);
+                if (word != null && word.length() < maxWordLength) {
+                    rows.put(cursor.getLong(INDEX_ID), new Row(word, frequency));
                 }
                 cursor.moveToNext();
             }
         }
         cursor.close();
+        return rows;
     }
 }
@@ -0,0 +1,283 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.pocketworkstation.pckeyboard;
+
+import java.util.Arrays;
+
+/**
+ * Keeps the best scoring words out of everything the dictionaries report, for
+ * {@link Suggest}. Words are kept in a fixed capacity min-heap with the weakest word at
+ * the root, so adding a word is O(log n). A hash table over the word characters finds
+ * words already in the heap without creating Strings, so that a word reported twice
+ * keeps only its best score.
+ *
+ * <p>
+ * Words rank by score, then shorter words first, then the order they were added in.
+ * Pinned words rank above all others.
+ */
+public class WordHeap {
+    private static final int INITIAL_WORD_LENGTH = 48;
+
+    private final int mCapacity;
+    private int mSize;
+    private int mAddCount;
+
+    // Slot data, a slot keeps its place while the heap moves slot indices around
+    private final char[][] mWords;
+    private final int[] mLengths;
+    private final int[] mScores;
+    private final int[] mOrder;
+    private final boolean[] mPinned;
+    private final int[] mHashes;
+
+    // Heap of slot indices, and the heap position of each slot
+    private final int[] mHeap;
+    private final int[] mHeapIndex;
+
+    // Open addressing table of slot + 1, 0 when empty
+    private final int[] mTable;
+    private final int mTableMask;
+
+    private final int[] mSorted;
+
+    public WordHeap(int capacity) {
+        mCapacity = capacity;
+        mWords = new char[capacity][];
+        mLengths = new int[capacity];
+        mScores = new int[capacity];
+        mOrder = new int[capacity];
+        mPinned = new boolean[capacity];
+        mHashes = new int[capacity];
+        mHeap = new int[capacity];
+        mHeapIndex = new int[capacity];
+        mSorted = new int[capacity];
+        int tableSize = Integer.highestOneBit(Math.max(capacity, 4) * 4 - 1);
+        mTable = new int[tableSize];
+        mTableMask = tableSize - 1;
+    }
+
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public void clear() {
+        mSize = 0;
+        mAddCount = 0;
+        Arrays.fill(mTable, 0);
+    }
+
+    /**
+     * Adds a word, or raises the score of the word if it's already there.
+     * @return false if the word didn't make it into the heap
+     */
+    public boolean add(char[] word, int offset, int length, int score, boolean pinned) {
+        int hash = hash(word, offset, length);
+        int slot = find(word, offset, length, hash);
+        if (slot >= 0) {
+            if (pinned && !mPinned[slot]) {
+                mPinned[slot] = true;
+                mScores[slot] = score;
+            } else if (score > mScores[slot] && pinned == mPinned[slot]) {
+                mScores[slot] = score;
+            } else {
+                return true;
+            }
+            // The word got stronger, so it moves away from the root
+            siftDown(mHeapIndex[slot]);
+            return true;
+        }
+        int order = mAddCount++;
+        if (mSize < mCapacity) {
+            slot = mSize;
+            set(slot, word, offset, length, score, order, pinned, hash);
+            mHeap[mSize] = slot;
+            mHeapIndex[slot] = mSize;
+            mSize++;
+            siftUp(mSize - 1);
+            return true;
+        }
+        slot = mHeap[0];
+        if (!isBetter(pinned, score, length, order, slot)) return false;
+        tableRemove(slot);
+        set(slot, word, offset, length, score, order, pinned, hash);
+        siftDown(0);
+        return true;
+    }
+
+    /**
+     * Returns the slot of the word, or -1 if it's not in the heap.
+     */
+    public int find(char[] word, int offset, int length) {
+        return find(word, offset, length, hash(word, offset, length));
+    }
+
+    public int getScore(int slot) {
+        return mScores[slot];
+    }
+
+    public int getLength(int slot) {
+        return mLengths[slot];
+    }
+
+    public char charAt(int slot, int index) {
+        return mWords[slot][index];
+    }
+
+    public void appendTo(int slot, StringBuilder sb) {
+        sb.append(mWords[slot], 0, mLengths[slot]);
+    }
+
+    /**
+     * Returns the slots from the best word to the weakest. The array is reused by the next
+     * call, only the first {@link #size()} entries are valid.
+     */
+    public int[] getSortedSlots() {
+        for (int i = 0; i < mSize; ++i) {
+            mSorted[i] = mHeap[i];
+        }
+        // Insertion sort, the heap is small and already partially ordered
+        for (int i = 1; i < mSize; ++i) {
+            int slot = mSorted[i];
+            int j = i - 1;
+            while (j >= 0 && isBetter(slot, mSorted[j])) {
+                mSorted[j + 1] = mSorted[j];
+                --j;
+            }
+            mSorted[j + 1] = slot;
+        }
+        return mSorted;
+    }
+
+    /**
+     * Returns a hash of the characters, the same for equal char sequences.
+     */
+    public static int hash(CharSequence word) {
+        int h = 0;
+        for (int i = 0, length = word.length(); i < length; ++i) {
+            h = 31 * h + word.charAt(i);
+        }
+        return h;
+    }
+
+    private static int hash(char[] word, int offset, int length) {
+        int h = 0;
+        for (int i = offset, end = offset + length; i < end; ++i) {
+            h = 31 * h + word[i];
+        }
+        return h;
+    }
+
+    private void set(int slot, char[] word, int offset, int length, int score, int order,
+            boolean pinned, int hash) {
+        char[] chars = mWords[slot];
+        if (chars == null || chars.length < length) {
+            chars = new char[Math.max(length, INITIAL_WORD_LENGTH)];
+            mWords[slot] = chars;
+        }
+        System.arraycopy(word, offset, chars, 0, length);
+        mLengths[slot] = length;
+        mScores[slot] = score;
+        mOrder[slot] = order;
+        mPinned[slot] = pinned;
+        mHashes[slot] = hash;
+        int i = hash & mTableMask;
+        while (mTable[i] != 0) {
+            i = (i + 1) & mTableMask;
+        }
+        mTable[i] = slot + 1;
+    }
+
+    private int find(char[] word, int offset, int length, int hash) {
+        int i = hash & mTableMask;
+        while (mTable[i] != 0) {
+            int slot = mTable[i] - 1;
+            if (mHashes[slot] == hash && mLengths[slot] == length) {
+                char[] chars = mWords[slot];
+                int j = 0;
+                while (j < length && chars[j] == word[offset + j]) ++j;
+                if (j == length) return slot;
+            }
+            i = (i + 1) & mTableMask;
+        }
+        return -1;
+    }
+
+    // Linear probing removal, moving back entries that would no longer be found
+    private void tableRemove(int slot) {
+        int i = mHashes[slot] & mTableMask;
+        while (mTable[i] != slot + 1) {
+            i = (i + 1) & mTableMask;
+        }
+        int j = i;
+        while (true) {
+            j = (j + 1) & mTableMask;
+            if (mTable[j] == 0) break;
+            int home = mHashes[mTable[j] - 1] & mTableMask;
+            // Move the entry at j into the hole at i if its home isn't between them
+            if (i <= j ? (home <= i || home > j) : (home <= i && home > j)) {
+                mTable[i] = mTable[j];
+                i = j;
+            }
+        }
+        mTable[i] = 0;
+    }
+
+    private boolean isBetter(boolean pinned, int score, int length, int order, int slot) {
+        if (pinned != mPinned[slot]) return pinned;
+        if (score != mScores[slot]) return score > mScores[slot];
+        if (length != mLengths[slot]) return length < mLengths[slot];
+        return order < mOrder[slot];
+    }
+
+    private boolean isBetter(int a, int b) {
+        return isBetter(mPinned[a], mScores[a], mLengths[a], mOrder[a], b);
+    }
+
+    private void siftUp(int index) {
+        int slot = mHeap[index];
+        while (index > 0) {
+            int parent = (index - 1) >> 1;
+            int parentSlot = mHeap[parent];
+            if (!isBetter(parentSlot, slot)) break;
+            mHeap[index] = parentSlot;
+            mHeapIndex[parentSlot] = index;
+            index = parent;
+        }
+        mHeap[index] = slot;
+        mHeapIndex[slot] = index;
+    }
+
+    private void siftDown(int index) {
+        int slot = mHeap[index];
+        while (true) {
+            int child = 2 * index + 1;
+            if (child >= mSize) break;
+            if (child + 1 < mSize && isBetter(mHeap[child], mHeap[child + 1])) child++;
+            int childSlot = mHeap[child];
+            if (!isBetter(slot, childSlot)) break;
+            mHeap[index] = childSlot;
+            mHeapIndex[childSlot] = index;
+            index = child;
+        }
+        mHeap[index] = slot;
+        mHeapIndex[slot] = index;
+    }
+}
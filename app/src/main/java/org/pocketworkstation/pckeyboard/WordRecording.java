@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.pocketworkstation.pckeyboard;
+
+import java.util.Arrays;
+
+/**
+ * Keeps words meant for a {@link WordHeap} in the order they came, to add them to the heap
+ * later. Dictionaries searched at the same time each record into their own recording, and
+ * adding the recordings one after the other gives the same heap as adding the words
+ * directly while searching one dictionary after the other, down to the order of words with
+ * equal rank.
+ */
+public class WordRecording {
+    private char[] mChars = new char[256];
+    private int mCharCount;
+    private int[] mOffsets = new int[16];
+    private int[] mLengths = new int[16];
+    private int[] mScores = new int[16];
+    private boolean[] mPinned = new boolean[16];
+    private int mCount;
+
+    public int size() {
+        return mCount;
+    }
+
+    public void clear() {
+        mCharCount = 0;
+        mCount = 0;
+    }
+
+    /**
+     * Records a word, with the arguments of {@link WordHeap#add}.
+     */
+    public void add(char[] word, int offset, int length, int score, boolean pinned) {
+        if (mCount == mOffsets.length) {
+            mOffsets = Arrays.copyOf(mOffsets, mCount * 2);
+            mLengths = Arrays.copyOf(mLengths, mCount * 2);
+            mScores = Arrays.copyOf(mScores, mCount * 2);
+            mPinned = Arrays.copyOf(mPinned, mCount * 2);
+        }
+        if (mCharCount + length > mChars.length) {
+            mChars = Arrays.copyOf(mChars, Math.max(mChars.length * 2, mCharCount + length));
+        }
+        System.arraycopy(word, offset, mChars, mCharCount, length);
+        mOffsets[mCount] = mCharCount;
+        mLengths[mCount] = length;
+        mScores[mCount] = score;
+        mPinned[mCount] = pinned;
+        mCharCount += length;
+        mCount++;
+    }
+
+    /**
+     * Adds the words to the heap in the order they were recorded.
+     */
+    public void addTo(WordHeap heap) {
+        for (int i = 0; i < mCount; i++) {
+            heap.add(mChars, mOffsets[i], mLengths[i], mScores[i], mPinned[i]);
+        }
+    }
+}
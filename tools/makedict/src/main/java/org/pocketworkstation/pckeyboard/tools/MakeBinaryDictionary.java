@@ -0,0 +1,382 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.pocketworkstation.pckeyboard.tools;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * Compresses a word list in XML format (see dictionaries/sample.xml) into the binary
+ * dictionary format read by the native dictionary code.
+ *
+ * By default a plain trie is written. With -dawg the trie is minimized into a DAWG, where
+ * identical subtrees such as common word endings are stored only once. Frequencies can't
+ * live in shared nodes, so they go into a table at the end of the file that's indexed by
+ * the position of the word in dictionary order. The DAWG format carries no bigrams.
+ *
+ * Usage: MakeBinaryDictionary -s &lt;src_dict.xml&gt; -d &lt;dest.dict&gt; [-dawg]
+ */
+public class MakeBinaryDictionary {
+
+    private static final int VERSION_TRIE = 200;
+    private static final int VERSION_DAWG = 201;
+    private static final int TRIE_HEADER_SIZE = 2;
+    private static final int DAWG_HEADER_SIZE = 14;
+
+    private static final int FLAG_ADDRESS_MASK = 0x40;
+    private static final int FLAG_TERMINAL_MASK = 0x80;
+    private static final int FLAG_WORD_COUNT_CONTINUED = 0x80;
+    private static final int ADDRESS_MASK = 0x3FFFFF;
+    private static final int MAX_GROUP_SIZE = 255;
+
+    private static final String TAG_WORD = "w";
+    private static final String ATTR_FREQ = "f";
+
+    static class Node {
+        char code;
+        int frequency;
+        boolean terminal;
+        TreeMap<Character, Node> children = new TreeMap<Character, Node>();
+    }
+
+    /**
+     * One node group of the DAWG. Equivalent groups of the trie map to a single instance.
+     */
+    static class Group {
+        char[] codes;
+        boolean[] terminals;
+        Group[] children;
+        int[] wordsBelow;
+        int words;
+        int id;
+        int address;
+    }
+
+    private final Node mRoot = new Node();
+    private int mWordCount;
+
+    public static void main(String[] args) throws Exception {
+        String srcFilename = null;
+        String destFilename = null;
+        boolean dawg = false;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-s") && i + 1 < args.length) {
+                srcFilename = args[++i];
+            } else if (args[i].equals("-d") && i + 1 < args.length) {
+                destFilename = args[++i];
+            } else if (args[i].equals("-dawg")) {
+                dawg = true;
+            } else {
+                usage();
+            }
+        }
+        if (srcFilename == null || destFilename == null) usage();
+
+        MakeBinaryDictionary maker = new MakeBinaryDictionary();
+        maker.loadWordList(srcFilename);
+        byte[] trie = maker.writeTrie();
+        byte[] out = trie;
+        if (dawg) {
+            out = maker.writeDawg(trie.length);
+            System.out.println("Trie size " + trie.length + " bytes, DAWG size " + out.length
+                    + " bytes, ratio " + String.format("%.3f", (float) out.length / trie.length));
+        }
+        FileOutputStream fos = new FileOutputStream(destFilename);
+        try {
+            fos.write(out);
+        } finally {
+            fos.close();
+        }
+        System.out.println("Wrote " + maker.mWordCount + " words, " + out.length + " bytes");
+    }
+
+    private static void usage() {
+        System.err.println("Usage: MakeBinaryDictionary -s <src_dict.xml> -d <dest.dict> [-dawg]");
+        System.exit(-1);
+    }
+
+    private void loadWordList(String filename) throws Exception {
+        SAXParser parser = SAXParserFactory.newInstance().newSAXParser();
+        parser.parse(new File(filename), new DefaultHandler() {
+            private boolean mInWord;
+            private int mFreq;
+            private StringBuilder mWord = new StringBuilder();
+
+            @Override
+            public void startElement(String uri, String localName, String qName,
+                    Attributes attributes) {
+                if (qName.equals(TAG_WORD)) {
+                    mInWord = true;
+                    mFreq = Integer.parseInt(attributes.getValue(ATTR_FREQ));
+                    mWord.setLength(0);
+                }
+            }
+
+            @Override
+            public void characters(char[] data, int offset, int length) {
+                if (mInWord) mWord.append(data, offset, length);
+            }
+
+            @Override
+            public void endElement(String uri, String localName, String qName)
+                    throws SAXException {
+                if (qName.equals(TAG_WORD)) {
+                    mInWord = false;
+                    String word = mWord.toString().trim();
+                    if (word.length() > 0) addWord(word, mFreq);
+                }
+            }
+        });
+    }
+
+    private void addWord(String word, int frequency) {
+        Node node = mRoot;
+        for (int i = 0; i < word.length(); i++) {
+            char c = word.charAt(i);
+            Node child = node.children.get(c);
+            if (child == null) {
+                child = new Node();
+                child.code = c;
+                node.children.put(c, child);
+            }
+            node = child;
+        }
+        if (!node.terminal) mWordCount++;
+        node.terminal = true;
+        node.frequency = Math.max(node.frequency, Math.min(Math.max(frequency, 1), 255));
+    }
+
+    private static int charSize(char c) {
+        return c < 0xFF ? 1 : 3;
+    }
+
+    private static void writeChar(ByteArrayOutputStream out, char c) {
+        if (c < 0xFF) {
+            out.write(c);
+        } else {
+            out.write(0xFF);
+            out.write((c >> 8) & 0xFF);
+            out.write(c & 0xFF);
+        }
+    }
+
+    private static void writeFlagsAndAddress(ByteArrayOutputStream out, boolean terminal,
+            int address) {
+        int flags = terminal ? FLAG_TERMINAL_MASK : 0;
+        if (address == 0) {
+            out.write(flags);
+            return;
+        }
+        if ((address & ~ADDRESS_MASK) != 0) {
+            throw new IllegalStateException("Dictionary too large, address " + address);
+        }
+        out.write(flags | FLAG_ADDRESS_MASK | (address >> 16));
+        out.write((address >> 8) & 0xFF);
+        out.write(address & 0xFF);
+    }
+
+    private static void writeInt(byte[] buf, int pos, int value) {
+        buf[pos] = (byte) (value >> 24);
+        buf[pos + 1] = (byte) (value >> 16);
+        buf[pos + 2] = (byte) (value >> 8);
+        buf[pos + 3] = (byte) value;
+    }
+
+    private static void checkGroupSize(int size) {
+        if (size > MAX_GROUP_SIZE) {
+            throw new IllegalStateException("Too many children in a node group: " + size);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    // Plain trie
+
+    private int trieGroupSize(Node node) {
+        int size = 1;
+        for (Node child : node.children.values()) {
+            size += charSize(child.code) + (child.children.isEmpty() ? 1 : 3);
+            // frequency and the empty bigram list
+            if (child.terminal) size += 2;
+        }
+        return size;
+    }
+
+    /**
+     * Writes the trie breadth first so that each group's address is known before its
+     * parent group is written.
+     */
+    private byte[] writeTrie() {
+        List<Node> order = new ArrayList<Node>();
+        Map<Node, Integer> addresses = new HashMap<Node, Integer>();
+        order.add(mRoot);
+        int address = TRIE_HEADER_SIZE;
+        for (int i = 0; i < order.size(); i++) {
+            Node node = order.get(i);
+            addresses.put(node, address);
+            address += trieGroupSize(node);
+            for (Node child : node.children.values()) {
+                if (!child.children.isEmpty()) order.add(child);
+            }
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(address);
+        out.write(VERSION_TRIE);
+        out.write(0);
+        for (Node node : order) {
+            checkGroupSize(node.children.size());
+            out.write(node.children.size());
+            for (Node child : node.children.values()) {
+                writeChar(out, child.code);
+                writeFlagsAndAddress(out, child.terminal,
+                        child.children.isEmpty() ? 0 : addresses.get(child));
+                if (child.terminal) {
+                    out.write(child.frequency);
+                    out.write(0);
+                }
+            }
+        }
+        return out.toByteArray();
+    }
+
+    // ------------------------------------------------------------------------
+    // DAWG
+
+    private static int varIntSize(int value) {
+        int size = 1;
+        while ((value >>>= 7) != 0) size++;
+        return size;
+    }
+
+    private static void writeVarInt(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | FLAG_WORD_COUNT_CONTINUED);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    /**
+     * Returns the canonical group for the children of the given node, sharing it with
+     * every other node that has an identical subtree.
+     */
+    private Group minimize(Node node, Map<String, Group> registry) {
+        int count = node.children.size();
+        Group group = new Group();
+        group.codes = new char[count];
+        group.terminals = new boolean[count];
+        group.children = new Group[count];
+        group.wordsBelow = new int[count];
+        StringBuilder key = new StringBuilder();
+        int i = 0;
+        for (Node child : node.children.values()) {
+            group.codes[i] = child.code;
+            group.terminals[i] = child.terminal;
+            if (!child.children.isEmpty()) {
+                group.children[i] = minimize(child, registry);
+                group.wordsBelow[i] = group.children[i].words;
+            }
+            group.words += (child.terminal ? 1 : 0) + group.wordsBelow[i];
+            key.append(child.code).append(child.terminal ? '+' : '-')
+                    .append(group.children[i] == null ? -1 : group.children[i].id)
+                    .append(',');
+            i++;
+        }
+        String signature = key.toString();
+        Group existing = registry.get(signature);
+        if (existing != null) return existing;
+        group.id = registry.size();
+        registry.put(signature, group);
+        return group;
+    }
+
+    private static int dawgGroupSize(Group group) {
+        int size = 1;
+        for (int i = 0; i < group.codes.length; i++) {
+            size += charSize(group.codes[i]);
+            size += group.children[i] == null ? 1 : 3 + varIntSize(group.wordsBelow[i]);
+        }
+        return size;
+    }
+
+    /**
+     * Collects frequencies in dictionary order, which is the order the native code
+     * numbers terminal nodes in.
+     */
+    private static void collectFrequencies(Node node, ByteArrayOutputStream out) {
+        for (Node child : node.children.values()) {
+            if (child.terminal) out.write(child.frequency);
+            collectFrequencies(child, out);
+        }
+    }
+
+    private byte[] writeDawg(int trieSize) {
+        Group root = minimize(mRoot, new HashMap<String, Group>());
+
+        List<Group> order = new ArrayList<Group>();
+        Map<Group, Boolean> seen = new HashMap<Group, Boolean>();
+        order.add(root);
+        seen.put(root, true);
+        int address = DAWG_HEADER_SIZE;
+        for (int i = 0; i < order.size(); i++) {
+            Group group = order.get(i);
+            group.address = address;
+            address += dawgGroupSize(group);
+            for (Group child : group.children) {
+                if (child != null && seen.put(child, true) == null) order.add(child);
+            }
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(address + mWordCount);
+        out.write(VERSION_DAWG);
+        out.write(0);
+        out.write(new byte[DAWG_HEADER_SIZE - TRIE_HEADER_SIZE], 0,
+                DAWG_HEADER_SIZE - TRIE_HEADER_SIZE);
+        for (Group group : order) {
+            checkGroupSize(group.codes.length);
+            out.write(group.codes.length);
+            for (int i = 0; i < group.codes.length; i++) {
+                writeChar(out, group.codes[i]);
+                Group child = group.children[i];
+                writeFlagsAndAddress(out, group.terminals[i], child == null ? 0 : child.address);
+                if (child != null) writeVarInt(out, group.wordsBelow[i]);
+            }
+        }
+        int freqTableOffset = out.size();
+        collectFrequencies(mRoot, out);
+
+        byte[] dict = out.toByteArray();
+        writeInt(dict, 2, trieSize);
+        writeInt(dict, 6, mWordCount);
+        writeInt(dict, 10, freqTableOffset);
+        System.out.println("DAWG: " + order.size() + " node groups, " + mWordCount + " words");
+        return dict;
+    }
+}
@@ -0,0 +1,616 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.pocketworkstation.pckeyboard.tools;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.pocketworkstation.pckeyboard.GesturePath;
+import org.pocketworkstation.pckeyboard.WordComposer;
+
+/**
+ * A Java port of the native dictionary lookup in app/src/main/cpp/dictionary.cpp, so that
+ * the replay harness runs on any JVM. It reads the same plain trie (version 200) and
+ * DAWG (version 201) files and follows the same search and scoring, including the second
+ * pass that allows a missed character when there are few results, as done by
+ * BinaryDictionary.getWords. Bigrams are not supported.
+ *
+ * <p>
+ * The gesture search of BinaryDictionary.getGestureWords is ported as well, and must
+ * find the same words with the same scores.
+ */
+public class DictionarySearch {
+    private static final int VERSION_MIN = 200;
+    private static final int VERSION_DAWG = 201;
+    private static final int HEADER_SIZE = 2;
+    private static final int DAWG_HEADER_SIZE = 14;
+
+    private static final int FLAG_ADDRESS_MASK = 0x40;
+    private static final int FLAG_TERMINAL_MASK = 0x80;
+    private static final int FLAG_BIGRAM_READ = 0x80;
+    private static final int FLAG_BIGRAM_CONTINUED = 0x80;
+    private static final int FLAG_WORD_COUNT_CONTINUED = 0x80;
+    private static final int ADDRESS_MASK = 0x3FFFFF;
+
+    // The values used by BinaryDictionary
+    private static final int MAX_WORD_LENGTH = 48;
+    private static final int MAX_ALTERNATIVES = 16;
+    private static final int MAX_WORDS = 18;
+    private static final int TYPED_LETTER_MULTIPLIER = 2;
+    private static final int FULL_WORD_FREQ_MULTIPLIER = 2;
+    private static final char QUOTE = '\'';
+
+    // The gesture search constants of dictionary.cpp
+    private static final int MAX_GESTURE_KEYS = 64;
+    private static final int GESTURE_MAX_COST = 1200;
+    private static final double GESTURE_COST_SCALE = 72.0;
+    private static final int GESTURE_SCORE_SCALE = 1000;
+
+    private final byte[] mDict;
+    private final boolean mLatest;
+    private final boolean mDawg;
+    private final int mRootPos;
+    private int mTerminalCount;
+    private int mFreqTableOffset;
+
+    // State of the current search
+    private final int[] mInputCodes = new int[MAX_WORD_LENGTH * MAX_ALTERNATIVES];
+    private final char[] mOutputChars = new char[MAX_WORD_LENGTH * MAX_WORDS];
+    private final int[] mFrequencies = new int[MAX_WORDS];
+    private final char[] mWord = new char[MAX_WORD_LENGTH * 3 + 1];
+    private int mInputLength;
+    private int mSkipPos;
+    private int mMaxEditDistance;
+
+    // State of the current gesture search. The partial words of the beams are kept in
+    // parallel arrays, see GestureState in dictionary.h.
+    private int mPointCount;
+    private int[] mCornerSums;
+    private final int[] mGestureKeys = new int[MAX_GESTURE_KEYS];
+    private int mGestureKeyCount;
+    private final int[] mGestureKeyIndex = new int[256];
+    private int[] mLetterCosts;
+    private int[] mNextPoints;
+    private int mBeamWidth;
+    private int[] mStatePos;
+    private int[] mStateTerminalId;
+    private int[] mStatePoint;
+    private int[] mStateCost;
+    private int[] mStateParent;
+    private char[] mStateChar;
+    private int[] mBeamSizes;
+
+    public DictionarySearch(File file) throws IOException {
+        mDict = new byte[(int) file.length()];
+        FileInputStream in = new FileInputStream(file);
+        try {
+            int read = 0;
+            while (read < mDict.length) {
+                int n = in.read(mDict, read, mDict.length - read);
+                if (n < 0) throw new IOException("Short read from " + file);
+                read += n;
+            }
+        } finally {
+            in.close();
+        }
+        int version = mDict.length > 0 ? mDict[0] & 0xFF : 0;
+        int bigram = mDict.length > 1 ? mDict[1] & 0xFF : 0;
+        mDawg = version == VERSION_DAWG && mDict.length >= DAWG_HEADER_SIZE;
+        mLatest = version >= VERSION_MIN && (bigram == 0 || bigram == 1);
+        if (mDawg) {
+            mTerminalCount = readInt(6);
+            mFreqTableOffset = readInt(10);
+            if (mFreqTableOffset < DAWG_HEADER_SIZE
+                    || mFreqTableOffset + mTerminalCount > mDict.length) {
+                mTerminalCount = 0;
+            }
+            mRootPos = DAWG_HEADER_SIZE;
+        } else {
+            mRootPos = mLatest ? HEADER_SIZE : 0;
+        }
+    }
+
+    public int getSize() {
+        return mDict.length;
+    }
+
+    /**
+     * Returns up to 18 words for the composed word, best first.
+     */
+    public List<String> getWords(WordComposer codes) {
+        List<String> words = new ArrayList<String>();
+        int codesSize = codes.size();
+        if (codesSize > MAX_WORD_LENGTH - 1 || codesSize == 0) return words;
+
+        Arrays.fill(mInputCodes, -1);
+        for (int i = 0; i < codesSize; i++) {
+            int[] alternatives = codes.getCodesAt(i);
+            System.arraycopy(alternatives, 0, mInputCodes, i * MAX_ALTERNATIVES,
+                    Math.min(alternatives.length, MAX_ALTERNATIVES));
+        }
+        Arrays.fill(mOutputChars, (char) 0);
+        Arrays.fill(mFrequencies, 0);
+
+        int count = search(codesSize, -1);
+        if (count < 5) {
+            for (int skip = 0; skip < codesSize; skip++) {
+                int tempCount = search(codesSize, skip);
+                count = Math.max(count, tempCount);
+                if (tempCount > 0) break;
+            }
+        }
+        for (int j = 0; j < count; j++) {
+            if (mFrequencies[j] < 1) break;
+            int start = j * MAX_WORD_LENGTH;
+            int len = 0;
+            while (mOutputChars[start + len] != 0) len++;
+            if (len > 0) words.add(new String(mOutputChars, start, len));
+        }
+        return words;
+    }
+
+    /**
+     * Returns up to 18 words a resampled gesture path may spell, best first.
+     * @param beamWidth how many partial words of each length the search keeps
+     */
+    public List<String> getGestureWords(GesturePath path, int beamWidth) {
+        List<String> words = new ArrayList<String>();
+        int pointCount = path.getPointCount();
+        if (pointCount <= 0 || beamWidth <= 0) return words;
+        Arrays.fill(mOutputChars, (char) 0);
+        Arrays.fill(mFrequencies, 0);
+        mPointCount = pointCount;
+        mCornerSums = path.getCornerSums();
+        indexGestureKeys(path.getCodes(), path.getCosts());
+
+        int maxDepth = Math.min(MAX_WORD_LENGTH - 1, mWord.length - 1);
+        int size = maxDepth * beamWidth;
+        if (mStatePos == null || mStatePos.length < size) {
+            mStatePos = new int[size];
+            mStateTerminalId = new int[size];
+            mStatePoint = new int[size];
+            mStateCost = new int[size];
+            mStateParent = new int[size];
+            mStateChar = new char[size];
+            mBeamSizes = new int[maxDepth];
+        }
+        mBeamWidth = beamWidth;
+
+        // The root is a state before the first point
+        mBeamSizes[0] = 0;
+        expandGestureState(mRootPos, 0, -1, 0, -1, 0, maxDepth);
+        for (int depth = 1; depth < maxDepth && mBeamSizes[depth - 1] > 0; depth++) {
+            int beam = (depth - 1) * beamWidth;
+            mBeamSizes[depth] = 0;
+            for (int i = 0; i < mBeamSizes[depth - 1]; i++) {
+                // Spell out the partial word for addWord
+                int index = i;
+                for (int d = depth - 1; d >= 0; d--) {
+                    int state = d * beamWidth + index;
+                    mWord[d] = mStateChar[state];
+                    index = mStateParent[state];
+                }
+                int state = beam + i;
+                expandGestureState(mStatePos[state], mStateTerminalId[state], mStatePoint[state],
+                        mStateCost[state], i, depth, maxDepth);
+            }
+        }
+
+        for (int j = 0; j < MAX_WORDS; j++) {
+            if (mFrequencies[j] < 1) break;
+            int len = wordLength(j);
+            if (len > 0) words.add(new String(mOutputChars, j * MAX_WORD_LENGTH, len));
+        }
+        return words;
+    }
+
+    /**
+     * Returns the score of a word found by the last {@link #getGestureWords} call.
+     */
+    public int getGestureScore(int index) {
+        return mFrequencies[index];
+    }
+
+    private void indexGestureKeys(int[] codes, int[] costs) {
+        int alternatives = GesturePath.MAX_ALTERNATIVES;
+        mGestureKeyCount = 0;
+        Arrays.fill(mGestureKeyIndex, -1);
+        int total = mPointCount * alternatives;
+        for (int i = 0; i < total; i++) {
+            int code = codes[i];
+            if (code <= 0 || mGestureKeyCount >= MAX_GESTURE_KEYS) continue;
+            if (getGestureKey(code, code) >= 0) continue;
+            if (code < 256) mGestureKeyIndex[code] = mGestureKeyCount;
+            mGestureKeys[mGestureKeyCount++] = code;
+        }
+
+        mLetterCosts = new int[mGestureKeyCount * mPointCount];
+        mNextPoints = new int[mGestureKeyCount * (mPointCount + 1)];
+        Arrays.fill(mLetterCosts, -1);
+        for (int point = 0; point < mPointCount; point++) {
+            for (int j = 0; j < alternatives; j++) {
+                int code = codes[point * alternatives + j];
+                if (code <= 0) break;
+                int key = getGestureKey(code, code);
+                if (key >= 0 && mLetterCosts[key * mPointCount + point] < 0) {
+                    mLetterCosts[key * mPointCount + point] = costs[point * alternatives + j];
+                }
+            }
+        }
+        for (int key = 0; key < mGestureKeyCount; key++) {
+            int next = key * (mPointCount + 1);
+            mNextPoints[next + mPointCount] = mPointCount;
+            for (int point = mPointCount - 1; point >= 0; point--) {
+                mNextPoints[next + point] = mLetterCosts[key * mPointCount + point] >= 0
+                        ? point : mNextPoints[next + point + 1];
+            }
+        }
+    }
+
+    private int getGestureKey(int c, int lowerC) {
+        if (lowerC < 256 && mGestureKeyIndex[lowerC] >= 0) return mGestureKeyIndex[lowerC];
+        if (c < 256) return mGestureKeyIndex[c];
+        for (int i = 0; i < mGestureKeyCount; i++) {
+            if (mGestureKeys[i] == lowerC || mGestureKeys[i] == c) return i;
+        }
+        return -1;
+    }
+
+    private int getGestureSkipCost(int from, int to) {
+        if (to - from < 4) return 0;
+        return mCornerSums[to - 1] - mCornerSums[from + 2];
+    }
+
+    // Returns the cost in the low and the point in the high half, the point is -1 if the
+    // letter isn't near the path after from
+    private long findGesturePoint(int from, int key) {
+        int letterCosts = key * mPointCount;
+        int best = 0;
+        int point = -1;
+        for (int i = mNextPoints[key * (mPointCount + 1) + from];
+                i < mPointCount && mLetterCosts[letterCosts + i] >= 0; i++) {
+            int cost = mLetterCosts[letterCosts + i] + getGestureSkipCost(from, i);
+            if (point < 0 || cost < best) {
+                best = cost;
+                point = i;
+            }
+        }
+        return ((long) point << 32) | (best & 0xFFFFFFFFL);
+    }
+
+    private void addGestureState(int depth, int pos, int terminalId, int point, int cost,
+            int parent, char c) {
+        int beam = depth * mBeamWidth;
+        int n = mBeamSizes[depth];
+        if (n == mBeamWidth && cost >= mStateCost[beam + n - 1]) return;
+        // The beam is sorted by cost, equal costs keep the order they were found in
+        int low = 0;
+        int high = n;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (mStateCost[beam + mid] <= cost) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        int moved = (n == mBeamWidth ? n - 1 : n) - low;
+        int at = beam + low;
+        System.arraycopy(mStatePos, at, mStatePos, at + 1, moved);
+        System.arraycopy(mStateTerminalId, at, mStateTerminalId, at + 1, moved);
+        System.arraycopy(mStatePoint, at, mStatePoint, at + 1, moved);
+        System.arraycopy(mStateCost, at, mStateCost, at + 1, moved);
+        System.arraycopy(mStateParent, at, mStateParent, at + 1, moved);
+        System.arraycopy(mStateChar, at, mStateChar, at + 1, moved);
+        mStatePos[at] = pos;
+        mStateTerminalId[at] = terminalId;
+        mStatePoint[at] = point;
+        mStateCost[at] = cost;
+        mStateParent[at] = parent;
+        mStateChar[at] = c;
+        if (n < mBeamWidth) mBeamSizes[depth] = n + 1;
+    }
+
+    // Extends a partial word by each letter of its children, mWord holds the partial word
+    private void expandGestureState(int pos, int terminalId, int fromPoint, int fromCost,
+            int fromIndex, int depth, int maxDepth) {
+        int last = mPointCount - 1;
+        if (pos < 0 || pos >= mDict.length) return;
+        int count = mDict[pos++] & 0xFF;
+        for (int i = 0; i < count; i++) {
+            if (pos >= mDict.length) return;
+            char c = (char) (mDict[pos++] & 0xFF);
+            if (c == 0xFF) {
+                c = (char) (((mDict[pos] & 0xFF) << 8) | (mDict[pos + 1] & 0xFF));
+                pos += 2;
+            }
+            int lowerC = toLowerCase(c);
+            int flags = mDict[pos] & 0xFF;
+            boolean terminal = (flags & FLAG_TERMINAL_MASK) != 0;
+            boolean hasChildren = (flags & FLAG_ADDRESS_MASK) != 0;
+            int childrenAddress = 0;
+            if (hasChildren) {
+                childrenAddress = ((flags << 16) | ((mDict[pos + 1] & 0xFF) << 8)
+                        | (mDict[pos + 2] & 0xFF)) & ADDRESS_MASK;
+                pos += 3;
+                if (childrenAddress >= mDict.length) childrenAddress = 0;
+            } else {
+                pos += 1;
+            }
+            int freq = 1;
+            int childTerminalId = 0;
+            if (mDawg) {
+                int wordsBelow = 0;
+                if (hasChildren) {
+                    int shift = 0;
+                    while (pos < mDict.length && shift < 32) {
+                        int b = mDict[pos++] & 0xFF;
+                        wordsBelow |= (b & ~FLAG_WORD_COUNT_CONTINUED) << shift;
+                        if ((b & FLAG_WORD_COUNT_CONTINUED) == 0) break;
+                        shift += 7;
+                    }
+                }
+                if (terminal && terminalId < mTerminalCount) {
+                    freq = mDict[mFreqTableOffset + terminalId] & 0xFF;
+                }
+                childTerminalId = terminalId + (terminal ? 1 : 0);
+                terminalId = childTerminalId + wordsBelow;
+            } else if (terminal) {
+                freq = mDict[pos++] & 0xFF;
+                if (mLatest) {
+                    // Skip the bigram list
+                    if ((mDict[pos] & FLAG_BIGRAM_READ) != 0) {
+                        boolean more = true;
+                        while (more) {
+                            pos += 3;
+                            more = (mDict[pos++] & FLAG_BIGRAM_CONTINUED) != 0;
+                        }
+                    } else {
+                        pos++;
+                    }
+                }
+            }
+
+            int point;
+            int cost;
+            // Cost of the word if it ends here, -1 if it doesn't reach the last point
+            int finalCost = -1;
+            if (c == QUOTE) {
+                // An apostrophe has no key on the path
+                if (fromPoint < 0) continue;
+                point = fromPoint;
+                cost = fromCost;
+                if (point == last) finalCost = cost;
+            } else {
+                int key = getGestureKey(c, lowerC);
+                if (key < 0) continue;
+                int letterCosts = key * mPointCount;
+                int start;
+                if (fromPoint < 0) {
+                    // The first letter is where the path starts
+                    if (mLetterCosts[letterCosts] < 0) continue;
+                    point = 0;
+                    cost = mLetterCosts[letterCosts];
+                    start = 0;
+                } else {
+                    long found = findGesturePoint(fromPoint, key);
+                    point = (int) (found >> 32);
+                    if (point < 0) continue;
+                    cost = fromCost + (int) found;
+                    start = fromPoint;
+                }
+                if (point == last) {
+                    finalCost = cost;
+                } else if (terminal && mLetterCosts[letterCosts + last] >= 0) {
+                    finalCost = (fromPoint < 0 ? cost : fromCost)
+                            + getGestureSkipCost(start, last) + mLetterCosts[letterCosts + last];
+                }
+            }
+            if (cost > GESTURE_MAX_COST) continue;
+
+            mWord[depth] = c;
+            if (terminal && finalCost >= 0 && finalCost <= GESTURE_MAX_COST) {
+                int score = (int) (freq * GESTURE_SCORE_SCALE
+                        * Math.exp(-finalCost / GESTURE_COST_SCALE));
+                if (score > mFrequencies[MAX_WORDS - 1]) addWord(depth + 1, score);
+            }
+            if (childrenAddress != 0 && depth + 1 < maxDepth) {
+                addGestureState(depth, childrenAddress, childTerminalId, point, cost,
+                        fromIndex, c);
+            }
+        }
+    }
+
+    private int search(int inputLength, int skipPos) {
+        mInputLength = inputLength;
+        mSkipPos = skipPos;
+        mMaxEditDistance = inputLength < 5 ? 2 : inputLength / 2;
+        getWordsRec(mRootPos, 0, inputLength * 3, false, 1, 0, 0, 0);
+        int count = 0;
+        while (count < MAX_WORDS && mFrequencies[count] > 0) count++;
+        return count;
+    }
+
+    private int readInt(int pos) {
+        int value = 0;
+        for (int i = pos; i < pos + 4; i++) {
+            value = (value << 8) | (mDict[i] & 0xFF);
+        }
+        return value;
+    }
+
+    private static int toLowerCase(char c) {
+        if (c > 127) {
+            String base = Normalizer.normalize(String.valueOf(c), Normalizer.Form.NFD);
+            c = base.charAt(0);
+        }
+        return Character.toLowerCase(c);
+    }
+
+    private void addWord(int length, int frequency) {
+        int insertAt = 0;
+        while (insertAt < MAX_WORDS) {
+            if (frequency > mFrequencies[insertAt]
+                    || (mFrequencies[insertAt] == frequency
+                            && length < wordLength(insertAt))) {
+                break;
+            }
+            insertAt++;
+        }
+        if (insertAt >= MAX_WORDS) return;
+        System.arraycopy(mFrequencies, insertAt, mFrequencies, insertAt + 1,
+                MAX_WORDS - insertAt - 1);
+        mFrequencies[insertAt] = frequency;
+        System.arraycopy(mOutputChars, insertAt * MAX_WORD_LENGTH, mOutputChars,
+                (insertAt + 1) * MAX_WORD_LENGTH, (MAX_WORDS - insertAt - 1) * MAX_WORD_LENGTH);
+        int dest = insertAt * MAX_WORD_LENGTH;
+        int copy = Math.min(length, MAX_WORD_LENGTH - 1);
+        System.arraycopy(mWord, 0, mOutputChars, dest, copy);
+        mOutputChars[dest + copy] = 0;
+    }
+
+    private int wordLength(int index) {
+        int start = index * MAX_WORD_LENGTH;
+        int len = 0;
+        while (len < MAX_WORD_LENGTH && mOutputChars[start + len] != 0) len++;
+        return len;
+    }
+
+    private boolean sameAsTyped(int length) {
+        if (length != mInputLength) return false;
+        for (int i = 0; i < length; i++) {
+            if (mInputCodes[i * MAX_ALTERNATIVES] != mWord[i]) return false;
+        }
+        return true;
+    }
+
+    private void getWordsRec(int pos, int depth, int maxDepth, boolean completion, int snr,
+            int inputIndex, int diffs, int terminalId) {
+        if (depth > maxDepth || diffs > mMaxEditDistance) return;
+        if (pos < 0 || pos >= mDict.length) return;
+        int count = mDict[pos++] & 0xFF;
+        int currentChars = -1;
+        if (mInputLength <= inputIndex) {
+            completion = true;
+        } else {
+            currentChars = inputIndex * MAX_ALTERNATIVES;
+        }
+
+        for (int i = 0; i < count; i++) {
+            if (pos >= mDict.length) return;
+            char c = (char) (mDict[pos++] & 0xFF);
+            if (c == 0xFF) {
+                c = (char) (((mDict[pos] & 0xFF) << 8) | (mDict[pos + 1] & 0xFF));
+                pos += 2;
+            }
+            int lowerC = toLowerCase(c);
+            int flags = mDict[pos] & 0xFF;
+            boolean terminal = (flags & FLAG_TERMINAL_MASK) != 0;
+            boolean hasChildren = (flags & FLAG_ADDRESS_MASK) != 0;
+            int childrenAddress = 0;
+            if (hasChildren) {
+                childrenAddress = ((flags << 16) | ((mDict[pos + 1] & 0xFF) << 8)
+                        | (mDict[pos + 2] & 0xFF)) & ADDRESS_MASK;
+                pos += 3;
+                if (childrenAddress >= mDict.length) childrenAddress = 0;
+            } else {
+                pos += 1;
+            }
+            int freq = 1;
+            int childTerminalId = 0;
+            if (mDawg) {
+                int wordsBelow = 0;
+                if (hasChildren) {
+                    int shift = 0;
+                    while (pos < mDict.length && shift < 32) {
+                        int b = mDict[pos++] & 0xFF;
+                        wordsBelow |= (b & ~FLAG_WORD_COUNT_CONTINUED) << shift;
+                        if ((b & FLAG_WORD_COUNT_CONTINUED) == 0) break;
+                        shift += 7;
+                    }
+                }
+                if (terminal && terminalId < mTerminalCount) {
+                    freq = mDict[mFreqTableOffset + terminalId] & 0xFF;
+                }
+                childTerminalId = terminalId + (terminal ? 1 : 0);
+                terminalId = childTerminalId + wordsBelow;
+            } else if (terminal) {
+                freq = mDict[pos++] & 0xFF;
+                if (mLatest) {
+                    // Skip the bigram list
+                    if ((mDict[pos] & FLAG_BIGRAM_READ) != 0) {
+                        boolean more = true;
+                        while (more) {
+                            pos += 3;
+                            more = (mDict[pos++] & FLAG_BIGRAM_CONTINUED) != 0;
+                        }
+                    } else {
+                        pos++;
+                    }
+                }
+            }
+
+            if (completion) {
+                mWord[depth] = c;
+                if (terminal) addWord(depth + 1, freq * snr);
+                if (childrenAddress != 0) {
+                    getWordsRec(childrenAddress, depth + 1, maxDepth, completion, snr,
+                            inputIndex, diffs, childTerminalId);
+                }
+            } else if ((c == QUOTE && mInputCodes[currentChars] != QUOTE) || mSkipPos == depth) {
+                mWord[depth] = c;
+                if (childrenAddress != 0) {
+                    getWordsRec(childrenAddress, depth + 1, maxDepth, false, snr, inputIndex,
+                            diffs, childTerminalId);
+                }
+            } else {
+                int j = 0;
+                while (j < MAX_ALTERNATIVES && mInputCodes[currentChars + j] > 0) {
+                    int code = mInputCodes[currentChars + j];
+                    if (code == lowerC || code == c) {
+                        int addedWeight = j == 0 ? TYPED_LETTER_MULTIPLIER : 1;
+                        int diff = j > 0 ? 1 : 0;
+                        mWord[depth] = c;
+                        if (mInputLength == inputIndex + 1) {
+                            if (terminal && !sameAsTyped(depth + 1)) {
+                                int finalFreq = freq * snr * addedWeight;
+                                if (mSkipPos < 0) finalFreq *= FULL_WORD_FREQ_MULTIPLIER;
+                                addWord(depth + 1, finalFreq);
+                            }
+                            if (childrenAddress != 0) {
+                                getWordsRec(childrenAddress, depth + 1, maxDepth, true,
+                                        snr * addedWeight, inputIndex + 1, diffs + diff,
+                                        childTerminalId);
+                            }
+                        } else if (childrenAddress != 0) {
+                            getWordsRec(childrenAddress, depth + 1, maxDepth, false,
+                                    snr * addedWeight, inputIndex + 1, diffs + diff,
+                                    childTerminalId);
+                        }
+                    }
+                    j++;
+                    if (mSkipPos >= 0) break;
+                }
+            }
+        }
+    }
+}
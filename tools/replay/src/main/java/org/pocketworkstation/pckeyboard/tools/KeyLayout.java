@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.pocketworkstation.pckeyboard.tools;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.pocketworkstation.pckeyboard.GesturePath;
+
+/**
+ * Key geometry rebuilt from the key centers in a trace, since the keyboard XML can't be
+ * inflated off-device. Only keys that were pressed in the trace are known.
+ *
+ * <p>
+ * Nearby codes are found the same way as ProximityKeyDetector does, with keys whose
+ * center is within the proximity threshold ordered by distance. The threshold is 1.4
+ * times the typical key pitch, as in LatinKeyboardBaseView.
+ *
+ * <p>
+ * Gesture records list all letter keys, so traces with gestures know the whole letter
+ * layout. Gesture paths are matched against the letter keys by checking every key, which
+ * finds the same keys as the keyboard grid does in the app.
+ */
+public class KeyLayout implements GesturePath.KeyGrid {
+    private static final int MAX_NEARBY_KEYS = 12;
+
+    private final int[] mCodes;
+    private final int[] mCenterX;
+    private final int[] mCenterY;
+    private final int mThresholdSquare;
+    private final int mPitch;
+
+    public KeyLayout(List<TraceReader.Event> events) {
+        Map<Integer, int[]> centers = new TreeMap<Integer, int[]>();
+        for (TraceReader.Event e : events) {
+            if (e.type == TraceReader.RECORD_KEY && e.code > 32) {
+                centers.put(e.code, new int[] { e.keyX, e.keyY });
+            } else if (e.type == TraceReader.RECORD_GESTURE) {
+                for (int k = 0; k < e.keyCodes.length; k++) {
+                    centers.put(e.keyCodes[k], new int[] { e.keyCenterX[k], e.keyCenterY[k] });
+                }
+            }
+        }
+        int count = centers.size();
+        mCodes = new int[count];
+        mCenterX = new int[count];
+        mCenterY = new int[count];
+        int i = 0;
+        for (Map.Entry<Integer, int[]> entry : centers.entrySet()) {
+            mCodes[i] = entry.getKey();
+            mCenterX[i] = entry.getValue()[0];
+            mCenterY[i] = entry.getValue()[1];
+            i++;
+        }
+        mPitch = findKeyPitch();
+        int threshold = (int) (mPitch * 1.4f);
+        mThresholdSquare = threshold * threshold;
+    }
+
+    /**
+     * Returns the median distance from a key to its nearest neighbor.
+     */
+    private int findKeyPitch() {
+        List<Integer> nearest = new ArrayList<Integer>();
+        for (int i = 0; i < mCodes.length; i++) {
+            long best = Long.MAX_VALUE;
+            for (int j = 0; j < mCodes.length; j++) {
+                if (i == j) continue;
+                long dx = mCenterX[i] - mCenterX[j];
+                long dy = mCenterY[i] - mCenterY[j];
+                long d = dx * dx + dy * dy;
+                if (d > 0 && d < best) best = d;
+            }
+            if (best != Long.MAX_VALUE) nearest.add((int) Math.sqrt(best));
+        }
+        if (nearest.isEmpty()) return 0;
+        Collections.sort(nearest);
+        return nearest.get(nearest.size() / 2);
+    }
+
+    public int getKeyCount() {
+        return mCodes.length;
+    }
+
+    public int getKeyPitch() {
+        return mPitch;
+    }
+
+    /**
+     * Finds the nearest letter keys, closest first.
+     */
+    public int getNearbyKeys(int x, int y, int[] codes, int[] distances) {
+        int count = 0;
+        for (int i = 0; i < mCodes.length; i++) {
+            if (!Character.isLetter(mCodes[i])) continue;
+            int dx = mCenterX[i] - x;
+            int dy = mCenterY[i] - y;
+            int dist = dx * dx + dy * dy;
+            int j = count;
+            while (j > 0 && distances[j - 1] > dist) j--;
+            if (j >= codes.length) continue;
+            int moved = Math.min(count, codes.length - 1) - j;
+            System.arraycopy(distances, j, distances, j + 1, moved);
+            System.arraycopy(codes, j, codes, j + 1, moved);
+            distances[j] = dist;
+            codes[j] = Character.toLowerCase(mCodes[i]);
+            if (count < codes.length) count++;
+        }
+        return count;
+    }
+
+    /**
+     * Returns the codes near a touch, the pressed code first.
+     */
+    public int[] getNearbyCodes(int primaryCode, int x, int y) {
+        int[] codes = new int[MAX_NEARBY_KEYS];
+        int[] distances = new int[MAX_NEARBY_KEYS];
+        Arrays.fill(codes, -1);
+        Arrays.fill(distances, Integer.MAX_VALUE);
+        for (int i = 0; i < mCodes.length; i++) {
+            int dx = mCenterX[i] - x;
+            int dy = mCenterY[i] - y;
+            int dist = dx * dx + dy * dy;
+            if (mCodes[i] == primaryCode) dist = -1;
+            else if (dist >= mThresholdSquare) continue;
+            for (int j = 0; j < MAX_NEARBY_KEYS; j++) {
+                if (distances[j] > dist) {
+                    System.arraycopy(distances, j, distances, j + 1, MAX_NEARBY_KEYS - j - 1);
+                    System.arraycopy(codes, j, codes, j + 1, MAX_NEARBY_KEYS - j - 1);
+                    distances[j] = dist;
+                    codes[j] = mCodes[i];
+                    break;
+                }
+            }
+        }
+        if (codes[0] != primaryCode) {
+            // Keys that were never seen with a center, such as from a hardware keyboard
+            System.arraycopy(codes, 0, codes, 1, MAX_NEARBY_KEYS - 1);
+            codes[0] = primaryCode;
+        }
+        return codes;
+    }
+}
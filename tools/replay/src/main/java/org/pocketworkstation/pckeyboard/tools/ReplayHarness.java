@@ -0,0 +1,426 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.pocketworkstation.pckeyboard.tools;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import org.pocketworkstation.pckeyboard.GesturePath;
+import org.pocketworkstation.pckeyboard.WordComposer;
+
+/**
+ * Replays recorded typing traces against a dictionary without any Android UI, to
+ * reproduce latency and accuracy problems off-device.
+ *
+ * <p>
+ * Each key press in a trace is turned into nearby codes with {@link KeyLayout}, added to a
+ * {@link WordComposer} and looked up with {@link DictionarySearch}, timing each lookup and
+ * counting the bytes it allocates. When the trace shows a word being picked, the harness
+ * checks whether that word was among its own suggestions.
+ *
+ * <p>
+ * Recorded gesture paths are decoded again with the gesture search, with the beam width
+ * the final search of a gesture uses on the device unless -beam is given. The word picked
+ * after a gesture is checked against the decoded words.
+ *
+ * <p>
+ * The report is a list of "name value" lines. Given the report of an earlier build with
+ * -baseline, metrics that got worse by more than the allowed margin are listed and the
+ * exit code is 1, so it can run as a nightly regression check.
+ *
+ * Usage: ReplayHarness -d &lt;main.dict&gt; [-o &lt;report.txt&gt;] [-baseline &lt;report.txt&gt;]
+ * [-warmup &lt;runs&gt;] [-runs &lt;runs&gt;] [-max-slowdown &lt;percent&gt;]
+ * [-max-accuracy-drop &lt;points&gt;] [-beam &lt;width&gt;] &lt;trace.bin&gt;...
+ */
+public class ReplayHarness {
+    private static final int KEYCODE_DELETE = -5;
+    private static final int VISIBLE_SUGGESTIONS = 3;
+    private static final int DEFAULT_BEAM_WIDTH = 128;
+
+    private final DictionarySearch mDictionary;
+    private final int mBeamWidth;
+    private final ThreadMXBean mThreadBean;
+    private final boolean mCountAllocations;
+
+    // Results of the measured runs
+    private long[] mLatencies = new long[1024];
+    private int mLatencyCount;
+    private long mAllocatedBytes;
+    private int mPicks;
+    private int mTop1Hits;
+    private int mVisibleHits;
+    private long[] mGestureLatencies = new long[256];
+    private int mGestureLatencyCount;
+    private int mGesturePicks;
+    private int mGestureTop1Hits;
+    private int mGestureVisibleHits;
+
+    public ReplayHarness(DictionarySearch dictionary, int beamWidth) {
+        mDictionary = dictionary;
+        mBeamWidth = beamWidth;
+        mThreadBean = ManagementFactory.getThreadMXBean();
+        mCountAllocations = mThreadBean instanceof com.sun.management.ThreadMXBean
+                && ((com.sun.management.ThreadMXBean) mThreadBean)
+                        .isThreadAllocatedMemorySupported();
+    }
+
+    public static void main(String[] args) throws Exception {
+        String dictFilename = null;
+        String outFilename = null;
+        String baselineFilename = null;
+        int warmup = 1;
+        int runs = 3;
+        double maxSlowdown = 10;
+        double maxAccuracyDrop = 0.5;
+        int beamWidth = DEFAULT_BEAM_WIDTH;
+        List<File> traces = new ArrayList<File>();
+        for (int i = 0; i < args.length; i++) {
+            boolean hasValue = i + 1 < args.length;
+            if (args[i].equals("-d") && hasValue) {
+                dictFilename = args[++i];
+            } else if (args[i].equals("-o") && hasValue) {
+                outFilename = args[++i];
+            } else if (args[i].equals("-baseline") && hasValue) {
+                baselineFilename = args[++i];
+            } else if (args[i].equals("-warmup") && hasValue) {
+                warmup = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-runs") && hasValue) {
+                runs = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-max-slowdown") && hasValue) {
+                maxSlowdown = Double.parseDouble(args[++i]);
+            } else if (args[i].equals("-max-accuracy-drop") && hasValue) {
+                maxAccuracyDrop = Double.parseDouble(args[++i]);
+            } else if (args[i].equals("-beam") && hasValue) {
+                beamWidth = Integer.parseInt(args[++i]);
+            } else if (args[i].startsWith("-")) {
+                usage();
+            } else {
+                traces.add(new File(args[i]));
+            }
+        }
+        if (dictFilename == null || traces.isEmpty() || runs < 1 || beamWidth < 1) usage();
+
+        List<List<TraceReader.Event>> sessions = new ArrayList<List<TraceReader.Event>>();
+        for (File trace : traces) {
+            sessions.add(TraceReader.read(trace));
+        }
+        ReplayHarness harness = new ReplayHarness(
+                new DictionarySearch(new File(dictFilename)), beamWidth);
+        for (int i = 0; i < warmup; i++) {
+            harness.replayAll(sessions);
+        }
+        harness.reset();
+        for (int i = 0; i < runs; i++) {
+            harness.replayAll(sessions);
+        }
+        Map<String, Double> report = harness.getReport(runs);
+
+        StringWriter text = new StringWriter();
+        PrintWriter out = new PrintWriter(text);
+        for (Map.Entry<String, Double> entry : report.entrySet()) {
+            out.println(entry.getKey() + " " + format(entry.getValue()));
+        }
+        out.flush();
+        System.out.print(text);
+        if (outFilename != null) {
+            FileWriter writer = new FileWriter(outFilename);
+            try {
+                writer.write(text.toString());
+            } finally {
+                writer.close();
+            }
+        }
+        if (baselineFilename != null) {
+            List<String> regressions = compare(readReport(new File(baselineFilename)), report,
+                    maxSlowdown, maxAccuracyDrop);
+            for (String regression : regressions) {
+                System.out.println("REGRESSION " + regression);
+            }
+            if (!regressions.isEmpty()) System.exit(1);
+        }
+    }
+
+    private static void usage() {
+        System.err.println("Usage: ReplayHarness -d <main.dict> [-o <report.txt>]"
+                + " [-baseline <report.txt>] [-warmup <runs>] [-runs <runs>]"
+                + " [-max-slowdown <percent>] [-max-accuracy-drop <points>] [-beam <width>]"
+                + " <trace.bin>...");
+        System.exit(-1);
+    }
+
+    // Always with a decimal point, the reports are read back with Double.parseDouble
+    private static String format(double value) {
+        return value == Math.rint(value) ? String.valueOf((long) value)
+                : String.format(Locale.US, "%.3f", value);
+    }
+
+    private void reset() {
+        mLatencyCount = 0;
+        mAllocatedBytes = 0;
+        mPicks = 0;
+        mTop1Hits = 0;
+        mVisibleHits = 0;
+        mGestureLatencyCount = 0;
+        mGesturePicks = 0;
+        mGestureTop1Hits = 0;
+        mGestureVisibleHits = 0;
+    }
+
+    private void replayAll(List<List<TraceReader.Event>> sessions) {
+        // Accuracy is the same on every run, only count the last one
+        mPicks = 0;
+        mTop1Hits = 0;
+        mVisibleHits = 0;
+        mGesturePicks = 0;
+        mGestureTop1Hits = 0;
+        mGestureVisibleHits = 0;
+        for (List<TraceReader.Event> events : sessions) {
+            replay(events);
+        }
+    }
+
+    private void replay(List<TraceReader.Event> events) {
+        KeyLayout layout = new KeyLayout(events);
+        WordComposer word = new WordComposer();
+        List<String> suggestions = new ArrayList<String>();
+        boolean wordEnded = false;
+        // Decoded gestures whose word wasn't picked yet, oldest first. A gesture's word is
+        // committed when the next gesture is decoded, so its pick may follow that gesture.
+        List<List<String>> gestures = new ArrayList<List<String>>();
+        // Letters typed after a gesture change its word, the pick isn't checked
+        boolean gestureEdited = false;
+        GesturePath path = new GesturePath();
+        for (TraceReader.Event e : events) {
+            switch (e.type) {
+            case TraceReader.RECORD_SESSION_START:
+                word.reset();
+                suggestions.clear();
+                wordEnded = false;
+                gestures.clear();
+                gestureEdited = false;
+                break;
+            case TraceReader.RECORD_GESTURE:
+                path.reset();
+                for (int i = 0; i < e.pointX.length; i++) {
+                    path.add(e.pointX[i], e.pointY[i]);
+                }
+                path.resample(layout);
+                gestures.add(decodeGesture(path));
+                break;
+            case TraceReader.RECORD_KEY:
+                if (Character.isLetter(e.code) || e.code == '\'') {
+                    if (!wordEnded && !gestures.isEmpty()) {
+                        gestures.clear();
+                        gestureEdited = true;
+                        break;
+                    }
+                    if (wordEnded) {
+                        word.reset();
+                        wordEnded = false;
+                    }
+                    word.add(e.code, layout.getNearbyCodes(e.code, e.x, e.y));
+                    suggestions = query(word);
+                } else if (e.code == KEYCODE_DELETE) {
+                    if (!wordEnded && word.size() > 0) {
+                        word.deleteLast();
+                        suggestions = word.size() > 0 ? query(word) : new ArrayList<String>();
+                    }
+                } else {
+                    // A separator, the pick that follows is checked against this word
+                    wordEnded = true;
+                }
+                break;
+            case TraceReader.RECORD_PICK:
+                if (gestureEdited) {
+                    gestureEdited = false;
+                } else if (word.size() > 0) {
+                    checkPick(word.getTypedWord(), suggestions, e.word);
+                } else if (!gestures.isEmpty()) {
+                    checkGesturePick(gestures.remove(0), e.word);
+                }
+                word.reset();
+                suggestions.clear();
+                wordEnded = false;
+                break;
+            }
+        }
+    }
+
+    private List<String> query(WordComposer word) {
+        long allocatedBefore = getAllocatedBytes();
+        long start = System.nanoTime();
+        List<String> words = mDictionary.getWords(word);
+        long micros = (System.nanoTime() - start) / 1000;
+        mAllocatedBytes += getAllocatedBytes() - allocatedBefore;
+        if (mLatencyCount == mLatencies.length) {
+            mLatencies = Arrays.copyOf(mLatencies, mLatencyCount * 2);
+        }
+        mLatencies[mLatencyCount++] = micros;
+        return words;
+    }
+
+    private List<String> decodeGesture(GesturePath path) {
+        long start = System.nanoTime();
+        List<String> words = mDictionary.getGestureWords(path, mBeamWidth);
+        long micros = (System.nanoTime() - start) / 1000;
+        if (mGestureLatencyCount == mGestureLatencies.length) {
+            mGestureLatencies = Arrays.copyOf(mGestureLatencies, mGestureLatencyCount * 2);
+        }
+        mGestureLatencies[mGestureLatencyCount++] = micros;
+        return words;
+    }
+
+    private long getAllocatedBytes() {
+        if (!mCountAllocations) return 0;
+        return ((com.sun.management.ThreadMXBean) mThreadBean).getThreadAllocatedBytes(
+                Thread.currentThread().getId());
+    }
+
+    /**
+     * Checks the picked word against what the candidate strip would show: the typed word
+     * followed by the dictionary suggestions.
+     */
+    private void checkPick(CharSequence typed, List<String> suggestions, String picked) {
+        mPicks++;
+        String typedWord = typed.toString();
+        List<String> shown = new ArrayList<String>();
+        shown.add(typedWord);
+        for (String s : suggestions) {
+            if (!s.equalsIgnoreCase(typedWord)) shown.add(s);
+        }
+        // The best guess is the top suggestion if there is one, else the typed word
+        String best = shown.size() > 1 ? shown.get(1) : typedWord;
+        if (best.equalsIgnoreCase(picked)) mTop1Hits++;
+        for (int i = 0; i < Math.min(VISIBLE_SUGGESTIONS, shown.size()); i++) {
+            if (shown.get(i).equalsIgnoreCase(picked)) {
+                mVisibleHits++;
+                break;
+            }
+        }
+    }
+
+    /**
+     * Checks the word picked after a gesture against the decoded words, the best of which
+     * was entered.
+     */
+    private void checkGesturePick(List<String> decoded, String picked) {
+        mGesturePicks++;
+        if (!decoded.isEmpty() && decoded.get(0).equalsIgnoreCase(picked)) mGestureTop1Hits++;
+        for (int i = 0; i < Math.min(VISIBLE_SUGGESTIONS, decoded.size()); i++) {
+            if (decoded.get(i).equalsIgnoreCase(picked)) {
+                mGestureVisibleHits++;
+                break;
+            }
+        }
+    }
+
+    private Map<String, Double> getReport(int runs) {
+        Map<String, Double> report = new LinkedHashMap<String, Double>();
+        long[] sorted = Arrays.copyOf(mLatencies, mLatencyCount);
+        Arrays.sort(sorted);
+        long total = 0;
+        for (long l : sorted) total += l;
+        report.put("keystrokes", (double) mLatencyCount / runs);
+        report.put("latency_mean_us", mLatencyCount == 0 ? 0 : (double) total / mLatencyCount);
+        report.put("latency_p50_us", (double) percentile(sorted, 50));
+        report.put("latency_p95_us", (double) percentile(sorted, 95));
+        report.put("latency_p99_us", (double) percentile(sorted, 99));
+        report.put("latency_max_us", (double) (sorted.length == 0 ? 0 : sorted[sorted.length - 1]));
+        report.put("alloc_bytes_per_key", !mCountAllocations || mLatencyCount == 0 ? -1
+                : (double) mAllocatedBytes / mLatencyCount);
+        report.put("picks", (double) mPicks);
+        report.put("hit_rate_top1", mPicks == 0 ? 0 : 100.0 * mTop1Hits / mPicks);
+        report.put("hit_rate_visible", mPicks == 0 ? 0 : 100.0 * mVisibleHits / mPicks);
+
+        long[] gestureSorted = Arrays.copyOf(mGestureLatencies, mGestureLatencyCount);
+        Arrays.sort(gestureSorted);
+        long gestureTotal = 0;
+        for (long l : gestureSorted) gestureTotal += l;
+        report.put("gestures", (double) mGestureLatencyCount / runs);
+        report.put("latency_gesture_mean_us", mGestureLatencyCount == 0 ? 0
+                : (double) gestureTotal / mGestureLatencyCount);
+        report.put("latency_gesture_p50_us", (double) percentile(gestureSorted, 50));
+        report.put("latency_gesture_p95_us", (double) percentile(gestureSorted, 95));
+        report.put("latency_gesture_max_us", (double) (gestureSorted.length == 0 ? 0
+                : gestureSorted[gestureSorted.length - 1]));
+        report.put("gesture_picks", (double) mGesturePicks);
+        report.put("hit_rate_gesture_top1", mGesturePicks == 0 ? 0
+                : 100.0 * mGestureTop1Hits / mGesturePicks);
+        report.put("hit_rate_gesture_visible", mGesturePicks == 0 ? 0
+                : 100.0 * mGestureVisibleHits / mGesturePicks);
+        return report;
+    }
+
+    private static long percentile(long[] sorted, int percentile) {
+        if (sorted.length == 0) return 0;
+        int index = (int) Math.ceil(sorted.length * percentile / 100.0) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+    }
+
+    private static Map<String, Double> readReport(File file) throws IOException {
+        Map<String, Double> report = new LinkedHashMap<String, Double>();
+        BufferedReader in = new BufferedReader(new FileReader(file));
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] parts = line.trim().split("\\s+");
+                if (parts.length == 2) report.put(parts[0], Double.parseDouble(parts[1]));
+            }
+        } finally {
+            in.close();
+        }
+        return report;
+    }
+
+    /**
+     * Returns the metrics that got slower by more than maxSlowdown percent, or whose hit
+     * rate dropped by more than maxAccuracyDrop percentage points.
+     */
+    private static List<String> compare(Map<String, Double> baseline, Map<String, Double> current,
+            double maxSlowdown, double maxAccuracyDrop) {
+        List<String> regressions = new ArrayList<String>();
+        for (Map.Entry<String, Double> entry : current.entrySet()) {
+            String name = entry.getKey();
+            Double old = baseline.get(name);
+            if (old == null) continue;
+            double value = entry.getValue();
+            if (name.startsWith("latency_") || name.startsWith("alloc_")) {
+                if (old > 0 && value > old * (1 + maxSlowdown / 100)) {
+                    regressions.add(name + " " + format(old) + " -> " + format(value));
+                }
+            } else if (name.startsWith("hit_rate_")) {
+                if (value < old - maxAccuracyDrop) {
+                    regressions.add(name + " " + format(old) + " -> " + format(value));
+                }
+            }
+        }
+        return regressions;
+    }
+}
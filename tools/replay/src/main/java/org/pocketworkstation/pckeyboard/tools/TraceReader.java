@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.pocketworkstation.pckeyboard.tools;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads the typing traces written by TraceRecorder in the app. The format is described
+ * there, the constants below must match it.
+ */
+public class TraceReader {
+    public static final int MAGIC = 0x50434b54;
+    public static final int FORMAT_VERSION = 2;
+    // Version 1 lacks gesture records but is otherwise the same
+    public static final int MIN_FORMAT_VERSION = 1;
+
+    public static final int RECORD_SESSION_START = 1;
+    public static final int RECORD_SESSION_END = 2;
+    public static final int RECORD_TOUCH = 3;
+    public static final int RECORD_KEY = 4;
+    public static final int RECORD_SUGGESTIONS = 5;
+    public static final int RECORD_PICK = 6;
+    public static final int RECORD_GESTURE = 7;
+
+    public static final int PICK_DEFAULT = 0;
+    public static final int PICK_MANUAL = 1;
+    public static final int PICK_TYPED = 2;
+
+    public static class Event {
+        public int type;
+        public long time;
+        // RECORD_KEY: primary code, touch and key center
+        // RECORD_TOUCH: action, pointer id, touch and key index
+        public int code;
+        public int x;
+        public int y;
+        public int keyX;
+        public int keyY;
+        // RECORD_SUGGESTIONS: composed word, RECORD_PICK: picked word and kind
+        public String word;
+        public int kind;
+        public int index;
+        public List<String> suggestions;
+        // RECORD_GESTURE: resampled points, and the letter keys with their centers
+        public int[] pointX;
+        public int[] pointY;
+        public int[] keyCodes;
+        public int[] keyCenterX;
+        public int[] keyCenterY;
+    }
+
+    /**
+     * Reads all events of a trace file. A truncated last record is ignored, as happens
+     * when the app was killed while writing.
+     */
+    public static List<Event> read(File file) throws IOException {
+        List<Event> events = new ArrayList<Event>();
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(file)));
+        try {
+            if (in.readInt() != MAGIC) throw new IOException("Not a trace file: " + file);
+            int version = in.readShort();
+            if (version < MIN_FORMAT_VERSION || version > FORMAT_VERSION) {
+                throw new IOException("Unsupported trace version " + version + ": " + file);
+            }
+            while (true) {
+                int type = in.read();
+                if (type < 0) break;
+                Event e = new Event();
+                e.type = type;
+                e.time = in.readLong();
+                switch (type) {
+                case RECORD_SESSION_START:
+                    in.readLong();
+                    e.code = in.readInt();
+                    break;
+                case RECORD_SESSION_END:
+                    for (int i = 0; i < 6; i++) in.readInt();
+                    break;
+                case RECORD_TOUCH:
+                    e.kind = in.readByte();
+                    e.index = in.readByte();
+                    e.x = in.readInt();
+                    e.y = in.readInt();
+                    e.code = in.readShort();
+                    break;
+                case RECORD_KEY:
+                    e.code = in.readInt();
+                    e.x = in.readInt();
+                    e.y = in.readInt();
+                    e.keyX = in.readInt();
+                    e.keyY = in.readInt();
+                    break;
+                case RECORD_SUGGESTIONS:
+                    e.word = readString(in);
+                    int count = in.readUnsignedByte();
+                    e.suggestions = new ArrayList<String>(count);
+                    for (int i = 0; i < count; i++) e.suggestions.add(readString(in));
+                    break;
+                case RECORD_PICK:
+                    e.kind = in.readByte();
+                    e.index = in.readShort();
+                    e.word = readString(in);
+                    break;
+                case RECORD_GESTURE:
+                    int points = in.readShort();
+                    e.pointX = new int[points];
+                    e.pointY = new int[points];
+                    for (int i = 0; i < points; i++) {
+                        e.pointX[i] = in.readShort();
+                        e.pointY[i] = in.readShort();
+                    }
+                    int keys = in.readUnsignedByte();
+                    e.keyCodes = new int[keys];
+                    e.keyCenterX = new int[keys];
+                    e.keyCenterY = new int[keys];
+                    for (int i = 0; i < keys; i++) {
+                        e.keyCodes[i] = in.readChar();
+                        e.keyCenterX[i] = in.readShort();
+                        e.keyCenterY[i] = in.readShort();
+                    }
+                    break;
+                default:
+                    throw new IOException("Unknown record type " + type + " in " + file);
+                }
+                events.add(e);
+            }
+        } catch (EOFException e) {
+            // Truncated last record
+        } finally {
+            in.close();
+        }
+        return events;
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readShort();
+        char[] chars = new char[length];
+        for (int i = 0; i < length; i++) chars[i] = in.readChar();
+        return new String(chars);
+    }
+}
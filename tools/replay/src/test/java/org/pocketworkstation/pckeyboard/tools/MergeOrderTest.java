@@ -0,0 +1,255 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.pocketworkstation.pckeyboard.tools;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.pocketworkstation.pckeyboard.WordComposer;
+import org.pocketworkstation.pckeyboard.WordHeap;
+import org.pocketworkstation.pckeyboard.WordRecording;
+
+/**
+ * Replays a trace through three word lists standing in for the user, contacts and main
+ * dictionaries, and checks that recording each one on its own thread and merging the
+ * recordings in dictionary order gives the same suggestions as adding every word to one
+ * heap, the way Suggest searched before the dictionaries were searched in parallel.
+ */
+public class MergeOrderTest {
+    private static final String[] ROWS = { "qwertyuiop", "asdfghjkl", "zxcvbnm" };
+    private static final int KEY_PITCH = 100;
+    // Small enough that words are pushed out of the heap while merging
+    private static final int MAX_SUGGESTIONS = 5;
+
+    // Word lists with repeated words and equal scores, so that ties decide the order, and
+    // words one dictionary scores lower than the next
+    private static final String[][] USER_WORDS = {
+        { "these", "100" }, { "there", "100" }, { "thee", "90" }, { "the", "50" },
+        { "hello", "120" }, { "held", "50" }, { "help", "120" }, { "word", "80" },
+        { "work", "80" }, { "world", "80" },
+    };
+    private static final String[][] CONTACTS_WORDS = {
+        { "theo", "100" }, { "there", "100" }, { "held", "120" }, { "hell", "120" },
+        { "wendy", "80" }, { "work", "90" },
+    };
+    private static final String[][] MAIN_WORDS = {
+        { "the", "200" }, { "they", "150" }, { "then", "150" }, { "them", "150" },
+        { "there", "100" }, { "these", "100" }, { "their", "100" }, { "three", "100" },
+        { "hello", "120" }, { "help", "120" }, { "hell", "100" }, { "held", "120" },
+        { "helm", "120" }, { "word", "80" }, { "work", "80" }, { "world", "80" },
+        { "worm", "80" }, { "worn", "80" }, { "wore", "80" },
+    };
+    private static final String[] TYPED = { "thr", "these", "hekl", "work", "wirld" };
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private ExecutorService mExecutor;
+
+    @Before
+    public void setUp() {
+        mExecutor = Executors.newFixedThreadPool(2);
+    }
+
+    @After
+    public void tearDown() {
+        mExecutor.shutdownNow();
+    }
+
+    @Test
+    public void parallelMergeMatchesSequential() throws Exception {
+        List<TraceReader.Event> events = TraceReader.read(writeTrace(TYPED));
+        KeyLayout layout = new KeyLayout(events);
+        WordComposer word = new WordComposer();
+        int queries = 0;
+        for (TraceReader.Event e : events) {
+            if (e.type != TraceReader.RECORD_KEY) continue;
+            if (!Character.isLetter(e.code)) {
+                word.reset();
+                continue;
+            }
+            word.add(e.code, layout.getNearbyCodes(e.code, e.x, e.y));
+            assertEquals(word.getTypedWord().toString(),
+                    searchSequential(word), searchParallel(word));
+            queries++;
+        }
+        assertTrue(queries > 0);
+    }
+
+    private interface WordSink {
+        void add(char[] word, int offset, int length, int score, boolean pinned);
+    }
+
+    private List<String> searchSequential(WordComposer word) {
+        final WordHeap heap = new WordHeap(MAX_SUGGESTIONS);
+        WordSink sink = new WordSink() {
+            public void add(char[] chars, int offset, int length, int score, boolean pinned) {
+                heap.add(chars, offset, length, score, pinned);
+            }
+        };
+        search(USER_WORDS, word, sink);
+        search(CONTACTS_WORDS, word, sink);
+        search(MAIN_WORDS, word, sink);
+        return getWords(heap);
+    }
+
+    private static WordSink sinkFor(final WordRecording recording) {
+        return new WordSink() {
+            public void add(char[] chars, int offset, int length, int score, boolean pinned) {
+                recording.add(chars, offset, length, score, pinned);
+            }
+        };
+    }
+
+    private List<String> searchParallel(final WordComposer word) throws Exception {
+        final WordRecording user = new WordRecording();
+        final WordRecording contacts = new WordRecording();
+        WordRecording main = new WordRecording();
+        Future<?> userSearch = mExecutor.submit(new Callable<Void>() {
+            public Void call() {
+                search(USER_WORDS, word, sinkFor(user));
+                return null;
+            }
+        });
+        Future<?> contactsSearch = mExecutor.submit(new Callable<Void>() {
+            public Void call() {
+                search(CONTACTS_WORDS, word, sinkFor(contacts));
+                return null;
+            }
+        });
+        search(MAIN_WORDS, word, sinkFor(main));
+        userSearch.get();
+        contactsSearch.get();
+        WordHeap heap = new WordHeap(MAX_SUGGESTIONS);
+        user.addTo(heap);
+        contacts.addTo(heap);
+        main.addTo(heap);
+        return getWords(heap);
+    }
+
+    // Reports each word whose start matches the typed codes, scored higher for each
+    // typed character it has, with the typed word pinned
+    private static void search(String[][] words, WordComposer word, WordSink out) {
+        CharSequence typed = word.getTypedWord();
+        for (String[] entry : words) {
+            String w = entry[0];
+            if (w.length() < word.size()) continue;
+            int exact = 0;
+            boolean matches = true;
+            for (int i = 0; i < word.size() && matches; i++) {
+                int[] codes = word.getCodesAt(i);
+                matches = false;
+                for (int code : codes) {
+                    if (code == w.charAt(i)) {
+                        matches = true;
+                        if (code == codes[0]) exact++;
+                        break;
+                    }
+                }
+            }
+            if (!matches) continue;
+            char[] chars = w.toCharArray();
+            out.add(chars, 0, chars.length, Integer.parseInt(entry[1]) * (exact + 1),
+                    w.contentEquals(typed));
+        }
+    }
+
+    private static List<String> getWords(WordHeap heap) {
+        List<String> words = new ArrayList<String>();
+        int[] slots = heap.getSortedSlots();
+        for (int i = 0; i < heap.size(); i++) {
+            StringBuilder sb = new StringBuilder();
+            heap.appendTo(slots[i], sb);
+            words.add(sb.append(' ').append(heap.getScore(slots[i])).toString());
+        }
+        return words;
+    }
+
+    // Writes a trace typing the words on a grid keyboard, each touch a little off the
+    // key center so that nearby keys are found too
+    private File writeTrace(String[] words) throws IOException {
+        File file = mFolder.newFile("merge.trace");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(file)));
+        try {
+            out.writeInt(TraceReader.MAGIC);
+            out.writeShort(TraceReader.FORMAT_VERSION);
+            out.write(TraceReader.RECORD_SESSION_START);
+            out.writeLong(0);
+            out.writeLong(0);
+            out.writeInt(0);
+            // Every letter key once, so that the layout knows all of them, then a space
+            long time = 0;
+            for (int row = 0; row < ROWS.length; row++) {
+                for (int col = 0; col < ROWS[row].length(); col++) {
+                    int keyX = col * KEY_PITCH + KEY_PITCH / 2 + row * KEY_PITCH / 4;
+                    int keyY = row * KEY_PITCH + KEY_PITCH / 2;
+                    writeKey(out, time += 150, ROWS[row].charAt(col), keyX, keyY, keyX, keyY);
+                }
+            }
+            writeKey(out, time += 150, ' ', 0, 0, 0, 0);
+            int touch = 0;
+            for (String word : words) {
+                for (int i = 0; i <= word.length(); i++) {
+                    char c = i < word.length() ? word.charAt(i) : ' ';
+                    int keyX = 0;
+                    int keyY = 0;
+                    for (int row = 0; row < ROWS.length; row++) {
+                        int col = ROWS[row].indexOf(c);
+                        if (col >= 0) {
+                            keyX = col * KEY_PITCH + KEY_PITCH / 2 + row * KEY_PITCH / 4;
+                            keyY = row * KEY_PITCH + KEY_PITCH / 2;
+                        }
+                    }
+                    int offset = (touch++ % 5 - 2) * KEY_PITCH / 6;
+                    writeKey(out, time += 150, c, keyX + offset, keyY - offset, keyX, keyY);
+                }
+            }
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    private static void writeKey(DataOutputStream out, long time, int code, int x, int y,
+            int keyX, int keyY) throws IOException {
+        out.write(TraceReader.RECORD_KEY);
+        out.writeLong(time);
+        out.writeInt(code);
+        out.writeInt(x);
+        out.writeInt(y);
+        out.writeInt(keyX);
+        out.writeInt(keyY);
+    }
+}
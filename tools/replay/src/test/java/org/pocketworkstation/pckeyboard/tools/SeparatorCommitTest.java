@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.pocketworkstation.pckeyboard.tools;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.pocketworkstation.pckeyboard.LatestResult;
+import org.pocketworkstation.pckeyboard.WordComposer;
+
+/**
+ * Follows what LatinIME does when a separator is typed before the debounced suggestion
+ * query has run: the query is sent right away, and the best word is taken from its result
+ * if it arrives within a bounded wait, so that the word is still auto-corrected.
+ */
+public class SeparatorCommitTest {
+    private static final int DEBOUNCE_MS = 200;
+    private static final int WAIT_MS = 100;
+
+    private static final String[] WORDS = { "the", "they", "them", "then" };
+    private static final String[] NEARBY = { "qwe", "wer", "ert", "rty", "tyu", "yui",
+            "uio", "iop", "asd", "sdf", "dfg", "fgh", "ghj", "hjk", "jkl" };
+
+    private ScheduledExecutorService mUiTimer;
+    private ExecutorService mWorker;
+    private final LatestResult<String> mResults = new LatestResult<String>();
+    private final WordComposer mWord = new WordComposer();
+    private ScheduledFuture<?> mPendingUpdate;
+    private int mGeneration;
+    private int mQueryMs;
+
+    @Before
+    public void setUp() {
+        mUiTimer = Executors.newSingleThreadScheduledExecutor();
+        mWorker = Executors.newSingleThreadExecutor();
+    }
+
+    @After
+    public void tearDown() {
+        mUiTimer.shutdownNow();
+        mWorker.shutdownNow();
+    }
+
+    @Test
+    public void separatorInsideDebounceWindowCorrects() {
+        mQueryMs = 30;
+        long start = System.nanoTime();
+        type("thw");
+        String committed = typeSeparator();
+        long elapsedMs = (System.nanoTime() - start) / 1000000L;
+        assertTrue("typed within the debounce window", elapsedMs < DEBOUNCE_MS);
+        assertEquals("the", committed);
+    }
+
+    @Test
+    public void slowQueryCommitsTypedWordInTime() {
+        mQueryMs = WAIT_MS * 4;
+        type("thw");
+        long start = System.nanoTime();
+        String committed = typeSeparator();
+        long elapsedMs = (System.nanoTime() - start) / 1000000L;
+        assertEquals("thw", committed);
+        assertTrue("waited " + elapsedMs + "ms", elapsedMs < WAIT_MS * 2);
+    }
+
+    // Like postUpdateSuggestions, each letter starts a new generation and puts the query
+    // off until no letter has been typed for the debounce delay
+    private void type(String letters) {
+        for (int i = 0; i < letters.length(); i++) {
+            char c = letters.charAt(i);
+            mWord.add(c, getNearbyCodes(c));
+            final int generation = ++mGeneration;
+            if (mPendingUpdate != null) mPendingUpdate.cancel(false);
+            mPendingUpdate = mUiTimer.schedule(new Runnable() {
+                public void run() {
+                    requestSuggestions(generation);
+                }
+            }, DEBOUNCE_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    // Like pickDefaultSuggestion, sends the pending query now and waits for it, bounded
+    private String typeSeparator() {
+        if (mPendingUpdate != null && mPendingUpdate.cancel(false)) {
+            requestSuggestions(mGeneration);
+        }
+        String best = mResults.await(mGeneration, WAIT_MS);
+        String typed = mWord.getTypedWord().toString();
+        mWord.reset();
+        return best != null ? best : typed;
+    }
+
+    private void requestSuggestions(final int generation) {
+        // The worker gets its own copy, as SuggestionWorker makes one
+        final WordComposer word = new WordComposer();
+        for (int i = 0; i < mWord.size(); i++) {
+            word.add(mWord.getTypedWord().charAt(i), mWord.getCodesAt(i).clone());
+        }
+        mWorker.submit(new Runnable() {
+            public void run() {
+                try {
+                    Thread.sleep(mQueryMs);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                mResults.set(generation, getBestWord(word));
+            }
+        });
+    }
+
+    // The first word whose characters are all among the codes typed for them
+    private static String getBestWord(WordComposer word) {
+        for (String w : WORDS) {
+            if (w.length() != word.size()) continue;
+            boolean matches = true;
+            for (int i = 0; i < w.length() && matches; i++) {
+                matches = false;
+                for (int code : word.getCodesAt(i)) {
+                    if (code == w.charAt(i)) matches = true;
+                }
+            }
+            if (matches) return w;
+        }
+        return word.getTypedWord().toString();
+    }
+
+    private static int[] getNearbyCodes(char c) {
+        for (String keys : NEARBY) {
+            if (keys.charAt(1) == c) {
+                int[] codes = new int[keys.length()];
+                codes[0] = c;
+                for (int i = 0, j = 1; i < keys.length(); i++) {
+                    if (keys.charAt(i) != c) codes[j++] = keys.charAt(i);
+                }
+                return codes;
+            }
+        }
+        return new int[] { c };
+    }
+}